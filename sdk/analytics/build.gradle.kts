@@ -26,6 +26,7 @@ dependencies {
     implementation(AndroidX.work.runtimeKtx)
 
     testImplementation(project(":sdk:fixtures"))
+    androidTestImplementation(AndroidX.test.ext.junit)
 }
 
 afterEvaluate {
@@ -0,0 +1,180 @@
+package com.klaviyo.analytics.networking
+
+import android.content.Context
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.klaviyo.analytics.networking.requests.KlaviyoApiRequest
+import com.klaviyo.analytics.networking.requests.KlaviyoApiRequestCodec
+import com.klaviyo.analytics.networking.requests.KlaviyoApiRequestDecoder
+import com.klaviyo.analytics.networking.requests.RequestMethod
+import com.klaviyo.core.Registry
+import com.klaviyo.core.config.Config
+import com.klaviyo.core.config.QueueDurability
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import java.io.File
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Timing benchmarks of the API queue and its persistent stores, run on a device
+ *
+ * These report timings to logcat, under [TAG], rather than asserting on them,
+ * since timings vary too much between devices to make for a reliable test.
+ * Unit tests cover the complexity of the same operations by counting work instead.
+ */
+@RunWith(AndroidJUnit4::class)
+class QueueBenchmark {
+
+    private companion object {
+        const val TAG = "KlaviyoBenchmark"
+    }
+
+    private val context: Context = InstrumentationRegistry.getInstrumentation().targetContext
+
+    private val dir = File(context.cacheDir, "klaviyo-benchmark")
+
+    @Before
+    fun setup() {
+        Registry.register<Config>(
+            Registry.configBuilder
+                .apiKey("benchmark")
+                .applicationContext(context)
+                .build()
+        )
+        dir.deleteRecursively()
+    }
+
+    @After
+    fun cleanup() {
+        dir.deleteRecursively()
+        Registry.unregister<Config>()
+    }
+
+    private fun request(uuid: String) = KlaviyoApiRequest("client/events", RequestMethod.POST, uuid = uuid)
+
+    private fun entry(uuid: String, payload: String = "x".repeat(1_000)) =
+        QueueEntry(uuid, payload.toByteArray())
+
+    /**
+     * Fastest of [runs] timings of [block], after warming up, in nanoseconds
+     */
+    private fun time(runs: Int = 3, block: () -> Unit): Long {
+        repeat(2) { block() }
+        return (1..runs).minOf {
+            val start = System.nanoTime()
+            block()
+            System.nanoTime() - start
+        }
+    }
+
+    @Test
+    fun benchmarkEnqueueAsQueueGrows() {
+        val sample = 1_000
+
+        fun enqueue(size: Int) = time {
+            val requests = List(size) { request("uuid-$size-$it") }
+            val queue = ApiRequestQueue()
+            requests.dropLast(sample).forEach { queue.offer(it) }
+            requests.takeLast(sample).forEach { if (it !in queue) queue.offer(it) }
+        }
+
+        Log.i(TAG, "Enqueue $sample requests: ${enqueue(1_000) / 1_000}µs at 1k, ${enqueue(10_000) / 1_000}µs at 10k")
+    }
+
+    @Test
+    fun benchmarkRestoreQueue() {
+        fun restore(size: Int): Long {
+            val file = File(dir, "restore-$size.journal")
+            JournalQueueStore(file, durability = QueueDurability.STRICT).enqueue(
+                List(size) { QueueEntry("uuid-$size-$it", KlaviyoApiRequestCodec.encode(request("uuid-$size-$it"))) }
+            )
+
+            // As KlaviyoApiClient.restoreQueue does on launch, then hydrating each request as it is sent
+            return time {
+                val store = JournalQueueStore(file, durability = QueueDurability.STRICT)
+                val queue = ApiRequestQueue { uuid -> store.read(uuid)?.let(KlaviyoApiRequestDecoder::fromBytes) }
+                queue.restore(store.loadIndex())
+                while (queue.poll() != null) Unit
+            }
+        }
+
+        Log.i(TAG, "Restore and drain: ${restore(1_000) / 1_000}µs for 1k, ${restore(10_000) / 1_000}µs for 10k")
+    }
+
+    @Test
+    fun benchmarkJournalOperationsAsQueueGrows() {
+        val sample = 200
+        val store = JournalQueueStore(File(dir, "api_queue.journal"), durability = QueueDurability.STRICT)
+
+        fun operations(size: Int) = time {
+            store.clear()
+            store.enqueue(List(size) { entry("$size-$it") })
+            repeat(sample) {
+                store.enqueue(listOf(entry("new-$it")))
+                store.remove(listOf("new-$it"))
+            }
+        }
+
+        Log.i(TAG, "Journal $sample ops: ${operations(200) / 1_000}µs at 200, ${operations(2_000) / 1_000}µs at 2k")
+    }
+
+    @Test
+    fun benchmarkRingAgainstJournal() {
+        val sample = 2_000
+
+        fun operations(store: QueueStore) = time {
+            store.clear()
+            repeat(sample) {
+                store.enqueue(listOf(entry("uuid-$it")))
+                store.remove(listOf("uuid-$it"))
+            }
+        }
+
+        val ring = operations(MappedRingQueueStore(File(dir, "api_queue.ring"), durability = QueueDurability.STRICT))
+        val journal = operations(JournalQueueStore(File(dir, "api_queue.journal"), durability = QueueDurability.STRICT))
+
+        Log.i(TAG, "$sample ops: ring ${ring / 1_000}µs, journal ${journal / 1_000}µs")
+    }
+
+    @Test
+    fun benchmarkBinaryRestoreAgainstJson() {
+        val requests = List(500) { request("uuid-$it") }
+        val binary = requests.map { KlaviyoApiRequestCodec.encode(it) }
+        val json = requests.map { it.toString().toByteArray() }
+
+        val binaryTime = time { binary.forEach { KlaviyoApiRequestDecoder.fromBytes(it) } }
+        val jsonTime = time { json.forEach { KlaviyoApiRequestDecoder.fromBytes(it) } }
+
+        Log.i(TAG, "Decode ${requests.size} requests: binary ${binaryTime / 1_000}µs, JSON ${jsonTime / 1_000}µs")
+    }
+
+    @Test
+    fun benchmarkBinaryEncodeAgainstJson() {
+        val requests = List(500) { request("uuid-$it") }
+
+        val binaryTime = time { requests.forEach { KlaviyoApiRequestCodec.encode(it) } }
+        val jsonTime = time { requests.forEach { it.toString().toByteArray() } }
+
+        Log.i(TAG, "Encode ${requests.size} requests: binary ${binaryTime / 1_000}µs, JSON ${jsonTime / 1_000}µs")
+    }
+
+    @Test
+    fun benchmarkEnqueuePerDurabilityMode() {
+        val count = 1_000
+
+        QueueDurability.values().forEach { durability ->
+            val file = File(dir, "durability-$durability.journal")
+            val elapsed = time(runs = 1) {
+                file.delete()
+                val store = JournalQueueStore(file, durability = durability)
+                repeat(count) { store.enqueue(listOf(entry("$durability-$it"))) }
+            }
+
+            Log.i(TAG, "$durability: ${count * 1_000_000_000L / elapsed.coerceAtLeast(1)} enqueues/s")
+        }
+    }
+}
@@ -30,6 +30,7 @@ import com.klaviyo.core.safeApply
 import com.klaviyo.core.safeCall
 import com.klaviyo.core.utils.JSONUtil.toHashMap
 import com.klaviyo.core.utils.takeIf
+import com.klaviyo.core.utils.trace
 import java.io.Serializable
 import java.util.LinkedList
 import java.util.Queue
@@ -58,25 +59,30 @@ object Klaviyo {
      */
     @JvmStatic
     fun registerForLifecycleCallbacks(applicationContext: Context) = safeApply {
-        if (!Registry.isRegistered<Config>()) {
-            // Register a partial config, missing API Key, to allow lifecycle tracking and context access for partial functionality
-            Registry.register<Config>(
-                Registry.configBuilder
-                    .applicationContext(applicationContext)
-                    .build()
-            )
-        }
+        Registry.tracer.trace("Klaviyo.registerForLifecycleCallbacks") {
+            if (!Registry.isRegistered<Config>()) {
+                // Register a partial config, missing API Key, to allow lifecycle tracking and context access for partial functionality
+                Registry.register<Config>(
+                    Registry.configBuilder
+                        .applicationContext(applicationContext)
+                        .build()
+                )
+            }
 
-        // Some APIs (such as deep linking) work without an API key, so we can register the core service now
-        Registry.registerOnce<ApiClient> { KlaviyoApiClient }
+            // Start loading persisted data now, so the first read doesn't block on disk
+            Registry.dataStore.preload()
 
-        // Register lifecycle callbacks to monitor app foreground/background state
-        applicationContext.applicationContext.takeIf<Application>()?.apply {
-            unregisterActivityLifecycleCallbacks(Registry.lifecycleCallbacks)
-            unregisterComponentCallbacks(Registry.componentCallbacks)
-            registerActivityLifecycleCallbacks(Registry.lifecycleCallbacks)
-            registerComponentCallbacks(Registry.componentCallbacks)
-        } ?: throw LifecycleException()
+            // Some APIs (such as deep linking) work without an API key, so we can register the core service now
+            Registry.registerOnce<ApiClient> { KlaviyoApiClient }
+
+            // Register lifecycle callbacks to monitor app foreground/background state
+            applicationContext.applicationContext.takeIf<Application>()?.apply {
+                unregisterActivityLifecycleCallbacks(Registry.lifecycleCallbacks)
+                unregisterComponentCallbacks(Registry.componentCallbacks)
+                registerActivityLifecycleCallbacks(Registry.lifecycleCallbacks)
+                registerComponentCallbacks(Registry.componentCallbacks)
+            } ?: throw LifecycleException()
+        }
     }
 
     /**
@@ -88,32 +94,39 @@ object Klaviyo {
      */
     @JvmStatic
     fun initialize(apiKey: String, applicationContext: Context) = safeApply {
-        Registry.register<Config>(
-            Registry.configBuilder
-                .apiKey(apiKey)
-                .applicationContext(applicationContext)
-                .build()
-        )
-
-        registerForLifecycleCallbacks(applicationContext)
-
-        Registry.registerOnce<State> {
-            KlaviyoState().also { state ->
-                Registry.register<StateSideEffects>(StateSideEffects(state))
+        Registry.tracer.trace("Klaviyo.initialize") {
+            Registry.register<Config>(
+                Registry.configBuilder
+                    .apiKey(apiKey)
+                    .applicationContext(applicationContext)
+                    .build()
+            )
+
+            Registry.remoteTuning.refresh()
+
+            registerForLifecycleCallbacks(applicationContext)
+
+            Registry.registerOnce<State> {
+                KlaviyoState().also { state ->
+                    Registry.register<StateSideEffects>(StateSideEffects(state))
+
+                    // Warm persisted state in the background, rather than on first read
+                    state.load()
+                }
             }
-        }
 
-        Registry.get<ApiClient>().startService()
+            Registry.get<ApiClient>().startService()
 
-        Registry.get<State>().apiKey = apiKey
+            Registry.get<State>().apiKey = apiKey
 
-        if (preInitQueue.isNotEmpty()) {
-            Registry.log.info(
-                "Replaying ${preInitQueue.count()} operation(s) invoked prior to Klaviyo initialization."
-            )
+            if (preInitQueue.isNotEmpty()) {
+                Registry.log.info(
+                    "Replaying ${preInitQueue.count()} operation(s) invoked prior to Klaviyo initialization."
+                )
 
-            while (preInitQueue.isNotEmpty()) {
-                preInitQueue.poll()?.let { safeCall(null, it) }
+                while (preInitQueue.isNotEmpty()) {
+                    preInitQueue.poll()?.let { safeCall(null, it) }
+                }
             }
         }
     }
@@ -296,7 +309,7 @@ object Klaviyo {
      */
     @JvmStatic
     fun createEvent(event: Event): Klaviyo = safeApply {
-        Registry.get<State>().createEvent(event, Registry.get<State>().getAsProfile())
+        Registry.get<State>().run { createEvent(event, getEventProfile()) }
     }
 
     /**
@@ -334,7 +347,7 @@ object Klaviyo {
             Registry.get<State>().pushToken?.let { event[EventKey.PUSH_TOKEN] = it }
 
             // Not using createEvent here to avoid nested safeApply calls
-            Registry.get<State>().createEvent(event, Registry.get<State>().getAsProfile())
+            Registry.get<State>().run { createEvent(event, getEventProfile()) }
         }?.safeApply {
             // Dismiss the notification if opened via an action button.
             // Body taps are handled by setAutoCancel(true) on the notification builder,
@@ -456,6 +469,13 @@ object Klaviyo {
     @JvmStatic
     fun isKlaviyoUniversalTrackingUri(uri: Uri): Boolean = uri.isKlaviyoUniversalTrackingUri
 
+    /**
+     * Profile to create an event with: the shared snapshot of [KlaviyoState], so creating
+     * an event doesn't build a new profile, else a new profile from state
+     */
+    private fun State.getEventProfile(): Profile =
+        (this as? KlaviyoState)?.getProfileSnapshot() ?: getAsProfile()
+
     /**
      * Appends Klaviyo extras from an intent to this event, parsing special fields as needed
      */
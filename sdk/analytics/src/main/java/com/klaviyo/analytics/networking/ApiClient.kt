@@ -47,7 +47,8 @@ interface ApiClient {
      * Tell the client to restore its queue from the persistent store engine
      *
      * @param forceRestore If true, always restore from persistent store.
-     *                     If false, only restore if not already initialized.
+     *                     If false, only restore if not already initialized,
+     *                     or if another process has changed the persisted queue since.
      */
     fun restoreQueue(forceRestore: Boolean = false)
 
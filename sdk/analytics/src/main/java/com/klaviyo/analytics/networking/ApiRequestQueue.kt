@@ -0,0 +1,216 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.analytics.networking.requests.KlaviyoApiRequest
+
+/**
+ * Insertion-ordered queue of API requests, indexed by UUID
+ *
+ * Backed by a doubly linked list of nodes plus a hash index of UUID to node,
+ * so that de-duplication, removal by UUID and insertion at either end are all O(1).
+ * A request is only ever present once, identified by its UUID.
+ *
+ * Requests restored from persistent store may be queued by UUID alone, see [restore].
+ * Such a request is loaded by [load] the first time it is retrieved, and is dropped from
+ * the queue if it fails to load.
+ *
+ * All operations are synchronized on the queue, except for [load], which may read from disk.
+ * A request is loaded outside the lock, so that e.g. enqueuing a request on the main thread
+ * doesn't wait on the network thread reading the next one. Iteration is over a snapshot,
+ * so the queue may be safely mutated while iterating.
+ *
+ * @param load Load a request by UUID, or return null if it is missing or invalid
+ */
+internal class ApiRequestQueue(
+    private val load: (String) -> KlaviyoApiRequest? = { null }
+) : Iterable<KlaviyoApiRequest> {
+
+    private class Node(val uuid: String, var request: KlaviyoApiRequest?) {
+        var prev: Node? = null
+        var next: Node? = null
+    }
+
+    private val index = HashMap<String, Node>()
+    private var head: Node? = null
+    private var tail: Node? = null
+
+    val size: Int
+        @Synchronized get() = index.size
+
+    @Synchronized
+    fun isEmpty(): Boolean = index.isEmpty()
+
+    fun isNotEmpty(): Boolean = !isEmpty()
+
+    @Synchronized
+    operator fun contains(uuid: String): Boolean = index.containsKey(uuid)
+
+    operator fun contains(request: KlaviyoApiRequest): Boolean = contains(request.uuid)
+
+    /**
+     * Get a queued request by UUID
+     */
+    operator fun get(uuid: String): KlaviyoApiRequest? = synchronized(this) { index[uuid] }?.let(::loaded)
+
+    /**
+     * Add a request to the tail of the queue, unless it is already queued
+     *
+     * @return Whether the request was added
+     */
+    @Synchronized
+    fun offer(request: KlaviyoApiRequest): Boolean = offer(request.uuid, request)
+
+    private fun offer(uuid: String, request: KlaviyoApiRequest?): Boolean {
+        if (index.containsKey(uuid)) return false
+
+        val node = Node(uuid, request)
+        node.prev = tail
+        tail?.next = node
+        tail = node
+        if (head == null) head = node
+        index[uuid] = node
+
+        return true
+    }
+
+    /**
+     * Add a request to the head of the queue, unless it is already queued
+     *
+     * @return Whether the request was added
+     */
+    @Synchronized
+    fun offerFirst(request: KlaviyoApiRequest): Boolean {
+        if (index.containsKey(request.uuid)) return false
+
+        val node = Node(request.uuid, request)
+        node.next = head
+        head?.prev = node
+        head = node
+        if (tail == null) tail = node
+        index[request.uuid] = node
+
+        return true
+    }
+
+    /**
+     * Retrieve the request at the head of the queue without removing it
+     */
+    fun peek(): KlaviyoApiRequest? {
+        while (true) {
+            val node = synchronized(this) { head } ?: return null
+            loaded(node)?.let { return it }
+        }
+    }
+
+    /**
+     * Remove and return the request at the head of the queue
+     */
+    fun poll(): KlaviyoApiRequest? {
+        while (true) {
+            val node = synchronized(this) { head } ?: return null
+            val request = loaded(node) ?: continue
+
+            synchronized(this) {
+                // Another thread may have changed the head while the request loaded
+                if (head === node) {
+                    unlink(node)
+                    return request
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a request by UUID
+     *
+     * @return The removed request, or null if it wasn't queued or failed to load
+     */
+    fun remove(uuid: String): KlaviyoApiRequest? {
+        val node = synchronized(this) { index[uuid]?.also(::unlink) } ?: return null
+        return loaded(node)
+    }
+
+    /**
+     * Replace the queue with the given UUIDs, to be loaded when first retrieved
+     * Requests among them that are already queued are kept as they are
+     *
+     * @param uuids UUIDs, in queue order
+     */
+    @Synchronized
+    fun restore(uuids: List<String>) {
+        val queued = index.mapValues { it.value.request }
+        clear()
+        uuids.forEach { offer(it, queued[it]) }
+    }
+
+    @Synchronized
+    fun clear() {
+        index.clear()
+        head = null
+        tail = null
+    }
+
+    /**
+     * Snapshot of queued requests, in order, loading any that haven't been yet
+     */
+    fun toList(): List<KlaviyoApiRequest> = nodes().mapNotNull(::loaded)
+
+    /**
+     * Snapshot of queued UUIDs, in order, without loading any requests
+     */
+    @Synchronized
+    fun uuids(): List<String> {
+        val list = ArrayList<String>(index.size)
+        var node = head
+        while (node != null) {
+            list.add(node.uuid)
+            node = node.next
+        }
+        return list
+    }
+
+    override fun iterator(): Iterator<KlaviyoApiRequest> = toList().iterator()
+
+    /**
+     * Snapshot of queued nodes, in order
+     */
+    @Synchronized
+    private fun nodes(): List<Node> {
+        val list = ArrayList<Node>(index.size)
+        var node = head
+        while (node != null) {
+            list.add(node)
+            node = node.next
+        }
+        return list
+    }
+
+    private fun unlink(node: Node) {
+        node.prev?.next = node.next
+        node.next?.prev = node.prev
+        if (head === node) head = node.next
+        if (tail === node) tail = node.prev
+        node.prev = null
+        node.next = null
+        index.remove(node.uuid)
+    }
+
+    /**
+     * Load the node's request if it hasn't been yet, unlinking the node if it fails to load
+     *
+     * Must be called without holding the lock. If two threads load the same node at once,
+     * both read it, and the first result is kept.
+     */
+    private fun loaded(node: Node): KlaviyoApiRequest? {
+        synchronized(this) { node.request }?.let { return it }
+
+        val request = load(node.uuid)
+
+        return synchronized(this) {
+            node.request ?: request?.also { node.request = it } ?: run {
+                // Unless it was already removed, and perhaps re-queued under a new node
+                if (index[node.uuid] === node) unlink(node)
+                null
+            }
+        }
+    }
+}
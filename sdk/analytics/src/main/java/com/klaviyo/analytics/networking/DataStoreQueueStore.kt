@@ -0,0 +1,200 @@
+package com.klaviyo.analytics.networking
+
+import android.util.Base64
+import com.klaviyo.core.Registry
+import com.klaviyo.core.model.DataStoreEditor
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.core.model.registerDataStorePartition
+import org.json.JSONArray
+import org.json.JSONException
+
+/**
+ * [QueueStore] over the shared [com.klaviyo.core.model.DataStore], in the original queue layout:
+ * each request is stored under its own UUID key, and [QUEUE_KEY] holds a JSON array of UUIDs.
+ * Payloads are stored Base64 encoded, except those written by earlier SDK versions, which are JSON.
+ *
+ * Each mutation is a single [com.klaviyo.core.model.DataStore.edit], but still re-writes
+ * the whole UUID array, so this is only used to read and migrate a legacy queue,
+ * or as a fallback if the journal is unavailable.
+ */
+internal class DataStoreQueueStore : QueueStore {
+
+    companion object {
+        const val QUEUE_KEY = "klaviyo_api_request_queue"
+
+        /**
+         * Request payloads are stored under their UUID
+         */
+        private val PAYLOAD_KEY = Regex(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"
+        )
+
+        /**
+         * Whether a store key is in the format of a request payload key
+         */
+        fun isPayloadKey(key: String): Boolean = PAYLOAD_KEY.matches(key)
+
+        /**
+         * Whether a store key belongs to the persisted queue: the UUID array,
+         * the time of the last orphan sweep, or a request payload
+         */
+        fun isQueueKey(key: String): Boolean =
+            key == QUEUE_KEY || key == OrphanedRequestSweeper.LAST_SWEEP_KEY || isPayloadKey(key)
+
+        /**
+         * Keep the persisted queue's keys in a data store partition of their own,
+         * so writing the queue doesn't re-write the rest of the SDK's state
+         */
+        fun registerPartition() = registerDataStorePartition("queue", ::isQueueKey)
+    }
+
+    private var order: MutableList<String>? = null
+
+    @Synchronized
+    override fun load(): List<QueueEntry> {
+        val uuids = mutableListOf<String>()
+        val entries = mutableListOf<QueueEntry>()
+        var wasMutated = false
+
+        restoreOrder().forEach { uuid ->
+            val payload = Registry.dataStore.fetch(uuid)?.let { decodePayload(it) }
+            if (payload == null) {
+                Registry.log.debug("Missing request payload for $uuid")
+                wasMutated = true
+            } else if (uuid !in uuids) {
+                uuids += uuid
+                entries += QueueEntry(uuid, payload)
+            }
+        }
+
+        order = uuids
+
+        // If errors were encountered, update persistent store with corrected queue
+        if (wasMutated) {
+            Registry.dataStore.edit { persistOrder() }
+        }
+
+        return entries
+    }
+
+    @Synchronized
+    override fun loadIndex(): List<String> = restoreOrder().distinct().also {
+        order = it.toMutableList()
+    }
+
+    @Synchronized
+    override fun read(uuid: String): ByteArray? =
+        Registry.dataStore.fetch(uuid)?.let { decodePayload(it) }
+
+    @Synchronized
+    override fun enqueue(entries: List<QueueEntry>, headOfLine: Boolean) {
+        val order = loadedOrder()
+
+        if (headOfLine) {
+            order.addAll(0, entries.map { it.uuid })
+        } else {
+            order.addAll(entries.map { it.uuid })
+        }
+
+        Registry.dataStore.edit {
+            entries.forEach { store(it.uuid, encodePayload(it.payload)) }
+            persistOrder()
+        }
+    }
+
+    @Synchronized
+    override fun update(entry: QueueEntry) {
+        Registry.dataStore.store(entry.uuid, encodePayload(entry.payload))
+    }
+
+    @Synchronized
+    override fun remove(uuids: Collection<String>) {
+        val order = loadedOrder()
+        order.removeAll(uuids.toSet())
+
+        Registry.dataStore.edit {
+            uuids.forEach { clear(it) }
+            persistOrder()
+        }
+    }
+
+    @Synchronized
+    override fun sync(order: List<String>) {
+        val removed = loadedOrder() - order.toSet()
+        this.order = order.toMutableList()
+
+        Registry.dataStore.edit {
+            removed.forEach { clear(it) }
+            persistOrder()
+        }
+    }
+
+    @Synchronized
+    override fun clear() {
+        val removed = loadedOrder().toList()
+        order = mutableListOf()
+
+        Registry.dataStore.edit {
+            removed.forEach { clear(it) }
+            clear(QUEUE_KEY)
+        }
+    }
+
+    /**
+     * Read the persisted UUID order, resetting it if it isn't a valid JSON array
+     */
+    private fun restoreOrder(): List<String> {
+        val persisted = Registry.dataStore.fetch(QUEUE_KEY) ?: return emptyList()
+        Registry.log.verbose("Restoring persisted queue")
+
+        return try {
+            val queue = JSONArray(persisted)
+            List(queue.length()) { i -> queue.optString(i) }
+        } catch (exception: JSONException) {
+            Registry.log.wtf("Invalid persistent queue JSON", exception)
+            Registry.log.info(persisted)
+            order = mutableListOf()
+            Registry.dataStore.edit { persistOrder() }
+            emptyList()
+        }
+    }
+
+    /**
+     * Lazily read the persisted UUID order, without reading each request
+     */
+    private fun loadedOrder(): MutableList<String> = order ?: run {
+        val persisted = Registry.dataStore.fetch(QUEUE_KEY)?.let {
+            try {
+                val queue = JSONArray(it)
+                MutableList(queue.length()) { i -> queue.optString(i) }
+            } catch (exception: JSONException) {
+                null
+            }
+        } ?: mutableListOf()
+
+        persisted.also { order = it }
+    }
+
+    private fun encodePayload(payload: ByteArray): String =
+        Base64.encodeToString(payload, Base64.NO_WRAP)
+
+    /**
+     * Decode a stored payload, passing through the plain JSON written by earlier SDK versions
+     */
+    private fun decodePayload(stored: String): ByteArray? = if (stored.startsWith("{")) {
+        stored.toByteArray(Charsets.UTF_8)
+    } else {
+        try {
+            Base64.decode(stored, Base64.NO_WRAP)
+        } catch (exception: IllegalArgumentException) {
+            Registry.log.warning("Invalid request payload encoding", exception)
+            null
+        }
+    }
+
+    private fun DataStoreEditor.persistOrder() {
+        Registry.log.verbose("Persisting queue")
+        store(QUEUE_KEY, JSONArray(loadedOrder()).toString())
+    }
+}
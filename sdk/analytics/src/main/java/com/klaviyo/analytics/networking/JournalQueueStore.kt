@@ -0,0 +1,536 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.core.Registry
+import com.klaviyo.core.config.Clock
+import com.klaviyo.core.config.QueueDurability
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.core.safeLaunch
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.zip.CRC32
+import kotlinx.coroutines.CoroutineScope
+
+/**
+ * Append-only journal file for persisting the API request queue
+ *
+ * Each queue operation (enqueue, update of retry state, removal) appends one small record,
+ * so persisting an operation costs O(1) I/O regardless of queue length.
+ * An in-memory index tracks where each live entry's latest payload lives in the file,
+ * so [loadIndex] and [read] can restore the queue without holding every payload in memory.
+ *
+ * Record layout:
+ * `op:byte | uuidLength:short | uuid:bytes | payloadLength:int | payload:bytes | crc32:int`
+ *
+ * Crash safety:
+ * - A torn or corrupt record at the tail (e.g. process killed mid-write) fails its length or
+ *   checksum, and the journal is truncated back to the last intact record when loaded.
+ * - Compaction writes live entries to a temporary file, syncs it, then atomically renames
+ *   it over the journal, so a crash mid-compaction leaves the previous journal intact.
+ *
+ * The journal is compacted once dead records outnumber live entries by [COMPACTION_RATIO].
+ *
+ * Appended records are committed according to [durability]: synced to the device after every
+ * write, or together once [commitDepth] records are uncommitted or [commitInterval] has passed.
+ * Commits always run in the background, never on the thread that appended the records,
+ * and report completion to [onCommitted] callbacks.
+ *
+ * @param file The journal file
+ * @param legacyStore Store to migrate any existing queue from, when no journal exists yet
+ * @param durability When appended records are flushed and synced to the device
+ * @param commitInterval Maximum time records are left uncommitted, in milliseconds
+ * @param commitDepth Maximum number of uncommitted records
+ */
+internal class JournalQueueStore(
+    private val file: File,
+    private val legacyStore: QueueStore? = null,
+    private val durability: QueueDurability = Registry.config.queueDurability,
+    private val commitInterval: Long = Registry.config.queueCommitInterval,
+    private val commitDepth: Int = Registry.config.queueCommitDepth
+) : QueueStore {
+
+    companion object {
+        private const val OP_ENQUEUE: Byte = 1
+        private const val OP_ENQUEUE_HEAD: Byte = 2
+        private const val OP_UPDATE: Byte = 3
+        private const val OP_REMOVE: Byte = 4
+
+        /**
+         * Compact when the journal holds this many records per live entry
+         */
+        internal const val COMPACTION_RATIO = 4
+
+        /**
+         * Don't bother compacting journals smaller than this many records
+         */
+        internal const val COMPACTION_MIN_RECORDS = 64
+
+        /**
+         * Records larger than this are assumed to be corrupt
+         */
+        private const val MAX_PAYLOAD_LENGTH = 1 shl 20
+        private const val MAX_UUID_LENGTH = 255
+    }
+
+    /**
+     * Position of a live entry in the queue, and of its latest payload in the journal
+     *
+     * @property seq Queue position: tail entries count up, head-of-line entries count down
+     */
+    private class IndexEntry(val seq: Long, var payloadOffset: Long, var payloadLength: Int)
+
+    private val index = HashMap<String, IndexEntry>()
+    private var headSeq = 0L
+    private var tailSeq = 0L
+    private var recordCount = 0
+    private var isLoaded = false
+
+    private var output: DataOutputStream? = null
+    private var outputStream: FileOutputStream? = null
+    private var outputPosition = 0L
+
+    /**
+     * Records appended since the last commit, and the pending commit of them, if any
+     */
+    private var uncommitted = 0
+    private var scheduledCommit: Clock.Cancellable? = null
+
+    /**
+     * Whether a commit is queued to run in the background as soon as possible
+     */
+    private var commitQueued = false
+
+    /**
+     * Callbacks awaiting the commit of records appended so far, see [onCommitted]
+     */
+    private val commitCallbacks = mutableListOf<(Boolean) -> Unit>()
+
+    private val tempFile get() = File(file.path + ".tmp")
+
+    @Synchronized
+    override fun load(): List<QueueEntry> = open() ?: readLiveEntries(file)
+
+    @Synchronized
+    override fun loadIndex(): List<String> = open()?.map { it.uuid }
+        ?: index.entries.sortedBy { it.value.seq }.map { it.key }
+
+    @Synchronized
+    override fun read(uuid: String): ByteArray? {
+        ensureLoaded()
+        val entry = index[uuid] ?: return null
+
+        return try {
+            output?.flush()
+            RandomAccessFile(file, "r").use { raf ->
+                ByteArray(entry.payloadLength).also { bytes ->
+                    raf.seek(entry.payloadOffset)
+                    raf.readFully(bytes)
+                }
+            }
+        } catch (e: IOException) {
+            Registry.log.error("Failed to read queue journal", e)
+            null
+        }
+    }
+
+    @Synchronized
+    override fun enqueue(entries: List<QueueEntry>, headOfLine: Boolean) = write {
+        if (headOfLine) {
+            entries.asReversed().forEach { append(OP_ENQUEUE_HEAD, it.uuid, it.payload) }
+        } else {
+            entries.forEach { append(OP_ENQUEUE, it.uuid, it.payload) }
+        }
+    }
+
+    @Synchronized
+    override fun update(entry: QueueEntry) = write {
+        if (index.containsKey(entry.uuid)) {
+            append(OP_UPDATE, entry.uuid, entry.payload)
+        }
+    }
+
+    @Synchronized
+    override fun remove(uuids: Collection<String>) = write {
+        uuids.forEach { uuid ->
+            if (index.containsKey(uuid)) {
+                append(OP_REMOVE, uuid, null)
+            }
+        }
+    }
+
+    @Synchronized
+    override fun sync(order: List<String>) {
+        ensureLoaded()
+        val entries = readLiveEntries(file).associateBy { it.uuid }
+        compact(order.mapNotNull { entries[it] })
+    }
+
+    @Synchronized
+    override fun clear() {
+        ensureLoaded()
+        compact(emptyList())
+    }
+
+    @Synchronized
+    override fun onCommitted(callback: (Boolean) -> Unit) {
+        if (uncommitted == 0) callback(true) else commitCallbacks += callback
+    }
+
+    /**
+     * Discard the in-memory index and close the journal, so it is replayed on next access,
+     * e.g. after the journal was changed by another process
+     */
+    @Synchronized
+    fun invalidate() {
+        closeOutput()
+        isLoaded = false
+    }
+
+    private fun ensureLoaded() {
+        if (!isLoaded) open()
+    }
+
+    /**
+     * Replay the journal into the in-memory index, truncating any torn record at its tail
+     *
+     * @return Live entries, if they were read in full to migrate or compact the journal
+     */
+    private fun open(): List<QueueEntry>? {
+        closeOutput()
+        index.clear()
+        headSeq = 0L
+        tailSeq = 0L
+        recordCount = 0
+        isLoaded = true
+
+        recoverCompaction()
+
+        if (!file.exists()) {
+            return migrateLegacy()
+        }
+
+        val validLength = replay()
+        if (validLength < file.length()) {
+            Registry.log.warning(
+                "Truncating ${file.length() - validLength} bytes of incomplete queue journal"
+            )
+            RandomAccessFile(file, "rw").use { it.setLength(validLength) }
+        }
+        outputPosition = validLength
+
+        if (!shouldCompact()) return null
+
+        return readLiveEntries(file).also { compact(it) }
+    }
+
+    /**
+     * Perform a batch of appends, flushing once at the end, and compact if needed
+     */
+    private inline fun write(block: () -> Unit) {
+        ensureLoaded()
+
+        try {
+            block()
+            commit()
+        } catch (e: IOException) {
+            // The index may now be ahead of what reached disk, so re-read the journal next time
+            Registry.log.error("Failed to write queue journal", e)
+            notifyCommitted(false)
+            closeOutput()
+            isLoaded = false
+            return
+        }
+
+        if (shouldCompact()) {
+            compact(readLiveEntries(file))
+        }
+    }
+
+    /**
+     * Commit appended records in the background, right away or after [commitInterval],
+     * according to [durability]
+     */
+    private fun commit() {
+        if (uncommitted == 0) return
+
+        // Strict and group commit still hand every write to the OS,
+        // so only a power loss before the commit completes can lose it
+        if (durability != QueueDurability.MEMORY_FIRST) output?.flush()
+
+        if (durability == QueueDurability.STRICT || uncommitted >= commitDepth) {
+            if (!commitQueued) {
+                commitQueued = true
+                CoroutineScope(Registry.dispatcher).safeLaunch { commitPending() }
+            }
+        } else {
+            scheduledCommit = scheduledCommit ?: Registry.clock.schedule(commitInterval) {
+                commitPending()
+            }
+        }
+    }
+
+    /**
+     * Commit appended records, off the thread that appended them
+     */
+    private fun commitPending() = synchronized(this) {
+        commitQueued = false
+
+        try {
+            commitNow()
+        } catch (e: IOException) {
+            Registry.log.error("Failed to commit queue journal", e)
+            notifyCommitted(false)
+            closeOutput()
+            isLoaded = false
+        }
+    }
+
+    /**
+     * Flush appended records to the journal, and sync them to the device unless [durability]
+     * is [QueueDurability.MEMORY_FIRST]
+     */
+    private fun commitNow() {
+        scheduledCommit?.cancel()
+        scheduledCommit = null
+
+        output?.flush()
+        if (durability != QueueDurability.MEMORY_FIRST) {
+            outputStream?.fd?.sync()
+        }
+        uncommitted = 0
+        notifyCommitted(true)
+    }
+
+    /**
+     * Report the outcome of a commit to the callbacks awaiting it
+     */
+    private fun notifyCommitted(success: Boolean) {
+        if (commitCallbacks.isEmpty()) return
+        val callbacks = commitCallbacks.toList()
+        commitCallbacks.clear()
+        callbacks.forEach { it(success) }
+    }
+
+    /**
+     * Append one record to the journal and apply it to the in-memory index
+     */
+    private fun append(op: Byte, uuid: String, payload: ByteArray?) {
+        val out = output ?: FileOutputStream(file, true).let { stream ->
+            outputStream = stream
+            outputPosition = file.length()
+            DataOutputStream(BufferedOutputStream(stream)).also { output = it }
+        }
+
+        val bytes = payload ?: ByteArray(0)
+        val uuidBytes = uuid.toByteArray(Charsets.UTF_8)
+        val crc = CRC32().apply {
+            update(op.toInt())
+            update(uuidBytes)
+            update(bytes)
+        }
+
+        val start = out.size()
+        out.writeByte(op.toInt())
+        out.writeShort(uuidBytes.size)
+        out.write(uuidBytes)
+        out.writeInt(bytes.size)
+        val payloadOffset = outputPosition + (out.size() - start)
+        out.write(bytes)
+        out.writeInt(crc.value.toInt())
+        outputPosition += out.size() - start
+        uncommitted++
+
+        apply(op, uuid, payloadOffset, bytes.size)
+    }
+
+    /**
+     * Apply a journal record to the in-memory index
+     */
+    private fun apply(op: Byte, uuid: String, payloadOffset: Long, payloadLength: Int) {
+        recordCount++
+        when (op) {
+            OP_ENQUEUE -> if (!index.containsKey(uuid)) {
+                index[uuid] = IndexEntry(++tailSeq, payloadOffset, payloadLength)
+            }
+            OP_ENQUEUE_HEAD -> if (!index.containsKey(uuid)) {
+                index[uuid] = IndexEntry(--headSeq, payloadOffset, payloadLength)
+            }
+            OP_UPDATE -> index[uuid]?.apply {
+                this.payloadOffset = payloadOffset
+                this.payloadLength = payloadLength
+            }
+            OP_REMOVE -> index.remove(uuid)
+        }
+    }
+
+    /**
+     * Replay the journal into the in-memory index
+     *
+     * @return Length of the journal up to the end of the last intact record
+     */
+    private fun replay(): Long {
+        var validLength = 0L
+
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                var position = 0L
+                while (true) {
+                    val op = try {
+                        input.readByte()
+                    } catch (e: EOFException) {
+                        break
+                    }
+
+                    if (op !in OP_ENQUEUE..OP_REMOVE) break
+
+                    val uuidLength = input.readUnsignedShort()
+                    if (uuidLength > MAX_UUID_LENGTH) break
+                    val uuidBytes = ByteArray(uuidLength).also { input.readFully(it) }
+
+                    val length = input.readInt()
+                    if (length < 0 || length > MAX_PAYLOAD_LENGTH) break
+
+                    val payloadOffset = position + 1 + 2 + uuidLength + 4
+                    val bytes = ByteArray(length).also { input.readFully(it) }
+                    val crc = input.readInt()
+
+                    val expected = CRC32().apply {
+                        update(op.toInt())
+                        update(uuidBytes)
+                        update(bytes)
+                    }
+                    if (crc != expected.value.toInt()) break
+
+                    apply(op, String(uuidBytes, Charsets.UTF_8), payloadOffset, length)
+                    position = payloadOffset + length + 4
+                    validLength = position
+                }
+            }
+        } catch (e: IOException) {
+            // Torn record at the tail: everything up to validLength is intact
+        }
+
+        return validLength
+    }
+
+    /**
+     * Read the latest payload of every live entry, in queue order
+     */
+    private fun readLiveEntries(source: File): List<QueueEntry> {
+        if (index.isEmpty()) return emptyList()
+
+        output?.flush()
+
+        return RandomAccessFile(source, "r").use { raf ->
+            index.entries
+                .sortedBy { it.value.seq }
+                .map { (uuid, entry) ->
+                    val bytes = ByteArray(entry.payloadLength)
+                    raf.seek(entry.payloadOffset)
+                    raf.readFully(bytes)
+                    QueueEntry(uuid, bytes)
+                }
+        }
+    }
+
+    private fun shouldCompact(): Boolean =
+        recordCount >= COMPACTION_MIN_RECORDS && recordCount >= index.size * COMPACTION_RATIO
+
+    /**
+     * Re-write the journal with only the given entries, atomically replacing the old journal
+     */
+    private fun compact(entries: List<QueueEntry>) {
+        Registry.log.verbose("Compacting queue journal to ${entries.size} entries")
+        closeOutput()
+
+        val temp = tempFile
+        try {
+            file.parentFile?.mkdirs()
+            FileOutputStream(temp).use { stream ->
+                DataOutputStream(BufferedOutputStream(stream)).let { out ->
+                    output = out
+                    outputPosition = 0L
+                    index.clear()
+                    headSeq = 0L
+                    tailSeq = 0L
+                    recordCount = 0
+                    entries.forEach { append(OP_ENQUEUE, it.uuid, it.payload) }
+                    out.flush()
+                    output = null
+                }
+                stream.fd.sync()
+                uncommitted = 0
+            }
+
+            if (!temp.renameTo(file)) {
+                throw IOException("Failed to replace queue journal")
+            }
+            notifyCommitted(true)
+        } catch (e: IOException) {
+            // The previous journal is intact, but the index no longer matches it
+            Registry.log.error("Failed to compact queue journal", e)
+            notifyCommitted(false)
+            output = null
+            isLoaded = false
+            temp.delete()
+        }
+    }
+
+    /**
+     * Discard the output of an interrupted compaction
+     *
+     * The rename is atomic, so a leftover temporary file may be incomplete,
+     * and the journal (or the legacy store, if interrupted mid-migration) is still intact.
+     */
+    private fun recoverCompaction() {
+        if (tempFile.exists()) {
+            Registry.log.debug("Discarding incomplete queue journal compaction")
+            tempFile.delete()
+        }
+    }
+
+    /**
+     * Import the queue from the legacy store into a new journal
+     */
+    private fun migrateLegacy(): List<QueueEntry> {
+        val entries = legacyStore?.load().orEmpty()
+
+        compact(entries)
+
+        if (file.exists()) {
+            if (entries.isNotEmpty()) {
+                Registry.log.verbose("Migrated ${entries.size} queued requests to journal")
+            }
+            legacyStore?.clear()
+        }
+
+        return entries
+    }
+
+    /**
+     * Close the journal, first committing any appended records
+     */
+    private fun closeOutput() {
+        scheduledCommit?.cancel()
+        scheduledCommit = null
+
+        try {
+            if (uncommitted > 0) commitNow()
+            output?.close()
+        } catch (e: IOException) {
+            Registry.log.warning("Failed to close queue journal", e)
+            notifyCommitted(false)
+        }
+        output = null
+        outputStream = null
+        uncommitted = 0
+    }
+}
@@ -22,13 +22,16 @@ import com.klaviyo.analytics.networking.requests.UniversalClickTrackRequest
 import com.klaviyo.analytics.networking.requests.UnregisterPushTokenApiRequest
 import com.klaviyo.core.Registry
 import com.klaviyo.core.lifecycle.ActivityEvent
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.core.networking.NetworkMonitor.NetworkState
 import com.klaviyo.core.safeLaunch
+import com.klaviyo.core.utils.AdvancedAPI
 import com.klaviyo.core.utils.takeIf
-import java.util.concurrent.ConcurrentLinkedDeque
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.CopyOnWriteArrayList
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.withContext
-import org.json.JSONArray
 import org.json.JSONException
 import org.json.JSONObject
 
@@ -36,25 +39,62 @@ import org.json.JSONObject
  * Coordinator of API request traffic
  */
 internal object KlaviyoApiClient : ApiClient {
-    internal const val QUEUE_KEY = "klaviyo_api_request_queue"
+    internal const val QUEUE_KEY = DataStoreQueueStore.QUEUE_KEY
 
     private var handlerThread = Registry.threadHelper.getHandlerThread(
         KlaviyoApiClient::class.simpleName
     )
     private var handler: Handler? = null
-    private var apiQueue = ConcurrentLinkedDeque<KlaviyoApiRequest>()
+    private val apiQueue = ApiRequestQueue(::loadRequest)
     private var queueInitialized = false
 
+    /**
+     * Requests enqueued together, to be persisted at the tail of the queue or at its head
+     */
+    private class PendingWrite(val requests: List<KlaviyoApiRequest>, val headOfLine: Boolean)
+
+    /**
+     * Requests in the in-memory queue that are not persisted yet, in the order they were queued
+     */
+    private val pendingWrites = ConcurrentLinkedQueue<PendingWrite>()
+
+    /**
+     * Held while persisting [pendingWrites], so they reach the store one at a time, in order
+     */
+    private val persistLock = Any()
+
+    /**
+     * False while another process holds the claim to send a shared queue, see [claimQueue]
+     */
+    @Volatile
+    private var canDrain = true
+
+    /**
+     * Throttles draining of a large backlog after the network is restored
+     */
+    private val slowStart = SlowStartRamp()
+
     private val scheduler get() = Registry.getOrNull<QueueScheduler>()
         ?: WorkManagerQueueScheduler(Registry.config.applicationContext).also {
             Registry.register<QueueScheduler>(it)
         }
 
+    @OptIn(AdvancedAPI::class)
+    private val queueStore get() = Registry.getOrNull<QueueStore>()
+        ?: defaultQueueStore(Registry.config.applicationContext).also {
+            Registry.register<QueueStore>(it)
+        }
+
     /**
      * List of registered API observers
      */
     private val apiObservers = CopyOnWriteArrayList<ApiObserver>()
 
+    init {
+        // Route the persisted queue's keys before they are first read or written
+        DataStoreQueueStore.registerPartition()
+    }
+
     /**
      * Initialize logic including lifecycle observers and reviving the queue from persistent store
      */
@@ -62,12 +102,12 @@ internal object KlaviyoApiClient : ApiClient {
         Registry.lifecycleMonitor.offActivityEvent(::onLifecycleActivity)
         Registry.lifecycleMonitor.onActivityEvent(::onLifecycleActivity)
 
-        Registry.networkMonitor.offNetworkChange(::onNetworkChange)
-        Registry.networkMonitor.onNetworkChange(::onNetworkChange)
-
-        restoreQueue(forceRestore = false)
+        Registry.networkMonitor.offNetworkStateChange(::onNetworkStateChange)
+        Registry.networkMonitor.onNetworkStateChange(::onNetworkStateChange)
 
-        if (apiQueue.isNotEmpty()) {
+        // The first batch restores the persisted queue on the network thread,
+        // rather than blocking the caller, which is typically the main thread at app launch
+        if (!queueInitialized || apiQueue.isNotEmpty()) {
             initBatch()
         }
     }
@@ -104,9 +144,10 @@ internal object KlaviyoApiClient : ApiClient {
             Registry.log.verbose("Enqueuing ${event.metric.name} event")
             enqueueRequest(request, headOfLine = event.metric.isKlaviyoMetric)
 
-            if (event.metric.isKlaviyoMetric) {
+            if (event.metric.isKlaviyoMetric && canDrain) {
                 // Use WorkManager to schedule flush for priority Klaviyo events
                 // This ensures ASAP delivery even during doze mode, app standby etc.
+                // Unless another process sends the queue, in which case it picks the event up
                 scheduler.scheduleFlush()
             }
         }
@@ -186,6 +227,9 @@ internal object KlaviyoApiClient : ApiClient {
      * Enqueues one or more [KlaviyoApiRequest]s to send on a background thread
      * These requests are sent to the Klaviyo asynchronous APIs
      *
+     * Only the in-memory queue is changed on the calling thread, which is often the main thread.
+     * Requests are persisted in the background, see [persistPending].
+     *
      * This method will initialize the API queue and the batching thread
      * if this is the first request made since launch.
      */
@@ -194,29 +238,71 @@ internal object KlaviyoApiClient : ApiClient {
             initBatch()
         }
 
-        var addedRequest = false
-        requests.let {
+        val added = mutableListOf<KlaviyoApiRequest>()
+
+        // Queue and mark for persisting together, so a restore in progress sees both or neither
+        synchronized(apiQueue) {
             // Reverse the arg order if headOfLine is true, so that first arg winds up first in line
-            if (headOfLine) {
-                requests.reversed()
-            } else {
-                requests.asList()
-            }
-        }.forEach { request ->
-            if (!apiQueue.contains(request)) {
-                Registry.dataStore.store(request.uuid, request.toString())
-                if (headOfLine) {
+            val ordered = if (headOfLine) requests.reversed() else requests.asList()
+
+            ordered.forEach { request ->
+                val isAdded = if (headOfLine) {
                     apiQueue.offerFirst(request)
                 } else {
                     apiQueue.offer(request)
                 }
-                broadcastApiRequest(request)
-                addedRequest = true
+                if (isAdded) added += request
+            }
+
+            if (added.isNotEmpty()) {
+                // Persist in the original arg order, the store handles head of line placement
+                val entries = if (headOfLine) added.reversed() else added.toList()
+                pendingWrites += PendingWrite(entries, headOfLine)
             }
         }
-        if (addedRequest) {
-            persistQueue()
+
+        if (added.isNotEmpty()) {
+            CoroutineScope(Registry.dispatcher).safeLaunch { persistPending() }
+        }
+
+        added.forEach { broadcastApiRequest(it) }
+    }
+
+    /**
+     * Persist requests enqueued since the last call, in the order they were queued
+     *
+     * Runs in the background after each enqueue, and before any operation that reads
+     * or changes the persisted queue, so that it sees every request queued before it.
+     * A write is only dropped from [pendingWrites] once the store has it.
+     *
+     * @return Whether every pending request is persisted
+     */
+    @WorkerThread
+    private fun persistPending(): Boolean = synchronized(persistLock) {
+        var write = pendingWrites.peek()
+        while (write != null) {
+            val entries = write.requests.map { it.toQueueEntry() }
+            val headOfLine = write.headOfLine
+            if (!tryStore("write") { enqueue(entries, headOfLine) }) break
+            pendingWrites.poll()
+            write = pendingWrites.peek()
         }
+        write == null
+    }
+
+    /**
+     * Perform an operation on the queue store, which fails if the store is unavailable,
+     * e.g. a shared store that another process has locked. The failure is logged, and the
+     * in-memory queue is left as is, so the operation is retried by a later batch.
+     *
+     * @return Whether the operation succeeded
+     */
+    private inline fun tryStore(action: String, operation: QueueStore.() -> Unit): Boolean = try {
+        queueStore.operation()
+        true
+    } catch (e: IOException) {
+        Registry.log.warning("Failed to $action persistent queue", e)
+        false
     }
 
     override fun onApiRequest(withHistory: Boolean, observer: ApiObserver) {
@@ -273,11 +359,16 @@ internal object KlaviyoApiClient : ApiClient {
 
     /**
      * Stop the background batching job while offline
+     * When connectivity is restored, drain the backlog with a slow start
+     * Other transitions while online (e.g. a wi-fi/cell handover) just resume the regular schedule
      */
-    private fun onNetworkChange(isConnected: Boolean) = if (isConnected) {
-        startBatch(true)
-    } else {
-        stopBatch()
+    private fun onNetworkStateChange(previous: NetworkState, current: NetworkState) = when {
+        !current.isOnline -> stopBatch()
+        !previous.isOnline -> {
+            slowStart.restart()
+            startBatch(true)
+        }
+        else -> startBatch()
     }
 
     /**
@@ -288,71 +379,82 @@ internal object KlaviyoApiClient : ApiClient {
     fun getQueueSize(): Int = apiQueue.size
 
     /**
-     * Reset the in-memory queue to the queue from data store
+     * Reset the in-memory queue to the queue from persistent store
+     *
+     * Only the queue order is read up front. Each request's payload is read and decoded
+     * by [loadRequest] when the request is next needed, typically just before it is sent.
+     * Requests already in memory, e.g. enqueued before a startup restore ran, are kept as is.
      *
      * @param forceRestore If true, always restore from persistent store.
-     *                     If false, only restore if not already initialized.
+     *                     If false, only restore if not already initialized,
+     *                     or if another process has changed the persisted queue since.
      */
     override fun restoreQueue(forceRestore: Boolean) {
-        if (!forceRestore && queueInitialized) {
-            return
-        }
+        synchronized(apiQueue) {
+            try {
+                if (!forceRestore && queueInitialized && !queueStore.hasExternalChanges()) {
+                    return
+                }
 
-        apiQueue.clear()
+                // Restoring replaces the in-memory queue, so it must not miss a request queued
+                if (!persistPending()) return
 
-        // Keep track if there's any errors restoring from persistent store
-        var wasMutated = false
+                apiQueue.restore(queueStore.loadIndex())
+                queueInitialized = true
+            } catch (e: IOException) {
+                // The in-memory queue is kept, and the next batch tries again
+                Registry.log.warning("Failed to restore persistent queue", e)
+                return
+            }
+        }
 
-        Registry.dataStore.fetch(QUEUE_KEY)?.let {
-            Registry.log.verbose("Restoring persisted queue")
+        OrphanedRequestSweeper.sweepIfDue()
+    }
 
-            try {
-                val queue = JSONArray(it)
-                Array(queue.length()) { i -> queue.optString(i) }
-            } catch (exception: JSONException) {
-                wasMutated = true
-                Registry.log.wtf("Invalid persistent queue JSON", exception)
-                Registry.log.info(it)
-                emptyArray<String>()
-            }
-        }?.forEach { uuid ->
-            Registry.dataStore.fetch(uuid).let { json ->
-                if (json == null) {
-                    Registry.log.debug("Missing request JSON for $uuid")
-                    wasMutated = true
-                } else {
-                    try {
-                        val request = KlaviyoApiRequestDecoder.fromJson(JSONObject(json))
-                        if (!apiQueue.contains(request)) {
-                            apiQueue.offer(request)
-                        }
-                    } catch (exception: JSONException) {
-                        wasMutated = true
-                        Registry.log.wtf("Invalid request JSON $uuid", exception)
-                        Registry.log.info(json)
-                        Registry.dataStore.clear(uuid)
-                    }
-                }
-            }
+    /**
+     * Read and decode a restored request from persistent store
+     * If its payload is missing or invalid, the request is dropped from the persistent store
+     *
+     * @return The request, or null if it could not be loaded
+     */
+    private fun loadRequest(uuid: String): KlaviyoApiRequest? {
+        val payload = try {
+            queueStore.read(uuid)
+        } catch (e: IOException) {
+            // Left in the persistent store, to be restored once it is available again
+            Registry.log.warning("Failed to read persistent queue", e)
+            return null
+        } ?: run {
+            Registry.log.debug("Missing request payload for $uuid")
+            tryStore("update") { remove(listOf(uuid)) }
+            return null
+        }
+
+        val request = try {
+            KlaviyoApiRequestDecoder.fromBytes(payload)
+        } catch (exception: JSONException) {
+            Registry.log.wtf("Invalid request JSON $uuid", exception)
+            Registry.log.info(String(payload, Charsets.UTF_8))
+            null
+        } catch (exception: IOException) {
+            Registry.log.wtf("Invalid request payload $uuid", exception)
+            null
         }
 
-        // If errors were encountered, update persistent store with corrected queue
-        if (wasMutated) {
-            persistQueue()
+        if (request == null) {
+            tryStore("update") { remove(listOf(uuid)) }
         }
 
-        queueInitialized = true
+        return request
     }
 
     /**
      * Flush current queue to persistent store
      */
     override fun persistQueue() {
-        Registry.log.verbose("Persisting queue")
-        Registry.dataStore.store(
-            QUEUE_KEY,
-            JSONArray(apiQueue.map { it.uuid }).toString()
-        )
+        if (persistPending()) {
+            tryStore("sync") { sync(apiQueue.uuids()) }
+        }
     }
 
     /**
@@ -419,15 +521,38 @@ internal object KlaviyoApiClient : ApiClient {
     /**
      * Send API requests in the queue serially
      * Note: this is a blocking method! It must be run from a background thread/context
+     *
+     * @param batchLimit Maximum number of requests to send before yielding, see [SlowStartRamp]
      */
     @WorkerThread
-    private fun sendQueueSerially(): FlushOutcome {
+    private fun sendQueueSerially(batchLimit: Int = SlowStartRamp.UNLIMITED): FlushOutcome {
+        if (!claimQueue()) {
+            return handOffQueue()
+        }
+
+        if (!persistPending()) {
+            // A request sent before it was persisted could not be removed from the store after
+            return FlushOutcome.Incomplete(defaultFlushInterval)
+        }
+
         Registry.log.verbose("Starting network batch")
 
         var retryAfter: Long? = null
+        var sentCount = 0
+
+        // Requests to remove from persistent store, deleted together in one batch at the end
+        val finished = mutableListOf<String>()
 
         while (apiQueue.isNotEmpty()) {
+            if (sentCount >= batchLimit) {
+                // Batch limit reached without errors: grow the ramp and yield before the next batch
+                slowStart.onBatchSucceeded()
+                retryAfter = Registry.config.networkSlowStartInterval
+                break
+            }
+
             val request = apiQueue.poll() ?: continue
+            sentCount++
 
             when (request.sendAndBroadcast()) {
                 Status.Unsent -> {
@@ -439,7 +564,7 @@ internal object KlaviyoApiClient : ApiClient {
                 Status.Complete, Status.Failed -> {
                     // On success or final failure, remove from queue and persistent store
                     // reset backoff timer in case we encounter a failure after this
-                    Registry.dataStore.clear(request.uuid)
+                    finished += request.uuid
                     retryAfter = defaultFlushInterval
                 }
 
@@ -447,7 +572,10 @@ internal object KlaviyoApiClient : ApiClient {
                     // Encountered a retryable error
                     // Put this back on top of the queue, and we'll try again with backoff
                     apiQueue.offerFirst(request)
+                    persistPending()
+                    tryStore("update") { update(request.toQueueEntry()) }
                     retryAfter = request.computeRetryInterval()
+                    slowStart.onBackoff()
                     break
                 }
 
@@ -458,10 +586,15 @@ internal object KlaviyoApiClient : ApiClient {
             }
         }
 
-        persistQueue()
+        if (finished.isNotEmpty()) {
+            // Requests enqueued mid-batch may be sent before they were persisted
+            persistPending()
+            tryStore("update") { remove(finished) }
+        }
 
         return if (apiQueue.isEmpty()) {
             Registry.log.verbose("Emptied network queue")
+            slowStart.end()
             FlushOutcome.Complete
         } else {
             Registry.log.verbose("Incomplete send: ${apiQueue.size} requests remain")
@@ -469,6 +602,42 @@ internal object KlaviyoApiClient : ApiClient {
         }
     }
 
+    /**
+     * Claim the right to send the queue, see [QueueStore.claimDrain]
+     *
+     * A process taking over a shared queue from another restores it in full,
+     * since it dropped its own requests from memory while handing the queue off.
+     *
+     * @return Whether this process may send the queue
+     */
+    private fun claimQueue(): Boolean {
+        if (!queueStore.claimDrain()) return false
+
+        if (!canDrain) {
+            canDrain = true
+            Registry.log.verbose("Took over sending the queue from another process")
+            restoreQueue(forceRestore = true)
+        }
+
+        return true
+    }
+
+    /**
+     * Leave the queue to the process that is sending it, when the queue is shared between
+     * processes. Our requests are already persisted, so they are dropped from memory.
+     * No flush is scheduled: the sending process checks the shared queue for changes itself,
+     * and a flush run by this process would only hand the queue off again.
+     */
+    private fun handOffQueue(): FlushOutcome {
+        Registry.log.verbose("Queue is sent by another process")
+        canDrain = false
+        synchronized(apiQueue) {
+            // Requests that failed to persist are kept, to try again with the next batch
+            if (persistPending()) apiQueue.clear()
+        }
+        return FlushOutcome.Incomplete(null)
+    }
+
     private val currentNetworkType get() = Registry.networkMonitor.getNetworkType().position
 
     internal val defaultFlushInterval get() = Registry.config.networkFlushIntervals[currentNetworkType]
@@ -497,19 +666,36 @@ internal object KlaviyoApiClient : ApiClient {
          * Posts another delayed batch job if requests remains
          */
         override fun run() {
+            if (!canDrain && !claimQueue()) {
+                // Another process still sends the queue: retry the claim in case it has died
+                handOffQueue()
+                return requeue()
+            }
+
+            // The first batch since launch restores the persisted queue,
+            // later batches pick up any changes made to a shared queue by other processes
+            restoreQueue(forceRestore = false)
+
+            if (apiQueue.isEmpty() && !force) {
+                // Keep checking a shared queue for requests enqueued by other processes
+                if (queueStore.isShared()) requeue()
+                return
+            }
+
             val queueTimePassed = Registry.clock.currentTimeMillis() - enqueuedTime
 
             if (getQueueSize() < flushDepth && queueTimePassed < flushInterval && !force) {
                 return requeue()
             }
 
-            val outcome = sendQueueSerially()
+            val outcome = sendQueueSerially(slowStart.limitFor(getQueueSize()))
 
             outcome.takeIf<FlushOutcome.Incomplete>()?.retryAfter?.let { retryAfter ->
                 flushInterval = retryAfter
             }
 
-            if (!apiQueue.isEmpty()) {
+            // A process that handed the queue off keeps retrying the claim
+            if (!apiQueue.isEmpty() || !canDrain || queueStore.isShared()) {
                 requeue()
             }
         }
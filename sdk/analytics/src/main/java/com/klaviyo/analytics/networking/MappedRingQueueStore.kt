@@ -0,0 +1,577 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.core.Registry
+import com.klaviyo.core.config.QueueDurability
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.core.safeLaunch
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+import kotlinx.coroutines.CoroutineScope
+
+/**
+ * Memory-mapped ring buffer file for persisting the API request queue
+ *
+ * Enqueuing a request copies a length-prefixed record into the mapped region and bumps the tail
+ * in the file's header, with no system call or fsync on the hot path. Writes land in the OS
+ * page cache, so they survive the app process being killed, though not a device power loss.
+ *
+ * Removing a request flags its record dead in place, and the head advances over dead records,
+ * freeing their space for re-use. When the ring is full, live records are compacted to the start
+ * of the buffer, and if they still occupy more than half of it, the file is grown.
+ *
+ * File layout: `magic | version | capacity | head | tail | used` header, followed by the ring.
+ * Record layout:
+ * `length:int | flags:byte | seq:long | uuidLength:short | uuid | payloadLength:int | payload | crc32:int`
+ * A zero length marks padding up to the end of the ring, where the next record wrapped around.
+ *
+ * With [QueueDurability.STRICT], every write is also forced to the device right away,
+ * in the background, reporting completion to [onCommitted] callbacks.
+ * The ring is chosen for speed, so other modes leave write-back of the mapping to the OS.
+ *
+ * @param file The ring buffer file
+ * @param capacity Size of the ring in bytes. An existing file is never shrunk.
+ * @param legacyStore Store to migrate any existing queue from, when the ring file is created
+ * @param durability Whether every write is forced to the device
+ */
+internal class MappedRingQueueStore(
+    private val file: File,
+    capacity: Int = DEFAULT_CAPACITY,
+    private val legacyStore: QueueStore? = null,
+    private val durability: QueueDurability = Registry.config.queueDurability
+) : QueueStore {
+
+    companion object {
+        private const val MAGIC = 0x4B515242 // "KQRB"
+        private const val VERSION = 1
+
+        private const val HEADER_SIZE = 32
+        private const val HEADER_CAPACITY = 8
+        private const val HEADER_HEAD = 12
+        private const val HEADER_TAIL = 16
+        private const val HEADER_USED = 20
+
+        /**
+         * Fixed bytes per record: length, flags, seq, uuid length, payload length, crc
+         */
+        private const val RECORD_OVERHEAD = 4 + 1 + 8 + 2 + 4 + 4
+        private const val FLAGS_OFFSET = 4
+
+        private const val LIVE: Byte = 1
+        private const val DEAD: Byte = 0
+
+        /**
+         * Default size of the ring in bytes
+         *
+         * Reasoning: Holds on the order of a few hundred typical event requests
+         * before the ring needs to grow
+         */
+        internal const val DEFAULT_CAPACITY = 256 * 1024
+
+        /**
+         * Minimum size of the ring in bytes
+         */
+        internal const val MIN_CAPACITY = 16 * 1024
+    }
+
+    /**
+     * Location of a live record in the ring, and its position in the queue
+     *
+     * @property seq Queue position: tail entries count up, head-of-line entries count down
+     */
+    private class Slot(val offset: Int, val seq: Long)
+
+    private val configuredCapacity = capacity.coerceAtLeast(MIN_CAPACITY)
+    private var capacity = configuredCapacity
+    private var buffer: MappedByteBuffer? = null
+
+    private val index = HashMap<String, Slot>()
+    private var head = 0
+    private var tail = 0
+    private var used = 0
+    private var headSeq = 0L
+    private var tailSeq = 0L
+    private var isLoaded = false
+
+    /**
+     * Whether forcing the mapping to the device is queued to run in the background
+     */
+    private var forceQueued = false
+
+    /**
+     * Callbacks awaiting the queued force, see [onCommitted]
+     */
+    private val commitCallbacks = mutableListOf<(Boolean) -> Unit>()
+
+    @Synchronized
+    override fun load(): List<QueueEntry> = restore() ?: liveRecords().map { it.second }
+
+    @Synchronized
+    override fun loadIndex(): List<String> = restore()?.map { it.uuid }
+        ?: index.entries.sortedBy { it.value.seq }.map { it.key }
+
+    @Synchronized
+    override fun read(uuid: String): ByteArray? {
+        if (!isLoaded) restore()
+        val slot = index[uuid] ?: return null
+        return readRecord(slot.offset, capacity - slot.offset)?.second?.payload
+    }
+
+    @Synchronized
+    override fun enqueue(entries: List<QueueEntry>, headOfLine: Boolean) = write {
+        // Walk head-of-line entries in reverse, so the first entry winds up first in line
+        (if (headOfLine) entries.asReversed() else entries).forEach { entry ->
+            if (!index.containsKey(entry.uuid)) {
+                val seq = if (headOfLine) --headSeq else ++tailSeq
+                append(entry.uuid, entry.payload, seq)?.let { index[entry.uuid] = Slot(it, seq) }
+            }
+        }
+    }
+
+    @Synchronized
+    override fun update(entry: QueueEntry) = write {
+        val seq = index[entry.uuid]?.seq ?: return@write
+        val offset = append(entry.uuid, entry.payload, seq) ?: return@write
+
+        // Appending may have compacted the ring, so look up the old record again
+        index[entry.uuid]?.let { markDead(it.offset) }
+        index[entry.uuid] = Slot(offset, seq)
+    }
+
+    @Synchronized
+    override fun remove(uuids: Collection<String>) = write {
+        uuids.forEach { uuid ->
+            index.remove(uuid)?.let { markDead(it.offset) }
+        }
+    }
+
+    @Synchronized
+    override fun sync(order: List<String>) = write {
+        val records = liveRecords().associate { it.second.uuid to it.second }
+        rewrite(
+            order.mapNotNull { records[it] }.mapIndexed { i, entry -> i + 1L to entry },
+            capacity
+        )
+    }
+
+    @Synchronized
+    override fun onCommitted(callback: (Boolean) -> Unit) {
+        if (forceQueued) commitCallbacks += callback else callback(true)
+    }
+
+    @Synchronized
+    override fun clear() = write {
+        index.clear()
+        head = 0
+        tail = 0
+        used = 0
+        headSeq = 0L
+        tailSeq = 0L
+    }
+
+    /**
+     * Map the ring and scan its records into the in-memory index
+     *
+     * @return Entries migrated from the legacy store if the ring is new,
+     *   or no entries if the ring could not be mapped
+     */
+    private fun restore(): List<QueueEntry>? {
+        index.clear()
+        headSeq = 0L
+        tailSeq = 0L
+        isLoaded = true
+
+        val isNew = !file.exists()
+
+        try {
+            open()
+        } catch (e: IOException) {
+            Registry.log.error("Failed to map queue ring buffer", e)
+            buffer = null
+            return emptyList()
+        }
+
+        if (isNew) {
+            return migrateLegacy()
+        }
+
+        scan()
+
+        if (capacity < configuredCapacity) {
+            // Ring was configured larger since the file was created
+            rewrite(liveRecords(), configuredCapacity)
+        }
+
+        return null
+    }
+
+    /**
+     * Perform a mutation, then advance the head past dead records and persist the header
+     */
+    private inline fun write(block: () -> Unit) {
+        if (!isLoaded) restore()
+        if (buffer == null) return
+
+        block()
+        advanceHead()
+        writeHeader()
+
+        if (durability == QueueDurability.STRICT && !forceQueued) {
+            forceQueued = true
+            CoroutineScope(Registry.dispatcher).safeLaunch { forcePending() }
+        }
+    }
+
+    /**
+     * Force writes to the device, off the thread that made them
+     */
+    private fun forcePending() = synchronized(this) {
+        forceQueued = false
+        buffer?.force()
+
+        val callbacks = commitCallbacks.toList()
+        commitCallbacks.clear()
+        callbacks.forEach { it(true) }
+    }
+
+    private fun abs(offset: Int) = HEADER_SIZE + offset
+
+    /**
+     * Map the file, creating or resetting it if it has no valid header
+     */
+    private fun open() {
+        file.parentFile?.mkdirs()
+
+        val stored = RandomAccessFile(file, "rw").use { raf ->
+            if (raf.length() < HEADER_SIZE) return@use null
+            raf.seek(0)
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) return@use null
+            raf.readInt().takeIf { it >= MIN_CAPACITY && raf.length() >= HEADER_SIZE + it.toLong() }
+        }
+
+        if (stored == null) {
+            map(configuredCapacity)
+            head = 0
+            tail = 0
+            used = 0
+            writeHeader()
+        } else {
+            map(stored)
+            buffer?.let {
+                head = it.getInt(HEADER_HEAD)
+                tail = it.getInt(HEADER_TAIL)
+                used = it.getInt(HEADER_USED)
+            }
+            if (head !in 0..capacity || tail !in 0..capacity || used !in 0..capacity) {
+                Registry.log.warning("Invalid queue ring buffer header, resetting")
+                head = 0
+                tail = 0
+                used = 0
+                writeHeader()
+            }
+        }
+    }
+
+    /**
+     * Map [size] bytes of ring, growing the file if needed. The file is never shrunk while mapped.
+     */
+    private fun map(size: Int) {
+        RandomAccessFile(file, "rw").use { raf ->
+            val length = HEADER_SIZE.toLong() + size
+            if (raf.length() < length) raf.setLength(length)
+            buffer = raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, length)
+        }
+        capacity = size
+    }
+
+    private fun writeHeader() {
+        buffer?.apply {
+            putInt(0, MAGIC)
+            putInt(4, VERSION)
+            putInt(HEADER_CAPACITY, capacity)
+            putInt(HEADER_HEAD, head)
+            putInt(HEADER_TAIL, tail)
+            putInt(HEADER_USED, used)
+        }
+    }
+
+    /**
+     * Walk the ring from head to tail, indexing live records. A torn record ends the ring.
+     */
+    private fun scan() {
+        val buf = buffer ?: return
+        var offset = head
+        var remaining = used
+
+        while (remaining > 0) {
+            val toEnd = capacity - offset
+            if (toEnd < 4 || buf.getInt(abs(offset)) == 0) {
+                // Padding: the next record wrapped around to the start
+                if (toEnd > remaining) break
+                remaining -= toEnd
+                offset = 0
+                continue
+            }
+
+            val length = buf.getInt(abs(offset))
+            val record = readRecord(offset, minOf(remaining, toEnd)) ?: break
+
+            if (buf.get(abs(offset) + FLAGS_OFFSET) == LIVE) {
+                // A later copy of the same request supersedes an earlier one, see update
+                index[record.second.uuid]?.let { markDead(it.offset) }
+                index[record.second.uuid] = Slot(offset, record.first)
+                headSeq = minOf(headSeq, record.first)
+                tailSeq = maxOf(tailSeq, record.first)
+            }
+
+            offset += length
+            remaining -= length
+            if (offset == capacity) offset = 0
+        }
+
+        if (remaining > 0) {
+            Registry.log.warning("Discarding $remaining bytes of incomplete queue ring buffer")
+            tail = offset
+            used -= remaining
+        }
+
+        advanceHead()
+        writeHeader()
+    }
+
+    /**
+     * Decode and verify the record at [offset], which may span at most [limit] bytes
+     *
+     * @return The record's seq and entry, or null if the record is torn or corrupt
+     */
+    private fun readRecord(offset: Int, limit: Int): Pair<Long, QueueEntry>? {
+        val buf = buffer ?: return null
+        var position = abs(offset)
+
+        val length = buf.getInt(position)
+        if (length < RECORD_OVERHEAD || length > limit) return null
+        position += 4
+
+        val flags = buf.get(position)
+        position += 1
+        val seq = buf.getLong(position)
+        position += 8
+        val uuidLength = buf.getShort(position).toInt() and 0xFFFF
+        position += 2
+        if (RECORD_OVERHEAD + uuidLength > length) return null
+        val uuid = ByteArray(uuidLength).also { bytes -> read(buf, position, bytes) }
+        position += uuidLength
+        val payloadLength = buf.getInt(position)
+        position += 4
+        if (RECORD_OVERHEAD + uuidLength + payloadLength != length) return null
+        val payload = ByteArray(payloadLength).also { bytes -> read(buf, position, bytes) }
+        position += payloadLength
+
+        if (buf.getInt(position) != checksum(seq, uuid, payload)) return null
+        if (flags != LIVE && flags != DEAD) return null
+
+        return seq to QueueEntry(String(uuid, Charsets.UTF_8), payload)
+    }
+
+    private fun read(buf: MappedByteBuffer, position: Int, into: ByteArray) {
+        val view = buf.duplicate()
+        view.position(position)
+        view.get(into)
+    }
+
+    private fun checksum(seq: Long, uuid: ByteArray, payload: ByteArray): Int = CRC32().run {
+        for (shift in 56 downTo 0 step 8) update((seq shr shift).toInt())
+        update(uuid)
+        update(payload)
+        value.toInt()
+    }
+
+    /**
+     * Live entries with their seq, in queue order
+     */
+    private fun liveRecords(): List<Pair<Long, QueueEntry>> = index.values
+        .sortedBy { it.seq }
+        .mapNotNull { readRecord(it.offset, capacity - it.offset) }
+
+    /**
+     * Copy a live record into the ring, making room if needed
+     *
+     * If there is still no room, e.g. because growing the file failed, the record is not written.
+     * Enqueuing happens on the host app's thread, so this must not throw. The request is still
+     * queued in memory, it just won't survive the process.
+     *
+     * @return Offset of the new record, or null if there was no room. Does not update the index.
+     */
+    private fun append(uuid: String, payload: ByteArray, seq: Long): Int? {
+        val uuidBytes = uuid.toByteArray(Charsets.UTF_8)
+        val length = RECORD_OVERHEAD + uuidBytes.size + payload.size
+
+        val offset = reserve(length) ?: run {
+            makeRoom(length)
+            reserve(length)
+        } ?: run {
+            Registry.log.error("Queue ring buffer has no room, $uuid will not be persisted")
+            return null
+        }
+
+        writeRecord(offset, seq, uuidBytes, payload)
+        tail = offset + length
+        used += length
+
+        return offset
+    }
+
+    private fun writeRecord(offset: Int, seq: Long, uuid: ByteArray, payload: ByteArray) {
+        val view = buffer?.duplicate() ?: return
+        view.position(abs(offset))
+        view.putInt(RECORD_OVERHEAD + uuid.size + payload.size)
+        view.put(LIVE)
+        view.putLong(seq)
+        view.putShort(uuid.size.toShort())
+        view.put(uuid)
+        view.putInt(payload.size)
+        view.put(payload)
+        view.putInt(checksum(seq, uuid, payload))
+    }
+
+    /**
+     * Find a contiguous free region of [length] bytes at the tail, wrapping around if needed
+     *
+     * @return Offset of the region, or null if the ring has no room
+     */
+    private fun reserve(length: Int): Int? {
+        if (used == 0) {
+            head = 0
+            tail = 0
+        }
+
+        if (used == capacity) return null
+
+        if (tail >= head) {
+            // Free space is from the tail to the end, then from the start to the head
+            val toEnd = capacity - tail
+            if (length <= toEnd) return tail
+            if (length > head) return null
+
+            // Pad out the end of the ring and wrap around
+            if (toEnd >= 4) buffer?.putInt(abs(tail), 0)
+            used += toEnd
+            tail = 0
+            return 0
+        }
+
+        return tail.takeIf { length <= head - tail }
+    }
+
+    /**
+     * Compact live records to the start of the ring, growing it if they would still fill it
+     */
+    private fun makeRoom(length: Int) {
+        val records = liveRecords()
+        val needed = records.sumOf {
+            RECORD_OVERHEAD + it.second.uuid.toByteArray().size + it.second.payload.size
+        } + length
+
+        var newCapacity = capacity
+        while (needed > newCapacity / 2) newCapacity *= 2
+
+        if (newCapacity != capacity) {
+            Registry.log.warning("Queue ring buffer is full, growing to $newCapacity bytes")
+        }
+
+        rewrite(records, newCapacity)
+    }
+
+    /**
+     * Re-write the ring with only the given records, optionally at a new capacity
+     */
+    private fun rewrite(records: List<Pair<Long, QueueEntry>>, newCapacity: Int) {
+        Registry.log.verbose("Compacting queue ring buffer to ${records.size} entries")
+
+        if (newCapacity > capacity) {
+            try {
+                map(newCapacity)
+            } catch (e: IOException) {
+                Registry.log.error("Failed to grow queue ring buffer", e)
+            }
+        }
+
+        index.clear()
+        head = 0
+        tail = 0
+        used = 0
+        headSeq = 0L
+        tailSeq = 0L
+
+        records.forEach { (seq, entry) ->
+            val uuidBytes = entry.uuid.toByteArray(Charsets.UTF_8)
+            val length = RECORD_OVERHEAD + uuidBytes.size + entry.payload.size
+            if (tail + length > capacity) {
+                Registry.log.error("Queue ring buffer overflow, dropping ${entry.uuid}")
+                return@forEach
+            }
+
+            writeRecord(tail, seq, uuidBytes, entry.payload)
+            index[entry.uuid] = Slot(tail, seq)
+            headSeq = minOf(headSeq, seq)
+            tailSeq = maxOf(tailSeq, seq)
+            tail += length
+            used += length
+        }
+
+        writeHeader()
+        buffer?.force()
+    }
+
+    private fun markDead(offset: Int) {
+        buffer?.put(abs(offset) + FLAGS_OFFSET, DEAD)
+    }
+
+    /**
+     * Free the space of dead records and padding at the head of the ring
+     */
+    private fun advanceHead() {
+        val buf = buffer ?: return
+
+        while (used > 0) {
+            val toEnd = capacity - head
+            if (toEnd < 4 || buf.getInt(abs(head)) == 0) {
+                used -= toEnd
+                head = 0
+                continue
+            }
+
+            if (buf.get(abs(head) + FLAGS_OFFSET) != DEAD) break
+
+            val length = buf.getInt(abs(head))
+            head += length
+            used -= length
+            if (head == capacity) head = 0
+        }
+
+        if (used <= 0) {
+            used = 0
+            head = 0
+            tail = 0
+        }
+    }
+
+    /**
+     * Import the queue from the legacy store into a new ring
+     */
+    private fun migrateLegacy(): List<QueueEntry> {
+        val entries = legacyStore?.load() ?: return emptyList()
+
+        if (entries.isNotEmpty()) {
+            enqueue(entries, headOfLine = false)
+            Registry.log.verbose("Migrated ${entries.size} queued requests to ring buffer")
+        }
+        legacyStore.clear()
+
+        return entries
+    }
+}
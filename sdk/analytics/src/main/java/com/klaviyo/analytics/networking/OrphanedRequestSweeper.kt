@@ -0,0 +1,126 @@
+package com.klaviyo.analytics.networking
+
+import androidx.annotation.WorkerThread
+import com.klaviyo.analytics.networking.DataStoreQueueStore.Companion.QUEUE_KEY
+import com.klaviyo.core.Registry
+import java.util.concurrent.atomic.AtomicInteger
+import org.json.JSONArray
+import org.json.JSONException
+
+/**
+ * Removes request payloads left in the [com.klaviyo.core.model.DataStore] without being
+ * referenced by [QUEUE_KEY], e.g. if the process died mid-write, a payload failed to decode,
+ * or the queue was migrated to another [com.klaviyo.core.model.QueueStore].
+ *
+ * Orphans are otherwise loaded into memory with the preferences file on every launch, forever.
+ *
+ * Only the SDK's own store is swept: a store provided by the host app with
+ * [com.klaviyo.core.config.Config.Builder.dataStore] may hold keys of the host's own that are
+ * shaped like request UUIDs, and those must never be removed.
+ */
+internal object OrphanedRequestSweeper {
+
+    /**
+     * Key for storing the time of the last sweep
+     */
+    const val LAST_SWEEP_KEY = "klaviyo_orphan_sweep_time"
+
+    /**
+     * Minimum time between sweeps
+     *
+     * Reasoning: Orphans are rare and harmless beyond their memory footprint,
+     * so there's no need to list every stored key more than once a day
+     */
+    const val SWEEP_INTERVAL = 24 * 60 * 60 * 1000L
+
+    /**
+     * Maximum number of orphans removed per store edit
+     *
+     * Reasoning: Keeps each edit, and the time observers spend handling it, small,
+     * so a large backlog of orphans doesn't hold up other writes
+     */
+    const val BATCH_SIZE = 50
+
+    private val removed = AtomicInteger(0)
+
+    /**
+     * Number of orphaned payloads removed since launch, for diagnostics
+     */
+    val removedCount: Int get() = removed.get()
+
+    /**
+     * Whether [Registry.dataStore] is provided by the host app, and so mustn't be swept
+     */
+    private val isHostStore: Boolean get() = Registry.config.dataStore != null
+
+    /**
+     * Sweep the store, unless it has already been swept within [SWEEP_INTERVAL]
+     *
+     * @return Number of orphaned payloads removed
+     */
+    @WorkerThread
+    fun sweepIfDue(): Int {
+        if (isHostStore) return 0
+
+        val now = Registry.clock.currentTimeMillis()
+        val lastSweep = Registry.dataStore.fetch(LAST_SWEEP_KEY)?.toLongOrNull()
+
+        if (lastSweep != null && now - lastSweep in 0 until SWEEP_INTERVAL) {
+            return 0
+        }
+
+        Registry.dataStore.store(LAST_SWEEP_KEY, now.toString())
+        return sweep()
+    }
+
+    /**
+     * Remove every stored request payload that isn't referenced by [QUEUE_KEY]
+     *
+     * Keys are listed before the queue is read: a payload is always persisted in the same edit
+     * as the queue that references it, so a payload listed here can't be missing from the queue
+     * read afterward unless it has really been orphaned.
+     *
+     * @return Number of orphaned payloads removed, always 0 if the store is provided by the host
+     */
+    @WorkerThread
+    fun sweep(): Int {
+        if (isHostStore) {
+            Registry.log.verbose("Skipping orphan sweep of host-provided data store")
+            return 0
+        }
+
+        val candidates = Registry.dataStore.keys().filter(DataStoreQueueStore::isPayloadKey)
+        if (candidates.isEmpty()) return 0
+
+        val referenced = readQueue() ?: return 0
+        val orphans = candidates - referenced
+
+        orphans.chunked(BATCH_SIZE).forEach { batch ->
+            Registry.dataStore.edit { batch.forEach { clear(it) } }
+            removed.addAndGet(batch.size)
+        }
+
+        if (orphans.isNotEmpty()) {
+            Registry.log.info("Removed ${orphans.size} orphaned request payloads")
+        }
+
+        return orphans.size
+    }
+
+    /**
+     * Read the UUIDs referenced by the persisted queue
+     *
+     * @return UUIDs, or null if the queue can't be read, in which case nothing can be swept
+     */
+    private fun readQueue(): Set<String>? {
+        val persisted = Registry.dataStore.fetch(QUEUE_KEY) ?: return emptySet()
+
+        return try {
+            val queue = JSONArray(persisted)
+            List(queue.length()) { i -> queue.optString(i) }.toSet()
+        } catch (exception: JSONException) {
+            Registry.log.warning("Skipping orphan sweep of invalid queue", exception)
+            null
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.klaviyo.analytics.networking
+
+import android.content.Context
+import com.klaviyo.analytics.networking.requests.KlaviyoApiRequest
+import com.klaviyo.analytics.networking.requests.KlaviyoApiRequestCodec
+import com.klaviyo.core.Registry
+import com.klaviyo.core.config.getManifestBoolean
+import com.klaviyo.core.config.getManifestInt
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.core.utils.AdvancedAPI
+import java.io.File
+
+/**
+ * Journal file of the persistent API queue, relative to the app's files directory
+ */
+private const val QUEUE_JOURNAL_PATH = "klaviyo/api_queue.journal"
+
+/**
+ * Ring buffer file of the persistent API queue, relative to the app's files directory
+ */
+private const val QUEUE_RING_BUFFER_PATH = "klaviyo/api_queue.ring"
+
+/**
+ * Manifest metadata key to persist the API queue in a memory-mapped ring buffer of this many KB
+ *
+ * Intended for apps producing events at very high rates: enqueuing becomes a memory copy,
+ * at the cost of durability across a device power loss. Absent or 0 uses the journal.
+ */
+internal const val QUEUE_RING_BUFFER_KB = "com.klaviyo.analytics.queue_ring_buffer_kb"
+
+/**
+ * Manifest metadata key to share the API queue between the app's processes
+ *
+ * Intended for apps running SDK components in more than one `android:process`:
+ * every process can enqueue, and one process at a time sends. Takes precedence over
+ * [QUEUE_RING_BUFFER_KB], since a memory-mapped ring buffer can't be shared safely.
+ */
+internal const val QUEUE_MULTI_PROCESS = "com.klaviyo.analytics.queue_multi_process"
+
+/**
+ * Create the SDK's default [QueueStore]: an append-only journal in the app's files directory,
+ * shared between processes if configured with [QUEUE_MULTI_PROCESS] in the manifest,
+ * or a memory-mapped ring buffer if configured with [QUEUE_RING_BUFFER_KB] in the manifest.
+ * Either migrates any queue persisted by earlier SDK versions, or by the other, on first load.
+ *
+ * This is exposed for alternative [QueueStore] modules, so they can migrate queued requests
+ * out of the default store when they are first installed.
+ *
+ * @param context Application context
+ */
+@AdvancedAPI
+fun defaultQueueStore(context: Context): QueueStore {
+    val journalFile = File(context.filesDir, QUEUE_JOURNAL_PATH)
+    val ringFile = File(context.filesDir, QUEUE_RING_BUFFER_PATH)
+    val ringSize = context.getManifestInt(QUEUE_RING_BUFFER_KB, 0) * 1024
+
+    if (context.getManifestBoolean(QUEUE_MULTI_PROCESS, false)) {
+        if (ringSize > 0) {
+            Registry.log.warning("Ignoring $QUEUE_RING_BUFFER_KB for multi-process API queue")
+        }
+
+        return SharedJournalQueueStore(journalFile, DataStoreQueueStore())
+    }
+
+    if (ringSize > 0) {
+        return MappedRingQueueStore(
+            ringFile,
+            ringSize,
+            legacyStore = JournalQueueStore(journalFile, DataStoreQueueStore())
+        )
+    }
+
+    if (ringFile.exists() && journalFile.length() == 0L) {
+        // Ring buffer was switched off: move its queue back into a fresh journal, then delete it
+        journalFile.delete()
+        val ring = MappedRingQueueStore(ringFile)
+        return JournalQueueStore(
+            journalFile,
+            legacyStore = object : QueueStore by ring {
+                override fun clear() {
+                    ring.clear()
+                    ringFile.delete()
+                }
+            }
+        )
+    }
+
+    return JournalQueueStore(journalFile, DataStoreQueueStore())
+}
+
+/**
+ * Represent an API request as an entry in a [QueueStore]
+ */
+internal fun KlaviyoApiRequest.toQueueEntry() = QueueEntry(
+    uuid = uuid,
+    payload = KlaviyoApiRequestCodec.encode(this),
+    type = type,
+    queuedTime = queuedTime,
+    attempts = attempts
+)
@@ -0,0 +1,205 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.core.Registry
+import com.klaviyo.core.config.QueueDurability
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.nio.channels.OverlappingFileLockException
+
+/**
+ * [JournalQueueStore] that can be shared by the app's processes, e.g. when a push service
+ * or other component runs in its own `android:process`
+ *
+ * Each process has its own in-memory index of the journal, so every operation takes an
+ * exclusive lock on a companion lock file, which also holds a version counter of the journal.
+ * A process that finds the version changed since it last touched the journal, i.e. another
+ * process has written to it, replays the journal before proceeding.
+ *
+ * An operation never proceeds without the lock, since unlocked appends and compactions
+ * from two processes would corrupt the journal. If the lock can't be taken, the operation
+ * throws [IOException] instead. On the main thread, the lock is only taken if it is free
+ * right away, so that another process holding it can't stall the UI.
+ *
+ * Any process can enqueue, but only the process holding a lock on the drain file sends.
+ * The claim is held until the process dies, and the OS releases the lock, at which point
+ * the next process to try claims it, see [claimDrain].
+ *
+ * Records are always written through to the journal before releasing the lock,
+ * so [QueueDurability.MEMORY_FIRST] is treated as [QueueDurability.GROUP_COMMIT].
+ *
+ * @param file The journal file
+ * @param legacyStore Store to migrate any existing queue from, when no journal exists yet
+ * @param durability When appended records are synced to the device
+ */
+internal class SharedJournalQueueStore(
+    file: File,
+    legacyStore: QueueStore? = null,
+    durability: QueueDurability = Registry.config.queueDurability
+) : QueueStore {
+
+    private val journal = JournalQueueStore(
+        file,
+        legacyStore,
+        durability.takeUnless { it == QueueDurability.MEMORY_FIRST }
+            ?: QueueDurability.GROUP_COMMIT
+    )
+
+    private val lockFile = File(file.path + ".lock")
+    private val drainFile = File(file.path + ".drain")
+
+    private var lockChannel: FileChannel? = null
+    private var drainChannel: FileChannel? = null
+    private var drainLock: FileLock? = null
+
+    /**
+     * Version of the journal as of this process's last operation, null before the first
+     */
+    private var knownVersion: Long? = null
+
+    /**
+     * Whether another process has written to the journal since [loadIndex]
+     */
+    private var isChangedExternally = false
+
+    /**
+     * UUIDs this process has enqueued or restored, as opposed to those enqueued by others
+     * since, which [sync] must leave in place
+     */
+    private val known = HashSet<String>()
+
+    @Synchronized
+    override fun load(): List<QueueEntry> = locked(write = false) {
+        isChangedExternally = false
+        journal.load().also { entries -> known += entries.map { it.uuid } }
+    }
+
+    @Synchronized
+    override fun loadIndex(): List<String> = locked(write = false) {
+        isChangedExternally = false
+        journal.loadIndex().also { known += it }
+    }
+
+    @Synchronized
+    override fun read(uuid: String): ByteArray? = locked(write = false) { journal.read(uuid) }
+
+    @Synchronized
+    override fun enqueue(entries: List<QueueEntry>, headOfLine: Boolean) = locked(write = true) {
+        known += entries.map { it.uuid }
+        journal.enqueue(entries, headOfLine)
+    }
+
+    @Synchronized
+    override fun update(entry: QueueEntry) = locked(write = true) { journal.update(entry) }
+
+    @Synchronized
+    override fun remove(uuids: Collection<String>) = locked(write = true) {
+        known -= uuids.toSet()
+        journal.remove(uuids)
+    }
+
+    /**
+     * Make the persisted queue match the given order, dropping entries that this process
+     * knew of but are not present. Entries enqueued by other processes are kept, after [order].
+     */
+    @Synchronized
+    override fun sync(order: List<String>) = locked(write = true) {
+        val ordered = order.toSet()
+        val foreign = journal.loadIndex().filter { it !in known && it !in ordered }
+        known.retainAll(ordered)
+        journal.sync(order + foreign)
+    }
+
+    @Synchronized
+    override fun clear() = locked(write = true) {
+        known.clear()
+        journal.clear()
+    }
+
+    /**
+     * Try to lock the drain file, keeping the lock once acquired
+     */
+    @Synchronized
+    override fun claimDrain(): Boolean {
+        if (drainLock?.isValid == true) return true
+
+        drainLock = try {
+            val channel = drainChannel ?: openChannel(drainFile).also { drainChannel = it }
+            channel.tryLock()
+        } catch (e: OverlappingFileLockException) {
+            // Held by another store instance within this process
+            null
+        } catch (e: IOException) {
+            Registry.log.warning("Failed to claim API queue", e)
+            null
+        }
+
+        return (drainLock != null).also { claimed ->
+            if (claimed) Registry.log.debug("This process will send the shared API queue")
+        }
+    }
+
+    override fun onCommitted(callback: (Boolean) -> Unit) = journal.onCommitted(callback)
+
+    @Synchronized
+    override fun hasExternalChanges(): Boolean = locked(write = false) { isChangedExternally }
+
+    override fun isShared(): Boolean = true
+
+    /**
+     * Run [block] holding the lock file, replaying the journal first if another process
+     * has written to it, and bumping its version afterward if [write]
+     *
+     * @throws IOException If the lock can't be taken, without running [block]
+     */
+    private fun <T> locked(write: Boolean, block: () -> T): T {
+        val channel = lockChannel ?: openChannel(lockFile).also { lockChannel = it }
+
+        val lock = try {
+            if (Registry.threadHelper.isMainThread()) channel.tryLock() else channel.lock()
+        } catch (e: OverlappingFileLockException) {
+            // Held by another store instance within this process
+            null
+        } ?: throw IOException("API queue is locked by another process")
+
+        try {
+            val version = readVersion(channel)
+            if (version != knownVersion) {
+                if (knownVersion != null) isChangedExternally = true
+                journal.invalidate()
+                knownVersion = version
+            }
+
+            val result = block()
+
+            if (write) {
+                writeVersion(channel, version + 1)
+                knownVersion = version + 1
+            }
+
+            return result
+        } finally {
+            lock.release()
+        }
+    }
+
+    private fun openChannel(file: File): FileChannel {
+        file.parentFile?.mkdirs()
+        return RandomAccessFile(file, "rw").channel
+    }
+
+    private fun readVersion(channel: FileChannel): Long {
+        val buffer = ByteBuffer.allocate(Long.SIZE_BYTES)
+        channel.read(buffer, 0)
+        return if (buffer.position() == Long.SIZE_BYTES) buffer.getLong(0) else 0L
+    }
+
+    private fun writeVersion(channel: FileChannel, version: Long) {
+        channel.write(ByteBuffer.allocate(Long.SIZE_BYTES).putLong(0, version), 0)
+    }
+}
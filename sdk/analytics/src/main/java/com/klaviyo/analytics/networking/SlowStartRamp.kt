@@ -0,0 +1,90 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.core.Registry
+import kotlin.math.max
+
+/**
+ * TCP-style slow start for draining the API queue
+ *
+ * After a reconnect, the queue may hold a large backlog. Rather than draining it all
+ * back-to-back, the ramp starts with a small batch, doubles the batch size after every
+ * fully successful batch, and halves it whenever a retryable error (e.g. 429) is encountered.
+ * Once the batch size reaches the configured ceiling, the ramp ends and the queue drains freely.
+ *
+ * Queues no deeper than [com.klaviyo.core.config.Config.networkFlushDepth] take a fast path
+ * and are never throttled.
+ */
+internal class SlowStartRamp {
+
+    companion object {
+        const val UNLIMITED = Int.MAX_VALUE
+    }
+
+    /**
+     * Current batch size, or [UNLIMITED] when not ramping
+     */
+    @Volatile
+    var batchSize: Int = UNLIMITED
+        private set
+
+    /**
+     * Whether the ramp is currently throttling the queue
+     */
+    val isActive: Boolean get() = batchSize != UNLIMITED
+
+    /**
+     * Begin a new ramp from the configured initial batch size, e.g. after reconnecting
+     */
+    fun restart() {
+        val initialBatchSize = Registry.config.networkSlowStartBatchSize
+        batchSize = if (initialBatchSize > 0) initialBatchSize else UNLIMITED
+
+        if (isActive) {
+            Registry.log.verbose("Queue slow start restarted at $batchSize requests")
+        }
+    }
+
+    /**
+     * Stop ramping, allowing the queue to drain without limit
+     */
+    fun end() {
+        batchSize = UNLIMITED
+    }
+
+    /**
+     * Number of requests that may be sent in the next batch, given the current queue size
+     */
+    fun limitFor(queueSize: Int): Int = when {
+        !isActive -> UNLIMITED
+        queueSize <= Registry.config.networkFlushDepth -> UNLIMITED // Fast path for small queues
+        else -> batchSize
+    }
+
+    /**
+     * Grow the batch size after a batch completed without retryable errors
+     */
+    fun onBatchSucceeded() {
+        if (!isActive) return
+
+        val maxBatchSize = Registry.config.networkSlowStartMaxBatchSize
+        batchSize = if (batchSize >= maxBatchSize / 2) UNLIMITED else batchSize * 2
+
+        Registry.log.verbose(
+            if (isActive) "Queue slow start grew to $batchSize requests" else "Queue slow start complete"
+        )
+    }
+
+    /**
+     * Shrink the batch size after a retryable error while ramping
+     *
+     * Only a reconnect starts a ramp, so a retryable error once the queue drains freely
+     * is left to the request's own retry backoff.
+     */
+    fun onBackoff() {
+        if (!isActive) return
+
+        batchSize = max(1, batchSize / 2)
+
+        Registry.log.verbose("Queue slow start shrank to $batchSize requests")
+    }
+}
@@ -2,6 +2,8 @@ package com.klaviyo.analytics.networking.requests
 
 import com.klaviyo.core.DeviceProperties
 import com.klaviyo.core.Registry
+import com.klaviyo.core.networking.HttpUtil
+import com.klaviyo.core.safeLaunch
 import java.io.BufferedReader
 import java.io.EOFException
 import java.io.IOException
@@ -13,6 +15,7 @@ import java.net.SocketException
 import java.net.URL
 import java.net.UnknownHostException
 import java.util.UUID
+import kotlinx.coroutines.CoroutineScope
 import javax.net.ssl.HttpsURLConnection
 import javax.net.ssl.SSLException
 import kotlin.math.max
@@ -80,6 +83,7 @@ internal open class KlaviyoApiRequest(
         const val HEADERS_JSON_KEY = "headers"
         const val QUERY_JSON_KEY = "query"
         const val BODY_JSON_KEY = "body"
+        const val ATTEMPTS_JSON_KEY = "attempts"
 
         /**
          * Helper function to format the body of the request
@@ -147,10 +151,10 @@ internal open class KlaviyoApiRequest(
     open val timeoutDuration get() = Registry.config.networkTimeout
 
     /**
-     * Tracks number of attempts to limit retries
+     * Tracks number of attempts to limit retries, persisted with the request across launches
      */
     final override var attempts = 0
-        protected set(value) {
+        internal set(value) {
             field = value
             headers[HEADER_KLAVIYO_ATTEMPT] = "$value/$maxAttempts"
         }
@@ -282,6 +286,7 @@ internal open class KlaviyoApiRequest(
         .accumulate(HEADERS_JSON_KEY, JSONObject(headers as Map<String, String>))
         .accumulate(QUERY_JSON_KEY, JSONObject(query))
         .accumulate(BODY_JSON_KEY, body)
+        .accumulate(ATTEMPTS_JSON_KEY, attempts)
 
     /**
      * For consistency, format as JSON when representing API requests as string
@@ -372,8 +377,27 @@ internal open class KlaviyoApiRequest(
         } catch (ex: IOException) {
             // Check if this IOException or any of its causes are retryable
             val isRetryable = isRetryableIOException(ex)
+            val isValidated = Registry.networkMonitor.getNetworkState().isValidated
+
+            if (isRetryable && isValidated) {
+                // Check in the background whether the network rather than our API is to blame,
+                // e.g. a captive portal the system still reports as validated. A failed probe
+                // reports the network offline, which pauses sending until it is reachable again
+                CoroutineScope(Registry.dispatcher).safeLaunch {
+                    Registry.networkMonitor.probeReachability()
+                }
+            }
 
-            status = if (isRetryable && attempts < maxAttempts) {
+            status = if (isRetryable && !isValidated) {
+                // The system reports no internet on this network, so don't count the attempt
+                // An outage of our API still counts attempts, so backoff and max attempts apply
+                attempts--
+                Registry.log.verbose(
+                    "Send failed on unvalidated network, attempt not counted: " +
+                        ex.javaClass.simpleName
+                )
+                Status.Unsent
+            } else if (isRetryable && attempts < maxAttempts) {
                 Registry.log.warning(
                     "Retryable I/O error on attempt $attempts: ${ex.javaClass.simpleName}",
                     ex
@@ -0,0 +1,369 @@
+package com.klaviyo.analytics.networking.requests
+
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.util.UUID
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * Compact binary encoding of [KlaviyoApiRequest] for the persistent queue
+ *
+ * Encodes the same fields as [KlaviyoApiRequest.toJson], read straight from the request
+ * rather than through its JSON form. Compared to JSON text, it:
+ *  - Skips building a JSON object of the request, its headers and its query
+ *  - Prefixes strings with varint lengths rather than quoting and escaping them
+ *  - Replaces well-known strings (request types, paths, header and body keys) with a table index
+ *  - Stores UUIDs in 16 bytes and timestamps as varints
+ *  - Decodes in a single forward pass, without tokenizing text
+ *
+ * The body is still decoded into a [JSONObject], since that is how requests hold it,
+ * but the queue only decodes a request once it is about to be sent,
+ * see [com.klaviyo.analytics.networking.ApiRequestQueue].
+ *
+ * Layout: `magic | version | type | path | method | time | uuid | baseUrl | headers | query | body
+ * | attempts`, where attempts was added in [VERSION] 2
+ *
+ * Any change to the layout or to [STRINGS] must increment [VERSION],
+ * and keep decoding every earlier version.
+ */
+internal object KlaviyoApiRequestCodec {
+
+    /**
+     * First byte of an encoded request
+     *
+     * Reasoning: Not valid as the first byte of UTF-8 text,
+     * so it can never be mistaken for a legacy JSON payload
+     */
+    private const val MAGIC: Byte = 0xB1.toByte()
+
+    private const val VERSION: Byte = 2
+
+    /**
+     * First version to persist [KlaviyoApiRequest.attempts]
+     */
+    private const val VERSION_ATTEMPTS: Byte = 2
+
+    private const val TAG_NULL = 0
+    private const val TAG_FALSE = 1
+    private const val TAG_TRUE = 2
+    private const val TAG_INT = 3
+    private const val TAG_DOUBLE = 4
+    private const val TAG_STRING = 5
+    private const val TAG_OBJECT = 6
+    private const val TAG_ARRAY = 7
+
+    private const val UUID_LITERAL = 0
+    private const val UUID_BINARY = 1
+
+    /**
+     * Interned strings since version 1, referenced by index + 1 (0 denotes a literal string)
+     *
+     * Reasoning: These appear in nearly every persisted request. Append only, never re-order.
+     */
+    private val STRINGS = arrayOf(
+        // Request types
+        "ProfileApiRequest",
+        "EventApiRequest",
+        "PushTokenApiRequest",
+        "UnregisterPushTokenApiRequest",
+        "AggregateEventApiRequest",
+        "UniversalClickTrackRequest",
+        "FetchGeofencesRequest",
+        // Paths and methods
+        "client/profiles",
+        "client/events",
+        "client/push-tokens",
+        "client/push-token-unregister",
+        "client/geofences",
+        "onsite/track-analytics",
+        "GET",
+        "POST",
+        "https://a.klaviyo.com",
+        // Headers and query
+        KlaviyoApiRequest.HEADER_CONTENT,
+        KlaviyoApiRequest.HEADER_ACCEPT,
+        KlaviyoApiRequest.HEADER_USER_AGENT,
+        KlaviyoApiRequest.HEADER_REVISION,
+        KlaviyoApiRequest.HEADER_KLAVIYO_MOBILE,
+        KlaviyoApiRequest.HEADER_KLAVIYO_ATTEMPT,
+        KlaviyoApiRequest.TYPE_JSON,
+        KlaviyoApiRequest.COMPANY_ID,
+        "1",
+        // Body keys and values
+        KlaviyoApiRequest.DATA,
+        KlaviyoApiRequest.TYPE,
+        KlaviyoApiRequest.ATTRIBUTES,
+        KlaviyoApiRequest.PROPERTIES,
+        KlaviyoApiRequest.PROFILE,
+        KlaviyoApiRequest.EVENT,
+        KlaviyoApiRequest.PUSH_TOKEN,
+        KlaviyoApiRequest.UNREGISTER_PUSH_TOKEN,
+        "metric",
+        "name",
+        "value",
+        "time",
+        "unique_id",
+        "location",
+        "email",
+        "phone_number",
+        "external_id",
+        "anonymous_id",
+        "token",
+        "platform",
+        "vendor",
+        "enablement_status",
+        "background",
+        "device_metadata",
+        "android",
+        "FCM",
+        "AUTHORIZED",
+        "UNAUTHORIZED",
+        "AVAILABLE",
+        "Device ID",
+        "Device Manufacturer",
+        "Device Model",
+        "OS Name",
+        "OS Version",
+        "SDK Name",
+        "SDK Version",
+        "App Name",
+        "App ID",
+        "App Version",
+        "App Build",
+        "Push Token"
+    )
+
+    private val STRING_INDEX: Map<String, Int> =
+        STRINGS.withIndex().associate { (i, string) -> string to i + 1 }
+
+    /**
+     * @return Whether the payload was produced by [encode], as opposed to legacy JSON
+     */
+    fun isEncoded(payload: ByteArray): Boolean =
+        payload.size >= 2 && payload[0] == MAGIC
+
+    /**
+     * Encode a request, from the same fields as [KlaviyoApiRequest.toJson]
+     */
+    fun encode(request: KlaviyoApiRequest): ByteArray = Writer().run {
+        out.write(MAGIC.toInt())
+        out.write(VERSION.toInt())
+        string(request::class.simpleName.orEmpty())
+        string(request.urlPath)
+        string(request.method.name)
+        long(request.queuedTime)
+        uuid(request.uuid)
+        nullableString(request.baseUrl)
+        stringMap(request.headers)
+        stringMap(request.query)
+        value(request.body)
+        varint(request.attempts.toLong())
+        out.toByteArray()
+    }
+
+    /**
+     * Decode a request produced by [encode]
+     *
+     * @return Request object of original subclass type
+     * @throws IOException If the payload is truncated, corrupt, or of an unknown version
+     */
+    fun decode(payload: ByteArray): KlaviyoApiRequest = Reader(payload).run {
+        if (byte() != MAGIC) throw IOException("Not an encoded request")
+        val version = byte()
+        if (version !in 1..VERSION) throw IOException("Unsupported request encoding $version")
+
+        val type = string()
+        val urlPath = string()
+        val method = when (string()) {
+            RequestMethod.POST.name -> RequestMethod.POST
+            else -> RequestMethod.GET
+        }
+        val time = long()
+        val uuid = uuid()
+
+        KlaviyoApiRequestDecoder.create(type, urlPath, method, time, uuid).apply {
+            nullableString()?.let { baseUrl = it }
+            headers.replaceAllWith(stringMap())
+            query = stringMap()
+            body = value() as? JSONObject
+            if (version >= VERSION_ATTEMPTS) {
+                varint().toInt().takeIf { it > 0 }?.let { attempts = it }
+            }
+        }
+    }
+
+    private class Writer {
+        val out = ByteArrayOutputStream(256)
+
+        /**
+         * Unsigned LEB128 varint
+         */
+        fun varint(value: Long) {
+            var remaining = value
+            while (remaining and 0x7FL.inv() != 0L) {
+                out.write(((remaining and 0x7F) or 0x80).toInt())
+                remaining = remaining ushr 7
+            }
+            out.write(remaining.toInt())
+        }
+
+        /**
+         * Signed varint, zigzag encoded so small negative values stay small
+         */
+        fun long(value: Long) = varint((value shl 1) xor (value shr 63))
+
+        fun string(value: String) {
+            val index = STRING_INDEX[value]
+            if (index != null) {
+                varint(index.toLong())
+            } else {
+                val bytes = value.toByteArray(Charsets.UTF_8)
+                varint(0)
+                varint(bytes.size.toLong())
+                out.write(bytes)
+            }
+        }
+
+        fun nullableString(value: String?) {
+            out.write(if (value == null) 0 else 1)
+            value?.let { string(it) }
+        }
+
+        fun uuid(value: String) {
+            val parsed = try {
+                UUID.fromString(value).takeIf { it.toString() == value }
+            } catch (e: IllegalArgumentException) {
+                null
+            }
+
+            if (parsed == null) {
+                out.write(UUID_LITERAL)
+                string(value)
+            } else {
+                out.write(UUID_BINARY)
+                repeat(8) { out.write((parsed.mostSignificantBits ushr (56 - it * 8)).toInt()) }
+                repeat(8) { out.write((parsed.leastSignificantBits ushr (56 - it * 8)).toInt()) }
+            }
+        }
+
+        fun stringMap(map: Map<String, String>) {
+            varint(map.size.toLong())
+            map.forEach { (key, value) ->
+                string(key)
+                string(value)
+            }
+        }
+
+        fun value(value: Any?) {
+            when (value) {
+                null, JSONObject.NULL -> out.write(TAG_NULL)
+                is Boolean -> out.write(if (value) TAG_TRUE else TAG_FALSE)
+                is Int, is Long, is Short, is Byte -> {
+                    out.write(TAG_INT)
+                    long((value as Number).toLong())
+                }
+                is Number -> {
+                    out.write(TAG_DOUBLE)
+                    val bits = value.toDouble().toRawBits()
+                    repeat(8) { out.write((bits ushr (56 - it * 8)).toInt()) }
+                }
+                is JSONObject -> {
+                    out.write(TAG_OBJECT)
+                    varint(value.length().toLong())
+                    value.keys().forEach { key ->
+                        string(key)
+                        value(value.opt(key))
+                    }
+                }
+                is JSONArray -> {
+                    out.write(TAG_ARRAY)
+                    varint(value.length().toLong())
+                    for (i in 0 until value.length()) value(value.opt(i))
+                }
+                else -> {
+                    out.write(TAG_STRING)
+                    string(value.toString())
+                }
+            }
+        }
+    }
+
+    /**
+     * Single pass reader over an encoded payload
+     */
+    private class Reader(private val bytes: ByteArray) {
+        private var position = 0
+
+        fun byte(): Byte {
+            if (position >= bytes.size) throw EOFException("Truncated request payload")
+            return bytes[position++]
+        }
+
+        fun varint(): Long {
+            var result = 0L
+            var shift = 0
+            while (shift < 64) {
+                val b = byte().toInt()
+                result = result or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+            }
+            throw IOException("Malformed varint")
+        }
+
+        fun long(): Long = varint().let { (it ushr 1) xor -(it and 1) }
+
+        fun length(): Int = varint().also {
+            if (it < 0 || it > bytes.size - position) {
+                throw EOFException("Truncated request payload")
+            }
+        }.toInt()
+
+        fun string(): String = when (val index = varint().toInt()) {
+            0 -> length().let { length ->
+                String(bytes, position, length, Charsets.UTF_8).also { position += length }
+            }
+            in 1..STRINGS.size -> STRINGS[index - 1]
+            else -> throw IOException("Unknown interned string $index")
+        }
+
+        fun nullableString(): String? = if (byte().toInt() == 0) null else string()
+
+        fun uuid(): String = when (byte().toInt()) {
+            UUID_LITERAL -> string()
+            UUID_BINARY -> UUID(fixedLong(), fixedLong()).toString()
+            else -> throw IOException("Unknown UUID encoding")
+        }
+
+        fun fixedLong(): Long {
+            var result = 0L
+            repeat(8) { result = (result shl 8) or (byte().toLong() and 0xFF) }
+            return result
+        }
+
+        fun stringMap(): Map<String, String> {
+            val size = length()
+            return LinkedHashMap<String, String>(size).apply {
+                repeat(size) { put(string(), string()) }
+            }
+        }
+
+        fun value(): Any? = when (val tag = byte().toInt()) {
+            TAG_NULL -> null
+            TAG_FALSE -> false
+            TAG_TRUE -> true
+            TAG_INT -> long().let { if (it in Int.MIN_VALUE..Int.MAX_VALUE) it.toInt() else it }
+            TAG_DOUBLE -> Double.fromBits(fixedLong())
+            TAG_STRING -> string()
+            TAG_OBJECT -> JSONObject().apply {
+                repeat(length()) { put(string(), value() ?: JSONObject.NULL) }
+            }
+            TAG_ARRAY -> JSONArray().apply {
+                repeat(length()) { put(value() ?: JSONObject.NULL) }
+            }
+            else -> throw IOException("Unknown value tag $tag")
+        }
+    }
+}
@@ -2,11 +2,27 @@ package com.klaviyo.analytics.networking.requests
 
 import com.klaviyo.analytics.networking.requests.KlaviyoApiRequest.Companion.URL_JSON_KEY
 import com.klaviyo.core.Registry
+import java.io.IOException
 import org.json.JSONException
 import org.json.JSONObject
 
 internal object KlaviyoApiRequestDecoder {
 
+    /**
+     * Construct a request from its persisted form, either [KlaviyoApiRequestCodec] binary
+     * or the JSON written by earlier SDK versions
+     *
+     * @return Request object of original subclass type
+     * @throws JSONException If a JSON payload is missing fields or improperly formatted
+     * @throws IOException If a binary payload is truncated or corrupt
+     */
+    internal fun fromBytes(payload: ByteArray): KlaviyoApiRequest =
+        if (KlaviyoApiRequestCodec.isEncoded(payload)) {
+            KlaviyoApiRequestCodec.decode(payload)
+        } else {
+            fromJson(JSONObject(String(payload, Charsets.UTF_8)))
+        }
+
     /**
      * Construct a request from a JSON object
      *
@@ -22,19 +38,13 @@ internal object KlaviyoApiRequestDecoder {
         val time = json.getLong(KlaviyoApiRequest.TIME_JSON_KEY)
         val uuid = json.getString(KlaviyoApiRequest.UUID_JSON_KEY)
 
-        return when (json.optString(KlaviyoApiRequest.TYPE_JSON_KEY)) {
-            ProfileApiRequest::class.simpleName -> ProfileApiRequest(time, uuid)
-            EventApiRequest::class.simpleName -> EventApiRequest(time, uuid)
-            PushTokenApiRequest::class.simpleName -> PushTokenApiRequest(time, uuid)
-            UnregisterPushTokenApiRequest::class.simpleName -> UnregisterPushTokenApiRequest(
-                time,
-                uuid
-            )
-            AggregateEventApiRequest::class.simpleName -> AggregateEventApiRequest(time, uuid)
-            UniversalClickTrackRequest::class.simpleName -> UniversalClickTrackRequest(time, uuid)
-            FetchGeofencesRequest::class.simpleName -> FetchGeofencesRequest(null, null, time, uuid)
-            else -> KlaviyoApiRequest(urlPath, method, time, uuid)
-        }.apply {
+        return create(
+            json.optString(KlaviyoApiRequest.TYPE_JSON_KEY),
+            urlPath,
+            method,
+            time,
+            uuid
+        ).apply {
             baseUrl = json.optString(URL_JSON_KEY, Registry.config.baseUrl)
             headers.replaceAllWith(
                 json.getJSONObject(KlaviyoApiRequest.HEADERS_JSON_KEY).let {
@@ -45,6 +55,35 @@ internal object KlaviyoApiRequestDecoder {
                 it.keys().asSequence().associateWith { k -> it.getString(k) }
             }
             body = json.optJSONObject(KlaviyoApiRequest.BODY_JSON_KEY)
+            // Attempts made before the request was persisted still count towards maxAttempts
+            json.optInt(KlaviyoApiRequest.ATTEMPTS_JSON_KEY).takeIf { it > 0 }?.let {
+                attempts = it
+            }
         }
     }
+
+    /**
+     * Construct an empty request of the subclass named by [type]
+     *
+     * @param type Simple class name of the original request
+     */
+    internal fun create(
+        type: String,
+        urlPath: String,
+        method: RequestMethod,
+        time: Long,
+        uuid: String
+    ): KlaviyoApiRequest = when (type) {
+        ProfileApiRequest::class.simpleName -> ProfileApiRequest(time, uuid)
+        EventApiRequest::class.simpleName -> EventApiRequest(time, uuid)
+        PushTokenApiRequest::class.simpleName -> PushTokenApiRequest(time, uuid)
+        UnregisterPushTokenApiRequest::class.simpleName -> UnregisterPushTokenApiRequest(
+            time,
+            uuid
+        )
+        AggregateEventApiRequest::class.simpleName -> AggregateEventApiRequest(time, uuid)
+        UniversalClickTrackRequest::class.simpleName -> UniversalClickTrackRequest(time, uuid)
+        FetchGeofencesRequest::class.simpleName -> FetchGeofencesRequest(null, null, time, uuid)
+        else -> KlaviyoApiRequest(urlPath, method, time, uuid)
+    }
 }
@@ -0,0 +1,116 @@
+package com.klaviyo.analytics.state
+
+import com.klaviyo.analytics.model.Event
+import com.klaviyo.core.Registry
+
+/**
+ * Thread-safe, fixed-size buffer of the most recent events, each held for a limited time
+ *
+ * Events are kept in a ring of [capacity] slots, alongside the time each was added,
+ * so adding an event allocates nothing and evicts the oldest event once the ring is full.
+ * Expiry is lazy: expired events are dropped from the head of the ring whenever the buffer
+ * is read or written, and reads never return an event older than [ttl],
+ * so no timer or coroutine is needed to expire each event.
+ *
+ * @param capacity Maximum number of events held, oldest evicted first
+ * @param ttl Milliseconds an event is held after it is added
+ */
+internal open class EventBuffer(
+    private val capacity: Int = DEFAULT_CAPACITY,
+    private val ttl: Long = DEFAULT_TTL
+) {
+
+    companion object {
+        /**
+         * Default maximum number of events held
+         */
+        const val DEFAULT_CAPACITY = 10
+
+        /**
+         * Default milliseconds an event is held
+         */
+        const val DEFAULT_TTL = 10_000L
+    }
+
+    init {
+        require(capacity > 0) { "Event buffer capacity must be positive" }
+    }
+
+    private val events = arrayOfNulls<Event>(capacity)
+    private val addedAt = LongArray(capacity)
+
+    /**
+     * Slot of the oldest event
+     */
+    private var head = 0
+
+    /**
+     * Number of events held
+     */
+    private var size = 0
+
+    /**
+     * Add an event to the buffer, evicting the oldest event if the buffer is full
+     */
+    @Synchronized
+    fun addEvent(event: Event) {
+        val now = Registry.clock.currentTimeMillis()
+        evictExpired(now)
+
+        if (size == capacity) evictHead()
+
+        val slot = slotOf(size)
+        events[slot] = event
+        addedAt[slot] = now
+        size++
+    }
+
+    /**
+     * Get buffered events in chronological order (oldest first), without removing them,
+     * so the buffer is safe for multiple consumers.
+     *
+     * A consumer may ask for a narrower window than the buffer holds.
+     *
+     * @param maxAge Only return events added within this many milliseconds, up to [ttl]
+     * @param maxCount Only return this many of the most recent events, up to [capacity]
+     */
+    @Synchronized
+    fun getEvents(maxAge: Long = ttl, maxCount: Int = capacity): List<Event> {
+        val now = Registry.clock.currentTimeMillis()
+        evictExpired(now)
+
+        val window = minOf(maxAge, ttl)
+        val skipped = (size - maxCount).coerceAtLeast(0)
+
+        return (skipped until size)
+            .map(::slotOf)
+            // Also checked here, in case the clock moved back and events are out of time order
+            .filter { now - addedAt[it] < window }
+            .mapNotNull { events[it] }
+    }
+
+    /**
+     * Remove all events from the buffer
+     */
+    @Synchronized
+    fun clearBuffer() {
+        events.fill(null)
+        head = 0
+        size = 0
+    }
+
+    private fun slotOf(index: Int) = (head + index) % capacity
+
+    /**
+     * Drop events from the head that have been held for [ttl]
+     */
+    private fun evictExpired(now: Long) {
+        while (size > 0 && now - addedAt[head] >= ttl) evictHead()
+    }
+
+    private fun evictHead() {
+        events[head] = null
+        head = (head + 1) % capacity
+        size--
+    }
+}
@@ -0,0 +1,260 @@
+package com.klaviyo.analytics.state
+
+import com.klaviyo.analytics.model.Keyword
+import com.klaviyo.core.Registry
+import com.klaviyo.core.safeLaunch
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.CoroutineScope
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * Identity state of [KlaviyoState], persisted as one versioned record under [RECORD_KEY]
+ *
+ * The record is read once, by [load] or else on first access, and re-written in full
+ * on each change, so a logical mutation spanning several properties (e.g. a profile reset)
+ * is one atomic write when wrapped in [edit], and can't leave a torn state if the process dies.
+ *
+ * Record layout: `{"version": 1, "values": {"<keyword>": "<serialized value>"}}`
+ *
+ * Identity state was previously persisted under one store key per property.
+ * On first access, any such keys are copied into the record. Those keys are still written
+ * through on each change, in the same store edit and file as the record, so an app rolled back
+ * to an earlier SDK version still reads current identity. If that earlier version changes them,
+ * they differ from the record on the next load, and replace it. A later release can stop
+ * writing them.
+ *
+ * Changes are serialized: a change made outside an [edit] waits for any edit in progress on
+ * another thread, so it never persists that edit's changes half-applied.
+ *
+ * @param keys Keys of the properties kept in this record, also kept in per-key storage
+ */
+internal class IdentityRecord(private val keys: Collection<Keyword>) {
+
+    companion object {
+        const val RECORD_KEY = "klaviyo_identity"
+
+        /**
+         * Current record layout version, bumped on incompatible layout changes
+         */
+        const val VERSION = 1
+
+        /**
+         * Maximum time a read or write waits for a [load] that hasn't finished
+         *
+         * Reasoning: The record is one small value, so a load that has started holds the record
+         * for a few milliseconds at most, and readers wait on it regardless.
+         * A load still queued after this long means the background dispatcher is saturated,
+         * e.g. at app launch, and the caller is better off reading the record itself
+         */
+        const val LOAD_TIMEOUT = 50L
+
+        private const val VERSION_FIELD = "version"
+        private const val VALUES_FIELD = "values"
+    }
+
+    /**
+     * Serialized values by key, read from the store on first access
+     */
+    @Volatile
+    private var values: MutableMap<String, String>? = null
+
+    /**
+     * Released when the most recent [load] has finished, or null if none has been started
+     */
+    @Volatile
+    private var loading: CountDownLatch? = null
+
+    /**
+     * Whether values have changed since the record was last written
+     */
+    private var isDirty = false
+
+    /**
+     * Keys changed since the record was last written, to write through to per-property keys
+     */
+    private val changedKeys = mutableSetOf<String>()
+
+    /**
+     * Per-property store keys of earlier SDK versions
+     */
+    private val legacyKeys = keys.map { it.name }.toSet()
+
+    /**
+     * Depth of nested [edit] blocks on the current thread
+     */
+    private val editDepth = ThreadLocal<Int>()
+
+    /**
+     * Get a serialized value from the record
+     *
+     * @param key
+     */
+    fun fetch(key: String): String? {
+        awaitLoad()
+        return synchronized(this) { loaded()[key] }
+    }
+
+    /**
+     * Set a serialized value in the record
+     *
+     * @param key
+     * @param value
+     */
+    fun store(key: String, value: String) = mutate(key) { it[key] = value }
+
+    /**
+     * Remove a value from the record
+     *
+     * @param key
+     */
+    fun clear(key: String) = mutate(key) { it.remove(key) }
+
+    /**
+     * Apply all changes made in [block], on this thread, with a single write of the record
+     *
+     * Nested edits join the outermost edit.
+     *
+     * @param block
+     * @return Result of [block]
+     */
+    fun <T> edit(block: () -> T): T {
+        val depth = editDepth.get() ?: 0
+        if (depth == 0) awaitLoad()
+
+        // The outermost edit holds the record until it is persisted
+        return synchronized(this) {
+            editDepth.set(depth + 1)
+
+            try {
+                block()
+            } finally {
+                if (depth == 0) {
+                    editDepth.remove()
+                    if (isDirty) persist()
+                } else {
+                    editDepth.set(depth)
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the record into memory on [Registry.dispatcher]
+     *
+     * The load is marked as pending before this returns, so any access from then on
+     * waits for it, at most [LOAD_TIMEOUT], rather than reading the record itself.
+     */
+    fun load() {
+        if (values != null || loading?.count == 1L) return
+        val latch = CountDownLatch(1).also { loading = it }
+
+        CoroutineScope(Registry.dispatcher).safeLaunch {
+            try {
+                synchronized(this@IdentityRecord) { loaded() }
+            } finally {
+                latch.countDown()
+            }
+        }
+    }
+
+    /**
+     * Wait, at most [LOAD_TIMEOUT], for a pending [load] to finish
+     */
+    private fun awaitLoad() {
+        // The load itself may read back through here, e.g. from a store observer
+        if (values != null || Thread.holdsLock(this)) return
+        val latch = loading?.takeIf { it.count > 0 } ?: return
+
+        if (!latch.await(LOAD_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            Registry.log.verbose("Identity record load still pending, reading it in place")
+        }
+    }
+
+    private fun mutate(key: String, change: (MutableMap<String, String>) -> Unit) {
+        awaitLoad()
+
+        synchronized(this) {
+            change(loaded())
+            changedKeys += key
+            isDirty = true
+
+            if (editDepth.get() == null) {
+                persist()
+            }
+        }
+    }
+
+    private fun persist() {
+        val values = loaded()
+
+        Registry.dataStore.edit {
+            store(RECORD_KEY, encode(values))
+            changedKeys.filter { it in legacyKeys }.forEach { key ->
+                values[key]?.let { store(key, it) } ?: clear(key)
+            }
+        }
+
+        changedKeys.clear()
+        isDirty = false
+    }
+
+    private fun loaded(): MutableMap<String, String> = values ?: read().also { values = it }
+
+    private fun encode(values: Map<String, String>): String = JSONObject()
+        .put(VERSION_FIELD, VERSION)
+        .put(VALUES_FIELD, JSONObject(values as Map<*, *>))
+        .toString()
+
+    /**
+     * Decode a stored record
+     *
+     * @return Values, or null if the record is invalid
+     */
+    private fun decode(stored: String): MutableMap<String, String>? = try {
+        val json = JSONObject(stored)
+        val version = json.optInt(VERSION_FIELD)
+
+        if (version > VERSION) {
+            Registry.log.warning("Reading identity record of newer version $version")
+        }
+
+        val storedValues = json.getJSONObject(VALUES_FIELD)
+        storedValues.keys().asSequence().associateWithTo(mutableMapOf()) {
+            storedValues.getString(it)
+        }
+    } catch (e: JSONException) {
+        Registry.log.error("Invalid identity record", e)
+        null
+    }
+
+    /**
+     * Read the record, reconciled with identity state persisted under per-property keys
+     *
+     * Those keys are written in the same edit as the record, so they only differ from it
+     * if an earlier SDK version has changed them since, e.g. after a rollback, or if there
+     * is no record yet. Either way they are the newer state, and are copied into the record.
+     * The old keys are left in place, for an earlier SDK version to read after a rollback.
+     */
+    private fun read(): MutableMap<String, String> {
+        val record = Registry.dataStore.fetch(RECORD_KEY)?.let(::decode)
+        val perKey = keys.mapNotNull { key ->
+            Registry.dataStore.fetch(key.name)?.let { key.name to it }
+        }.toMap(mutableMapOf())
+
+        when {
+            record == perKey || (record == null && perKey.isEmpty()) -> Unit
+            record == null -> {
+                Registry.dataStore.store(RECORD_KEY, encode(perKey))
+                Registry.log.verbose("Migrated ${perKey.size} identity values to a single record")
+            }
+            else -> {
+                Registry.dataStore.store(RECORD_KEY, encode(perKey))
+                Registry.log.info("Identity changed by an earlier SDK version, updating record")
+            }
+        }
+
+        return perKey
+    }
+}
@@ -22,52 +22,94 @@ import com.klaviyo.core.utils.AdvancedAPI
 import java.io.Serializable
 import java.util.UUID
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Stores information on the currently active user
  */
 internal class KlaviyoState : State {
 
-    private val _apiKey = PersistentObservableString(API_KEY, ::broadcastChange)
+    private companion object {
+        /**
+         * Keys of all properties persisted in the [IdentityRecord]
+         */
+        val RECORD_KEYS = listOf(
+            API_KEY,
+            EXTERNAL_ID,
+            EMAIL,
+            PHONE_NUMBER,
+            ANONYMOUS_ID,
+            PROFILE_ATTRIBUTES,
+            PUSH_STATE,
+            PUSH_TOKEN
+        )
+    }
+
+    /**
+     * All properties are persisted together, so each logical mutation is one atomic write
+     */
+    private val record = IdentityRecord(RECORD_KEYS)
+
+    private val _apiKey = PersistentObservableString(API_KEY, ::broadcastChange, record)
     override var apiKey by _apiKey
 
-    private val _externalId = PersistentObservableString(EXTERNAL_ID, ::broadcastChange)
+    private val _externalId = PersistentObservableString(EXTERNAL_ID, ::broadcastChange, record)
     override var externalId by _externalId
 
-    private val _email = PersistentObservableString(EMAIL, ::broadcastChange)
+    private val _email = PersistentObservableString(EMAIL, ::broadcastChange, record)
     override var email by _email
 
-    private val _phoneNumber = PersistentObservableString(PHONE_NUMBER, ::broadcastChange)
+    private val _phoneNumber = PersistentObservableString(PHONE_NUMBER, ::broadcastChange, record)
     override var phoneNumber by _phoneNumber
 
-    private val _anonymousId = PersistentObservableString(ANONYMOUS_ID, ::broadcastChange) {
+    private val _anonymousId = PersistentObservableString(
+        ANONYMOUS_ID,
+        ::broadcastChange,
+        record
+    ) {
         // Fallback: always autogenerate an anonymous ID if not currently set
         UUID.randomUUID().toString()
     }
     override val anonymousId by _anonymousId
 
-    private val _attributes = PersistentObservableProfile(PROFILE_ATTRIBUTES) { _, oldValue ->
+    private val _attributes = PersistentObservableProfile(
+        PROFILE_ATTRIBUTES,
+        record
+    ) { _, oldValue ->
         broadcastChange(StateChange.ProfileAttributes(oldValue))
     }
     private var attributes by _attributes
 
-    private val _pushState = PersistentObservableString(PUSH_STATE, ::broadcastChange)
+    private val _pushState = PersistentObservableString(PUSH_STATE, ::broadcastChange, record)
     override var pushState by _pushState
 
-    private val _pushToken = PersistentObservableString(PUSH_TOKEN, ::broadcastChange)
+    private val _pushToken = PersistentObservableString(PUSH_TOKEN, ::broadcastChange, record)
     override var pushToken: String?
-        set(value) {
+        set(value) = record.edit {
             // Set token should also update entire push state value
             _pushToken.setValue(this, ::_pushToken, value)
             pushState = value?.let { PushTokenApiRequest(it, getAsProfile()).requestBody } ?: ""
         }
         get() = _pushToken.getValue(this, ::_pushToken)
 
+    /**
+     * Read all persisted state into memory in the background, so that later property reads
+     * from the main thread don't wait on disk. Reads made before the load finishes wait for it,
+     * within a bound, see [IdentityRecord.LOAD_TIMEOUT].
+     * Unlike a property get, this never invokes fallbacks, e.g. to generate an anonymous ID.
+     */
+    fun load() = record.load()
+
     /**
      * List of registered state change observers
      */
     private val stateChangeObservers = CopyOnWriteArrayList<StateChangeObserver>()
 
+    /**
+     * List of registered state update observers
+     */
+    private val stateUpdateObservers = CopyOnWriteArrayList<StateUpdateObserver>()
+
     /**
      * List of registered profile event observers
      */
@@ -91,6 +133,24 @@ internal class KlaviyoState : State {
         stateChangeObservers -= observer
     }
 
+    /**
+     * Register an observer to be notified once per update to state
+     *
+     * @param observer
+     */
+    override fun onStateUpdate(observer: StateUpdateObserver) {
+        stateUpdateObservers += observer
+    }
+
+    /**
+     * De-register an observer from [onStateUpdate]
+     *
+     * @param observer
+     */
+    override fun offStateUpdate(observer: StateUpdateObserver) {
+        stateUpdateObservers -= observer
+    }
+
     /**
      * Get all user data in state as a [Profile] model object
      */
@@ -104,7 +164,37 @@ internal class KlaviyoState : State {
     }
 
     /**
-     * Update user state from a new [Profile] model object
+     * Profile identifiers as of a [version] of state, never mutated once built
+     */
+    private class ProfileSnapshot(val version: Long, val profile: Profile)
+
+    /**
+     * Incremented on every change to state, so an older [snapshot] is no longer used
+     */
+    private val version = AtomicLong()
+
+    @Volatile
+    private var snapshot: ProfileSnapshot? = null
+
+    /**
+     * Get user identifiers in state, like [getAsProfile] without attributes,
+     * as a snapshot shared by reference until state changes
+     *
+     * Reading an unchanged state is lock-free and allocates nothing, which suits hot paths
+     * like creating events. Callers must not mutate the returned profile.
+     */
+    fun getProfileSnapshot(): Profile {
+        val current = version.get()
+        snapshot?.takeIf { it.version == current }?.let { return it.profile }
+
+        // If state changes while building, the snapshot is tagged with the version before,
+        // so it won't be served again
+        return getAsProfile().also { snapshot = ProfileSnapshot(current, it) }
+    }
+
+    /**
+     * Update user state from a new [Profile] model object,
+     * persisted in one write and broadcast to [onStateUpdate] observers as one update
      */
     override fun setProfile(profile: Profile) {
         val currentIds = listOf(externalId, email, phoneNumber)
@@ -120,15 +210,18 @@ internal class KlaviyoState : State {
         // when higher-order identifiers haven't changed. Resetting with the same identifiers
         // causes unnecessary anonymous ID churn, which triggers spurious API requests.
         // resetProfile() remains available for explicitly clobbering all state.
-        if (isIdentified && currentIds != incomingIds) {
-            reset()
-        }
+        // Persist and broadcast the reset and all new values together
+        transaction {
+            if (isIdentified && currentIds != incomingIds) {
+                reset()
+            }
 
-        // Move any identifiers and attributes to their specified state variables
-        this.externalId = profile.externalId
-        this.email = profile.email
-        this.phoneNumber = profile.phoneNumber
-        this.attributes = profile.attributes
+            // Move any identifiers and attributes to their specified state variables
+            this@KlaviyoState.externalId = profile.externalId
+            this@KlaviyoState.email = profile.email
+            this@KlaviyoState.phoneNumber = profile.phoneNumber
+            this@KlaviyoState.attributes = profile.attributes
+        }
     }
 
     /**
@@ -167,13 +260,16 @@ internal class KlaviyoState : State {
      * A new anonymous ID will be generated next time it is accessed.
      */
     override fun reset() {
-        val oldProfile = getAsProfile(true)
-
-        _externalId.reset()
-        _email.reset()
-        _phoneNumber.reset()
-        _anonymousId.reset()
-        _attributes.reset()
+        // Reading the old profile may generate an anonymous ID, so it joins the same write
+        val oldProfile = record.edit {
+            getAsProfile(true).also {
+                _externalId.reset()
+                _email.reset()
+                _phoneNumber.reset()
+                _anonymousId.reset()
+                _attributes.reset()
+            }
+        }
 
         broadcastChange(StateChange.ProfileReset(oldProfile))
         Registry.log.verbose("Reset internal user state")
@@ -221,6 +317,36 @@ internal class KlaviyoState : State {
         GenericEventBuffer.clearBuffer()
     }
 
+    /**
+     * Changes made by the [transaction] in progress on the current thread, if any
+     */
+    private val pendingChanges = ThreadLocal<MutableList<StateChange>>()
+
+    /**
+     * Apply all changes made in [block] as one transaction: persisted in a single write
+     * of the record, then broadcast together to [onStateUpdate] observers,
+     * so their side effects run once for the whole update.
+     * [onStateChange] observers are still notified of each change in turn.
+     *
+     * Nested transactions join the outermost transaction.
+     *
+     * @param block
+     */
+    private fun transaction(block: () -> Unit) {
+        if (pendingChanges.get() != null) return record.edit(block)
+
+        val changes = mutableListOf<StateChange>()
+        pendingChanges.set(changes)
+
+        try {
+            record.edit(block)
+        } finally {
+            pendingChanges.remove()
+        }
+
+        if (changes.isNotEmpty()) broadcastUpdate(changes.toList())
+    }
+
     /**
      * From a property change, broadcast the correct state change
      */
@@ -244,12 +370,31 @@ internal class KlaviyoState : State {
     }
 
     /**
-     * Broadcast a change to all registered observers
+     * Broadcast a change to all registered observers,
+     * or add it to the current thread's [transaction] to broadcast when it completes
      *
      * @param change - the state change to broadcast
      */
     private fun broadcastChange(change: StateChange) {
-        stateChangeObservers.forEach { it(change) }
+        version.incrementAndGet()
+
+        val pending = pendingChanges.get()
+        if (pending != null) {
+            pending += change
+        } else {
+            broadcastUpdate(listOf(change))
+        }
+    }
+
+    /**
+     * Broadcast the changes of one update, one by one to state change observers,
+     * then all together to state update observers
+     *
+     * @param changes - the changes made by the update, in order
+     */
+    private fun broadcastUpdate(changes: List<StateChange>) {
+        changes.forEach { change -> stateChangeObservers.forEach { it(change) } }
+        stateUpdateObservers.forEach { it(changes) }
     }
 
     /**
@@ -257,6 +402,7 @@ internal class KlaviyoState : State {
      */
     internal fun resetEmail() {
         _email.reset()
+        version.incrementAndGet()
     }
 
     /**
@@ -264,5 +410,6 @@ internal class KlaviyoState : State {
      */
     internal fun resetPhoneNumber() {
         _phoneNumber.reset()
+        version.incrementAndGet()
     }
 }
@@ -10,9 +10,11 @@ import org.json.JSONObject
 
 internal class PersistentObservableProfile(
     key: Keyword,
+    record: IdentityRecord? = null,
     onChanged: PropertyObserver<ImmutableProfile?> = { _, _ -> }
 ) : PersistentObservableProperty<ImmutableProfile?>(
     key = key,
+    record = record,
     onChanged = onChanged
 ) {
 
@@ -12,6 +12,7 @@ internal typealias PropertyObserver<T> = (property: PersistentObservableProperty
  *
  * When set, the value will be persisted to [key], and
  * on first get, [key] will be read from the store into memory.
+ * The store is the shared [IdentityRecord] if one is given, else its own key in the data store.
  *
  * If no persistent value exists, the value provided by [fallback] will be
  * read into memory and saved to disk.
@@ -28,6 +29,7 @@ internal typealias PropertyObserver<T> = (property: PersistentObservableProperty
 internal abstract class PersistentObservableProperty<T>(
     val key: Keyword,
     private val fallback: () -> T? = { null },
+    private val record: IdentityRecord? = null,
     private val onChanged: PropertyObserver<T>
 ) : ReadWriteProperty<Any?, T?> {
 
@@ -84,16 +86,26 @@ internal abstract class PersistentObservableProperty<T>(
      * Save or clear property in the persistent store
      */
     private fun persist(value: T?) = when (val serializedValue = value?.toString()) {
-        null -> Registry.dataStore.clear(key.name)
-        else -> Registry.dataStore.store(key.name, serializedValue)
+        null -> if (record != null) record.clear(key.name) else Registry.dataStore.clear(key.name)
+        else -> if (record != null) {
+            record.store(key.name, serializedValue)
+        } else {
+            Registry.dataStore.store(key.name, serializedValue)
+        }
     }
 
     /**
      * Get value from persistent store or return a fallback if it isn't present
      * If fallback is invoked, save its return value to persistent store
      *
+     * Reads through the [Registry.dataStoreCache], so an unset property
+     * doesn't go back to the persistent store on every access.
+     *
      * @return
      */
-    private fun fetch(): T? = Registry.dataStore.fetch(key.name)?.let(::deserialize)
-        ?: fallback()?.also(::persist)
+    @Suppress("UNCHECKED_CAST")
+    private fun fetch(): T? = when (record) {
+        null -> Registry.dataStoreCache.fetch(key.name, Any::class.java) { deserialize(it) } as T?
+        else -> record.fetch(key.name)?.let(::deserialize)
+    } ?: fallback()?.also(::persist)
 }
@@ -7,10 +7,12 @@ import kotlin.reflect.KProperty
 internal class PersistentObservableString(
     key: Keyword,
     onChanged: PropertyObserver<String?> = { _, _ -> },
+    record: IdentityRecord? = null,
     fallback: () -> String? = { null }
 ) : PersistentObservableProperty<String?>(
     key = key,
     fallback = fallback,
+    record = record,
     onChanged = onChanged
 ) {
     override fun setValue(thisRef: Any?, property: KProperty<*>, value: String?) {
@@ -1,5 +1,6 @@
 package com.klaviyo.analytics.state
 
+import androidx.annotation.RestrictTo
 import com.klaviyo.analytics.model.Event
 import com.klaviyo.analytics.model.Profile
 import com.klaviyo.analytics.model.ProfileKey
@@ -8,6 +9,11 @@ import java.io.Serializable
 
 typealias StateChangeObserver = (change: StateChange) -> Unit
 
+/**
+ * Observer of all the changes made by one update to state, in order
+ */
+typealias StateUpdateObserver = (changes: List<StateChange>) -> Unit
+
 typealias ProfileEventObserver = (event: Event) -> Unit
 
 interface State {
@@ -33,6 +39,26 @@ interface State {
      */
     fun offStateChange(observer: StateChangeObserver)
 
+    /**
+     * Register a [StateUpdateObserver] to be notified once per update to state, with every change
+     * it made, e.g. once for [setProfile] rather than once for each value it changed.
+     * For the SDK's own observers, whose side effects should run once per update.
+     *
+     * The default implementation never notifies, for states that only notify [onStateChange].
+     *
+     * @param observer
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    fun onStateUpdate(observer: StateUpdateObserver) = Unit
+
+    /**
+     * De-register a [StateUpdateObserver] from [onStateUpdate]
+     *
+     * @param observer
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+    fun offStateUpdate(observer: StateUpdateObserver) = Unit
+
     /**
      * Get all user data in state as a [Profile] model object
      */
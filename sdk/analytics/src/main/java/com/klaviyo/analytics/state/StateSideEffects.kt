@@ -35,7 +35,7 @@ internal class StateSideEffects(
 
     init {
         apiClient.onApiRequest(false, ::afterApiRequest)
-        state.onStateChange(::onStateChange)
+        state.onStateUpdate(::onStateUpdate)
         lifecycleMonitor.onActivityEvent(::onLifecycleEvent)
     }
 
@@ -44,7 +44,7 @@ internal class StateSideEffects(
      */
     fun detach() {
         apiClient.offApiRequest(::afterApiRequest)
-        state.offStateChange(::onStateChange)
+        state.offStateUpdate(::onStateUpdate)
         lifecycleMonitor.offActivityEvent(::onLifecycleEvent)
     }
 
@@ -152,19 +152,21 @@ internal class StateSideEffects(
         else -> Unit
     }
 
-    private fun onStateChange(change: StateChange) = when (change) {
-        is StateChange.ApiKey -> {
-            onApiKeyChange(oldApiKey = change.oldValue)
-        }
-
-        is StateChange.ProfileIdentifier, is StateChange.ProfileReset -> {
+    /**
+     * Run side effects of an update to state,
+     * those of its profile changes only once for the whole update
+     */
+    private fun onStateUpdate(changes: List<StateChange>) {
+        if (changes.any(::isUserStateChange)) {
             onUserStateChange()
         }
 
-        is StateChange.ProfileAttributes -> if (state.getAsProfile(withAttributes = true).attributes.propertyCount() > 0) {
-            onUserStateChange()
-        } else {
-            Unit
+        changes.forEach(::onStateChange)
+    }
+
+    private fun onStateChange(change: StateChange) = when (change) {
+        is StateChange.ApiKey -> {
+            onApiKeyChange(oldApiKey = change.oldValue)
         }
 
         is StateChange.KeyValue -> when (change.key) {
@@ -172,6 +174,17 @@ internal class StateSideEffects(
             ProfileKey.PUSH_TOKEN -> Unit /* Token is a no-op, push changes are captured by push state */
             else -> Unit
         }
+
+        else -> Unit /* Profile changes are handled together, see onStateUpdate */
+    }
+
+    /**
+     * Whether a change calls for a profile API request
+    private fun isUserStateChange(change: StateChange): Boolean = when (change) {
+        is StateChange.ProfileIdentifier, is StateChange.ProfileReset -> true
+        is StateChange.ProfileAttributes ->
+            state.getAsProfile(withAttributes = true).attributes.propertyCount() > 0
+        else -> false
     }
 
     private fun onLifecycleEvent(activity: ActivityEvent) {
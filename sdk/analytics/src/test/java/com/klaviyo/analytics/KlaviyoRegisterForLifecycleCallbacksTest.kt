@@ -62,4 +62,13 @@ internal class KlaviyoRegisterForLifecycleCallbacksTest : BaseTest() {
             mockBuilder.apiKey(any())
         }
     }
+
+    @Test
+    fun `registering for lifecycle callbacks starts preloading persisted data`() {
+        Klaviyo.registerForLifecycleCallbacks(mockApplicationContext)
+
+        verify(exactly = 1) { spyDataStore.preload() }
+        verify { mockTracer.beginSection("Klaviyo.registerForLifecycleCallbacks") }
+        verify { mockTracer.endSection() }
+    }
 }
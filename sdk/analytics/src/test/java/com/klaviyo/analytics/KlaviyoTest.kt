@@ -18,6 +18,7 @@ import com.klaviyo.analytics.state.KlaviyoState
 import com.klaviyo.analytics.state.ProfileEventObserver
 import com.klaviyo.analytics.state.State
 import com.klaviyo.analytics.state.StateSideEffects
+import com.klaviyo.analytics.state.persisted
 import com.klaviyo.core.DeviceProperties
 import com.klaviyo.core.Registry
 import com.klaviyo.core.config.Config
@@ -509,7 +510,7 @@ internal class KlaviyoTest : BaseTest() {
     @Test
     fun `Stores push token and Enqueues a push token API call`() {
         Klaviyo.setPushToken(PUSH_TOKEN)
-        assertEquals(PUSH_TOKEN, spyDataStore.fetch("push_token"))
+        assertEquals(PUSH_TOKEN, persisted(ProfileKey.PUSH_TOKEN))
 
         verify(exactly = 1) {
             mockApiClient.enqueuePushToken(PUSH_TOKEN, any())
@@ -519,7 +520,7 @@ internal class KlaviyoTest : BaseTest() {
     @Test
     fun `Push token request is ignored if state has not changed`() {
         Klaviyo.setPushToken(PUSH_TOKEN)
-        assertEquals(PUSH_TOKEN, spyDataStore.fetch("push_token"))
+        assertEquals(PUSH_TOKEN, persisted(ProfileKey.PUSH_TOKEN))
 
         verify(exactly = 1) {
             mockApiClient.enqueuePushToken(PUSH_TOKEN, any())
@@ -536,7 +537,7 @@ internal class KlaviyoTest : BaseTest() {
     fun `Push token request is repeated if state has changed`() {
         every { DeviceProperties.backgroundDataEnabled } returns true
         Klaviyo.setPushToken(PUSH_TOKEN)
-        assertEquals(PUSH_TOKEN, spyDataStore.fetch("push_token"))
+        assertEquals(PUSH_TOKEN, persisted(ProfileKey.PUSH_TOKEN))
 
         verify(exactly = 1) {
             mockApiClient.enqueuePushToken(PUSH_TOKEN, any())
@@ -553,7 +554,7 @@ internal class KlaviyoTest : BaseTest() {
     @Test
     fun `Push token request is made if profile identifiers change and token is set`() {
         Klaviyo.setPushToken(PUSH_TOKEN)
-        assertEquals(PUSH_TOKEN, spyDataStore.fetch("push_token"))
+        assertEquals(PUSH_TOKEN, persisted(ProfileKey.PUSH_TOKEN))
 
         verify(exactly = 1) {
             mockApiClient.enqueuePushToken(PUSH_TOKEN, any())
@@ -570,7 +571,7 @@ internal class KlaviyoTest : BaseTest() {
     @Test
     fun `Push token request is made if profile changes and token is set`() {
         Klaviyo.setPushToken(PUSH_TOKEN)
-        assertEquals(PUSH_TOKEN, spyDataStore.fetch("push_token"))
+        assertEquals(PUSH_TOKEN, persisted(ProfileKey.PUSH_TOKEN))
 
         verify(exactly = 1) {
             mockApiClient.enqueuePushToken(PUSH_TOKEN, any())
@@ -585,7 +586,7 @@ internal class KlaviyoTest : BaseTest() {
     @Test
     fun `Push token request is made for profile attributes when token is set`() {
         Klaviyo.setPushToken(PUSH_TOKEN)
-        assertEquals(PUSH_TOKEN, spyDataStore.fetch("push_token"))
+        assertEquals(PUSH_TOKEN, persisted(ProfileKey.PUSH_TOKEN))
 
         verify(exactly = 1) {
             mockApiClient.enqueuePushToken(PUSH_TOKEN, any())
@@ -607,7 +608,10 @@ internal class KlaviyoTest : BaseTest() {
 
     @Test
     fun `Fetches push token from persistent store`() {
-        spyDataStore.store("push_token", PUSH_TOKEN)
+        KlaviyoState().pushToken = PUSH_TOKEN
+
+        // A new state instance reads the token persisted by the first
+        Registry.register<State>(KlaviyoState())
         assertEquals(Klaviyo.getPushToken(), PUSH_TOKEN)
     }
 
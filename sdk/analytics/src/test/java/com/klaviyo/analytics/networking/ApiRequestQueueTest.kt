@@ -0,0 +1,232 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.analytics.networking.requests.KlaviyoApiRequest
+import com.klaviyo.analytics.networking.requests.RequestMethod
+import com.klaviyo.fixtures.BaseTest
+import com.klaviyo.fixtures.mockDeviceProperties
+import com.klaviyo.fixtures.unmockDeviceProperties
+import io.mockk.spyk
+import io.mockk.verify
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+internal class ApiRequestQueueTest : BaseTest() {
+
+    private val queue = ApiRequestQueue()
+
+    @Before
+    override fun setup() {
+        super.setup()
+        mockDeviceProperties()
+    }
+
+    @After
+    override fun cleanup() {
+        unmockDeviceProperties()
+        super.cleanup()
+    }
+
+    private fun request(uuid: String) = KlaviyoApiRequest("test", RequestMethod.GET, uuid = uuid)
+
+    @Test
+    fun `Offer and poll preserve insertion order`() {
+        queue.offer(request("a"))
+        queue.offer(request("b"))
+        queue.offer(request("c"))
+
+        assertEquals(3, queue.size)
+        assertEquals(listOf("a", "b", "c"), queue.uuids())
+        assertEquals("a", queue.poll()?.uuid)
+        assertEquals("b", queue.peek()?.uuid)
+        assertEquals(listOf("b", "c"), queue.uuids())
+    }
+
+    @Test
+    fun `Offer first inserts at head of line`() {
+        queue.offer(request("a"))
+        queue.offerFirst(request("b"))
+        queue.offer(request("c"))
+        queue.offerFirst(request("d"))
+
+        assertEquals(listOf("d", "b", "a", "c"), queue.uuids())
+    }
+
+    @Test
+    fun `Requests are de-duplicated by UUID`() {
+        assertTrue(queue.offer(request("a")))
+        assertFalse(queue.offer(request("a")))
+        assertFalse(queue.offerFirst(request("a")))
+
+        assertEquals(1, queue.size)
+        assertTrue(queue.contains("a"))
+        assertTrue(request("a") in queue)
+        assertFalse(request("b") in queue)
+    }
+
+    @Test
+    fun `Removes by UUID from any position`() {
+        listOf("a", "b", "c", "d").forEach { queue.offer(request(it)) }
+
+        assertEquals("b", queue.remove("b")?.uuid)
+        assertEquals(listOf("a", "c", "d"), queue.uuids())
+
+        assertEquals("a", queue.remove("a")?.uuid)
+        assertEquals("d", queue.remove("d")?.uuid)
+        assertEquals(listOf("c"), queue.uuids())
+
+        assertNull(queue.remove("a"))
+        assertEquals("c", queue["c"]?.uuid)
+        assertNull(queue["a"])
+    }
+
+    @Test
+    fun `Empties and clears correctly`() {
+        assertTrue(queue.isEmpty())
+        assertNull(queue.poll())
+
+        queue.offer(request("a"))
+        queue.offer(request("b"))
+        assertTrue(queue.isNotEmpty())
+
+        queue.poll()
+        queue.poll()
+        assertTrue(queue.isEmpty())
+        assertNull(queue.peek())
+
+        queue.offer(request("c"))
+        queue.offerFirst(request("d"))
+        queue.clear()
+        assertTrue(queue.isEmpty())
+        assertFalse(queue.contains("c"))
+
+        // Can be re-used after clearing
+        queue.offer(request("e"))
+        assertEquals(listOf("e"), queue.uuids())
+    }
+
+    @Test
+    fun `Queue can be mutated while iterating`() {
+        listOf("a", "b", "c").forEach { queue.offer(request(it)) }
+
+        queue.forEach { queue.remove(it.uuid) }
+
+        assertTrue(queue.isEmpty())
+    }
+
+    @Test
+    fun `Restored requests are loaded when first retrieved`() {
+        val loads = mutableListOf<String>()
+        val lazyQueue = ApiRequestQueue { uuid -> request(uuid).also { loads += uuid } }
+        val queued = request("b")
+        lazyQueue.offer(queued)
+
+        lazyQueue.restore(listOf("a", "b", "c"))
+
+        assertEquals(3, lazyQueue.size)
+        assertEquals(listOf("a", "b", "c"), lazyQueue.uuids())
+        assertTrue(loads.isEmpty())
+
+        assertEquals("a", lazyQueue.poll()?.uuid)
+        assertSame(queued, lazyQueue.peek())
+        assertEquals(listOf("a"), loads)
+    }
+
+    @Test
+    fun `Restored requests that fail to load are dropped`() {
+        val lazyQueue = ApiRequestQueue { uuid -> if (uuid == "b") request(uuid) else null }
+
+        lazyQueue.restore(listOf("a", "b", "c"))
+
+        assertEquals("b", lazyQueue.peek()?.uuid)
+        assertEquals(listOf("b"), lazyQueue.map { it.uuid })
+        assertEquals(1, lazyQueue.size)
+    }
+
+    @Test
+    fun `De-duplication looks up the index without visiting queued requests`() {
+        val queued = List(100) { spyk(request("uuid-$it")) }
+        queued.forEach { queue.offer(it) }
+
+        // Re-offering and checking for every request doesn't touch any queued request
+        repeat(100) { assertFalse(queue.offer(request("uuid-$it"))) }
+        repeat(100) { assertTrue("uuid-$it" in queue) }
+
+        // Each was only read when it was first offered
+        queued.forEach { verify(exactly = 1) { it.uuid } }
+        assertEquals(100, queue.size)
+    }
+
+    @Test
+    fun `Restore queues UUIDs without loading any request until it is retrieved`() {
+        var loads = 0
+        val lazyQueue = ApiRequestQueue { uuid -> loads++; request(uuid) }
+        val uuids = List(10_000) { "uuid-$it" }
+
+        lazyQueue.restore(uuids)
+        assertEquals(0, loads)
+        assertEquals(uuids, lazyQueue.uuids())
+
+        // Retrieval loads one request at a time
+        assertEquals("uuid-0", lazyQueue.poll()?.uuid)
+        assertEquals("uuid-1", lazyQueue.peek()?.uuid)
+        assertEquals("uuid-5000", lazyQueue.remove("uuid-5000")?.uuid)
+        assertEquals(3, loads)
+
+        // Restoring again keeps requests that were already loaded
+        lazyQueue.restore(uuids.drop(1))
+        assertEquals("uuid-1", lazyQueue.peek()?.uuid)
+        assertEquals(3, loads)
+    }
+
+    @Test
+    fun `Loading a request does not block other threads from using the queue`() {
+        val loading = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val lazyQueue = ApiRequestQueue { uuid ->
+            loading.countDown()
+            release.await(5, TimeUnit.SECONDS)
+            request(uuid)
+        }
+        lazyQueue.restore(listOf("a", "b"))
+
+        var polled: KlaviyoApiRequest? = null
+        val poller = thread { polled = lazyQueue.poll() }
+        loading.await(5, TimeUnit.SECONDS)
+
+        // While "a" loads, the queue is still available
+        val offer = thread { lazyQueue.offerFirst(request("c")) }
+        offer.join(1_000)
+        assertFalse("Offer waited on a load", offer.isAlive)
+        assertEquals(listOf("c", "a", "b"), lazyQueue.uuids())
+
+        // The head changed while "a" loaded, so the poll moves on to the new head
+        release.countDown()
+        poller.join()
+        assertEquals("c", polled?.uuid)
+        assertEquals(listOf("a", "b"), lazyQueue.uuids())
+        assertEquals("a", lazyQueue.peek()?.uuid)
+    }
+
+    @Test
+    fun `Request that fails to load is dropped unless it was re-queued meanwhile`() {
+        lateinit var lazyQueue: ApiRequestQueue
+        lazyQueue = ApiRequestQueue { uuid ->
+            // Re-queued by another operation while this load was in progress
+            lazyQueue.offer(request(uuid))
+            null
+        }
+        lazyQueue.restore(listOf("a"))
+
+        assertNull(lazyQueue.remove("a"))
+        assertEquals(listOf("a"), lazyQueue.uuids())
+    }
+}
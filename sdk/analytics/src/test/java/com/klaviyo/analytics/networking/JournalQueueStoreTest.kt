@@ -0,0 +1,344 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.core.config.QueueDurability
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.fixtures.BaseTest
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import java.io.File
+import java.io.RandomAccessFile
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+internal class JournalQueueStoreTest : BaseTest() {
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var journal: File
+
+    @Before
+    override fun setup() {
+        super.setup()
+        journal = File(tempFolder.root, "klaviyo/api_queue.journal")
+    }
+
+    private fun entry(uuid: String, payload: String = "{\"uuid\":\"$uuid\"}") =
+        QueueEntry(uuid, payload.toByteArray())
+
+    private fun reopen() = JournalQueueStore(journal)
+
+    private fun QueueStore.uuids() = load().map { it.uuid }
+
+    @Test
+    fun `Persists entries in queue order including head of line`() {
+        JournalQueueStore(journal).apply {
+            enqueue(listOf(entry("a"), entry("b")))
+            enqueue(listOf(entry("c"), entry("d")), headOfLine = true)
+            enqueue(listOf(entry("e")))
+            enqueue(listOf(entry("f")), headOfLine = true)
+        }
+
+        assertEquals(listOf("f", "c", "d", "a", "b", "e"), reopen().uuids())
+    }
+
+    @Test
+    fun `Updates and removals are replayed`() {
+        JournalQueueStore(journal).apply {
+            enqueue(listOf(entry("a"), entry("b"), entry("c")))
+            update(entry("b", "updated"))
+            remove(listOf("a"))
+            update(entry("a", "ignored"))
+        }
+
+        assertEquals(listOf(entry("b", "updated"), entry("c")), reopen().load())
+    }
+
+    @Test
+    fun `Reads the index and single payloads without loading the queue`() {
+        JournalQueueStore(journal).apply {
+            enqueue(listOf(entry("a"), entry("b")))
+            enqueue(listOf(entry("c")), headOfLine = true)
+            update(entry("b", "updated"))
+        }
+
+        val store = reopen()
+        assertEquals(listOf("c", "a", "b"), store.loadIndex())
+        assertEquals("updated", store.read("b")?.let { String(it) })
+        assertEquals(null, store.read("missing"))
+
+        // Writes after an index-only restore are appended as usual
+        store.remove(listOf("c"))
+        assertEquals(listOf(entry("a"), entry("b", "updated")), reopen().load())
+    }
+
+    @Test
+    fun `Sync re-writes the journal to match the given order`() {
+        JournalQueueStore(journal).apply {
+            enqueue(listOf(entry("a"), entry("b"), entry("c")))
+            sync(listOf("c", "a"))
+        }
+
+        assertEquals(listOf("c", "a"), reopen().uuids())
+    }
+
+    @Test
+    fun `Clear empties the journal`() {
+        JournalQueueStore(journal).apply {
+            enqueue(listOf(entry("a"), entry("b")))
+            clear()
+            assertEquals(emptyList<QueueEntry>(), load())
+        }
+
+        assertEquals(0L, journal.length())
+    }
+
+    @Test
+    fun `Torn record at the tail is truncated on load`() {
+        JournalQueueStore(journal).enqueue(listOf(entry("a"), entry("b")))
+        val intactLength = journal.length()
+
+        JournalQueueStore(journal).enqueue(listOf(entry("c")))
+        RandomAccessFile(journal, "rw").use { it.setLength(journal.length() - 3) }
+
+        val store = reopen()
+        assertEquals(listOf("a", "b"), store.uuids())
+        assertEquals(intactLength, journal.length())
+
+        // Journal remains usable after truncation
+        store.enqueue(listOf(entry("d")))
+        assertEquals(listOf("a", "b", "d"), reopen().uuids())
+    }
+
+    @Test
+    fun `Corrupt record fails checksum and is dropped`() {
+        JournalQueueStore(journal).enqueue(listOf(entry("a")))
+        val intactLength = journal.length()
+        JournalQueueStore(journal).enqueue(listOf(entry("b", "payload")))
+
+        // Flip a byte in the last record's payload
+        RandomAccessFile(journal, "rw").use {
+            it.seek(journal.length() - 6)
+            val byte = it.read()
+            it.seek(journal.length() - 6)
+            it.write(byte xor 0xFF)
+        }
+
+        assertEquals(listOf("a"), reopen().uuids())
+        assertEquals(intactLength, journal.length())
+    }
+
+    @Test
+    fun `Leftover compaction file is discarded`() {
+        JournalQueueStore(journal).enqueue(listOf(entry("a")))
+        File(journal.path + ".tmp").writeText("incomplete")
+
+        assertEquals(listOf("a"), reopen().uuids())
+        assertFalse(File(journal.path + ".tmp").exists())
+    }
+
+    @Test
+    fun `Compacts once dead records outnumber live entries`() {
+        val store = JournalQueueStore(journal)
+        val live = entry("live")
+        store.enqueue(listOf(live))
+
+        // Size of the journal if it were never compacted
+        fun recordSize(uuid: String, payload: ByteArray = ByteArray(0)) =
+            1 + 2 + uuid.length + 4 + payload.size + 4
+        var uncompactedLength = recordSize(live.uuid, live.payload)
+
+        repeat(JournalQueueStore.COMPACTION_MIN_RECORDS) {
+            val dead = entry("dead-$it")
+            store.enqueue(listOf(dead))
+            store.remove(listOf(dead.uuid))
+            uncompactedLength += recordSize(dead.uuid, dead.payload) + recordSize(dead.uuid)
+        }
+
+        assertTrue(
+            "Journal was not compacted: ${journal.length()} of $uncompactedLength bytes",
+            journal.length() < uncompactedLength / 2
+        )
+        assertEquals(listOf(live), reopen().load())
+    }
+
+    @Test
+    fun `Migrates legacy queue when no journal exists`() {
+        val legacy = mockk<QueueStore>(relaxed = true)
+        every { legacy.load() } returns listOf(entry("a"), entry("b"))
+
+        val store = JournalQueueStore(journal, legacy)
+        assertEquals(listOf("a", "b"), store.uuids())
+        verify(exactly = 1) { legacy.clear() }
+
+        // Once migrated, the legacy store is no longer consulted
+        assertEquals(listOf("a", "b"), JournalQueueStore(journal, legacy).uuids())
+        verify(exactly = 1) { legacy.load() }
+    }
+
+    @Test
+    fun `Migrates legacy DataStore layout`() {
+        spyDataStore.store(DataStoreQueueStore.QUEUE_KEY, "[\"a\",\"b\"]")
+        spyDataStore.store("a", "{\"uuid\":\"a\"}")
+        spyDataStore.store("b", "{\"uuid\":\"b\"}")
+
+        val store = JournalQueueStore(journal, DataStoreQueueStore())
+
+        assertEquals(listOf(entry("a"), entry("b")), store.load())
+        assertEquals(null, spyDataStore.fetch(DataStoreQueueStore.QUEUE_KEY))
+        assertEquals(null, spyDataStore.fetch("a"))
+    }
+
+    /**
+     * Bytes appended to the journal by [sample] enqueue + remove operations against a queue of [size]
+     */
+    private fun bytesPerOperations(size: Int, sample: Int): Long {
+        journal.delete()
+        val store = JournalQueueStore(journal, durability = QueueDurability.STRICT)
+        store.enqueue(List(size) { entry("$size-$it") })
+
+        val before = journal.length()
+        repeat(sample) {
+            store.enqueue(listOf(entry("new-$it")))
+            store.remove(listOf("new-$it"))
+        }
+        return journal.length() - before
+    }
+
+    @Test
+    fun `Each operation appends a record regardless of queue size`() {
+        val sample = 50
+        val small = bytesPerOperations(200, sample)
+
+        // Re-writing the queue per operation would write bytes in proportion to its size
+        assertTrue(small > 0)
+        assertEquals(small, bytesPerOperations(2_000, sample))
+    }
+
+    @Test
+    fun `Memory first writes behind within the commit interval`() {
+        val store = JournalQueueStore(
+            journal,
+            durability = QueueDurability.MEMORY_FIRST,
+            commitInterval = 1_000,
+            commitDepth = 10
+        )
+
+        store.enqueue(listOf(entry("a")))
+        store.enqueue(listOf(entry("b")))
+
+        // A crash now would lose both writes
+        assertEquals(emptyList<String>(), reopen().loadIndex())
+
+        staticClock.execute(1_000)
+        assertEquals(listOf("a", "b"), reopen().loadIndex())
+    }
+
+    @Test
+    fun `Memory first commits once the commit depth is reached`() {
+        val store = JournalQueueStore(
+            journal,
+            durability = QueueDurability.MEMORY_FIRST,
+            commitInterval = 1_000,
+            commitDepth = 2
+        )
+
+        store.enqueue(listOf(entry("a")))
+        store.enqueue(listOf(entry("b")))
+        assertTrue(staticClock.scheduledTasks.isEmpty())
+
+        // The commit runs in the background rather than on the writing thread
+        assertEquals(emptyList<String>(), reopen().loadIndex())
+        dispatcher.scheduler.advanceUntilIdle()
+        assertEquals(listOf("a", "b"), reopen().loadIndex())
+    }
+
+    @Test
+    fun `Group commit hands every write to the OS and syncs them together`() {
+        val store = JournalQueueStore(journal, durability = QueueDurability.GROUP_COMMIT)
+
+        store.enqueue(listOf(entry("a")))
+        store.enqueue(listOf(entry("b")))
+
+        assertEquals(listOf("a", "b"), reopen().loadIndex())
+        assertEquals(1, staticClock.scheduledTasks.size)
+
+        staticClock.execute(1_000)
+        assertTrue(staticClock.scheduledTasks.isEmpty())
+    }
+
+    @Test
+    fun `Strict hands every write to the OS and syncs it right away in the background`() {
+        val store = JournalQueueStore(journal, durability = QueueDurability.STRICT)
+        val committed = mutableListOf<Boolean>()
+
+        store.enqueue(listOf(entry("a")))
+        store.onCommitted { committed += it }
+
+        assertEquals(listOf("a"), reopen().loadIndex())
+        assertTrue(staticClock.scheduledTasks.isEmpty())
+        assertEquals(emptyList<Boolean>(), committed)
+
+        dispatcher.scheduler.advanceUntilIdle()
+        assertEquals(listOf(true), committed)
+
+        // With nothing left to commit, the callback runs right away
+        store.onCommitted { committed += it }
+        assertEquals(listOf(true, true), committed)
+    }
+
+    @Test
+    fun `Group commit reports completion once the commit interval passes`() {
+        val store = JournalQueueStore(
+            journal,
+            durability = QueueDurability.GROUP_COMMIT,
+            commitInterval = 1_000
+        )
+        var committed: Boolean? = null
+
+        store.enqueue(listOf(entry("a")))
+        store.onCommitted { committed = it }
+        assertEquals(null, committed)
+
+        staticClock.execute(1_000)
+        assertEquals(true, committed)
+    }
+
+    @Test
+    fun `Loss window per durability mode`() {
+        val count = 1_000
+        val depth = 64
+
+        QueueDurability.values().forEach { durability ->
+            journal.delete()
+            val store = JournalQueueStore(
+                journal,
+                durability = durability,
+                commitInterval = 1_000,
+                commitDepth = depth
+            )
+
+            repeat(count) {
+                store.enqueue(listOf(entry("$durability-$it")))
+                dispatcher.scheduler.runCurrent()
+            }
+
+            // Requests a crash right now would lose, i.e. not yet handed to the OS
+            val lost = count - reopen().loadIndex().size
+            staticClock.scheduledTasks.clear()
+
+            if (durability == QueueDurability.MEMORY_FIRST) {
+                assertTrue("Lost $lost requests", lost < depth)
+            } else {
+                assertEquals(0, lost)
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.klaviyo.analytics.networking
 
 import android.net.Uri
+import android.util.Base64
 import com.klaviyo.analytics.model.Event
 import com.klaviyo.analytics.model.EventMetric
 import com.klaviyo.analytics.model.Profile
@@ -12,6 +13,7 @@ import com.klaviyo.analytics.networking.requests.FetchGeofencesRequest
 import com.klaviyo.analytics.networking.requests.FetchGeofencesResult
 import com.klaviyo.analytics.networking.requests.FetchedGeofence
 import com.klaviyo.analytics.networking.requests.KlaviyoApiRequest
+import com.klaviyo.analytics.networking.requests.KlaviyoApiRequestCodec
 import com.klaviyo.analytics.networking.requests.KlaviyoApiRequestDecoder
 import com.klaviyo.analytics.networking.requests.RequestMethod
 import com.klaviyo.analytics.networking.requests.ResolveDestinationResult
@@ -23,8 +25,10 @@ import com.klaviyo.core.MissingConfig
 import com.klaviyo.core.Registry
 import com.klaviyo.core.lifecycle.ActivityEvent
 import com.klaviyo.core.lifecycle.ActivityObserver
+import com.klaviyo.core.model.QueueStore
 import com.klaviyo.core.networking.NetworkMonitor
-import com.klaviyo.core.networking.NetworkObserver
+import com.klaviyo.core.networking.NetworkMonitor.NetworkState
+import com.klaviyo.core.networking.NetworkStateObserver
 import com.klaviyo.core.utils.takeIf
 import com.klaviyo.fixtures.BaseTest
 import com.klaviyo.fixtures.mockDeviceProperties
@@ -43,6 +47,7 @@ import io.mockk.unmockkObject
 import io.mockk.unmockkStatic
 import io.mockk.verify
 import io.mockk.verifyOrder
+import java.io.IOException
 import java.net.HttpURLConnection
 import java.net.URL
 import kotlinx.coroutines.Dispatchers
@@ -75,7 +80,14 @@ internal class KlaviyoApiClientTest : BaseTest() {
 
     private companion object {
         private val slotOnActivityEvent = slot<ActivityObserver>()
-        private val slotOnNetworkChange = slot<NetworkObserver>()
+        private val slotOnNetworkChange = slot<NetworkStateObserver>()
+        private val onlineState = NetworkState(
+            isConnected = true,
+            isValidated = true,
+            type = NetworkMonitor.NetworkType.Wifi,
+            isMetered = false
+        )
+        private val offlineState = NetworkState.OFFLINE
     }
 
     @Before
@@ -102,8 +114,8 @@ internal class KlaviyoApiClientTest : BaseTest() {
         every { mockNetworkMonitor.getNetworkType() } returns NetworkMonitor.NetworkType.Wifi
         every { mockLifecycleMonitor.onActivityEvent(capture(slotOnActivityEvent)) } returns Unit
         every { mockLifecycleMonitor.offActivityEvent(capture(slotOnActivityEvent)) } returns Unit
-        every { mockNetworkMonitor.onNetworkChange(capture(slotOnNetworkChange)) } returns Unit
-        every { mockNetworkMonitor.offNetworkChange(capture(slotOnNetworkChange)) } returns Unit
+        every { mockNetworkMonitor.onNetworkStateChange(capture(slotOnNetworkChange)) } returns Unit
+        every { mockNetworkMonitor.offNetworkStateChange(capture(slotOnNetworkChange)) } returns Unit
 
         every { mockHandler.postDelayed(any(), any()) } answers {
             postedJob = firstArg<KlaviyoApiClient.NetworkRunnable>()
@@ -113,6 +125,9 @@ internal class KlaviyoApiClientTest : BaseTest() {
         // Register mock QueueScheduler to prevent actual WorkManager operations
         Registry.register<QueueScheduler>(mockQueueScheduler)
 
+        // Use the DataStore queue layout, so persisted state can be asserted via spyDataStore
+        Registry.register<QueueStore>(DataStoreQueueStore())
+
         KlaviyoApiClient.startService()
     }
 
@@ -121,6 +136,7 @@ internal class KlaviyoApiClientTest : BaseTest() {
         // Reset the Main dispatcher
         Dispatchers.resetMain()
 
+        dispatcher.scheduler.advanceUntilIdle()
         spyDataStore.clear(KlaviyoApiClient.QUEUE_KEY)
         KlaviyoApiClient.restoreQueue(forceRestore = true)
         assertEquals(0, KlaviyoApiClient.getQueueSize())
@@ -130,6 +146,7 @@ internal class KlaviyoApiClientTest : BaseTest() {
         unmockDeviceProperties()
         unmockkStatic(DeviceProperties::buildEventMetaData)
         Registry.unregister<QueueScheduler>()
+        Registry.unregister<QueueStore>()
     }
 
     private fun mockRequest(
@@ -320,7 +337,7 @@ internal class KlaviyoApiClientTest : BaseTest() {
 
         // Listeners should have been removed
         verify { mockLifecycleMonitor.offActivityEvent(priorOnActivityEvent) }
-        verify { mockNetworkMonitor.offNetworkChange(priorOnNetworkChange) }
+        verify { mockNetworkMonitor.offNetworkStateChange(priorOnNetworkChange) }
     }
 
     @Test
@@ -403,9 +420,56 @@ internal class KlaviyoApiClientTest : BaseTest() {
         staticClock.time += flushIntervalWifi
         assertEquals(1, KlaviyoApiClient.getQueueSize())
         assert(slotOnNetworkChange.isCaptured)
-        slotOnNetworkChange.captured(false)
+        slotOnNetworkChange.captured(onlineState, offlineState)
         assertEquals(1, KlaviyoApiClient.getQueueSize())
-        slotOnNetworkChange.captured(true)
+        slotOnNetworkChange.captured(offlineState, onlineState)
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+    }
+
+    @Test
+    fun `Captive portal is treated as offline`() {
+        KlaviyoApiClient.enqueueRequest(mockRequest())
+        staticClock.time += flushIntervalWifi
+        val portalState = onlineState.copy(isValidated = false)
+
+        slotOnNetworkChange.captured(onlineState, portalState)
+        verify { mockHandler.removeCallbacksAndMessages(null) }
+        assertEquals(1, KlaviyoApiClient.getQueueSize())
+
+        slotOnNetworkChange.captured(portalState, onlineState)
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+    }
+
+    @Test
+    fun `Network handover while online does not force a flush`() {
+        KlaviyoApiClient.enqueueRequest(mockRequest())
+
+        slotOnNetworkChange.captured(
+            onlineState,
+            onlineState.copy(type = NetworkMonitor.NetworkType.Cell, isMetered = true)
+        )
+
+        // Flush interval has not elapsed, so the request remains queued
+        assertEquals(1, KlaviyoApiClient.getQueueSize())
+    }
+
+    @Test
+    fun `Large backlog drains with slow start on network restored`() {
+        repeat(30) { KlaviyoApiClient.enqueueRequest(mockRequest("uuid-$it")) }
+        slotOnNetworkChange.captured(onlineState, offlineState)
+        assertEquals(30, KlaviyoApiClient.getQueueSize())
+
+        // First batch is the configured initial slow start size
+        slotOnNetworkChange.captured(offlineState, onlineState)
+        assertEquals(25, KlaviyoApiClient.getQueueSize())
+        verify { mockHandler.postDelayed(any(), 1_000L) }
+
+        // Batch size doubles after a successful batch
+        postedJob!!.run()
+        assertEquals(15, KlaviyoApiClient.getQueueSize())
+
+        // Once the remaining queue fits in the next batch, it is emptied
+        postedJob!!.run()
         assertEquals(0, KlaviyoApiClient.getQueueSize())
     }
 
@@ -528,7 +592,10 @@ internal class KlaviyoApiClientTest : BaseTest() {
         assert(outcome is FlushOutcome.Incomplete)
         assertEquals(1234L, outcome.takeIf<FlushOutcome.Incomplete>()?.retryAfter)
         assertEquals(1, KlaviyoApiClient.getQueueSize())
-        assertEquals(request.toJson().toString(), spyDataStore.fetch("incomplete-uuid"))
+        assertEquals(
+            Base64.encodeToString(KlaviyoApiRequestCodec.encode(request), Base64.NO_WRAP),
+            spyDataStore.fetch("incomplete-uuid")
+        )
     }
 
     @Test
@@ -542,6 +609,101 @@ internal class KlaviyoApiClientTest : BaseTest() {
         assertNull(spyDataStore.fetch(fail))
     }
 
+    @Test
+    fun `Finished requests are removed from persistent store in one batch`() {
+        val spyQueueStore = spyk(DataStoreQueueStore())
+        Registry.register<QueueStore>(spyQueueStore)
+
+        KlaviyoApiClient.enqueueRequest(
+            mockRequest("uuid-complete"),
+            mockRequest("uuid-failed", KlaviyoApiRequest.Status.Failed)
+        )
+        KlaviyoApiClient.flushQueue()
+
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+        verify(exactly = 1) { spyQueueStore.remove(listOf("uuid-complete", "uuid-failed")) }
+        assertEquals("[]", spyDataStore.fetch(KlaviyoApiClient.QUEUE_KEY))
+    }
+
+    @Test
+    fun `A process that can't claim a shared queue hands it off without sending`() {
+        val spyQueueStore = spyk(DataStoreQueueStore())
+        every { spyQueueStore.claimDrain() } returns false
+        Registry.register<QueueStore>(spyQueueStore)
+        val request = mockRequest("uuid-handoff")
+
+        KlaviyoApiClient.enqueueRequest(request)
+        KlaviyoApiClient.flushQueue()
+
+        verify(exactly = 0) { request.send(any()) }
+        verify(exactly = 0) { mockQueueScheduler.scheduleFlush() }
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+        assertNotNull(spyDataStore.fetch("uuid-handoff"))
+
+        // The claim is retried on the regular schedule
+        assertNotNull(postedJob)
+    }
+
+    @Test
+    fun `A process that takes over a shared queue restores the requests it handed off`() {
+        val spyQueueStore = spyk(DataStoreQueueStore())
+        every { spyQueueStore.claimDrain() } returns false
+        Registry.register<QueueStore>(spyQueueStore)
+        val request = mockRequest("uuid-takeover")
+        mockkObject(KlaviyoApiRequestDecoder)
+        every { KlaviyoApiRequestDecoder.fromBytes(any()) } returns request
+
+        KlaviyoApiClient.enqueueRequest(request)
+        KlaviyoApiClient.flushQueue()
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+
+        // The sending process has died, releasing its claim
+        every { spyQueueStore.claimDrain() } returns true
+        KlaviyoApiClient.flushQueue()
+
+        verify { spyQueueStore.loadIndex() }
+        verify(exactly = 1) { request.send(any()) }
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+        assertNull(spyDataStore.fetch("uuid-takeover"))
+    }
+
+    @Test
+    fun `The sending process polls a shared queue for requests from other processes`() {
+        val spyQueueStore = spyk(DataStoreQueueStore())
+        every { spyQueueStore.isShared() } returns true
+        Registry.register<QueueStore>(spyQueueStore)
+        val request = mockRequest("uuid-foreign")
+        mockkObject(KlaviyoApiRequestDecoder)
+        every { KlaviyoApiRequestDecoder.fromBytes(any()) } returns request
+
+        // Nothing to send, but the queue is checked again on the regular schedule
+        KlaviyoApiClient.flushQueue()
+        val poll = requireNotNull(postedJob)
+
+        spyQueueStore.enqueue(listOf(request.toQueueEntry()))
+        every { spyQueueStore.hasExternalChanges() } returns true
+        staticClock.time += flushIntervalWifi
+        poll.run()
+
+        verify(exactly = 1) { request.send(any()) }
+        assertNull(spyDataStore.fetch("uuid-foreign"))
+    }
+
+    @Test
+    fun `Requests enqueued by another process are restored`() {
+        val spyQueueStore = spyk(DataStoreQueueStore())
+        Registry.register<QueueStore>(spyQueueStore)
+        KlaviyoApiClient.restoreQueue(forceRestore = false)
+
+        spyQueueStore.enqueue(listOf(mockRequest("uuid-foreign").toQueueEntry()))
+        KlaviyoApiClient.restoreQueue(forceRestore = false)
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+
+        every { spyQueueStore.hasExternalChanges() } returns true
+        KlaviyoApiClient.restoreQueue(forceRestore = false)
+        assertEquals(1, KlaviyoApiClient.getQueueSize())
+    }
+
     @Test
     fun `An unsent request is not removed from the queue`() {
         val uuid = "uuid-failed"
@@ -737,6 +899,7 @@ internal class KlaviyoApiClientTest : BaseTest() {
             mockRequest("mock_uuid1"),
             mockRequest("mock_uuid2")
         )
+        dispatcher.scheduler.advanceUntilIdle()
 
         assertNotEquals(null, spyDataStore.fetch("mock_uuid1"))
         assertNotEquals(null, spyDataStore.fetch("mock_uuid2"))
@@ -746,11 +909,76 @@ internal class KlaviyoApiClientTest : BaseTest() {
         )
     }
 
+    @Test
+    fun `Requests are persisted in the background, not on the enqueuing thread`() {
+        val spyQueueStore = spyk(DataStoreQueueStore())
+        Registry.register<QueueStore>(spyQueueStore)
+
+        KlaviyoApiClient.enqueueRequest(mockRequest("mock_uuid1"))
+        KlaviyoApiClient.enqueueRequest(mockRequest("mock_uuid2"), headOfLine = true)
+
+        assertEquals(2, KlaviyoApiClient.getQueueSize())
+        verify(exactly = 0) { spyQueueStore.enqueue(any(), any()) }
+
+        dispatcher.scheduler.advanceUntilIdle()
+
+        verifyOrder {
+            spyQueueStore.enqueue(match { it.single().uuid == "mock_uuid1" }, false)
+            spyQueueStore.enqueue(match { it.single().uuid == "mock_uuid2" }, true)
+        }
+        assertEquals(
+            "[\"mock_uuid2\",\"mock_uuid1\"]",
+            spyDataStore.fetch(KlaviyoApiClient.QUEUE_KEY)
+        )
+    }
+
+    @Test
+    fun `Requests not yet persisted are persisted before the queue is restored`() {
+        KlaviyoApiClient.enqueueRequest(mockRequest("mock_uuid1", KlaviyoApiRequest.Status.Unsent))
+
+        KlaviyoApiClient.restoreQueue(forceRestore = true)
+
+        assertEquals(1, KlaviyoApiClient.getQueueSize())
+        assertEquals("[\"mock_uuid1\"]", spyDataStore.fetch(KlaviyoApiClient.QUEUE_KEY))
+    }
+
+    @Test
+    fun `Requests stay queued in memory while the persistent store is unavailable`() {
+        val spyQueueStore = spyk(DataStoreQueueStore())
+        every { spyQueueStore.enqueue(any(), any()) } throws IOException("Locked")
+        Registry.register<QueueStore>(spyQueueStore)
+
+        KlaviyoApiClient.enqueueRequest(mockRequest("mock_uuid1", KlaviyoApiRequest.Status.Unsent))
+        dispatcher.scheduler.advanceUntilIdle()
+        KlaviyoApiClient.restoreQueue(forceRestore = true)
+
+        assertEquals(1, KlaviyoApiClient.getQueueSize())
+        assertNull(spyDataStore.fetch("mock_uuid1"))
+
+        every { spyQueueStore.enqueue(any(), any()) } answers { callOriginal() }
+        KlaviyoApiClient.restoreQueue(forceRestore = true)
+
+        assertEquals(1, KlaviyoApiClient.getQueueSize())
+        assertNotNull(spyDataStore.fetch("mock_uuid1"))
+    }
+
+    @Test
+    fun `Requests and queue order are persisted in a single edit`() {
+        KlaviyoApiClient.enqueueRequest(
+            mockRequest("mock_uuid1"),
+            mockRequest("mock_uuid2")
+        )
+        dispatcher.scheduler.advanceUntilIdle()
+
+        verify(exactly = 1) { spyDataStore.edit(any()) }
+    }
+
     @Test
     fun `Flushing queue empties persistent store`() {
         spyDataStore.store("something_else", "test")
         spyDataStore.clear(KlaviyoApiClient.QUEUE_KEY)
         KlaviyoApiClient.enqueueRequest(mockRequest("mock_uuid"))
+        dispatcher.scheduler.advanceUntilIdle()
 
         assertNotEquals(null, spyDataStore.fetch("mock_uuid"))
         assertEquals("[\"mock_uuid\"]", spyDataStore.fetch(KlaviyoApiClient.QUEUE_KEY))
@@ -807,13 +1035,92 @@ internal class KlaviyoApiClientTest : BaseTest() {
         spyDataStore.store("mock_uuid2", mockRequest("mock_uuid2").toString())
 
         KlaviyoApiClient.restoreQueue(forceRestore = true)
+
+        // Payloads aren't read until each request is about to be sent
+        assertEquals(3, KlaviyoApiClient.getQueueSize())
+        verify(exactly = 0) { KlaviyoApiRequestDecoder.fromJson(any()) }
+
+        KlaviyoApiClient.flushQueue()
         val actualQueue = spyDataStore.fetch(KlaviyoApiClient.QUEUE_KEY)
 
-        assertEquals(1, KlaviyoApiClient.getQueueSize())
-        assertEquals("[\"mock_uuid2\"]", actualQueue) // Expect queue to reflect the dropped item
+        verify(exactly = 1) { KlaviyoApiRequestDecoder.fromJson(any()) }
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+        assertEquals("[]", actualQueue) // Expect queue to reflect the dropped items
         assertNull(spyDataStore.fetch("mock_uuid1")) // Expect the item to be cleared from store
     }
 
+    @Test
+    fun `Restored requests are decoded as they are sent`() {
+        mockkObject(KlaviyoApiRequestDecoder)
+        every { KlaviyoApiRequestDecoder.fromJson(any()) } answers { a ->
+            val uuid = (a.invocation.args[0] as JSONObject).getString("uuid")
+            mockRequest(uuid)
+        }
+
+        spyDataStore.store(KlaviyoApiClient.QUEUE_KEY, "[\"mock_uuid1\",\"mock_uuid2\"]")
+        spyDataStore.store("mock_uuid1", mockRequest("mock_uuid1").toString())
+        spyDataStore.store("mock_uuid2", mockRequest("mock_uuid2").toString())
+
+        KlaviyoApiClient.restoreQueue(forceRestore = true)
+
+        assertEquals(2, KlaviyoApiClient.getQueueSize())
+        verify(exactly = 0) { spyDataStore.fetch("mock_uuid1") }
+        verify(exactly = 0) { spyDataStore.fetch("mock_uuid2") }
+
+        KlaviyoApiClient.flushQueue()
+
+        verifyOrder {
+            spyDataStore.fetch("mock_uuid1")
+            spyDataStore.fetch("mock_uuid2")
+        }
+        verify(exactly = 2) { KlaviyoApiRequestDecoder.fromJson(any()) }
+        assertEquals(0, KlaviyoApiClient.getQueueSize())
+        assertEquals("[]", spyDataStore.fetch(KlaviyoApiClient.QUEUE_KEY))
+    }
+
+    @Test
+    fun `Restored requests keep their send attempts`() {
+        val request = KlaviyoApiRequest("test", RequestMethod.POST).apply { attempts = 3 }
+        Registry.get<QueueStore>().enqueue(listOf(request.toQueueEntry()))
+
+        KlaviyoApiClient.restoreQueue(forceRestore = true)
+
+        val restored = mutableListOf<ApiRequest>()
+        val observer: ApiObserver = { restored += it }
+        KlaviyoApiClient.onApiRequest(withHistory = true, observer)
+        KlaviyoApiClient.offApiRequest(observer)
+
+        assertEquals(request.uuid, restored.single().uuid)
+        assertEquals(3, restored.single().attempts)
+    }
+
+    @Test
+    fun `Restore keeps requests enqueued before it ran`() {
+        mockkObject(KlaviyoApiRequestDecoder)
+        every { KlaviyoApiRequestDecoder.fromJson(any()) } answers { a ->
+            val uuid = (a.invocation.args[0] as JSONObject).getString("uuid")
+            mockRequest(uuid)
+        }
+
+        val request = mockRequest("mock_uuid2", KlaviyoApiRequest.Status.Unsent)
+        KlaviyoApiClient.enqueueRequest(request)
+        dispatcher.scheduler.advanceUntilIdle()
+
+        spyDataStore.store(KlaviyoApiClient.QUEUE_KEY, "[\"mock_uuid1\",\"mock_uuid2\"]")
+        spyDataStore.store("mock_uuid1", mockRequest("mock_uuid1").toString())
+        KlaviyoApiClient.restoreQueue(forceRestore = true)
+
+        // The in-memory request is kept, in its persisted position
+        assertEquals(2, KlaviyoApiClient.getQueueSize())
+        val restored = mutableListOf<ApiRequest>()
+        val observer: ApiObserver = { restored += it }
+        KlaviyoApiClient.onApiRequest(withHistory = true, observer)
+        KlaviyoApiClient.offApiRequest(observer)
+
+        assertEquals(listOf("mock_uuid1", "mock_uuid2"), restored.map { it.uuid })
+        assert(restored[1] === request)
+    }
+
     @Test
     fun `response body handles null stream correctly`() {
         // Create a KlaviyoApiRequest with required arguments
@@ -0,0 +1,181 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.fixtures.BaseTest
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import java.io.File
+import java.io.RandomAccessFile
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+internal class MappedRingQueueStoreTest : BaseTest() {
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var ring: File
+
+    private val capacity = MappedRingQueueStore.MIN_CAPACITY
+
+    @Before
+    override fun setup() {
+        super.setup()
+        ring = File(tempFolder.root, "klaviyo/api_queue.ring")
+    }
+
+    private fun entry(uuid: String, payload: String = "{\"uuid\":\"$uuid\"}") =
+        QueueEntry(uuid, payload.toByteArray())
+
+    private fun reopen() = MappedRingQueueStore(ring, capacity)
+
+    private fun QueueStore.uuids() = load().map { it.uuid }
+
+    @Test
+    fun `Persists entries in queue order including head of line`() {
+        MappedRingQueueStore(ring, capacity).apply {
+            enqueue(listOf(entry("a"), entry("b")))
+            enqueue(listOf(entry("c"), entry("d")), headOfLine = true)
+            enqueue(listOf(entry("e")))
+            enqueue(listOf(entry("a")), headOfLine = true)
+        }
+
+        assertEquals(listOf("c", "d", "a", "b", "e"), reopen().uuids())
+    }
+
+    @Test
+    fun `Updates, removals and sync are persisted`() {
+        MappedRingQueueStore(ring, capacity).apply {
+            enqueue(listOf(entry("a"), entry("b"), entry("c"), entry("d")))
+            update(entry("b", "updated"))
+            remove(listOf("a"))
+            sync(listOf("d", "b"))
+        }
+
+        assertEquals(listOf(entry("d"), entry("b", "updated")), reopen().load())
+
+        reopen().clear()
+        assertEquals(emptyList<QueueEntry>(), reopen().load())
+    }
+
+    @Test
+    fun `Reads the index and single payloads without loading the queue`() {
+        MappedRingQueueStore(ring, capacity).apply {
+            enqueue(listOf(entry("a"), entry("b")))
+            enqueue(listOf(entry("c")), headOfLine = true)
+            update(entry("b", "updated"))
+        }
+
+        val store = reopen()
+        assertEquals(listOf("c", "a", "b"), store.loadIndex())
+        assertEquals("updated", store.read("b")?.let { String(it) })
+        assertEquals(null, store.read("missing"))
+    }
+
+    @Test
+    fun `Space is re-used as the ring wraps around`() {
+        val store = MappedRingQueueStore(ring, capacity)
+        val payload = "x".repeat(500)
+
+        // Push many times the ring's capacity through it, a few requests at a time
+        repeat(200) { i ->
+            store.enqueue(listOf(entry("uuid-$i", payload)))
+            if (i >= 3) store.remove(listOf("uuid-${i - 3}"))
+        }
+
+        assertEquals(HEADER_AND_CAPACITY, ring.length())
+        assertEquals(listOf("uuid-197", "uuid-198", "uuid-199"), reopen().uuids())
+    }
+
+    @Test
+    fun `Out of order removals are compacted when the ring is full`() {
+        val store = MappedRingQueueStore(ring, capacity)
+        val payload = "x".repeat(500)
+
+        // Keep the first request live, so the head can never advance on its own
+        store.enqueue(listOf(entry("first")))
+        repeat(100) { i ->
+            store.enqueue(listOf(entry("uuid-$i", payload)))
+            store.remove(listOf("uuid-$i"))
+        }
+
+        assertEquals(HEADER_AND_CAPACITY, ring.length())
+        assertEquals(listOf("first"), reopen().uuids())
+    }
+
+    @Test
+    fun `Ring grows when live entries would fill it`() {
+        val store = MappedRingQueueStore(ring, capacity)
+        val entries = List(100) { entry("uuid-$it", "x".repeat(500)) }
+
+        store.enqueue(entries)
+
+        assertTrue(ring.length() > HEADER_AND_CAPACITY)
+        assertEquals(entries, reopen().load())
+    }
+
+    @Test
+    fun `Entries that don't fit are not persisted if the ring fails to grow`() {
+        val store = MappedRingQueueStore(ring, capacity)
+        store.enqueue(listOf(entry("first")))
+
+        // The mapping outlives the file, but re-mapping it at a larger size now fails
+        ring.delete()
+        ring.mkdirs()
+
+        store.enqueue(List(100) { entry("uuid-$it", "x".repeat(500)) })
+        store.update(entry("first", "x".repeat(capacity)))
+
+        verify { spyLog.error("Failed to grow queue ring buffer", any()) }
+        verify { spyLog.error("Queue ring buffer has no room, first will not be persisted", null) }
+
+        // Entries that fit are kept, and the store remains usable
+        val persisted = store.loadIndex()
+        assertEquals("first", persisted.first())
+        assertTrue(persisted.size in 2..100)
+        assertEquals("{\"uuid\":\"first\"}", store.read("first")?.let { String(it) })
+    }
+
+    @Test
+    fun `Torn record at the tail is discarded on load`() {
+        MappedRingQueueStore(ring, capacity).enqueue(listOf(entry("a"), entry("b", "payload")))
+
+        // Corrupt the last byte of b's payload: 32 byte header, then a's record, then b's
+        val aLength = 23 + 1 + entry("a").payload.size
+        val bPayloadEnd = 32 + aLength + 23 + 1 + "payload".length - 4
+        RandomAccessFile(ring, "rw").use {
+            it.seek(bPayloadEnd - 1L)
+            it.write('X'.code)
+        }
+
+        val store = reopen()
+        assertEquals(listOf("a"), store.uuids())
+
+        // Ring remains usable, and the torn record's space is re-used
+        store.enqueue(listOf(entry("c")))
+        assertEquals(listOf("a", "c"), reopen().uuids())
+    }
+
+    @Test
+    fun `Migrates legacy queue when no ring exists`() {
+        val legacy = mockk<QueueStore>(relaxed = true)
+        every { legacy.load() } returns listOf(entry("a"), entry("b"))
+
+        assertEquals(listOf("a", "b"), MappedRingQueueStore(ring, capacity, legacy).uuids())
+        verify(exactly = 1) { legacy.clear() }
+
+        // Once migrated, the legacy store is no longer consulted
+        assertEquals(listOf("a", "b"), MappedRingQueueStore(ring, capacity, legacy).uuids())
+        verify(exactly = 1) { legacy.load() }
+    }
+
+    private companion object {
+        const val HEADER_AND_CAPACITY = 32L + MappedRingQueueStore.MIN_CAPACITY
+    }
+}
@@ -0,0 +1,94 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.analytics.networking.DataStoreQueueStore.Companion.QUEUE_KEY
+import com.klaviyo.analytics.networking.OrphanedRequestSweeper.LAST_SWEEP_KEY
+import com.klaviyo.analytics.networking.OrphanedRequestSweeper.SWEEP_INTERVAL
+import com.klaviyo.fixtures.BaseTest
+import io.mockk.every
+import io.mockk.verify
+import java.util.UUID
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+internal class OrphanedRequestSweeperTest : BaseTest() {
+
+    private val queued = UUID.randomUUID().toString()
+
+    private fun withOrphans(count: Int): List<String> {
+        spyDataStore.store(QUEUE_KEY, "[\"$queued\"]")
+        spyDataStore.store(queued, "payload")
+        spyDataStore.store("unrelated_key", "value")
+        return List(count) { UUID.randomUUID().toString().also { spyDataStore.store(it, "{}") } }
+    }
+
+    @Test
+    fun `Queue keys belong to the queue partition`() {
+        listOf(QUEUE_KEY, LAST_SWEEP_KEY, queued).forEach {
+            assertTrue(it, DataStoreQueueStore.isQueueKey(it))
+        }
+        assertTrue(DataStoreQueueStore.isPayloadKey(queued))
+        assertFalse(DataStoreQueueStore.isQueueKey("unrelated_key"))
+    }
+
+    @Test
+    fun `Removes payloads not referenced by the queue in batches`() {
+        val orphans = withOrphans(OrphanedRequestSweeper.BATCH_SIZE + 1)
+        val before = OrphanedRequestSweeper.removedCount
+
+        assertEquals(orphans.size, OrphanedRequestSweeper.sweep())
+
+        orphans.forEach { assertNull(spyDataStore.fetch(it)) }
+        assertEquals("payload", spyDataStore.fetch(queued))
+        assertEquals("value", spyDataStore.fetch("unrelated_key"))
+        verify(exactly = 2) { spyDataStore.edit(any()) }
+        assertEquals(before + orphans.size, OrphanedRequestSweeper.removedCount)
+    }
+
+    @Test
+    fun `All payloads are orphans once the queue is gone`() {
+        withOrphans(2)
+        spyDataStore.clear(QUEUE_KEY)
+
+        assertEquals(3, OrphanedRequestSweeper.sweep())
+        assertNull(spyDataStore.fetch(queued))
+    }
+
+    @Test
+    fun `Skips sweeping an unreadable queue`() {
+        val orphans = withOrphans(2)
+        spyDataStore.store(QUEUE_KEY, "{not an array")
+
+        assertEquals(0, OrphanedRequestSweeper.sweep())
+        orphans.forEach { assertNotNull(spyDataStore.fetch(it)) }
+    }
+
+    @Test
+    fun `Never sweeps a data store provided by the host app`() {
+        val hostKeys = withOrphans(2)
+        every { mockConfig.dataStore } returns spyDataStore
+
+        assertEquals(0, OrphanedRequestSweeper.sweepIfDue())
+        assertEquals(0, OrphanedRequestSweeper.sweep())
+
+        hostKeys.forEach { assertNotNull(spyDataStore.fetch(it)) }
+        assertNull(spyDataStore.fetch(LAST_SWEEP_KEY))
+    }
+
+    @Test
+    fun `Sweeps at most once per interval`() {
+        withOrphans(1)
+
+        assertEquals(1, OrphanedRequestSweeper.sweepIfDue())
+        assertEquals(TIME.toString(), spyDataStore.fetch(LAST_SWEEP_KEY))
+
+        withOrphans(1)
+        assertEquals(0, OrphanedRequestSweeper.sweepIfDue())
+
+        spyDataStore.store(LAST_SWEEP_KEY, (TIME - SWEEP_INTERVAL).toString())
+        assertEquals(1, OrphanedRequestSweeper.sweepIfDue())
+    }
+}
@@ -0,0 +1,136 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.core.config.QueueDurability
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.fixtures.BaseTest
+import io.mockk.every
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/**
+ * Two store instances over the same files stand in for two processes
+ */
+internal class SharedJournalQueueStoreTest : BaseTest() {
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var journal: File
+
+    @Before
+    override fun setup() {
+        super.setup()
+        journal = File(tempFolder.root, "klaviyo/api_queue.journal")
+    }
+
+    private fun entry(uuid: String, payload: String = "{\"uuid\":\"$uuid\"}") =
+        QueueEntry(uuid, payload.toByteArray())
+
+    private fun process() = SharedJournalQueueStore(journal, durability = QueueDurability.STRICT)
+
+    @Test
+    fun `Sees entries written by another process`() {
+        val main = process()
+        val other = process()
+        assertEquals(emptyList<String>(), main.loadIndex())
+
+        other.enqueue(listOf(entry("a")))
+        main.enqueue(listOf(entry("b")))
+        other.enqueue(listOf(entry("c")), headOfLine = true)
+
+        assertEquals(listOf("c", "a", "b"), main.loadIndex())
+        assertEquals("{\"uuid\":\"a\"}", main.read("a")?.let { String(it) })
+
+        main.remove(listOf("a", "c"))
+        assertEquals(listOf("b"), other.loadIndex())
+    }
+
+    @Test
+    fun `Flags changes made by another process until the index is reloaded`() {
+        val main = process()
+        val other = process()
+        main.loadIndex()
+
+        main.enqueue(listOf(entry("a")))
+        assertFalse(main.hasExternalChanges())
+
+        other.enqueue(listOf(entry("b")))
+        assertTrue(main.hasExternalChanges())
+        assertTrue(main.hasExternalChanges())
+
+        main.loadIndex()
+        assertFalse(main.hasExternalChanges())
+    }
+
+    @Test
+    fun `Sync keeps entries enqueued by another process`() {
+        val main = process()
+        val other = process()
+        main.enqueue(listOf(entry("a"), entry("b")))
+        other.enqueue(listOf(entry("c")))
+
+        main.sync(listOf("b"))
+
+        assertEquals(listOf("b", "c"), other.loadIndex())
+    }
+
+    @Test
+    fun `Only one process claims the queue`() {
+        val main = process()
+        val other = process()
+
+        assertTrue(main.claimDrain())
+        assertTrue(main.claimDrain())
+        assertFalse(other.claimDrain())
+    }
+
+    @Test
+    fun `Operations fail rather than proceed without the lock`() {
+        val main = process()
+        main.enqueue(listOf(entry("a")))
+
+        RandomAccessFile(File(journal.path + ".lock"), "rw").use { file ->
+            val held = file.channel.lock()
+            try {
+                main.enqueue(listOf(entry("b")))
+                fail("Enqueued without the lock")
+            } catch (expected: IOException) {
+                // Expected
+            }
+            held.release()
+        }
+
+        assertEquals(listOf("a"), process().loadIndex())
+    }
+
+    @Test
+    fun `The main thread takes the lock only if it is free`() {
+        every { mockThreadHelper.isMainThread() } returns true
+        val main = process()
+
+        main.enqueue(listOf(entry("a")))
+
+        assertEquals(listOf("a"), process().loadIndex())
+    }
+
+    @Test
+    fun `Compaction by another process is picked up`() {
+        val main = process()
+        val other = process()
+        main.enqueue(listOf(entry("a"), entry("b"), entry("c")))
+
+        other.sync(other.loadIndex().drop(1))
+        main.enqueue(listOf(entry("d")))
+
+        assertEquals(listOf("b", "c", "d"), process().loadIndex())
+    }
+}
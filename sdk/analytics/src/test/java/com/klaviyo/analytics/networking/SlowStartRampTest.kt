@@ -0,0 +1,100 @@
+package com.klaviyo.analytics.networking
+
+import com.klaviyo.fixtures.BaseTest
+import io.mockk.every
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+internal class SlowStartRampTest : BaseTest() {
+
+    private val ramp = SlowStartRamp()
+
+    @Before
+    override fun setup() {
+        super.setup()
+        every { mockConfig.networkFlushDepth } returns 25
+    }
+
+    @Test
+    fun `Ramp is inactive until restarted`() {
+        assertFalse(ramp.isActive)
+        assertEquals(SlowStartRamp.UNLIMITED, ramp.limitFor(1_000))
+    }
+
+    @Test
+    fun `Restart begins at configured batch size`() {
+        ramp.restart()
+
+        assertTrue(ramp.isActive)
+        assertEquals(5, ramp.limitFor(1_000))
+    }
+
+    @Test
+    fun `Small queues take the fast path`() {
+        ramp.restart()
+
+        assertEquals(SlowStartRamp.UNLIMITED, ramp.limitFor(25))
+        assertEquals(5, ramp.limitFor(26))
+    }
+
+    @Test
+    fun `Batch size doubles on success until ceiling is reached`() {
+        ramp.restart()
+
+        val sizes = mutableListOf(ramp.batchSize)
+        while (ramp.isActive) {
+            ramp.onBatchSucceeded()
+            sizes.add(ramp.batchSize)
+        }
+
+        assertEquals(listOf(5, 10, 20, 40, 80, SlowStartRamp.UNLIMITED), sizes)
+    }
+
+    @Test
+    fun `Batch size halves on backoff with a floor of one`() {
+        ramp.restart()
+        ramp.onBatchSucceeded()
+        assertEquals(10, ramp.batchSize)
+
+        ramp.onBackoff()
+        assertEquals(5, ramp.batchSize)
+
+        repeat(5) { ramp.onBackoff() }
+        assertEquals(1, ramp.batchSize)
+    }
+
+    @Test
+    fun `Backoff outside a ramp does not start one`() {
+        ramp.onBackoff()
+        assertFalse(ramp.isActive)
+
+        ramp.restart()
+        ramp.end()
+        ramp.onBackoff()
+        assertFalse(ramp.isActive)
+        assertEquals(SlowStartRamp.UNLIMITED, ramp.limitFor(1_000))
+    }
+
+    @Test
+    fun `Ramp can be disabled by configuration`() {
+        every { mockConfig.networkSlowStartBatchSize } returns 0
+
+        ramp.restart()
+        assertFalse(ramp.isActive)
+
+        ramp.onBackoff()
+        assertFalse(ramp.isActive)
+    }
+
+    @Test
+    fun `Ending the ramp removes the limit`() {
+        ramp.restart()
+        ramp.end()
+
+        assertFalse(ramp.isActive)
+        assertEquals(SlowStartRamp.UNLIMITED, ramp.limitFor(1_000))
+    }
+}
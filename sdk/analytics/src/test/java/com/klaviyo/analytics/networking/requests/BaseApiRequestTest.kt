@@ -72,7 +72,7 @@ internal abstract class BaseApiRequestTest<T> : BaseTest() where T : KlaviyoApiR
     }
 
     /**
-     * Tests that the request can be serialized to JSON and then revived to the same type.
+     * Tests that the request can be serialized to JSON or binary and then revived to the same type.
      * Because the type must be reified, this function must be called from the subclass.
      */
     inline fun <reified T> testJsonInterop(request: T) where T : KlaviyoApiRequest {
@@ -80,6 +80,11 @@ internal abstract class BaseApiRequestTest<T> : BaseTest() where T : KlaviyoApiR
         val revivedRequest = KlaviyoApiRequestDecoder.fromJson(requestJson)
         assert(revivedRequest is T)
         compareJson(requestJson, revivedRequest.toJson())
+
+        val encoded = KlaviyoApiRequestCodec.encode(request)
+        val decodedRequest = KlaviyoApiRequestDecoder.fromBytes(encoded)
+        assert(decodedRequest is T)
+        Assert.assertEquals(requestJson.toString(), decodedRequest.toJson().toString())
     }
 
     /**
@@ -0,0 +1,199 @@
+package com.klaviyo.analytics.networking.requests
+
+import com.klaviyo.fixtures.BaseTest
+import com.klaviyo.fixtures.mockDeviceProperties
+import com.klaviyo.fixtures.unmockDeviceProperties
+import io.mockk.spyk
+import io.mockk.verify
+import java.io.IOException
+import java.util.UUID
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+
+internal class KlaviyoApiRequestCodecTest : BaseTest() {
+
+    @Before
+    override fun setup() {
+        super.setup()
+        mockDeviceProperties()
+    }
+
+    @After
+    override fun cleanup() {
+        unmockDeviceProperties()
+        super.cleanup()
+    }
+
+    private val uuid = UUID.randomUUID().toString()
+
+    /**
+     * A request resembling a typical persisted event
+     */
+    private fun stubRequest(uuid: String = this.uuid) = KlaviyoApiRequest(
+        "client/events",
+        RequestMethod.POST,
+        TIME,
+        uuid
+    ).apply {
+        headers.replaceAllWith(
+            mapOf(
+                "Content-Type" to "application/json",
+                "Accept" to "application/json",
+                "Revision" to "2025-07-15",
+                "User-Agent" to "Mock User Agent",
+                "X-Klaviyo-Mobile" to "1",
+                "X-Klaviyo-Attempt-Count" to "0/50"
+            )
+        )
+        query = mapOf("company_id" to API_KEY)
+        body = JSONObject(
+            """
+            {
+              "data": {
+                "type": "event",
+                "attributes": {
+                  "profile": {
+                    "data": {
+                      "type": "profile",
+                      "attributes": {
+                        "email": "$EMAIL",
+                        "phone_number": "$PHONE",
+                        "external_id": "$EXTERNAL_ID",
+                        "anonymous_id": "$ANON_ID"
+                      }
+                    }
+                  },
+                  "metric": {
+                    "data": { "type": "metric", "attributes": { "name": "Viewed Product ✓" } }
+                  },
+                  "unique_id": "$uuid",
+                  "value": 12.34,
+                  "time": "2024-01-01T00:00:00Z",
+                  "properties": {
+                    "count": 3,
+                    "big": ${Long.MAX_VALUE},
+                    "negative": -42,
+                    "in_stock": true,
+                    "on_sale": false,
+                    "discount": null,
+                    "tags": ["a", 1, 2.5, false, null, { "nested": [] }]
+                  }
+                }
+              }
+            }
+            """
+        )
+    }
+
+    private fun assertRoundTrip(request: KlaviyoApiRequest) {
+        val decoded = KlaviyoApiRequestDecoder.fromBytes(KlaviyoApiRequestCodec.encode(request))
+        assertEquals(request.toJson().toString(), decoded.toJson().toString())
+    }
+
+    @Test
+    fun `Round trips every field of a request`() {
+        assertRoundTrip(stubRequest())
+    }
+
+    @Test
+    fun `Round trips requests without a body or with unusual identifiers`() {
+        assertRoundTrip(KlaviyoApiRequest("test", RequestMethod.GET, uuid = "uuid"))
+        assertRoundTrip(stubRequest(uuid.uppercase()))
+        assertRoundTrip(stubRequest(""))
+    }
+
+    @Test
+    fun `Encodes straight from the request, without building its JSON form`() {
+        val request = spyk(stubRequest())
+
+        val encoded = KlaviyoApiRequestCodec.encode(request)
+
+        verify(exactly = 0) { request.toJson() }
+        assertEquals(
+            stubRequest().toJson().toString(),
+            KlaviyoApiRequestCodec.decode(encoded).toJson().toString()
+        )
+    }
+
+    @Test
+    fun `Round trips send attempts, in binary and legacy JSON payloads`() {
+        val request = stubRequest().apply { attempts = 3 }
+
+        val decoded = KlaviyoApiRequestDecoder.fromBytes(KlaviyoApiRequestCodec.encode(request))
+        val legacy = KlaviyoApiRequestDecoder.fromBytes(request.toString().toByteArray())
+
+        assertEquals(3, decoded.attempts)
+        assertEquals(3, legacy.attempts)
+        assertEquals(request.toJson().toString(), decoded.toJson().toString())
+    }
+
+    @Test
+    fun `Decodes payloads of the first version, without send attempts`() {
+        val request = stubRequest()
+        val encoded = KlaviyoApiRequestCodec.encode(request)
+        val versionOne = encoded.copyOf(encoded.size - 1).also { it[1] = 1 }
+
+        val decoded = KlaviyoApiRequestCodec.decode(versionOne)
+
+        assertEquals(0, decoded.attempts)
+        assertEquals(request.toJson().toString(), decoded.toJson().toString())
+    }
+
+    @Test
+    fun `Decodes original subclass type`() {
+        val request = ProfileApiRequest(TIME, uuid)
+        val decoded = KlaviyoApiRequestDecoder.fromBytes(KlaviyoApiRequestCodec.encode(request))
+
+        assertTrue(decoded is ProfileApiRequest)
+        assertEquals(uuid, decoded.uuid)
+        assertEquals(TIME, decoded.queuedTime)
+    }
+
+    @Test
+    fun `Falls back to legacy JSON payloads`() {
+        val request = stubRequest()
+        val legacy = request.toString().toByteArray()
+
+        assertEquals(false, KlaviyoApiRequestCodec.isEncoded(legacy))
+        assertEquals(
+            request.toJson().toString(),
+            KlaviyoApiRequestDecoder.fromBytes(legacy).toJson().toString()
+        )
+    }
+
+    @Test
+    fun `Truncated payloads fail to decode`() {
+        val encoded = KlaviyoApiRequestCodec.encode(stubRequest())
+
+        for (length in 2 until encoded.size) {
+            try {
+                KlaviyoApiRequestCodec.decode(encoded.copyOf(length))
+                fail("Decoded a payload truncated to $length bytes")
+            } catch (expected: IOException) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(expected = IOException::class)
+    fun `Unknown encoding version fails to decode`() {
+        val encoded = KlaviyoApiRequestCodec.encode(stubRequest())
+        encoded[1] = 99
+        KlaviyoApiRequestCodec.decode(encoded)
+    }
+
+    @Test
+    fun `Encoding is smaller than JSON`() {
+        val request = stubRequest()
+        val binary = KlaviyoApiRequestCodec.encode(request).size
+        val json = request.toString().toByteArray().size
+
+        assertTrue("Binary $binary bytes vs JSON $json bytes", binary < json * 3 / 4)
+    }
+}
@@ -1,5 +1,6 @@
 package com.klaviyo.analytics.networking.requests
 
+import com.klaviyo.core.networking.HttpUtil
 import com.klaviyo.core.networking.NetworkMonitor
 import io.mockk.every
 import io.mockk.mockkObject
@@ -41,6 +42,13 @@ internal class KlaviyoApiRequestTest : BaseApiRequestTest<KlaviyoApiRequest>() {
 
     private val bodySlot = slot<String>()
 
+    private val validatedState = NetworkMonitor.NetworkState(
+        isConnected = true,
+        isValidated = true,
+        type = NetworkMonitor.NetworkType.Wifi,
+        isMetered = false
+    )
+
     private fun withConnectionMock(expectedUrl: URL): HttpURLConnection {
         val connectionSpy = spyk(expectedUrl.openConnection()) as HttpURLConnection
         val inputStream = ByteArrayInputStream("success".toByteArray())
@@ -79,6 +87,8 @@ internal class KlaviyoApiRequestTest : BaseApiRequestTest<KlaviyoApiRequest>() {
     override fun setup() {
         super.setup()
         every { mockNetworkMonitor.isNetworkConnected() } returns true
+        every { mockNetworkMonitor.getNetworkState() } returns validatedState
+        every { mockNetworkMonitor.probeReachability() } returns true
         every { mockConfig.networkTimeout } returns 1
         every { mockConfig.networkFlushIntervals } returns longArrayOf(10_000L, 30_000L, 60_000L)
     }
@@ -366,7 +376,8 @@ internal class KlaviyoApiRequestTest : BaseApiRequestTest<KlaviyoApiRequest>() {
             "bodyKey": "bodyValue"
           },
           "uuid": "uuid",
-          "url_path": "test"
+          "url_path": "test",
+          "attempts": 0
         }
     """.trimIndent()
 
@@ -383,7 +394,8 @@ internal class KlaviyoApiRequestTest : BaseApiRequestTest<KlaviyoApiRequest>() {
           },
           "time": $TIME,
           "uuid": "uuid",
-          "url_path": "test"
+          "url_path": "test",
+          "attempts": 0
         }
     """.trimIndent()
 
@@ -628,6 +640,60 @@ internal class KlaviyoApiRequestTest : BaseApiRequestTest<KlaviyoApiRequest>() {
         assertEquals(1, request.attempts)
     }
 
+    @Test
+    fun `Retryable I/O error on unvalidated network returns Unsent without counting the attempt`() {
+        val connectionMock = withConnectionMock(URL(expectedFullUrl))
+        every { connectionMock.connect() } throws SocketTimeoutException("Connection timed out")
+        every { mockNetworkMonitor.getNetworkState() } returns validatedState.copy(isValidated = false)
+
+        val request = makeTestRequest()
+
+        repeat(mockConfig.networkMaxAttempts + 1) {
+            assertEquals(KlaviyoApiRequest.Status.Unsent, request.send())
+        }
+        assertEquals(0, request.attempts)
+
+        // The system already knows the network is to blame, so there's nothing to probe
+        dispatcher.scheduler.advanceUntilIdle()
+        verify(exactly = 0) { mockNetworkMonitor.probeReachability() }
+
+        // Once the network validates again, attempts count as usual
+        every { mockNetworkMonitor.getNetworkState() } returns validatedState
+        assertEquals(KlaviyoApiRequest.Status.PendingRetry, request.send())
+        assertEquals(1, request.attempts)
+    }
+
+    @Test
+    fun `Retryable I/O error on validated network counts the attempt and probes in the background`() {
+        val connectionMock = withConnectionMock(URL(expectedFullUrl))
+        every { connectionMock.connect() } throws SocketTimeoutException("Connection timed out")
+        every { mockNetworkMonitor.probeReachability() } returns false
+
+        val request = makeTestRequest()
+
+        // Even if our API host is what's unreachable, backoff and max attempts still apply
+        repeat(mockConfig.networkMaxAttempts - 1) {
+            assertEquals(KlaviyoApiRequest.Status.PendingRetry, request.send())
+        }
+        assertEquals(KlaviyoApiRequest.Status.Failed, request.send())
+        assertEquals(mockConfig.networkMaxAttempts, request.attempts)
+
+        // The probe doesn't block the sending thread
+        verify(exactly = 0) { mockNetworkMonitor.probeReachability() }
+        dispatcher.scheduler.advanceUntilIdle()
+        verify(exactly = mockConfig.networkMaxAttempts) { mockNetworkMonitor.probeReachability() }
+    }
+
+    @Test
+    fun `Non-retryable I/O error does not probe reachability`() {
+        val connectionMock = withConnectionMock(URL(expectedFullUrl))
+        every { connectionMock.connect() } throws ProtocolException("Invalid HTTP protocol")
+
+        assertEquals(KlaviyoApiRequest.Status.Failed, makeTestRequest().send())
+        dispatcher.scheduler.advanceUntilIdle()
+        verify(exactly = 0) { mockNetworkMonitor.probeReachability() }
+    }
+
     @Test
     fun `ProtocolException returns Failed immediately`() {
         val connectionMock = withConnectionMock(URL(expectedFullUrl))
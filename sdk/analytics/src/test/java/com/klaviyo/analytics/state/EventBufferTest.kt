@@ -0,0 +1,63 @@
+package com.klaviyo.analytics.state
+
+import com.klaviyo.analytics.model.Event
+import com.klaviyo.analytics.model.EventMetric
+import com.klaviyo.fixtures.BaseTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+internal class EventBufferTest : BaseTest() {
+
+    private fun events(count: Int) = (1..count).map { Event(EventMetric.CUSTOM("event_$it")) }
+
+    @Test
+    fun `Holds events up to its own capacity and TTL`() {
+        val buffer = EventBuffer(capacity = 3, ttl = 1_000)
+        val events = events(4)
+
+        events.forEach { buffer.addEvent(it) }
+        assertEquals(events.takeLast(3), buffer.getEvents())
+
+        staticClock.time += 999
+        assertEquals(events.takeLast(3), buffer.getEvents())
+
+        staticClock.time += 1
+        assertTrue(buffer.getEvents().isEmpty())
+    }
+
+    @Test
+    fun `Consumers can read a narrower window`() {
+        val buffer = EventBuffer()
+        val (old, recent, latest) = events(3)
+
+        buffer.addEvent(old)
+        staticClock.time += 5_000
+        buffer.addEvent(recent)
+        buffer.addEvent(latest)
+
+        assertEquals(listOf(recent, latest), buffer.getEvents(maxAge = 5_000))
+        assertEquals(listOf(latest), buffer.getEvents(maxCount = 1))
+
+        // A wider window than the buffer's own is limited to it
+        staticClock.time += 5_000
+        assertEquals(listOf(recent, latest), buffer.getEvents(maxAge = 60_000, maxCount = 99))
+    }
+
+    @Test
+    fun `Expires events without scheduling any work`() {
+        val buffer = EventBuffer()
+
+        // Overhead per event is constant: no timer, coroutine or job is started for it
+        events(10_000).forEach {
+            buffer.addEvent(it)
+            staticClock.time += 1
+        }
+
+        assertTrue(staticClock.scheduledTasks.isEmpty())
+        assertEquals(EventBuffer.DEFAULT_CAPACITY, buffer.getEvents().size)
+
+        dispatcher.scheduler.advanceUntilIdle()
+        assertEquals(0L, dispatcher.scheduler.currentTime)
+    }
+}
@@ -4,32 +4,23 @@ import com.klaviyo.analytics.model.Event
 import com.klaviyo.analytics.model.EventKey
 import com.klaviyo.analytics.model.EventMetric
 import com.klaviyo.fixtures.BaseTest
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.ExperimentalCoroutinesApi
-import kotlinx.coroutines.test.advanceTimeBy
-import kotlinx.coroutines.test.resetMain
-import kotlinx.coroutines.test.runTest
-import kotlinx.coroutines.test.setMain
 import org.junit.After
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
 
-@OptIn(ExperimentalCoroutinesApi::class)
 internal class GenericEventBufferTest : BaseTest() {
 
     @Before
     override fun setup() {
         super.setup()
-        Dispatchers.setMain(dispatcher)
         GenericEventBuffer.clearBuffer()
     }
 
     @After
     override fun cleanup() {
         GenericEventBuffer.clearBuffer()
-        Dispatchers.resetMain()
         super.cleanup()
     }
 
@@ -205,59 +196,59 @@ internal class GenericEventBufferTest : BaseTest() {
     }
 
     @Test
-    fun `clearBuffer cancels pending timeout jobs`() = runTest {
+    fun `clearBuffer leaves nothing to expire`() {
         val event = Event(EventMetric.CUSTOM("test_event"))
 
         GenericEventBuffer.addEvent(event)
 
         GenericEventBuffer.clearBuffer()
 
-        advanceTimeBy(10_001)
+        staticClock.time += 10_001
 
         val bufferedEvents = GenericEventBuffer.getEvents()
         assertTrue(bufferedEvents.isEmpty())
     }
 
     @Test
-    fun `event is removed from buffer after 10 second timeout`() = runTest {
+    fun `event is removed from buffer after 10 second timeout`() {
         val event = Event(EventMetric.CUSTOM("test_event"))
 
         GenericEventBuffer.addEvent(event)
 
-        advanceTimeBy(10_001)
+        staticClock.time += 10_001
 
         val afterTimeout = GenericEventBuffer.getEvents()
         assertTrue(afterTimeout.isEmpty())
     }
 
     @Test
-    fun `multiple events timeout independently`() = runTest {
+    fun `multiple events timeout independently`() {
         val event1 = Event(EventMetric.CUSTOM("event_1"))
         val event2 = Event(EventMetric.CUSTOM("event_2"))
 
         GenericEventBuffer.addEvent(event1)
-        advanceTimeBy(5_000)
+        staticClock.time += 5_000
 
         GenericEventBuffer.addEvent(event2)
-        advanceTimeBy(5_001)
+        staticClock.time += 5_001
 
         val afterFirstTimeout = GenericEventBuffer.getEvents()
         assertEquals(1, afterFirstTimeout.size)
         assertEquals(event2, afterFirstTimeout[0])
 
-        advanceTimeBy(5_001)
+        staticClock.time += 5_001
 
         val afterSecondTimeout = GenericEventBuffer.getEvents()
         assertTrue(afterSecondTimeout.isEmpty())
     }
 
     @Test
-    fun `event is not removed before timeout`() = runTest {
+    fun `event is not removed before timeout`() {
         val event = Event(EventMetric.CUSTOM("test_event"))
 
         GenericEventBuffer.addEvent(event)
 
-        advanceTimeBy(9_999)
+        staticClock.time += 9_999
 
         val bufferedEvents = GenericEventBuffer.getEvents()
         assertEquals(1, bufferedEvents.size)
@@ -0,0 +1,11 @@
+package com.klaviyo.analytics.state
+
+import com.klaviyo.analytics.model.Keyword
+import com.klaviyo.core.Registry
+import org.json.JSONObject
+
+/**
+ * Read a property's persisted value from the identity record
+ */
+internal fun persisted(key: Keyword): String? = Registry.dataStore.fetch(IdentityRecord.RECORD_KEY)
+    ?.let { JSONObject(it).getJSONObject("values").optString(key.name).ifEmpty { null } }
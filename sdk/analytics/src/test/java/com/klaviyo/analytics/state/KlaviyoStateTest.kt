@@ -5,7 +5,9 @@ import com.klaviyo.analytics.model.EventKey
 import com.klaviyo.analytics.model.EventMetric
 import com.klaviyo.analytics.model.Profile
 import com.klaviyo.analytics.model.ProfileKey
+import com.klaviyo.analytics.model.StateKey
 import com.klaviyo.analytics.networking.ApiClient
+import com.klaviyo.analytics.networking.DataStoreQueueStore
 import com.klaviyo.analytics.networking.requests.buildEventMetaData
 import com.klaviyo.core.DeviceProperties
 import com.klaviyo.core.Registry
@@ -15,14 +17,20 @@ import io.mockk.mockk
 import io.mockk.mockkStatic
 import io.mockk.unmockkStatic
 import io.mockk.verify
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.test.runTest
 import kotlinx.coroutines.withContext
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNotSame
 import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
 
@@ -69,6 +77,39 @@ internal class KlaviyoStateTest : BaseTest() {
         job2.start()
     }
 
+    @Test
+    fun `Identity record is kept in the same file as per-key state`() {
+        assertFalse(DataStoreQueueStore.isQueueKey(IdentityRecord.RECORD_KEY))
+        assertFalse(DataStoreQueueStore.isQueueKey(ProfileKey.EMAIL.name))
+    }
+
+    @Test
+    fun `Load reads persisted state without invoking fallbacks`() = runTest(dispatcher) {
+        spyDataStore.store(ProfileKey.EMAIL.name, EMAIL)
+
+        state.load()
+        dispatcher.scheduler.advanceUntilIdle()
+        assertNull(persisted(ProfileKey.ANONYMOUS_ID))
+
+        // Reads are now served from memory
+        assertEquals(EMAIL, state.email)
+        verify(exactly = 1) { spyDataStore.fetch(ProfileKey.EMAIL.name) }
+    }
+
+    @Test
+    fun `Read before a pending load starts waits for it, then reads the record once`() = runTest(dispatcher) {
+        spyDataStore.store(ProfileKey.EMAIL.name, EMAIL)
+
+        // The load is queued, but the test dispatcher won't run it
+        state.load()
+        assertEquals(EMAIL, state.email)
+        verify { spyLog.verbose("Identity record load still pending, reading it in place") }
+
+        dispatcher.scheduler.advanceUntilIdle()
+        assertEquals(EMAIL, state.email)
+        verify(exactly = 1) { spyDataStore.fetch(IdentityRecord.RECORD_KEY) }
+    }
+
     @Test
     fun `Profile events observer concurrency test`() = runTest {
         val observer: ProfileEventObserver = { _ -> Thread.sleep(6) }
@@ -132,7 +173,7 @@ internal class KlaviyoStateTest : BaseTest() {
     @Test
     fun `Create and store a new UUID if one does not exists in data store`() {
         val anonId = state.anonymousId
-        val fetched = spyDataStore.fetch(ProfileKey.ANONYMOUS_ID.name)
+        val fetched = persisted(ProfileKey.ANONYMOUS_ID)
         assertEquals(anonId, fetched)
     }
 
@@ -169,21 +210,119 @@ internal class KlaviyoStateTest : BaseTest() {
     @Test
     fun `Anonymous ID lifecycle`() {
         // Should be null after a reset...
-        val initialAnonId = spyDataStore.fetch(ProfileKey.ANONYMOUS_ID.name)
+        val initialAnonId = persisted(ProfileKey.ANONYMOUS_ID)
         assertNull(initialAnonId)
 
         // Start tracking a new anon ID and it should be persisted
         val firstAnonId = state.anonymousId
-        assertEquals(firstAnonId, spyDataStore.fetch(ProfileKey.ANONYMOUS_ID.name))
+        assertEquals(firstAnonId, persisted(ProfileKey.ANONYMOUS_ID))
 
         // Reset again should nullify in data store
         state.reset()
-        assertNull(spyDataStore.fetch(ProfileKey.ANONYMOUS_ID.name))
+        assertNull(persisted(ProfileKey.ANONYMOUS_ID))
 
         // Start tracking again should generate another new anon ID
         val newAnonId = state.anonymousId
         assertNotEquals(firstAnonId, newAnonId)
-        assertEquals(newAnonId, spyDataStore.fetch(ProfileKey.ANONYMOUS_ID.name))
+        assertEquals(newAnonId, persisted(ProfileKey.ANONYMOUS_ID))
+    }
+
+    @Test
+    fun `Copies per-key state into a single record, leaving per-key state in place`() {
+        spyDataStore.store(ProfileKey.ANONYMOUS_ID.name, ANON_ID)
+        spyDataStore.store(ProfileKey.EMAIL.name, EMAIL)
+        spyDataStore.store(StateKey.API_KEY.name, API_KEY)
+
+        assertEquals(EMAIL, state.email)
+
+        assertEquals(ANON_ID, persisted(ProfileKey.ANONYMOUS_ID))
+        assertEquals(EMAIL, persisted(ProfileKey.EMAIL))
+        assertEquals(API_KEY, persisted(StateKey.API_KEY))
+        assertEquals(ANON_ID, spyDataStore.fetch(ProfileKey.ANONYMOUS_ID.name))
+        assertEquals(EMAIL, spyDataStore.fetch(ProfileKey.EMAIL.name))
+        assertEquals(API_KEY, spyDataStore.fetch(StateKey.API_KEY.name))
+
+        // A new instance reads the record
+        assertEquals(ANON_ID, KlaviyoState().anonymousId)
+    }
+
+    @Test
+    fun `Per-key state changed by an earlier SDK version replaces the record`() {
+        state.setProfile(Profile(externalId = EXTERNAL_ID, email = EMAIL))
+
+        // An earlier SDK version, after a rollback, only writes per-key state
+        spyDataStore.store(ProfileKey.EMAIL.name, "rolled@back.com")
+        spyDataStore.clear(ProfileKey.EXTERNAL_ID.name)
+
+        val rolledForward = KlaviyoState()
+        assertEquals("rolled@back.com", rolledForward.email)
+        assertNull(rolledForward.externalId)
+        assertEquals("rolled@back.com", persisted(ProfileKey.EMAIL))
+        assertNull(persisted(ProfileKey.EXTERNAL_ID))
+    }
+
+    @Test
+    fun `A change waits for another thread's edit, rather than persisting it half-applied`() {
+        val record = IdentityRecord(listOf(ProfileKey.EMAIL, ProfileKey.PHONE_NUMBER))
+        val editing = CountDownLatch(1)
+        val resume = CountDownLatch(1)
+
+        val editor = thread {
+            record.edit {
+                record.store(ProfileKey.EMAIL.name, EMAIL)
+                editing.countDown()
+                resume.await()
+                record.store(ProfileKey.PHONE_NUMBER.name, PHONE)
+            }
+        }
+        editing.await()
+
+        val writer = thread { record.store(ProfileKey.EXTERNAL_ID.name, EXTERNAL_ID) }
+        writer.join(100)
+        assertTrue(writer.isAlive)
+        assertNull(persisted(ProfileKey.EMAIL))
+
+        resume.countDown()
+        editor.join()
+        writer.join()
+        assertEquals(EMAIL, persisted(ProfileKey.EMAIL))
+        assertEquals(PHONE, persisted(ProfileKey.PHONE_NUMBER))
+        assertEquals(EXTERNAL_ID, persisted(ProfileKey.EXTERNAL_ID))
+    }
+
+    @Test
+    fun `Each profile mutation is a single write of the record`() {
+        val writes = mutableListOf<String>()
+        spyDataStore.onStoreChange { key, _ -> writes += key }
+
+        state.setProfile(Profile(externalId = EXTERNAL_ID, email = EMAIL, phoneNumber = PHONE))
+        assertEquals(1, writes.count { it == IdentityRecord.RECORD_KEY })
+
+        writes.clear()
+        state.setProfile(Profile(email = "other@email.com"))
+        assertEquals(1, writes.count { it == IdentityRecord.RECORD_KEY })
+
+        writes.clear()
+        state.reset()
+        assertEquals(1, writes.count { it == IdentityRecord.RECORD_KEY })
+        assertNull(persisted(ProfileKey.EMAIL))
+    }
+
+    @Test
+    fun `Changes are written through to per-key state in the same edit as the record`() {
+        state.setProfile(Profile(externalId = EXTERNAL_ID, email = EMAIL))
+
+        assertEquals(EXTERNAL_ID, spyDataStore.fetch(ProfileKey.EXTERNAL_ID.name))
+        assertEquals(EMAIL, spyDataStore.fetch(ProfileKey.EMAIL.name))
+
+        state.reset()
+
+        assertNull(spyDataStore.fetch(ProfileKey.EXTERNAL_ID.name))
+        assertNull(spyDataStore.fetch(ProfileKey.EMAIL.name))
+        assertEquals(
+            persisted(ProfileKey.ANONYMOUS_ID),
+            spyDataStore.fetch(ProfileKey.ANONYMOUS_ID.name)
+        )
     }
 
     @Test
@@ -258,6 +397,49 @@ internal class KlaviyoStateTest : BaseTest() {
         assert(broadcastChange is StateChange.ProfileAttributes)
     }
 
+    @Test
+    fun `setProfile broadcasts one update of all its changes`() {
+        val updates = mutableListOf<List<StateChange>>()
+        val changes = mutableListOf<StateChange>()
+        state.onStateUpdate { updates += it }
+        state.onStateChange { changes += it }
+
+        state.setProfile(
+            Profile(externalId = EXTERNAL_ID, email = EMAIL, phoneNumber = PHONE)
+                .setProperty(ProfileKey.FIRST_NAME, "Kermit")
+        )
+
+        val update = updates.single()
+        assertEquals(
+            listOf(
+                StateChange.ProfileIdentifier(ProfileKey.EXTERNAL_ID, null),
+                StateChange.ProfileIdentifier(ProfileKey.EMAIL, null),
+                StateChange.ProfileIdentifier(ProfileKey.PHONE_NUMBER, null)
+            ),
+            update.filterIsInstance<StateChange.ProfileIdentifier>()
+        )
+        assertTrue(update.any { it is StateChange.ProfileAttributes })
+
+        // State change observers are still notified of each change in turn
+        assertEquals(update, changes)
+    }
+
+    @Test
+    fun `setProfile with new identifiers broadcasts the reset within its update`() {
+        state.email = EMAIL
+        state.setAttribute(ProfileKey.FIRST_NAME, "Kermit")
+        val updates = mutableListOf<List<StateChange>>()
+        state.onStateUpdate { updates += it }
+
+        state.setProfile(Profile(email = "other@email.com"))
+
+        val update = updates.single()
+        val reset = update.first() as StateChange.ProfileReset
+        assertTrue(StateChange.ProfileIdentifier(ProfileKey.EMAIL, null) in update)
+        assertEquals(EMAIL, reset.oldValue.email)
+        assertEquals("Kermit", reset.oldValue[ProfileKey.FIRST_NAME])
+    }
+
     @Test
     fun `Broadcasts on reset profile`() {
         state.externalId = EXTERNAL_ID
@@ -295,6 +477,28 @@ internal class KlaviyoStateTest : BaseTest() {
         assertEquals(state.phoneNumber, null)
     }
 
+    @Test
+    fun `Profile snapshot is shared until state changes`() {
+        val first = state.getProfileSnapshot()
+        assertSame(first, state.getProfileSnapshot())
+        assertEquals(state.anonymousId, first.anonymousId)
+
+        state.email = EMAIL
+        val second = state.getProfileSnapshot()
+        assertNotSame(first, second)
+        assertEquals(EMAIL, second.email)
+        assertSame(second, state.getProfileSnapshot())
+
+        state.resetEmail()
+        assertNull(state.getProfileSnapshot().email)
+
+        state.setProfile(Profile(externalId = EXTERNAL_ID))
+        assertEquals(EXTERNAL_ID, state.getProfileSnapshot().externalId)
+
+        state.reset()
+        assertNull(state.getProfileSnapshot().externalId)
+    }
+
     @Test
     fun `createEvent adds enriched event to buffer`() {
         GenericEventBuffer.clearBuffer()
@@ -31,7 +31,7 @@ class StateSideEffectsTest : BaseTest() {
     private val profile = Profile(email = EMAIL)
     private val capturedProfile = slot<Profile>()
     private val capturedApiObserver = slot<ApiObserver>()
-    private val capturedStateChangeObserver = slot<StateChangeObserver>()
+    private val capturedStateUpdateObserver = slot<StateUpdateObserver>()
     private val capturedPushState = slot<String?>()
     private val apiClientMock: ApiClient = mockk<ApiClient>().apply {
         every { onApiRequest(any(), capture(capturedApiObserver)) } returns Unit
@@ -42,8 +42,8 @@ class StateSideEffectsTest : BaseTest() {
     }
 
     private val stateMock = mockk<State>().apply {
-        every { onStateChange(capture(capturedStateChangeObserver)) } returns Unit
-        every { offStateChange(any<StateChangeObserver>()) } returns Unit
+        every { onStateUpdate(capture(capturedStateUpdateObserver)) } returns Unit
+        every { offStateUpdate(any<StateUpdateObserver>()) } returns Unit
         every { pushState = captureNullable(capturedPushState) } returns Unit
         every { getAsProfile(withAttributes = any()) } returns profile
         every { resetAttributes() } returns Unit
@@ -51,11 +51,13 @@ class StateSideEffectsTest : BaseTest() {
     }
 
     private val klaviyoStateMock = mockk<KlaviyoState>().apply {
-        every { onStateChange(capture(capturedStateChangeObserver)) } returns Unit
+        every { onStateUpdate(capture(capturedStateUpdateObserver)) } returns Unit
         every { resetPhoneNumber() } returns Unit
         every { resetEmail() } returns Unit
     }
 
+    private fun broadcast(change: StateChange) = capturedStateUpdateObserver.captured(listOf(change))
+
     @Before
     override fun setup() {
         super.setup()
@@ -71,12 +73,12 @@ class StateSideEffectsTest : BaseTest() {
     @Test
     fun `Subscribes on init and detach unsubscribes`() {
         val sideEffects = StateSideEffects(stateMock, apiClientMock)
-        verify { stateMock.onStateChange(any<StateChangeObserver>()) }
+        verify { stateMock.onStateUpdate(any<StateUpdateObserver>()) }
         verify { apiClientMock.onApiRequest(any(), any()) }
         verify { mockLifecycleMonitor.onActivityEvent(any()) }
 
         sideEffects.detach()
-        verify { stateMock.offStateChange(any<StateChangeObserver>()) }
+        verify { stateMock.offStateUpdate(any<StateUpdateObserver>()) }
         verify { apiClientMock.offApiRequest(any()) }
         verify { mockLifecycleMonitor.offActivityEvent(any()) }
     }
@@ -85,9 +87,9 @@ class StateSideEffectsTest : BaseTest() {
     fun `Profile changes enqueue a single profile API request`() {
         StateSideEffects(stateMock, apiClientMock)
 
-        capturedStateChangeObserver.captured(StateChange.ProfileIdentifier(ProfileKey.EMAIL, null))
-        capturedStateChangeObserver.captured(StateChange.ProfileAttributes(mockk()))
-        capturedStateChangeObserver.captured(StateChange.ProfileReset(mockk()))
+        broadcast(StateChange.ProfileIdentifier(ProfileKey.EMAIL, null))
+        broadcast(StateChange.ProfileAttributes(mockk()))
+        broadcast(StateChange.ProfileReset(mockk()))
 
         staticClock.execute(debounceTime.toLong())
 
@@ -100,6 +102,26 @@ class StateSideEffectsTest : BaseTest() {
         }
     }
 
+    @Test
+    fun `Profile update enqueues a single profile API request`() {
+        StateSideEffects(stateMock, apiClientMock)
+
+        capturedStateUpdateObserver.captured(
+            listOf(
+                StateChange.ProfileIdentifier(ProfileKey.EMAIL, null),
+                StateChange.ProfileIdentifier(ProfileKey.PHONE_NUMBER, null),
+                StateChange.ProfileAttributes(mockk())
+            )
+        )
+
+        // Side effects run once for the whole update
+        verify(exactly = 1) { stateMock.getAsProfile(withAttributes = true) }
+
+        staticClock.execute(debounceTime.toLong())
+
+        verify(exactly = 1) { apiClientMock.enqueueProfile(any()) }
+    }
+
     @Test
     fun `Empty attributes do not enqueue a profile API request`() {
         StateSideEffects(
@@ -111,7 +133,7 @@ class StateSideEffectsTest : BaseTest() {
             apiClientMock
         )
 
-        capturedStateChangeObserver.captured(StateChange.ProfileAttributes(mockk()))
+        broadcast(StateChange.ProfileAttributes(mockk()))
 
         staticClock.execute(debounceTime.toLong())
 
@@ -132,7 +154,7 @@ class StateSideEffectsTest : BaseTest() {
             apiClientMock
         )
 
-        capturedStateChangeObserver.captured(StateChange.ProfileAttributes(mockk()))
+        broadcast(StateChange.ProfileAttributes(mockk()))
 
         every { stateMock.getAsProfile(withAttributes = any()) } returns Profile(
             properties = mapOf(
@@ -140,7 +162,7 @@ class StateSideEffectsTest : BaseTest() {
             )
         )
 
-        capturedStateChangeObserver.captured(StateChange.ProfileReset(mockk()))
+        broadcast(StateChange.ProfileReset(mockk()))
 
         verify(exactly = 1) { apiClientMock.enqueueProfile(any()) }
 
@@ -165,7 +187,7 @@ class StateSideEffectsTest : BaseTest() {
             apiClientMock
         )
 
-        capturedStateChangeObserver.captured(StateChange.ProfileAttributes(mockk()))
+        broadcast(StateChange.ProfileAttributes(mockk()))
 
         every { stateMock.getAsProfile(withAttributes = any()) } returns Profile(
             properties = mapOf(
@@ -173,7 +195,7 @@ class StateSideEffectsTest : BaseTest() {
             )
         )
 
-        capturedStateChangeObserver.captured(StateChange.ProfileReset(mockk()))
+        broadcast(StateChange.ProfileReset(mockk()))
 
         verify(exactly = 1) { apiClientMock.enqueuePushToken(PUSH_TOKEN, any()) }
     }
@@ -182,7 +204,7 @@ class StateSideEffectsTest : BaseTest() {
     fun `Attributes do enqueue a profile API request`() {
         StateSideEffects(stateMock, apiClientMock)
 
-        capturedStateChangeObserver.captured(StateChange.ProfileAttributes(mockk()))
+        broadcast(StateChange.ProfileAttributes(mockk()))
 
         staticClock.execute(debounceTime.toLong())
 
@@ -196,7 +218,7 @@ class StateSideEffectsTest : BaseTest() {
 
         StateSideEffects(stateMock, apiClientMock)
 
-        capturedStateChangeObserver.captured(StateChange.KeyValue(StateKey.PUSH_STATE, null))
+        broadcast(StateChange.KeyValue(StateKey.PUSH_STATE, null))
         verify(exactly = 1) { apiClientMock.enqueuePushToken("token", profile) }
     }
 
@@ -206,7 +228,7 @@ class StateSideEffectsTest : BaseTest() {
 
         StateSideEffects(stateMock, apiClientMock)
 
-        capturedStateChangeObserver.captured(StateChange.KeyValue(StateKey.PUSH_STATE, null))
+        broadcast(StateChange.KeyValue(StateKey.PUSH_STATE, null))
         verify(exactly = 0) { apiClientMock.enqueuePushToken(any(), any()) }
     }
 
@@ -217,7 +239,7 @@ class StateSideEffectsTest : BaseTest() {
 
         StateSideEffects(stateMock, apiClientMock)
 
-        capturedStateChangeObserver.captured(StateChange.KeyValue(ProfileKey.PUSH_TOKEN, null))
+        broadcast(StateChange.KeyValue(ProfileKey.PUSH_TOKEN, null))
         verify(exactly = 0) { apiClientMock.enqueuePushToken(any(), any()) }
     }
 
@@ -14,6 +14,7 @@ val javaVersion: JavaVersion by rootProject.extra
 val klaviyoServerUrl: String by project
 val klaviyoCdnUrl: String by project
 val klaviyoApiRevision: String by project
+val klaviyoTuningPublicKey: String by project
 
 subprojects {
     apply(plugin = "com.android.library")
@@ -58,12 +59,14 @@ subprojects {
                 buildConfigField("String", "KLAVIYO_API_REVISION", "\"$apiRevision\"")
                 buildConfigField("String", "KLAVIYO_CDN_URL", "\"$cdnUrl\"")
                 buildConfigField("String", "KLAVIYO_ASSET_SOURCE", "\"$assetSource\"")
+                buildConfigField("String", "KLAVIYO_TUNING_PUBLIC_KEY", "\"$klaviyoTuningPublicKey\"")
             }
             debug {
                 buildConfigField("String", "KLAVIYO_SERVER_URL", "\"$serverTarget\"")
                 buildConfigField("String", "KLAVIYO_API_REVISION", "\"$apiRevision\"")
                 buildConfigField("String", "KLAVIYO_CDN_URL", "\"$cdnUrl\"")
                 buildConfigField("String", "KLAVIYO_ASSET_SOURCE", "\"$assetSource\"")
+                buildConfigField("String", "KLAVIYO_TUNING_PUBLIC_KEY", "\"$klaviyoTuningPublicKey\"")
             }
         }
 
@@ -5,16 +5,22 @@ import android.content.ComponentCallbacks
 import com.klaviyo.core.config.Clock
 import com.klaviyo.core.config.Config
 import com.klaviyo.core.config.KlaviyoConfig
+import com.klaviyo.core.config.KlaviyoRemoteTuning
 import com.klaviyo.core.config.Log
+import com.klaviyo.core.config.RemoteTuning
 import com.klaviyo.core.config.SystemClock
 import com.klaviyo.core.lifecycle.KlaviyoLifecycleMonitor
 import com.klaviyo.core.lifecycle.LifecycleMonitor
 import com.klaviyo.core.model.DataStore
+import com.klaviyo.core.model.DataStoreCache
+import com.klaviyo.core.model.LruDataStoreCache
 import com.klaviyo.core.model.SharedPreferencesDataStore
 import com.klaviyo.core.networking.KlaviyoNetworkMonitor
 import com.klaviyo.core.networking.NetworkMonitor
 import com.klaviyo.core.utils.KlaviyoThreadHelper
+import com.klaviyo.core.utils.KlaviyoTracer
 import com.klaviyo.core.utils.ThreadHelper
+import com.klaviyo.core.utils.Tracer
 import kotlin.reflect.KType
 import kotlin.reflect.typeOf
 import kotlinx.coroutines.Dispatchers
@@ -65,6 +71,8 @@ object Registry {
 
     val threadHelper: ThreadHelper = KlaviyoThreadHelper
 
+    val tracer: Tracer get() = KlaviyoTracer
+
     val clock: Clock get() = SystemClock
 
     val log: Log get() = KLog
@@ -77,7 +85,15 @@ object Registry {
 
     val networkMonitor: NetworkMonitor get() = KlaviyoNetworkMonitor
 
-    val dataStore: DataStore get() = SharedPreferencesDataStore
+    /**
+     * Persistent key/value store: the host app's store if set with [Config.Builder.dataStore],
+     * else shared preferences
+     */
+    val dataStore: DataStore get() = getOrNull<Config>()?.dataStore ?: SharedPreferencesDataStore
+
+    val dataStoreCache: DataStoreCache by lazy { LruDataStoreCache() }
+
+    val remoteTuning: RemoteTuning get() = KlaviyoRemoteTuning
 
     /**
      * Internal registry of registered service instances
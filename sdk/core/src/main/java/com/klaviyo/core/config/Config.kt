@@ -1,6 +1,7 @@
 package com.klaviyo.core.config
 
 import android.content.Context
+import com.klaviyo.core.model.DataStore
 import com.klaviyo.core.networking.NetworkMonitor
 
 interface Config {
@@ -26,6 +27,32 @@ interface Config {
     val networkMaxRetryInterval: Long
     val networkJitterRange: IntRange
 
+    /**
+     * Size of the first batch sent when draining a backlog after the network is restored
+     *
+     * The default implementation, like the members below it, returns the SDK's own default,
+     * so that implementations predating the setting keep compiling.
+     */
+    val networkSlowStartBatchSize: Int
+        get() = KlaviyoConfig.NETWORK_SLOW_START_BATCH_SIZE_DEFAULT
+    val networkSlowStartMaxBatchSize: Int
+        get() = KlaviyoConfig.NETWORK_SLOW_START_MAX_BATCH_SIZE_DEFAULT
+    val networkSlowStartInterval: Long
+        get() = KlaviyoConfig.NETWORK_SLOW_START_INTERVAL_DEFAULT
+    val queueDurability: QueueDurability
+        get() = KlaviyoConfig.QUEUE_DURABILITY_DEFAULT
+    val queueCommitInterval: Long
+        get() = KlaviyoConfig.QUEUE_COMMIT_INTERVAL_DEFAULT
+    val queueCommitDepth: Int
+        get() = KlaviyoConfig.QUEUE_COMMIT_DEPTH_DEFAULT
+
+    /**
+     * Key/value store provided by the host app, or null to use shared preferences
+     *
+     * The default implementation returns null.
+     */
+    val dataStore: DataStore? get() = null
+
     fun getManifestInt(key: String, defaultValue: Int): Int
 
     interface Builder {
@@ -43,6 +70,30 @@ interface Config {
         fun networkFlushDepth(networkFlushDepth: Int): Builder
         fun networkMaxAttempts(networkMaxAttempts: Int): Builder
         fun networkMaxRetryInterval(networkMaxRetryInterval: Long): Builder
+
+        /**
+         * Set the size of the first batch sent after the network is restored
+         *
+         * The default implementation, like the setters below it, ignores the value and keeps
+         * the default, so that implementations predating the setting keep compiling.
+         */
+        fun networkSlowStartBatchSize(networkSlowStartBatchSize: Int): Builder = this
+        fun networkSlowStartMaxBatchSize(networkSlowStartMaxBatchSize: Int): Builder = this
+        fun networkSlowStartInterval(networkSlowStartInterval: Long): Builder = this
+        fun queueDurability(queueDurability: QueueDurability): Builder = this
+        fun queueCommitInterval(queueCommitInterval: Long): Builder = this
+        fun queueCommitDepth(queueCommitDepth: Int): Builder = this
+
+        /**
+         * Persist SDK data in the host app's own key/value store, instead of shared preferences
+         *
+         * Must be set before the SDK first reads or writes any data, and is kept for the life
+         * of the process. Data already persisted in shared preferences is not migrated.
+         * The store must meet the contract documented on [DataStore].
+         *
+         * The default implementation ignores the store, keeping shared preferences.
+         */
+        fun dataStore(dataStore: DataStore): Builder = this
         fun build(): Config
     }
 }
@@ -12,7 +12,9 @@ import com.klaviyo.core.BuildConfig
 import com.klaviyo.core.KlaviyoException
 import com.klaviyo.core.R
 import com.klaviyo.core.Registry
+import com.klaviyo.core.model.DataStore
 import com.klaviyo.core.networking.NetworkMonitor
+import org.json.JSONObject
 
 /**
  * Exception that is thrown when the Klaviyo API token is missing from the config
@@ -96,6 +98,49 @@ object KlaviyoConfig : Config {
      */
     private const val NETWORK_MAX_RETRY_INTERVAL_DEFAULT: Long = 180_000
 
+    /**
+     * Size of the first batch sent when draining a backlog after the network is restored.
+     * Each fully successful batch doubles the size, a retryable error halves it. 0 disables the ramp.
+     *
+     * Reasoning: A fleet of devices coming back online at once shouldn't burst the backend,
+     * and a small first batch limits how long the radio stays hot if the connection is still flaky
+     */
+    internal const val NETWORK_SLOW_START_BATCH_SIZE_DEFAULT: Int = 5
+
+    /**
+     * Once the slow start batch size reaches this ceiling, the ramp ends and the queue drains freely
+     */
+    internal const val NETWORK_SLOW_START_MAX_BATCH_SIZE_DEFAULT: Int = 100
+
+    /**
+     * Pause between slow start batches, in milliseconds
+     */
+    internal const val NETWORK_SLOW_START_INTERVAL_DEFAULT: Long = 1_000
+
+    /**
+     * Durability of the persisted API queue, see [QueueDurability]
+     *
+     * Reasoning: An app crash never loses a queued request, without paying for a disk sync
+     * on every enqueue
+     */
+    internal val QUEUE_DURABILITY_DEFAULT = QueueDurability.GROUP_COMMIT
+
+    /**
+     * Maximum time between commits of the persisted API queue, in milliseconds
+     *
+     * Reasoning: Bursts of events (e.g. at app launch) share a commit,
+     * while the window of writes that can be lost stays about as long as a screen transition
+     */
+    internal const val QUEUE_COMMIT_INTERVAL_DEFAULT: Long = 1_000
+
+    /**
+     * Maximum number of writes to the persisted API queue per commit
+     *
+     * Reasoning: Matches the default flush depth, so no more requests can be lost
+     * than would have been sent in one batch
+     */
+    internal const val QUEUE_COMMIT_DEPTH_DEFAULT: Int = 25
+
     override val isDebugBuild = BuildConfig.DEBUG
 
     override var baseUrl: String = BuildConfig.KLAVIYO_SERVER_URL
@@ -119,25 +164,112 @@ object KlaviyoConfig : Config {
     override lateinit var formEnvironment: FormEnvironment
         private set
     override lateinit var applicationContext: Context private set
+    @Volatile
     override var debounceInterval = DEBOUNCE_INTERVAL
         private set
+    @Volatile
     override var networkTimeout = NETWORK_TIMEOUT_DEFAULT
         private set
+    @Volatile
     override var uxNetworkTimeout = UX_NETWORK_TIMEOUT_DEFAULT
         private set
+    @Volatile
     override var networkFlushIntervals = longArrayOf(
         NETWORK_FLUSH_INTERVAL_WIFI_DEFAULT,
         NETWORK_FLUSH_INTERVAL_CELL_DEFAULT,
         NETWORK_FLUSH_INTERVAL_OFFLINE_DEFAULT
     )
         private set
+    @Volatile
     override var networkFlushDepth = NETWORK_FLUSH_DEPTH_DEFAULT
         private set
+    @Volatile
     override var networkMaxAttempts = NETWORK_MAX_ATTEMPTS_DEFAULT
         private set
+    @Volatile
     override var networkMaxRetryInterval = NETWORK_MAX_RETRY_INTERVAL_DEFAULT
         private set
     override val networkJitterRange = 0..10
+    @Volatile
+    override var networkSlowStartBatchSize = NETWORK_SLOW_START_BATCH_SIZE_DEFAULT
+        private set
+    @Volatile
+    override var networkSlowStartMaxBatchSize = NETWORK_SLOW_START_MAX_BATCH_SIZE_DEFAULT
+        private set
+    @Volatile
+    override var networkSlowStartInterval = NETWORK_SLOW_START_INTERVAL_DEFAULT
+        private set
+    @Volatile
+    override var queueDurability = QUEUE_DURABILITY_DEFAULT
+        private set
+    @Volatile
+    override var queueCommitInterval = QUEUE_COMMIT_INTERVAL_DEFAULT
+        private set
+    @Volatile
+    override var queueCommitDepth = QUEUE_COMMIT_DEPTH_DEFAULT
+        private set
+
+    /**
+     * Key/value store provided by the host app, or null to use shared preferences
+     */
+    override var dataStore: DataStore? = null
+        private set
+
+    /**
+     * Most recently applied remote tuning, re-applied over builder values whenever config is built
+     */
+    @Volatile
+    private var tuning: JSONObject? = null
+
+    /**
+     * Apply remotely tuned values over the live configuration, clamped to safe bounds.
+     * Unrecognized or non-numeric values are ignored, so older SDKs can read newer documents.
+     *
+     * Clearing tuning with null takes effect the next time config is built.
+     *
+     * Tuned values are volatile, since tuning is applied from a background thread
+     * while others read the config. Each value is published on its own.
+     *
+     * @param tuning Map of tuning keys to numeric values, see [KlaviyoRemoteTuning]
+     */
+    @Synchronized
+    internal fun applyTuning(tuning: JSONObject?) {
+        this.tuning = tuning
+        tuning ?: return
+
+        tuning.optTuned("debounce_interval", 0L..1_000L)?.let { debounceInterval = it.toInt() }
+        tuning.optTuned("network_timeout", 1_000L..30_000L)?.let { networkTimeout = it.toInt() }
+        tuning.optTuned("ux_network_timeout", 500L..10_000L)?.let { uxNetworkTimeout = it.toInt() }
+        networkFlushIntervals = networkFlushIntervals.copyOf().also { intervals ->
+            NetworkMonitor.NetworkType.values().forEach { type ->
+                tuning.optTuned(
+                    "network_flush_interval_${type.name.lowercase()}",
+                    1_000L..600_000L
+                )?.let { intervals[type.position] = it }
+            }
+        }
+        tuning.optTuned("network_flush_depth", 1L..100L)?.let { networkFlushDepth = it.toInt() }
+        tuning.optTuned("network_max_attempts", 1L..100L)?.let { networkMaxAttempts = it.toInt() }
+        tuning.optTuned("network_max_retry_interval", 10_000L..600_000L)?.let {
+            networkMaxRetryInterval = it
+        }
+        tuning.optTuned("network_slow_start_batch_size", 0L..100L)?.let {
+            networkSlowStartBatchSize = it.toInt()
+        }
+        tuning.optTuned("network_slow_start_max_batch_size", 1L..1_000L)?.let {
+            networkSlowStartMaxBatchSize = it.toInt()
+        }
+        tuning.optTuned("network_slow_start_interval", 0L..60_000L)?.let {
+            networkSlowStartInterval = it
+        }
+    }
+
+    private fun JSONObject.optTuned(key: String, bounds: LongRange): Long? =
+        (opt(key) as? Number)?.toLong()?.let { value ->
+            value.coerceIn(bounds).also {
+                if (it != value) Registry.log.warning("Remote tuning $key=$value clamped to $it")
+            }
+        }
 
     override fun getManifestInt(key: String, defaultValue: Int): Int =
         if (!this::applicationContext.isInitialized) {
@@ -170,6 +302,13 @@ object KlaviyoConfig : Config {
         private var networkFlushDepth = NETWORK_FLUSH_DEPTH_DEFAULT
         private var networkMaxAttempts = NETWORK_MAX_ATTEMPTS_DEFAULT
         private var networkMaxRetryInterval = NETWORK_MAX_RETRY_INTERVAL_DEFAULT
+        private var networkSlowStartBatchSize = NETWORK_SLOW_START_BATCH_SIZE_DEFAULT
+        private var networkSlowStartMaxBatchSize = NETWORK_SLOW_START_MAX_BATCH_SIZE_DEFAULT
+        private var networkSlowStartInterval = NETWORK_SLOW_START_INTERVAL_DEFAULT
+        private var queueDurability = QUEUE_DURABILITY_DEFAULT
+        private var queueCommitInterval = QUEUE_COMMIT_INTERVAL_DEFAULT
+        private var queueCommitDepth = QUEUE_COMMIT_DEPTH_DEFAULT
+        private var dataStore: DataStore? = null
 
         private val requiredPermissions = arrayOf(
             Manifest.permission.ACCESS_NETWORK_STATE,
@@ -277,6 +416,64 @@ object KlaviyoConfig : Config {
             }
         }
 
+        override fun networkSlowStartBatchSize(networkSlowStartBatchSize: Int) = apply {
+            if (networkSlowStartBatchSize >= 0) {
+                this.networkSlowStartBatchSize = networkSlowStartBatchSize
+            } else {
+                Registry.log.error(
+                    "${KlaviyoConfig::networkSlowStartBatchSize.name} must be greater or equal to 0"
+                )
+            }
+        }
+
+        override fun networkSlowStartMaxBatchSize(networkSlowStartMaxBatchSize: Int) = apply {
+            if (networkSlowStartMaxBatchSize > 0) {
+                this.networkSlowStartMaxBatchSize = networkSlowStartMaxBatchSize
+            } else {
+                Registry.log.error(
+                    "${KlaviyoConfig::networkSlowStartMaxBatchSize.name} must be greater than 0"
+                )
+            }
+        }
+
+        override fun networkSlowStartInterval(networkSlowStartInterval: Long) = apply {
+            if (networkSlowStartInterval >= 0) {
+                this.networkSlowStartInterval = networkSlowStartInterval
+            } else {
+                Registry.log.error(
+                    "${KlaviyoConfig::networkSlowStartInterval.name} must be greater or equal to 0"
+                )
+            }
+        }
+
+        override fun queueDurability(queueDurability: QueueDurability) = apply {
+            this.queueDurability = queueDurability
+        }
+
+        override fun queueCommitInterval(queueCommitInterval: Long) = apply {
+            if (queueCommitInterval >= 0) {
+                this.queueCommitInterval = queueCommitInterval
+            } else {
+                Registry.log.error(
+                    "${KlaviyoConfig::queueCommitInterval.name} must be greater or equal to 0"
+                )
+            }
+        }
+
+        override fun queueCommitDepth(queueCommitDepth: Int) = apply {
+            if (queueCommitDepth > 0) {
+                this.queueCommitDepth = queueCommitDepth
+            } else {
+                Registry.log.error(
+                    "${KlaviyoConfig::queueCommitDepth.name} must be greater than 0"
+                )
+            }
+        }
+
+        override fun dataStore(dataStore: DataStore) = apply {
+            this.dataStore = dataStore
+        }
+
         override fun build(): Config {
             val context = applicationContext ?: throw MissingContext()
             val packageInfo = context.packageManager.getPackageInfoCompat(
@@ -291,6 +488,9 @@ object KlaviyoConfig : Config {
             assetSource?.let { KlaviyoConfig.assetSource = it }
             formEnvironment.let { KlaviyoConfig.formEnvironment = it }
 
+            // Kept across rebuilds, as the store can't change once data has been persisted
+            dataStore?.let { KlaviyoConfig.dataStore = it }
+
             KlaviyoConfig.sdkName = this.sdkName ?: context.resources.getString(
                 R.string.klaviyo_sdk_name_override
             )
@@ -308,6 +508,14 @@ object KlaviyoConfig : Config {
             KlaviyoConfig.networkFlushDepth = networkFlushDepth
             KlaviyoConfig.networkMaxAttempts = networkMaxAttempts
             KlaviyoConfig.networkMaxRetryInterval = networkMaxRetryInterval
+            KlaviyoConfig.networkSlowStartBatchSize = networkSlowStartBatchSize
+            KlaviyoConfig.networkSlowStartMaxBatchSize = networkSlowStartMaxBatchSize
+            KlaviyoConfig.networkSlowStartInterval = networkSlowStartInterval
+            KlaviyoConfig.queueDurability = queueDurability
+            KlaviyoConfig.queueCommitInterval = queueCommitInterval
+            KlaviyoConfig.queueCommitDepth = queueCommitDepth
+
+            KlaviyoConfig.applyTuning(KlaviyoConfig.tuning)
 
             return KlaviyoConfig
         }
@@ -364,3 +572,14 @@ fun Context.getManifestInt(key: String, defaultValue: Int): Int {
     val manifestMetadata = appInfo?.metaData ?: Bundle.EMPTY
     return manifestMetadata.getInt(key, defaultValue)
 }
+
+/**
+ * Extension method to get a boolean value from the manifest metadata
+ */
+fun Context.getManifestBoolean(key: String, defaultValue: Boolean): Boolean {
+    val pkgName = packageName
+    val pkgManager = packageManager
+    val appInfo = pkgManager.getApplicationInfoCompat(pkgName, PackageManager.GET_META_DATA)
+    val manifestMetadata = appInfo?.metaData ?: Bundle.EMPTY
+    return manifestMetadata.getBoolean(key, defaultValue)
+}
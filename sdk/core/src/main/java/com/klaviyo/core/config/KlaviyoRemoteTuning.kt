@@ -0,0 +1,255 @@
+package com.klaviyo.core.config
+
+import android.util.Base64
+import androidx.annotation.WorkerThread
+import com.klaviyo.core.BuildConfig
+import com.klaviyo.core.Registry
+import com.klaviyo.core.networking.HttpUtil
+import com.klaviyo.core.safeLaunch
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.URL
+import java.security.GeneralSecurityException
+import java.security.KeyFactory
+import java.security.PublicKey
+import java.security.Signature
+import java.security.spec.X509EncodedKeySpec
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlinx.coroutines.CoroutineScope
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * Fetches, verifies, caches and applies the remote tuning document
+ *
+ * The document is a JSON envelope of a payload string and a base64 signature over its UTF-8 bytes:
+ * `{"payload": "{\"ttl\": 86400, \"tuning\": {\"network_flush_depth\": 10}}", "signature": "..."}`
+ *
+ * Remote tuning is disabled unless a public key is provided at build time.
+ */
+internal object KlaviyoRemoteTuning : RemoteTuning {
+
+    /**
+     * Path of the tuning document relative to [Config.baseCdnUrl]
+     */
+    internal const val TUNING_PATH = "mobile/sdk-tuning/android/v1.json"
+
+    /**
+     * Data store key of the cached tuning document
+     */
+    internal const val CACHE_KEY = "klaviyo_remote_tuning"
+
+    /**
+     * Default time to live of a tuning document, in seconds, if it doesn't specify one
+     *
+     * Reasoning: Tuning changes are rare, once a day keeps the CDN request negligible
+     */
+    private const val TTL_DEFAULT = 86_400L
+
+    /**
+     * A document can't ask to be re-fetched more often than every 5 minutes, or less often than weekly
+     */
+    private val TTL_BOUNDS = 300L..604_800L
+
+    /**
+     * Documents are expected to be tiny, anything larger is rejected without being read in full
+     */
+    private const val MAX_DOCUMENT_LENGTH = 16_384
+
+    /**
+     * Verifier for tuning document signatures, if null remote tuning is disabled
+     */
+    internal var verifier: TuningVerifier? = BuildConfig.KLAVIYO_TUNING_PUBLIC_KEY
+        .ifEmpty { null }
+        ?.let { EcdsaTuningVerifier(it) }
+
+    private val isFetching = AtomicBoolean(false)
+
+    /**
+     * A verified tuning document
+     *
+     * @property raw The signed document as fetched, for caching
+     * @property tuning Tuning values to apply to config
+     * @property ttl Time to live in seconds
+     * @property fetchedAt Timestamp the document was fetched
+     */
+    internal class TuningDocument(
+        val raw: String,
+        val tuning: JSONObject,
+        val ttl: Long,
+        val fetchedAt: Long
+    ) {
+        val isExpired: Boolean
+            get() = Registry.clock.currentTimeMillis() - fetchedAt >= ttl * 1_000
+    }
+
+    override fun refresh() {
+        if (verifier == null || !isFetching.compareAndSet(false, true)) return
+
+        // Read the cache in the background too, since refresh is called during initialization
+        CoroutineScope(Registry.dispatcher).safeLaunch {
+            try {
+                val cached = awaitCache()
+                cached?.let { KlaviyoConfig.applyTuning(it.tuning) }
+
+                if (cached == null || cached.isExpired) {
+                    fetch()
+                }
+            } finally {
+                isFetching.set(false)
+            }
+        }
+    }
+
+    /**
+     * Blocking fetch of the tuning document from the CDN,
+     * which is cached and applied if its signature is valid
+     *
+     * @return Whether a valid document was fetched
+     */
+    @WorkerThread
+    internal fun fetch(): Boolean {
+        if (!Registry.networkMonitor.isNetworkConnected()) return false
+
+        val raw = try {
+            val url = URL("${Registry.config.baseCdnUrl}/$TUNING_PATH")
+            val connection = HttpUtil.openConnection(url)
+            try {
+                connection.connectTimeout = Registry.config.networkTimeout
+                connection.readTimeout = Registry.config.networkTimeout
+
+                if (connection.responseCode != HttpURLConnection.HTTP_OK) {
+                    Registry.log.verbose("Remote tuning unavailable: ${connection.responseCode}")
+                    return false
+                }
+
+                if (connection.contentLength > MAX_DOCUMENT_LENGTH) {
+                    Registry.log.warning("Remote tuning document too large: ${connection.contentLength}")
+                    return false
+                }
+
+                // A chunked response doesn't declare its length, so the read itself is bounded
+                connection.inputStream.use { it.readBounded() } ?: run {
+                    Registry.log.warning("Remote tuning document too large")
+                    return false
+                }
+            } finally {
+                connection.disconnect()
+            }
+        } catch (e: IOException) {
+            Registry.log.warning("Failed to fetch remote tuning", e)
+            return false
+        }
+
+        val document = parse(raw, Registry.clock.currentTimeMillis()) ?: return false
+
+        Registry.dataStore.store(
+            CACHE_KEY,
+            JSONObject()
+                .put("fetched_at", document.fetchedAt)
+                .put("document", document.raw)
+                .toString()
+        )
+
+        Registry.log.verbose("Applying remote tuning: ${document.tuning}")
+        KlaviyoConfig.applyTuning(document.tuning)
+
+        return true
+    }
+
+    /**
+     * Read the stream as UTF-8 text, or null if it exceeds [MAX_DOCUMENT_LENGTH] bytes
+     */
+    private fun InputStream.readBounded(): String? {
+        val buffer = ByteArrayOutputStream()
+        val chunk = ByteArray(DEFAULT_BUFFER_SIZE)
+
+        while (true) {
+            val read = read(chunk)
+            if (read < 0) break
+            buffer.write(chunk, 0, read)
+            if (buffer.size() > MAX_DOCUMENT_LENGTH) return null
+        }
+
+        return buffer.toString(Charsets.UTF_8.name())
+    }
+
+    /**
+     * Load the cached tuning document, re-verifying its signature
+     */
+    internal fun loadCache(): TuningDocument? = Registry.dataStore.fetch(CACHE_KEY)?.let(::parseCache)
+
+    /**
+     * Load the cached tuning document without blocking the calling thread, see [loadCache]
+     */
+    internal suspend fun awaitCache(): TuningDocument? =
+        Registry.dataStore.awaitFetch(CACHE_KEY)?.let(::parseCache)
+
+    private fun parseCache(cached: String): TuningDocument? = try {
+        val json = JSONObject(cached)
+        parse(json.getString("document"), json.getLong("fetched_at"))
+    } catch (e: JSONException) {
+        Registry.log.warning("Discarding invalid remote tuning cache", e)
+        null
+    }
+
+    /**
+     * Parse and verify a signed tuning document
+     *
+     * @return The verified document, or null if it is malformed or the signature is invalid
+     */
+    private fun parse(raw: String, fetchedAt: Long): TuningDocument? = try {
+        val envelope = JSONObject(raw)
+        val payload = envelope.getString("payload")
+        val signature = Base64.decode(envelope.getString("signature"), Base64.DEFAULT)
+
+        if (verifier?.verify(payload.toByteArray(Charsets.UTF_8), signature) == true) {
+            val body = JSONObject(payload)
+            TuningDocument(
+                raw = raw,
+                tuning = body.optJSONObject("tuning") ?: JSONObject(),
+                ttl = body.optLong("ttl", TTL_DEFAULT).coerceIn(TTL_BOUNDS),
+                fetchedAt = fetchedAt
+            )
+        } else {
+            Registry.log.warning("Discarding remote tuning with invalid signature")
+            null
+        }
+    } catch (e: JSONException) {
+        Registry.log.warning("Discarding malformed remote tuning", e)
+        null
+    } catch (e: IllegalArgumentException) {
+        Registry.log.warning("Discarding malformed remote tuning signature", e)
+        null
+    }
+}
+
+/**
+ * Verifies SHA256withECDSA signatures against a base64 X.509 encoded EC public key
+ *
+ * @param publicKey Base64 X.509 encoded public key
+ */
+internal class EcdsaTuningVerifier(private val publicKey: String) : TuningVerifier {
+
+    private val key: PublicKey by lazy {
+        KeyFactory.getInstance("EC").generatePublic(
+            X509EncodedKeySpec(Base64.decode(publicKey, Base64.DEFAULT))
+        )
+    }
+
+    override fun verify(payload: ByteArray, signature: ByteArray): Boolean = try {
+        Signature.getInstance("SHA256withECDSA").run {
+            initVerify(key)
+            update(payload)
+            verify(signature)
+        }
+    } catch (e: GeneralSecurityException) {
+        Registry.log.error("Unable to verify remote tuning signature", e)
+        false
+    } catch (e: IllegalArgumentException) {
+        Registry.log.error("Invalid remote tuning public key", e)
+        false
+    }
+}
@@ -0,0 +1,31 @@
+package com.klaviyo.core.config
+
+/**
+ * Trade-off between durability and throughput when persisting queued API requests
+ *
+ * Commits are bounded by [Config.queueCommitInterval] and [Config.queueCommitDepth]:
+ * whichever comes first, the elapsed time or the number of uncommitted writes.
+ * Commits never block the writing thread, they run in the background and report completion
+ * through [com.klaviyo.core.model.QueueStore.onCommitted].
+ */
+enum class QueueDurability {
+    /**
+     * Every write reaches the OS before returning, and is synced to the storage device
+     * right away. Nothing is lost on a crash, nor on a power loss once the sync completes,
+     * at the cost of a disk sync per enqueue.
+     */
+    STRICT,
+
+    /**
+     * Every write reaches the OS before returning, and writes are synced to the storage device
+     * together in one commit. Nothing is lost if the app crashes, and a power loss can only lose
+     * writes since the last commit.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Writes are buffered in memory and written behind in one commit, without syncing.
+     * Fastest, but a crash can lose writes since the last commit.
+     */
+    MEMORY_FIRST
+}
@@ -0,0 +1,28 @@
+package com.klaviyo.core.config
+
+/**
+ * Remotely configurable tuning of SDK parameters such as flush intervals, depth and timeouts
+ *
+ * A small signed tuning document is fetched from the CDN and cached with a TTL.
+ * Verified values are applied to the live [Config] within safe bounds, without re-initialization.
+ */
+interface RemoteTuning {
+
+    /**
+     * Apply cached tuning, if any, and fetch a fresh document in the background if the cache has expired
+     */
+    fun refresh()
+}
+
+/**
+ * Verifies the signature of a remote tuning document before it is trusted
+ */
+fun interface TuningVerifier {
+
+    /**
+     * @param payload The exact bytes that were signed
+     * @param signature The signature over [payload]
+     * @return Whether the signature is valid for the payload
+     */
+    fun verify(payload: ByteArray, signature: ByteArray): Boolean
+}
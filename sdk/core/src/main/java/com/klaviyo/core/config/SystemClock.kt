@@ -1,21 +1,46 @@
 package com.klaviyo.core.config
 
 import android.annotation.SuppressLint
+import com.klaviyo.core.Registry
+import com.klaviyo.core.safeLaunch
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
 import java.util.TimeZone
-import java.util.Timer
-import kotlin.concurrent.schedule
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.CoroutineScope
 
 internal object SystemClock : Clock {
 
+    /**
+     * Name of the thread that times all tasks scheduled with [schedule]
+     */
+    internal const val SCHEDULER_THREAD_NAME = "klaviyo-scheduler"
+
     // Explicitly set Locale.ENGLISH to ensure consistent formatting
     @SuppressLint("SimpleDateFormat")
     private val format = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.ENGLISH).apply {
         timeZone = TimeZone.getTimeZone("UTC")
     }
 
+    /**
+     * One scheduler thread for the whole SDK, created on first use
+     *
+     * Reasoning: The thread only waits out each delay, then dispatches the task to
+     * [Registry.dispatcher], since tasks such as the queue's group commit, the expiry sweep
+     * and the profile debounce do blocking disk work that would hold up every other task
+     * behind them. A thread per task, as with a [java.util.Timer] each, spawned a thread
+     * for every profile update. The thread is a daemon, so it never keeps the process alive,
+     * and cancelled tasks are removed from its queue right away, since debounces cancel
+     * and reschedule on every update.
+     */
+    private val scheduler by lazy {
+        ScheduledThreadPoolExecutor(1) { runnable ->
+            Thread(runnable, SCHEDULER_THREAD_NAME).apply { isDaemon = true }
+        }.apply { removeOnCancelPolicy = true }
+    }
+
     override fun currentTimeMillis(): Long {
         return System.currentTimeMillis()
     }
@@ -24,11 +49,24 @@ internal object SystemClock : Clock {
         return format.format(Date(milliseconds))
     }
 
-    override fun schedule(delay: Long, task: () -> Unit): Clock.Cancellable = Timer()
-        .schedule(delay) { task() }.let { timer ->
-            return object : Clock.Cancellable {
-                override fun runNow() = task().also { timer.cancel() }
-                override fun cancel() = timer.cancel()
-            }
+    override fun schedule(delay: Long, task: () -> Unit): Clock.Cancellable {
+        val future = scheduler.schedule(
+            Runnable {
+                CoroutineScope(Registry.dispatcher).safeLaunch {
+                    try {
+                        task()
+                    } catch (e: Exception) {
+                        Registry.log.error("Scheduled task failed", e)
+                    }
+                }
+            },
+            delay,
+            TimeUnit.MILLISECONDS
+        )
+
+        return object : Clock.Cancellable {
+            override fun runNow() = task().also { future.cancel(false) }
+            override fun cancel() = future.cancel(false)
         }
+    }
 }
@@ -1,5 +1,15 @@
 package com.klaviyo.core.model
 
+import com.klaviyo.core.Registry
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.withContext
+
 typealias StoreObserver = (key: String, value: String?) -> Unit
 
 /**
@@ -8,6 +18,23 @@ typealias StoreObserver = (key: String, value: String?) -> Unit
  * To keep things very simple, this interface only expects a key/value storage with strings.
  * JSON-encoding is the simplest way to leverage this store with non-string data,
  * which of course means accessors must implement type safety checks as necessary.
+ *
+ * The blocking accessors may read from disk, particularly on first access.
+ * From the main thread, prefer the coroutine accessors [awaitFetch], [awaitEdit] and [observe],
+ * which do their work on [Registry.dispatcher].
+ *
+ * Host apps may provide their own store via [com.klaviyo.core.config.Config.Builder.dataStore].
+ * Implementations must meet this contract, which `DataStoreConformanceTest` in the test fixtures
+ * module verifies:
+ * - Threading: every method may be called from any thread, concurrently.
+ *   No change may be lost, and a value is visible to [fetch] on any thread once stored.
+ * - Edits: changes made in [edit] are applied together, or not at all if the block throws.
+ *   They are visible to [fetch] on the editing thread as they are made, and to other threads
+ *   only once the edit is applied. Nested edits join the outermost one.
+ * - Notifications: observers are notified of every [store] and [clear], with the new value,
+ *   or null when cleared, after the change is visible to [fetch]. An edit notifies each changed
+ *   key once, with its final value, after the edit is applied. Observers are called on the
+ *   writing thread, and may register or unregister observers while being notified.
  */
 interface DataStore {
 
@@ -27,6 +54,21 @@ interface DataStore {
      */
     fun store(key: String, value: String)
 
+    /**
+     * Save a key/value pair to the persistent store, expiring [ttl] milliseconds from now
+     *
+     * Once expired, the key reads as not set, and is eventually removed from the store.
+     * Storing or clearing the key again replaces its expiry.
+     *
+     * The default implementation ignores [ttl] and keeps the value until it is cleared,
+     * so callers that must not act on a stale value should still check its age themselves.
+     *
+     * @param key
+     * @param value
+     * @param ttl Time to live, in milliseconds
+     */
+    fun store(key: String, value: String, ttl: Long) = store(key, value)
+
     /**
      * Remove a key from the persistent store
      *
@@ -34,6 +76,111 @@ interface DataStore {
      */
     fun clear(key: String)
 
+    /**
+     * Apply several changes to the persistent store as a single edit
+     *
+     * Implementations should commit every change made in [block] together, or none if it throws,
+     * then notify observers once per changed key with its final value.
+     * Calls to [store] or [clear] made on the same thread while [block] runs join the same edit.
+     *
+     * The default implementation collects the changes made in [block], then applies each
+     * changed key's final value with [store] or [clear] once [block] returns, so nothing is applied
+     * if it throws. It can't apply them atomically, nor show them to [fetch] while [block] runs,
+     * so stores that need the full contract above must override it.
+     *
+     * @param block Changes to apply
+     */
+    fun edit(block: DataStoreEditor.() -> Unit) {
+        // Final value of each changed key, in order of first change, null once cleared
+        val values = LinkedHashMap<String, String?>()
+        val ttls = HashMap<String, Long>()
+
+        object : DataStoreEditor {
+            override fun store(key: String, value: String) {
+                values[key] = value
+                ttls.remove(key)
+            }
+
+            override fun store(key: String, value: String, ttl: Long) {
+                values[key] = value
+                ttls[key] = ttl
+            }
+
+            override fun clear(key: String) {
+                values[key] = null
+                ttls.remove(key)
+            }
+        }.block()
+
+        values.forEach { (key, value) ->
+            val ttl = ttls[key]
+            when {
+                value == null -> clear(key)
+                ttl == null -> store(key, value)
+                else -> store(key, value, ttl)
+            }
+        }
+    }
+
+    /**
+     * List every key currently set in the persistent store, e.g. to find keys left behind
+     *
+     * The default implementation returns an empty set, for stores that can't enumerate keys.
+     *
+     * @return Set keys, in no particular order
+     */
+    fun keys(): Set<String> = emptySet()
+
+    /**
+     * Start loading persisted data into memory in the background, returning immediately
+     *
+     * Reads made while the preload is in progress wait for the data they read to be loaded,
+     * so the first read on the main thread doesn't have to load and parse the store itself.
+     *
+     * The default implementation does nothing, for stores that don't need to load up front.
+     */
+    fun preload() = Unit
+
+    /**
+     * Retrieve the value for the given key, without blocking the calling thread
+     *
+     * @param key
+     * @return The stored value, or null if the key is not set
+     */
+    suspend fun awaitFetch(key: String): String? = withContext(Registry.dispatcher) {
+        fetch(key)
+    }
+
+    /**
+     * Apply several changes as a single edit, see [edit], without blocking the calling thread
+     *
+     * @param block Changes to apply, run on a background thread
+     */
+    suspend fun awaitEdit(block: DataStoreEditor.() -> Unit) = withContext(Registry.dispatcher) {
+        edit(block)
+    }
+
+    /**
+     * Observe the value of a key, starting with its current value
+     *
+     * Values are read on [Registry.dispatcher]. The flow is conflated, so a slow collector
+     * only receives the latest value, and consecutive duplicate values are not emitted.
+     *
+     * @param key
+     * @return Flow of the key's value, null while the key is not set
+     */
+    fun observe(key: String): Flow<String?> = callbackFlow {
+        // Changes only signal a re-read, so a change racing the initial read is never lost
+        val observer: StoreObserver = { changed, _ -> if (changed == key) trySend(Unit) }
+        onStoreChange(observer)
+        send(Unit)
+        awaitClose { offStoreChange(observer) }
+    }
+        .conflate()
+        .map { fetch(key) }
+        .flowOn(Registry.dispatcher)
+        .distinctUntilChanged()
+
     /**
      * Register an observer to be notified when any changes are made to persistent store
      *
@@ -49,6 +196,37 @@ interface DataStore {
     fun offStoreChange(observer: StoreObserver)
 }
 
+/**
+ * Changes to a [DataStore] that are applied together, see [DataStore.edit]
+ */
+interface DataStoreEditor {
+
+    /**
+     * Save a key/value pair as part of the edit
+     *
+     * @param key
+     * @param value
+     */
+    fun store(key: String, value: String)
+
+    /**
+     * Save a key/value pair as part of the edit, expiring [ttl] milliseconds from now,
+     * see [DataStore.store]
+     *
+     * @param key
+     * @param value
+     * @param ttl Time to live, in milliseconds
+     */
+    fun store(key: String, value: String, ttl: Long) = store(key, value)
+
+    /**
+     * Remove a key as part of the edit
+     *
+     * @param key
+     */
+    fun clear(key: String)
+}
+
 /**
  * Fetch a key from store, or generate and store a new value if not found
  *
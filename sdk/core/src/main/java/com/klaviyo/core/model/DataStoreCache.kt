@@ -0,0 +1,192 @@
+package com.klaviyo.core.model
+
+import com.klaviyo.core.Registry
+import kotlinx.coroutines.withContext
+
+/**
+ * Read-through cache of values decoded from the [DataStore]
+ *
+ * Decoded objects are held by store key, so hot readers don't repeatedly fetch and parse
+ * the same JSON string. Cached values are invalidated whenever their key changes in the store,
+ * whether or not the change was made through the cache.
+ *
+ * Cached values are shared between callers, so they should be treated as immutable.
+ */
+interface DataStoreCache {
+
+    /**
+     * Cache effectiveness counters
+     *
+     * @property hits Reads served from memory
+     * @property misses Reads that had to fetch and decode from the store
+     * @property size Number of values currently cached
+     */
+    data class Stats(val hits: Long, val misses: Long, val size: Int)
+
+    /**
+     * Current hit and miss counts
+     */
+    val stats: Stats
+
+    /**
+     * Get the decoded value of a key, from memory if cached, else fetched from the store
+     *
+     * If [decode] throws, the exception is propagated and nothing is cached.
+     *
+     * @param key Store key
+     * @param type Type of the decoded value, a value cached as a different type is a miss
+     * @param decode Decode the stored string, or return null if it is not a valid value
+     * @return Decoded value, or null if the key is not set
+     */
+    fun <T : Any> fetch(key: String, type: Class<T>, decode: (String) -> T?): T?
+
+    /**
+     * Get the decoded value of a key, see [fetch], reading and decoding on [Registry.dispatcher]
+     * if it isn't cached, so the calling thread never waits on disk
+     */
+    suspend fun <T : Any> awaitFetch(key: String, type: Class<T>, decode: (String) -> T?): T? =
+        withContext(Registry.dispatcher) { fetch(key, type, decode) }
+
+    /**
+     * Save a value to the store, and cache it in its decoded form
+     *
+     * @param key Store key
+     * @param value Decoded value
+     * @param type Type to cache the value as
+     * @param encode Encode the value as a string for the store
+     */
+    fun <T : Any> store(key: String, value: T, type: Class<T>, encode: (T) -> String)
+
+    /**
+     * Drop a cached value, or all cached values if [key] is null
+     *
+     * @param key
+     */
+    fun invalidate(key: String? = null)
+}
+
+/**
+ * Get the decoded value of a key, see [DataStoreCache.fetch]
+ */
+inline fun <reified T : Any> DataStoreCache.fetch(
+    key: String,
+    noinline decode: (String) -> T?
+): T? = fetch(key, T::class.java, decode)
+
+/**
+ * Get the decoded value of a key without blocking, see [DataStoreCache.awaitFetch]
+ */
+suspend inline fun <reified T : Any> DataStoreCache.awaitFetch(
+    key: String,
+    noinline decode: (String) -> T?
+): T? = awaitFetch(key, T::class.java, decode)
+
+/**
+ * Save a value to the store and cache it, see [DataStoreCache.store]
+ */
+inline fun <reified T : Any> DataStoreCache.store(
+    key: String,
+    value: T,
+    noinline encode: (T) -> String
+) = store(key, value, T::class.java, encode)
+
+/**
+ * Size-bounded [DataStoreCache] that evicts the least recently used value
+ *
+ * Always reads through to the currently registered [Registry.dataStore],
+ * and observes it for changes to invalidate cached values.
+ *
+ * @param maxSize Maximum number of cached values
+ */
+internal class LruDataStoreCache(private val maxSize: Int = DEFAULT_MAX_SIZE) : DataStoreCache {
+
+    companion object {
+        /**
+         * Default maximum number of cached values
+         *
+         * Reasoning: The SDK reads a handful of hot keys (profile identifiers, geofences,
+         * cooldowns), so a small bound keeps them all resident without holding on to cold values
+         */
+        const val DEFAULT_MAX_SIZE = 32
+    }
+
+    private class Entry(val type: Class<*>, val value: Any?)
+
+    private val entries = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>?) =
+            size > maxSize
+    }
+
+    private var hits = 0L
+    private var misses = 0L
+
+    /**
+     * Incremented on every invalidation, so a value read from the store
+     * isn't cached if the store changed while it was being decoded
+     */
+    private var generation = 0L
+
+    private var attachedStore: DataStore? = null
+
+    private val observer: StoreObserver = { key, _ -> invalidate(key) }
+
+    override val stats: DataStoreCache.Stats
+        @Synchronized get() = DataStoreCache.Stats(hits, misses, entries.size)
+
+    override fun <T : Any> fetch(key: String, type: Class<T>, decode: (String) -> T?): T? {
+        val (store, startGeneration) = synchronized(this) {
+            val store = attach()
+
+            entries[key]?.takeIf { it.type == type }?.let {
+                hits++
+                return type.cast(it.value)
+            }
+
+            misses++
+            store to generation
+        }
+
+        // Decode outside the lock, so slow parsing doesn't block other readers
+        val value = store.fetch(key)?.let(decode)
+
+        synchronized(this) {
+            if (generation == startGeneration && attachedStore === store) {
+                entries[key] = Entry(type, value)
+            }
+        }
+
+        return value
+    }
+
+    override fun <T : Any> store(key: String, value: T, type: Class<T>, encode: (T) -> String) {
+        val store = synchronized(this) { attach() }
+
+        // Store change observer invalidates any prior value for this key
+        store.store(key, encode(value))
+
+        synchronized(this) {
+            if (attachedStore === store) {
+                entries[key] = Entry(type, value)
+            }
+        }
+    }
+
+    @Synchronized
+    override fun invalidate(key: String?) {
+        generation++
+        if (key == null) entries.clear() else entries.remove(key)
+    }
+
+    /**
+     * Observe the registered data store, starting over if it has been replaced
+     */
+    private fun attach(): DataStore = Registry.dataStore.also { store ->
+        if (store !== attachedStore) {
+            attachedStore?.offStoreChange(observer)
+            entries.clear()
+            generation++
+            store.onStoreChange(observer)
+            attachedStore = store
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.klaviyo.core.model
+
+import androidx.annotation.RestrictTo
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Keys of one module that a [DataStore] may keep apart from the rest of the SDK's state,
+ * so that frequent writes by one module don't re-write every other module's values
+ *
+ * Each module registers the partition of its own keys with [registerDataStorePartition],
+ * before it first reads or writes them. Keys of partitions not registered yet, e.g. of a module
+ * that isn't used, stay in the shared file.
+ *
+ * @property name Name of the partition, unique across modules
+ * @property fileName Name of the backing file used by [SharedPreferencesDataStore]
+ * @param matches Whether a key belongs to the partition
+ */
+internal class DataStorePartition(
+    val name: String,
+    private val matches: (key: String) -> Boolean
+) {
+    val fileName = "${SharedPreferencesDataStore.KLAVIYO_PREFS_NAME}.$name"
+
+    /**
+     * Whether a key belongs to this partition
+     *
+     * @param key
+     */
+    fun contains(key: String): Boolean = matches(key)
+
+    companion object {
+        private val partitions = CopyOnWriteArrayList<DataStorePartition>()
+
+        /**
+         * Every registered partition, in order of registration
+         */
+        val all: List<DataStorePartition> get() = partitions
+
+        /**
+         * Register a partition, unless one of the same name already is
+         *
+         * @return Whether the partition is newly registered
+         */
+        fun register(partition: DataStorePartition): Boolean = synchronized(partitions) {
+            partitions.none { it.name == partition.name } && partitions.add(partition)
+        }
+
+        /**
+         * The partition a key belongs to, or null if it belongs to none
+         */
+        fun of(key: String): DataStorePartition? = partitions.firstOrNull { it.contains(key) }
+    }
+}
+
+/**
+ * Keep a module's keys in a partition of the SDK's data store, apart from other modules' keys
+ *
+ * Call before the module first reads or writes any of its keys. Registering a partition
+ * of the same name again has no effect.
+ *
+ * @param name Name of the partition, unique across modules
+ * @param contains Whether a key belongs to the partition
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+fun registerDataStorePartition(name: String, contains: (key: String) -> Boolean) {
+    if (DataStorePartition.register(DataStorePartition(name, contains))) {
+        SharedPreferencesDataStore.onPartitionRegistered()
+    }
+}
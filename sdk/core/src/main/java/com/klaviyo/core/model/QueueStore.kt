@@ -0,0 +1,144 @@
+package com.klaviyo.core.model
+
+/**
+ * A request persisted in a [QueueStore]
+ *
+ * Besides the payload, entries carry a few descriptive fields of the request,
+ * which stores may persist alongside it, e.g. as indexed columns.
+ * These are informational only: the payload is the source of truth when the queue is restored.
+ *
+ * @property uuid Unique identifier of the request
+ * @property payload Serialized request, opaque to the store
+ * @property type Type of request, e.g. "Create Event"
+ * @property queuedTime Time the request was first enqueued, in milliseconds
+ * @property attempts Number of send attempts made so far
+ */
+data class QueueEntry(
+    val uuid: String,
+    val payload: ByteArray,
+    val type: String? = null,
+    val queuedTime: Long = 0L,
+    val attempts: Int = 0
+) {
+    override fun equals(other: Any?): Boolean = other is QueueEntry &&
+        uuid == other.uuid &&
+        payload.contentEquals(other.payload) &&
+        type == other.type &&
+        queuedTime == other.queuedTime &&
+        attempts == other.attempts
+
+    override fun hashCode(): Int = uuid.hashCode() * 31 + payload.contentHashCode()
+}
+
+/**
+ * Persistence "engine" for the ordered queue of outgoing API requests
+ *
+ * Unlike [DataStore], this interface is shaped around queue operations,
+ * so that implementations can persist each operation incrementally
+ * rather than re-writing the entire queue on every change.
+ *
+ * Implementations must be thread-safe. An operation may throw [java.io.IOException] when
+ * the store is temporarily unavailable, e.g. a store shared between processes that can't be
+ * locked, in which case it had no effect and may be retried later.
+ */
+interface QueueStore {
+
+    /**
+     * Read all persisted entries from disk
+     *
+     * @return Entries, in queue order
+     */
+    fun load(): List<QueueEntry>
+
+    /**
+     * Read the UUIDs of all persisted entries, without reading their payloads
+     *
+     * Lets the queue be restored quickly at startup, reading each payload via [read]
+     * only when its request is about to be sent. Implementations should override this
+     * and [read] together, the defaults fall back to reading the entire queue.
+     *
+     * @return UUIDs, in queue order
+     */
+    fun loadIndex(): List<String> = load().map { it.uuid }
+
+    /**
+     * Read the payload of a single persisted entry
+     *
+     * @param uuid
+     * @return Payload, or null if no such entry is persisted
+     */
+    fun read(uuid: String): ByteArray? = load().firstOrNull { it.uuid == uuid }?.payload
+
+    /**
+     * Persist new entries, at the tail of the queue or at the head if [headOfLine]
+     *
+     * @param entries New entries, in the order they should appear in the queue
+     * @param headOfLine Whether the entries go to the front of the queue
+     */
+    fun enqueue(entries: List<QueueEntry>, headOfLine: Boolean = false)
+
+    /**
+     * Persist updated state of an entry already in the queue, e.g. its retry attempts
+     *
+     * @param entry
+     */
+    fun update(entry: QueueEntry)
+
+    /**
+     * Remove completed or failed entries from the queue
+     *
+     * @param uuids
+     */
+    fun remove(uuids: Collection<String>)
+
+    /**
+     * Make the persisted queue match the given order, dropping any entries not present
+     *
+     * @param order UUIDs, in queue order
+     */
+    fun sync(order: List<String>)
+
+    /**
+     * Remove all entries from the persisted queue
+     */
+    fun clear()
+
+    /**
+     * Invoke [callback] once every operation persisted so far is committed to the device,
+     * according to the store's durability, or has failed to commit
+     *
+     * Stores that commit in the background report completion here, rather than blocking
+     * the thread that wrote. The callback may run on any thread, so it should be brief.
+     * The default implementation invokes it right away, for stores that commit each
+     * operation before returning.
+     *
+     * @param callback Invoked with whether the operations were committed
+     */
+    fun onCommitted(callback: (Boolean) -> Unit) = callback(true)
+
+    /**
+     * Claim the right to send the queued requests, for the life of this process
+     *
+     * Stores shared between processes grant this to one process at a time. Other processes
+     * may still enqueue, and their requests are sent by the process holding the claim.
+     * The default implementation always grants it, for stores used by a single process.
+     *
+     * @return Whether this process may send queued requests
+     */
+    fun claimDrain(): Boolean = true
+
+    /**
+     * Whether another process has changed the persisted queue since [loadIndex] was last called
+     *
+     * The default implementation is always false, for stores used by a single process.
+     */
+    fun hasExternalChanges(): Boolean = false
+
+    /**
+     * Whether other processes may enqueue to this store, in which case the process holding
+     * the drain claim keeps checking [hasExternalChanges], and others keep retrying [claimDrain]
+     *
+     * The default implementation is false, for stores used by a single process.
+     */
+    fun isShared(): Boolean = false
+}
@@ -3,7 +3,15 @@ package com.klaviyo.core.model
 import android.content.Context
 import android.content.SharedPreferences
 import com.klaviyo.core.Registry
+import com.klaviyo.core.config.Clock
+import com.klaviyo.core.safeLaunch
+import com.klaviyo.core.utils.trace
+import java.util.Collections
+import java.util.WeakHashMap
 import java.util.concurrent.CopyOnWriteArrayList
+import kotlinx.coroutines.CoroutineScope
+import org.json.JSONException
+import org.json.JSONObject
 
 /**
  * Simple DataStore implementation using SharedPreferences for persistence
@@ -11,11 +19,36 @@ import java.util.concurrent.CopyOnWriteArrayList
  * To keep things very simple, this interface only expects a key/value storage with strings.
  * JSON-encoding is the simplest way to leverage this store with non-string data,
  * which of course means accessors must implement type safety checks as necessary.
+ *
+ * Keys of a registered [DataStorePartition] live in that partition's own preferences file,
+ * since every write re-writes its entire file: e.g. updating a geofence cooldown shouldn't
+ * re-write a long request queue. Everything else stays in [KLAVIYO_PREFS_NAME].
+ * Partition keys left in the shared file, e.g. by earlier SDK versions, are moved in the
+ * background, once per process and partition, see [movePartitionKeys].
+ *
+ * Expiry times of keys stored with a TTL are kept in an index in the same file as the keys,
+ * so storing a key with a TTL only writes its own file. An expired key is cleared when read,
+ * and every other expired key by a background sweep, see [sweepExpired].
  */
 internal object SharedPreferencesDataStore : DataStore {
 
     internal const val KLAVIYO_PREFS_NAME = "KlaviyoSDKPreferences"
 
+    /**
+     * Key of the expiry index in each file: a JSON object of expiry times by key,
+     * for every key of that file stored with a TTL
+     */
+    internal const val EXPIRY_INDEX_KEY = "klaviyo_key_expiry"
+
+    /**
+     * Interval of the background sweep of expired keys, while any key has a TTL
+     *
+     * Reasoning: Expired keys already read as not set, so the sweep only reclaims the space
+     * of keys that aren't read again. That isn't urgent, and every sweep that clears a key
+     * re-writes its file, so sweeping more often would cost more than it saves
+     */
+    internal const val EXPIRY_SWEEP_INTERVAL = 5 * 60 * 1000L
+
     /**
      * List of registered observers
      */
@@ -35,15 +68,171 @@ internal object SharedPreferencesDataStore : DataStore {
     }
 
     /**
-     * Opens the Klaviyo SDK's shared preferences file
+     * Names of every file of the store: each registered partition's file, then the shared file
+     */
+    private val fileNames: List<String>
+        get() = DataStorePartition.all.map { it.fileName } + KLAVIYO_PREFS_NAME
+
+    /**
+     * Whether partition keys left in the shared file have been moved to their partition's file
+     */
+    @Volatile
+    internal var isPartitioned = false
+
+    /**
+     * Whether [preload] has started, after which a newly registered partition's keys
+     * are moved right away
+     */
+    @Volatile
+    private var isPreloaded = false
+
+    /**
+     * Held while partition keys left in the shared file are moved to their partition's file,
+     * and by writes to keys that may be moving, see [locked]
+     */
+    private val moveLock = Any()
+
+    /**
+     * Start loading the shared file and every partition's file, from [Registry.dispatcher]
+     *
+     * [SharedPreferences] loads and parses a whole file on a thread of its own when first opened,
+     * and blocks reads of that file until it is done, so opening every file early takes that
+     * cost off of the thread that first reads from the SDK. Each file's readers only wait on
+     * that file. Partition keys still in the shared file are then moved to their partition's file.
+     */
+    override fun preload() {
+        isPreloaded = true
+
+        CoroutineScope(Registry.dispatcher).safeLaunch {
+            Registry.tracer.trace("Klaviyo.preloadPreferences") {
+                fileNames.forEach { openSharedPreferences(it) }
+            }
+
+            movePartitionKeys()
+            sweepExpired()
+        }
+    }
+
+    /**
+     * Opens one of the Klaviyo SDK's shared preferences files
      *
+     * @param name Name of the file, the shared file by default
      * @return The Klaviyo SDK's shared preferences opened in private mode
      */
-    private fun openSharedPreferences(): SharedPreferences {
-        return Registry.config.applicationContext.getSharedPreferences(
-            KLAVIYO_PREFS_NAME,
-            Context.MODE_PRIVATE
-        )
+    private fun openSharedPreferences(name: String = KLAVIYO_PREFS_NAME): SharedPreferences =
+        Registry.config.applicationContext.getSharedPreferences(name, Context.MODE_PRIVATE)
+
+    /**
+     * Name of the preferences file a key is stored in
+     */
+    private fun fileNameOf(key: String): String =
+        DataStorePartition.of(key)?.fileName ?: KLAVIYO_PREFS_NAME
+
+    /**
+     * Move partition keys left in the shared file into their partition's file
+     *
+     * Moved keys are committed to the partition's file before being removed from the shared file,
+     * so an interrupted move is finished the next time. A key already present in the partition's
+     * file was written there since, so it is kept. Only writes to partition keys wait on the move,
+     * and it only has keys to commit the first time a process runs with a new partition.
+     */
+    internal fun movePartitionKeys() {
+        synchronized(moveLock) {
+            if (isPartitioned) return
+
+            val shared = openSharedPreferences()
+            var isMoved = true
+
+            shared.all.keys.groupBy { DataStorePartition.of(it) }.forEach { (partition, keys) ->
+                partition ?: return@forEach
+
+                val target = openSharedPreferences(partition.fileName)
+                val committed = target.edit().apply {
+                    keys.filterNot { target.contains(it) }.forEach { key ->
+                        shared.getString(key, null)?.let { putString(key, it) }
+                    }
+                }.commit()
+
+                if (committed) {
+                    shared.edit().apply { keys.forEach { remove(it) } }.apply()
+                    Registry.log.verbose("Moved ${keys.size} keys to ${partition.fileName}")
+                } else {
+                    isMoved = false
+                    Registry.log.warning("Failed to move keys to ${partition.fileName}")
+                }
+            }
+
+            isPartitioned = isMoved
+        }
+    }
+
+    /**
+     * Route a newly registered partition's keys to its own file: read them from the shared file
+     * too until they are moved, and move them now if [preload] has already moved the others
+     */
+    internal fun onPartitionRegistered() {
+        synchronized(moveLock) { isPartitioned = false }
+
+        if (isPreloaded) {
+            CoroutineScope(Registry.dispatcher).safeLaunch { movePartitionKeys() }
+        }
+    }
+
+    /**
+     * Read a key from its file, or from the shared file if it may not have been moved yet
+     *
+     * A partition key is only left in the shared file by an earlier SDK version:
+     * writes to it remove it from there until [movePartitionKeys] has run,
+     * so a value still in the shared file is never older than the partition's.
+     */
+    private fun read(key: String, fileName: String): String? {
+        if (!isPartitioned && fileName != KLAVIYO_PREFS_NAME) {
+            openSharedPreferences().getString(key, null)?.let { return it }
+        }
+
+        return openSharedPreferences(fileName).getString(key, null)
+    }
+
+    /**
+     * A change to a key: its new value, or null to remove it, and when it expires, if ever
+     */
+    private class Change(val value: String?, val expiresAt: Long? = null)
+
+    /**
+     * Changes of the edit in progress on the current thread, if any
+     */
+    private val pendingEdit = ThreadLocal<MutableMap<String, Change>>()
+
+    private val editor = object : DataStoreEditor {
+        override fun store(key: String, value: String) =
+            SharedPreferencesDataStore.store(key, value)
+
+        override fun store(key: String, value: String, ttl: Long) =
+            SharedPreferencesDataStore.store(key, value, ttl)
+
+        override fun clear(key: String) = SharedPreferencesDataStore.clear(key)
+    }
+
+    /**
+     * Collect all changes made in the block, on this thread, into one shared preferences edit
+     *
+     * The edit is applied async, with a single disk write, and then observers are notified
+     * once per changed key. Nested edits join the outermost edit.
+     */
+    override fun edit(block: DataStoreEditor.() -> Unit) {
+        if (pendingEdit.get() != null) {
+            return editor.block()
+        }
+
+        val changes = LinkedHashMap<String, Change>()
+        pendingEdit.set(changes)
+        try {
+            editor.block()
+        } finally {
+            pendingEdit.remove()
+        }
+
+        commit(changes)
     }
 
     /**
@@ -54,25 +243,44 @@ internal object SharedPreferencesDataStore : DataStore {
      * @param key The identifying key that the value being written will go by
      * @param value The value that we are writing to the shared preferences
      */
-    override fun store(key: String, value: String) {
-        openSharedPreferences()
-            .edit()
-            .putString(key, value)
-            .apply()
-            .also {
-                broadcastStoreChange(key, value)
-            }
-    }
+    override fun store(key: String, value: String) = write(key, Change(value))
 
     /**
-     * Opens the shared preferences and reads the value of a given key
+     * Opens the shared preferences and writes a given key/value pair, recording when it expires
+     *
+     * @param key The identifying key that the value being written will go by
+     * @param value The value that we are writing to the shared preferences
+     * @param ttl Milliseconds until the key expires
+     */
+    override fun store(key: String, value: String, ttl: Long) =
+        write(key, Change(value, Registry.clock.currentTimeMillis() + ttl))
+
+    /**
+     * Opens the shared preferences and reads the value of a given key,
+     * including any change to it in the current thread's edit, or null once it has expired
      *
      * @param key The identifying key of the value we want to read
      *
      * @return The value read from the shared preferences for the given key
      */
     override fun fetch(key: String): String? {
-        return openSharedPreferences().getString(key, null)
+        pendingEdit.get()?.takeIf { it.containsKey(key) }?.let { return it.getValue(key).value }
+        val fileName = fileNameOf(key)
+        if (isExpired(key, fileName)) clearExpired(listOf(key))
+        return read(key, fileName)
+    }
+
+    /**
+     * List the unexpired keys of the shared file and of every partition's file
+     *
+     * Expired keys are left for the background sweep to clear.
+     */
+    override fun keys(): Set<String> {
+        val expired = expiredKeys()
+        return fileNames
+            .flatMapTo(mutableSetOf()) { openSharedPreferences(it).all.keys }
+            .apply { remove(EXPIRY_INDEX_KEY) }
+            .apply { removeAll(expired) }
     }
 
     /**
@@ -80,13 +288,185 @@ internal object SharedPreferencesDataStore : DataStore {
      *
      * @param key The identifying key to remove from persistent store
      */
-    override fun clear(key: String) {
-        openSharedPreferences()
-            .edit()
-            .remove(key)
-            .apply()
-            .also {
-                broadcastStoreChange(key, null)
+    override fun clear(key: String) = write(key, Change(null))
+
+    /**
+     * Add a change to the current thread's edit, or commit it right away if there is none
+     */
+    private fun write(key: String, change: Change) {
+        val pending = pendingEdit.get()
+        if (pending != null) {
+            pending[key] = change
+        } else {
+            commit(mapOf(key to change))
+        }
+    }
+
+    /**
+     * Write changes to shared preferences, then notify observers
+     *
+     * @param changes Changes by key
+     */
+    private fun commit(changes: Map<String, Change>) {
+        if (changes.isEmpty()) return
+        locked(changes.keys) { apply(changes) }
+        changes.forEach { (key, change) -> broadcastStoreChange(key, change.value) }
+    }
+
+    /**
+     * Run [block] holding this store's monitor, to keep expiry indexes consistent,
+     * and first [moveLock] if any of the keys it writes may be moving to their partition's file
+     *
+     * Writes hold the monitor only while preparing their edits, which are applied async,
+     * so writes to keys that aren't moving never wait on disk.
+     */
+    private inline fun <T> locked(keys: Collection<String>, block: () -> T): T =
+        if (!isPartitioned && keys.any { DataStorePartition.of(it) != null }) {
+            synchronized(moveLock) { synchronized(this) { block() } }
+        } else {
+            synchronized(this) { block() }
+        }
+
+    /**
+     * Write changes to shared preferences in one edit per file touched,
+     * including the file's expiry index if any of its keys' expiry changed.
+     * Only called within [locked].
+     */
+    private fun apply(changes: Map<String, Change>) {
+        val editors = LinkedHashMap<String, SharedPreferences.Editor>()
+        val editorOf = { fileName: String ->
+            editors.getOrPut(fileName) { openSharedPreferences(fileName).edit() }
+        }
+        var hasExpiries = false
+
+        changes.entries.groupBy { (key, _) -> fileNameOf(key) }.forEach { (fileName, entries) ->
+            val editor = editorOf(fileName)
+
+            entries.forEach { (key, change) ->
+                change.value?.let { editor.putString(key, it) } ?: editor.remove(key)
+
+                // Don't leave an older value behind for read or movePartitionKeys to find
+                if (!isPartitioned && fileName != KLAVIYO_PREFS_NAME &&
+                    openSharedPreferences().contains(key)
+                ) {
+                    editorOf(KLAVIYO_PREFS_NAME).remove(key)
+                }
+            }
+
+            val preferences = openSharedPreferences(fileName)
+            val expiries = expiriesOf(preferences)
+            val updated = expiries.toMutableMap().apply {
+                entries.forEach { (key, change) ->
+                    if (change.expiresAt == null) remove(key) else put(key, change.expiresAt)
+                }
+            }
+
+            if (updated != expiries) {
+                val raw = JSONObject(updated).toString().takeIf { updated.isNotEmpty() }
+                editor.apply {
+                    if (raw == null) remove(EXPIRY_INDEX_KEY) else putString(EXPIRY_INDEX_KEY, raw)
+                }
+                expiryIndexes[preferences] = updated
+            }
+
+            hasExpiries = hasExpiries || updated.isNotEmpty()
+        }
+
+        editors.values.forEach { it.apply() }
+
+        if (hasExpiries) scheduleSweep()
+    }
+
+    /**
+     * Parsed expiry index of each file
+     *
+     * Only this store writes its files, so each index is parsed once, on first use,
+     * then kept up to date as keys are written, rather than read again on every fetch.
+     */
+    private val expiryIndexes = Collections.synchronizedMap(
+        WeakHashMap<SharedPreferences, Map<String, Long>>()
+    )
+
+    /**
+     * Expiry times by key, for every key of a file stored with a TTL
+     */
+    private fun expiriesOf(preferences: SharedPreferences): Map<String, Long> =
+        expiryIndexes.getOrPut(preferences) {
+            try {
+                preferences.getString(EXPIRY_INDEX_KEY, null)?.let { JSONObject(it) }?.let { json ->
+                    json.keys().asSequence().associateWith { key -> json.getLong(key) }
+                } ?: emptyMap()
+            } catch (e: JSONException) {
+                Registry.log.warning("Discarding invalid key expiry index", e)
+                emptyMap()
+            }
+        }
+
+    /**
+     * Expiry times by key, for every key stored with a TTL, in any file
+     */
+    private fun expiries(): Map<String, Long> =
+        fileNames.fold(emptyMap()) { all, fileName ->
+            all + expiriesOf(openSharedPreferences(fileName))
+        }
+
+    private fun isExpired(key: String, fileName: String): Boolean =
+        expiriesOf(openSharedPreferences(fileName))[key]
+            ?.let { it <= Registry.clock.currentTimeMillis() }
+            ?: false
+
+    /**
+     * Every key stored with a TTL that has expired, in any file
+     */
+    private fun expiredKeys(): Set<String> {
+        val now = Registry.clock.currentTimeMillis()
+        return expiries().filterValues { it <= now }.keys
+    }
+
+    /**
+     * Clear those of some keys that have expired, then notify observers
+     *
+     * @param keys Keys to clear if expired, e.g. the one key being read, or [expiredKeys]
+     */
+    private fun clearExpired(keys: Collection<String>) {
+        if (keys.isEmpty()) return
+
+        // A key may have been stored again, with a new TTL, since it was found expired
+        val expired = locked(keys) {
+            keys.filter { isExpired(it, fileNameOf(it)) }.also { expired ->
+                if (expired.isNotEmpty()) apply(expired.associateWith { Change(null) })
             }
+        }
+
+        if (expired.isEmpty()) return
+        Registry.log.verbose("Cleared ${expired.size} expired keys")
+        expired.forEach { broadcastStoreChange(it, null) }
+    }
+
+    /**
+     * The next scheduled [sweepExpired], if any
+     */
+    private var sweep: Clock.Cancellable? = null
+
+    @Synchronized
+    private fun scheduleSweep() {
+        if (sweep == null) {
+            sweep = Registry.clock.schedule(EXPIRY_SWEEP_INTERVAL) { sweepExpired() }
+        }
+    }
+
+    /**
+     * Clear expired keys now, and again every [EXPIRY_SWEEP_INTERVAL] while any key has a TTL,
+     * so keys that are never read again don't linger on disk
+     */
+    internal fun sweepExpired() {
+        synchronized(this) {
+            sweep?.cancel()
+            sweep = null
+        }
+
+        clearExpired(expiredKeys())
+
+        if (expiries().isNotEmpty()) scheduleSweep()
     }
 }
@@ -1,5 +1,6 @@
-package com.klaviyo.analytics.networking.requests
+package com.klaviyo.core.networking
 
+import androidx.annotation.RestrictTo
 import java.io.IOException
 import java.net.HttpURLConnection
 import java.net.URL
@@ -8,9 +9,12 @@ import javax.net.ssl.HttpsURLConnection
 /**
  * Utility for opening [URL] connection as HttpURLConnection
  * This method makes it easier to decouple the particulars of HttpUrlConnection
- * from ApiRequest implementation
+ * from ApiRequest implementation, and any other requests the SDK makes
+ *
+ * Shared by the SDK's modules, and not part of its public API.
  */
-internal object HttpUtil {
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+object HttpUtil {
     /**
      * @param url
      * @return
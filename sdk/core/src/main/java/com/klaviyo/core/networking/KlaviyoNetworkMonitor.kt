@@ -6,16 +6,50 @@ import android.net.Network
 import android.net.NetworkCapabilities
 import android.net.NetworkRequest
 import com.klaviyo.core.Registry
+import com.klaviyo.core.config.Clock
+import com.klaviyo.core.networking.NetworkMonitor.NetworkState
+import com.klaviyo.core.networking.NetworkMonitor.NetworkType
+import com.klaviyo.core.safeLaunch
+import java.io.IOException
+import java.net.URL
 import java.util.concurrent.CopyOnWriteArrayList
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
 
 /**
  * Service for monitoring the application lifecycle and network connectivity
  *
  * Maintains a list of subscribed observers and notified them all
- * whenever any internet connectivity change is detected
+ * whenever any internet connectivity change is detected.
+ *
+ * System callbacks are noisy, especially during a Wi-Fi/cell handover, so they are
+ * treated only as a hint to re-evaluate the [NetworkState] once it has settled.
+ * Observers are notified only when that settled state differs from the last one broadcast.
  */
 internal object KlaviyoNetworkMonitor : NetworkMonitor {
 
+    /**
+     * How long network state must remain quiet before it is evaluated and broadcast
+     *
+     * Reasoning: A handover typically fires several callbacks within a few hundred milliseconds
+     */
+    internal const val NETWORK_DEBOUNCE_INTERVAL = 500L
+
+    /**
+     * Connect and read timeout for the reachability probe
+     *
+     * Reasoning: The probe is a tiny HEAD request, if it can't complete in this time, neither will real requests
+     */
+    internal const val REACHABILITY_TIMEOUT = 5_000
+
+    /**
+     * How long to wait before re-probing a network that failed the reachability probe
+     *
+     * Reasoning: Long enough to not keep the radio awake, short enough to recover soon after a captive portal sign-in
+     */
+    internal const val REACHABILITY_RETRY_INTERVAL = 30_000L
+
     private lateinit var networkRequest: NetworkRequest
 
     private val connectivityManager: ConnectivityManager
@@ -26,21 +60,55 @@ internal object KlaviyoNetworkMonitor : NetworkMonitor {
      */
     private val networkChangeObservers = CopyOnWriteArrayList<NetworkObserver>()
 
+    /**
+     * List of registered network state observers
+     */
+    private val networkStateObservers = CopyOnWriteArrayList<NetworkStateObserver>()
+
+    /**
+     * Last settled state that was broadcast to observers
+     */
+    @Volatile
+    private var lastNetworkState: NetworkState = NetworkState.OFFLINE
+
+    /**
+     * Pending debounced evaluation of network state
+     */
+    private var pendingEvaluation: Clock.Cancellable? = null
+
+    /**
+     * Result of the last reachability probe on the current network
+     * Reset whenever the network itself changes
+     */
+    @Volatile
+    private var isReachable: Boolean = true
+
+    /**
+     * Pending re-probe of a network that failed the reachability probe,
+     * run on [Registry.dispatcher] because the probe blocks on network I/O
+     */
+    private var pendingProbe: Job? = null
+
     /**
      * Callback object to register with system
      */
     private val networkCallback = object : ConnectivityManager.NetworkCallback() {
 
-        override fun onAvailable(network: Network) = broadcastNetworkChange()
+        override fun onAvailable(network: Network) = scheduleEvaluation()
 
-        override fun onLost(network: Network) = broadcastNetworkChange()
+        override fun onLost(network: Network) = scheduleEvaluation()
 
-        override fun onUnavailable() = broadcastNetworkChange()
+        override fun onUnavailable() = scheduleEvaluation()
+
+        override fun onCapabilitiesChanged(
+            network: Network,
+            networkCapabilities: NetworkCapabilities
+        ) = scheduleEvaluation()
 
         override fun onLinkPropertiesChanged(
             network: Network,
             linkProperties: LinkProperties
-        ) = broadcastNetworkChange()
+        ) = scheduleEvaluation()
     }
 
     /**
@@ -63,14 +131,134 @@ internal object KlaviyoNetworkMonitor : NetworkMonitor {
     }
 
     /**
-     * Invoke all registered observers with current state of network connectivity
+     * Register an observer to be notified of stable network state transitions
+     *
+     * @param observer
      */
-    private fun broadcastNetworkChange() {
-        val isConnected = isNetworkConnected()
+    override fun onNetworkStateChange(observer: NetworkStateObserver) {
+        initializeNetworkListener()
+        networkStateObservers += observer
+    }
 
-        Registry.log.verbose("Network ${if (isConnected) "available" else "unavailable"}")
+    /**
+     * De-register an observer previously added via [onNetworkStateChange]
+     *
+     * @param observer
+     */
+    override fun offNetworkStateChange(observer: NetworkStateObserver) {
+        networkStateObservers -= observer
+    }
 
-        networkChangeObservers.forEach { it(isConnected) }
+    /**
+     * Restart the debounce timer, coalescing a burst of system callbacks into one evaluation
+     */
+    private fun scheduleEvaluation() = synchronized(this) {
+        pendingEvaluation?.cancel()
+        pendingEvaluation = Registry.clock.schedule(NETWORK_DEBOUNCE_INTERVAL) {
+            evaluateNetworkState()
+        }
+    }
+
+    /**
+     * Compare settled network state to the last broadcast state,
+     * and notify observers only if the effective state has changed
+     */
+    private fun evaluateNetworkState() {
+        val current = synchronized(this) {
+            pendingEvaluation = null
+            val observed = readNetworkState()
+
+            if (observed != lastNetworkState.copy(isReachable = true)) {
+                // The network itself changed, so a previously failed probe no longer applies
+                resetReachability()
+            }
+
+            observed.copy(isReachable = isReachable)
+        }
+
+        publish(current)
+    }
+
+    /**
+     * Broadcast the given state to observers if it differs from the last broadcast state
+     */
+    private fun publish(current: NetworkState) {
+        val previous = synchronized(this) {
+            lastNetworkState.also { previous ->
+                if (previous == current) {
+                    Registry.log.verbose("Network state unchanged")
+                    return
+                }
+                lastNetworkState = current
+            }
+        }
+
+        Registry.log.verbose("Network ${if (current.isOnline) "available" else "unavailable"}: $current")
+
+        networkStateObservers.forEach { it(previous, current) }
+
+        if (previous.isOnline != current.isOnline) {
+            networkChangeObservers.forEach { it(current.isOnline) }
+        }
+    }
+
+    /**
+     * Blocking HEAD request against our API host to detect networks that
+     * the system considers validated, but cannot actually reach us (e.g. captive portals)
+     *
+     * Any HTTP response counts as reachable, only I/O failures count against the network.
+     * While unreachable, the network is re-probed every [REACHABILITY_RETRY_INTERVAL] ms.
+     *
+     * @return Whether the probe reached the API host
+     */
+    override fun probeReachability(): Boolean {
+        val observed = readNetworkState()
+        if (!observed.isConnected || !observed.isValidated) return false
+
+        val reachable = try {
+            val connection = HttpUtil.openConnection(URL(Registry.config.baseUrl))
+            try {
+                connection.requestMethod = "HEAD"
+                connection.instanceFollowRedirects = false
+                connection.useCaches = false
+                connection.connectTimeout = REACHABILITY_TIMEOUT
+                connection.readTimeout = REACHABILITY_TIMEOUT
+                connection.responseCode
+                true
+            } finally {
+                connection.disconnect()
+            }
+        } catch (e: IOException) {
+            Registry.log.verbose("Reachability probe failed: ${e.javaClass.simpleName}")
+            false
+        }
+
+        val current = synchronized(this) {
+            resetReachability()
+            isReachable = reachable
+
+            if (!reachable) {
+                pendingProbe = CoroutineScope(Registry.dispatcher).safeLaunch {
+                    delay(REACHABILITY_RETRY_INTERVAL)
+                    probeReachability()
+                }
+            }
+
+            observed.copy(isReachable = reachable)
+        }
+
+        publish(current)
+
+        return reachable
+    }
+
+    /**
+     * Forget the last probe result and cancel any pending re-probe
+     */
+    private fun resetReachability() {
+        pendingProbe?.cancel()
+        pendingProbe = null
+        isReachable = true
     }
 
     /**
@@ -78,28 +266,49 @@ internal object KlaviyoNetworkMonitor : NetworkMonitor {
      *
      * @return
      */
-    override fun isNetworkConnected(): Boolean = connectivityManager
-        .getNetworkCapabilities(connectivityManager.activeNetwork)
-        ?.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) ?: false
+    override fun isNetworkConnected(): Boolean = getNetworkState().isOnline
 
     /**
      * Check what type of network connection is currently servicing the device
      *
      * @return The current network type
      */
-    override fun getNetworkType(): NetworkMonitor.NetworkType {
+    override fun getNetworkType(): NetworkType = connectivityManager
+        .getNetworkCapabilities(connectivityManager.activeNetwork)
+        .toNetworkType()
+
+    /**
+     * Instant snapshot of the effective network state
+     *
+     * @return [NetworkState]
+     */
+    override fun getNetworkState(): NetworkState = readNetworkState().copy(isReachable = isReachable)
+
+    /**
+     * Read network state from the system, without regard to reachability probes
+     */
+    private fun readNetworkState(): NetworkState {
         val net = connectivityManager.getNetworkCapabilities(connectivityManager.activeNetwork)
+            ?: return NetworkState.OFFLINE
 
-        return if (net?.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) == true) {
-            NetworkMonitor.NetworkType.Wifi
-        } else if (net?.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR) == true ||
-            net?.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) == true
+        return NetworkState(
+            isConnected = net.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET),
+            isValidated = net.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED),
+            type = net.toNetworkType(),
+            isMetered = !net.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+        )
+    }
+
+    private fun NetworkCapabilities?.toNetworkType(): NetworkType =
+        if (this?.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) == true) {
+            NetworkType.Wifi
+        } else if (this?.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR) == true ||
+            this?.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) == true
         ) {
-            NetworkMonitor.NetworkType.Cell
+            NetworkType.Cell
         } else {
-            NetworkMonitor.NetworkType.Offline
+            NetworkType.Offline
         }
-    }
 
     /**
      * One-time setup to observe network changes with connectivityManager
@@ -113,6 +322,7 @@ internal object KlaviyoNetworkMonitor : NetworkMonitor {
             .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
             .build()
         try {
+            lastNetworkState = getNetworkState()
             connectivityManager.requestNetwork(networkRequest, networkCallback)
         } catch (e: SecurityException) {
             Registry.log.warning(
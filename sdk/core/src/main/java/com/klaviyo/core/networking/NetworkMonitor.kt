@@ -2,6 +2,11 @@ package com.klaviyo.core.networking
 
 typealias NetworkObserver = (isConnected: Boolean) -> Unit
 
+typealias NetworkStateObserver = (
+    previous: NetworkMonitor.NetworkState,
+    current: NetworkMonitor.NetworkState
+) -> Unit
+
 /**
  * Provides methods to react to changes in the application environment
  */
@@ -9,6 +14,7 @@ interface NetworkMonitor {
 
     /**
      * Register an observer to be notified when network connectivity has changed
+     * Observers are only invoked once connectivity has settled, and only when it actually flips.
      *
      * @param observer
      */
@@ -21,6 +27,25 @@ interface NetworkMonitor {
      */
     fun offNetworkChange(observer: NetworkObserver)
 
+    /**
+     * Register an observer to be notified of stable transitions in [NetworkState]
+     * Observers are only invoked once the state has settled, and only when
+     * any of its properties have actually changed.
+     *
+     * The default implementation never notifies, for monitors that only report connectivity
+     * via [onNetworkChange].
+     *
+     * @param observer
+     */
+    fun onNetworkStateChange(observer: NetworkStateObserver) = Unit
+
+    /**
+     * De-register an observer from [onNetworkStateChange]
+     *
+     * @param observer
+     */
+    fun offNetworkStateChange(observer: NetworkStateObserver) = Unit
+
     /**
      * Instant check of network connectivity
      *
@@ -28,6 +53,18 @@ interface NetworkMonitor {
      */
     fun isNetworkConnected(): Boolean
 
+    /**
+     * Blocking check that our API is actually reachable on the current network,
+     * e.g. to detect a captive portal or broken Wi-Fi that the system still reports as validated.
+     * A failed probe marks the network offline until it changes or a later probe succeeds.
+     * Must not be called from the main thread.
+     *
+     * The default implementation doesn't probe, and reports [isNetworkConnected].
+     *
+     * @return Whether the probe reached the API host
+     */
+    fun probeReachability(): Boolean = isNetworkConnected()
+
     /**
      * Check what type of network connection is currently servicing the device
      *
@@ -35,6 +72,25 @@ interface NetworkMonitor {
      */
     fun getNetworkType(): NetworkType
 
+    /**
+     * Instant snapshot of the effective network state
+     *
+     * The default implementation derives the state from [isNetworkConnected] and [getNetworkType],
+     * treating a connected network as validated and unmetered.
+     *
+     * @return [NetworkState]
+     */
+    fun getNetworkState(): NetworkState = if (isNetworkConnected()) {
+        NetworkState(
+            isConnected = true,
+            isValidated = true,
+            type = getNetworkType(),
+            isMetered = false
+        )
+    } else {
+        NetworkState.OFFLINE
+    }
+
     /**
      * Enum class representing the different network connection types that may affect how our
      * SDK operates.
@@ -44,4 +100,35 @@ interface NetworkMonitor {
         Cell(1),
         Offline(2)
     }
+
+    /**
+     * Effective state of the active network, for the purposes of our SDK
+     *
+     * @property isConnected Whether there is an active network that offers internet
+     * @property isValidated Whether the system has validated that the network reaches the internet
+     * @property type The transport servicing the active network
+     * @property isMetered Whether traffic on the active network may be billed to the user
+     * @property isReachable False if a reachability probe has failed on this network
+     */
+    data class NetworkState(
+        val isConnected: Boolean,
+        val isValidated: Boolean,
+        val type: NetworkType,
+        val isMetered: Boolean,
+        val isReachable: Boolean = true
+    ) {
+        /**
+         * Whether requests can be expected to succeed on this network
+         */
+        val isOnline: Boolean get() = isConnected && isValidated && isReachable
+
+        companion object {
+            val OFFLINE = NetworkState(
+                isConnected = false,
+                isValidated = false,
+                type = NetworkType.Offline,
+                isMetered = false
+            )
+        }
+    }
 }
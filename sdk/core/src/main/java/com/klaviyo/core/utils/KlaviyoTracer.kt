@@ -0,0 +1,19 @@
+package com.klaviyo.core.utils
+
+import android.os.Trace
+
+/**
+ * Emits trace sections via [android.os.Trace]
+ * @see com.klaviyo.core.Registry.tracer
+ */
+internal object KlaviyoTracer : Tracer {
+
+    /**
+     * Section names are truncated by the system beyond this length
+     */
+    private const val MAX_NAME_LENGTH = 127
+
+    override fun beginSection(name: String) = Trace.beginSection(name.take(MAX_NAME_LENGTH))
+
+    override fun endSection() = Trace.endSection()
+}
@@ -11,4 +11,11 @@ interface ThreadHelper {
     fun getHandler(looper: Looper): Handler
     fun getHandlerThread(name: String?): HandlerThread
     fun runOnUiThread(job: () -> Unit)
+
+    /**
+     * Whether the calling thread is the main thread
+     *
+     * The default implementation compares the calling thread's looper to the main looper.
+     */
+    fun isMainThread(): Boolean = Looper.getMainLooper() == Looper.myLooper()
 }
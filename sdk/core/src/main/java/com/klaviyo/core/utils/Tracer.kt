@@ -0,0 +1,31 @@
+package com.klaviyo.core.utils
+
+/**
+ * Abstraction of system trace markers for isolation purposes
+ *
+ * Sections show up in Perfetto / systrace captures of the host app,
+ * e.g. to see how much of app startup is spent in the SDK, and on which thread.
+ */
+interface Tracer {
+    /**
+     * Begin a named section on the current thread, must be ended on the same thread
+     */
+    fun beginSection(name: String)
+
+    /**
+     * End the most recent section begun on the current thread
+     */
+    fun endSection()
+}
+
+/**
+ * Run [block] within a trace section named [name]
+ */
+inline fun <T> Tracer.trace(name: String, block: () -> T): T {
+    beginSection(name)
+    try {
+        return block()
+    } finally {
+        endSection()
+    }
+}
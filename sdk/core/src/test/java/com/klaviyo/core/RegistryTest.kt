@@ -1,7 +1,12 @@
 package com.klaviyo.core
 
+import com.klaviyo.core.config.Config
 import com.klaviyo.core.config.Log
+import com.klaviyo.core.model.SharedPreferencesDataStore
+import com.klaviyo.fixtures.InMemoryDataStore
 import com.klaviyo.fixtures.LogFixture
+import io.mockk.every
+import io.mockk.mockk
 import io.mockk.spyk
 import org.junit.After
 import org.junit.Assert.assertEquals
@@ -29,6 +34,7 @@ class RegistryTest {
         Registry.unregister<TestLazyOnceDependency>()
         Registry.unregister<TestWrongDependency>()
         Registry.unregister<TestMissingDependency>()
+        Registry.unregister<Config>()
     }
 
     @Test
@@ -127,4 +133,16 @@ class RegistryTest {
         val result = Registry.getOrNull<TestDependency>()
         assertEquals(dep, result)
     }
+
+    @Test
+    fun `Data store is provided by config if set, else shared preferences`() {
+        val hostStore = InMemoryDataStore()
+        val config = mockk<Config> { every { dataStore } returns null }
+
+        Registry.register<Config>(config)
+        assertEquals(SharedPreferencesDataStore, Registry.dataStore)
+
+        every { config.dataStore } returns hostStore
+        assertEquals(hostStore, Registry.dataStore)
+    }
 }
@@ -9,11 +9,14 @@ import com.klaviyo.core.R
 import com.klaviyo.core.Registry
 import com.klaviyo.core.networking.NetworkMonitor
 import com.klaviyo.fixtures.BaseTest
+import com.klaviyo.fixtures.InMemoryDataStore
 import io.mockk.every
 import io.mockk.mockk
 import io.mockk.mockkStatic
 import io.mockk.verify
+import org.json.JSONObject
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
 import org.junit.Assert.assertThrows
 import org.junit.Before
 import org.junit.Test
@@ -73,6 +76,12 @@ internal class KlaviyoConfigTest : BaseTest() {
             .networkFlushDepth(4)
             .networkMaxAttempts(5)
             .networkMaxRetryInterval(7)
+            .networkSlowStartBatchSize(8)
+            .networkSlowStartMaxBatchSize(9)
+            .networkSlowStartInterval(10)
+            .queueDurability(QueueDurability.STRICT)
+            .queueCommitInterval(11)
+            .queueCommitDepth(12)
             .baseCdnUrl("spider-water.com")
             .assetSource("1738")
             .build()
@@ -98,6 +107,12 @@ internal class KlaviyoConfigTest : BaseTest() {
         assertEquals(4, KlaviyoConfig.networkFlushDepth)
         assertEquals(5, KlaviyoConfig.networkMaxAttempts)
         assertEquals(7, KlaviyoConfig.networkMaxRetryInterval)
+        assertEquals(8, KlaviyoConfig.networkSlowStartBatchSize)
+        assertEquals(9, KlaviyoConfig.networkSlowStartMaxBatchSize)
+        assertEquals(10, KlaviyoConfig.networkSlowStartInterval)
+        assertEquals(QueueDurability.STRICT, KlaviyoConfig.queueDurability)
+        assertEquals(11, KlaviyoConfig.queueCommitInterval)
+        assertEquals(12, KlaviyoConfig.queueCommitDepth)
         assertEquals("android", KlaviyoConfig.sdkName)
         assertEquals("9.9.9", KlaviyoConfig.sdkVersion)
         assertEquals("spider-water.com", KlaviyoConfig.baseCdnUrl)
@@ -130,6 +145,12 @@ internal class KlaviyoConfigTest : BaseTest() {
         assertEquals(25, KlaviyoConfig.networkFlushDepth)
         assertEquals(50, KlaviyoConfig.networkMaxAttempts)
         assertEquals(180_000L, KlaviyoConfig.networkMaxRetryInterval)
+        assertEquals(5, KlaviyoConfig.networkSlowStartBatchSize)
+        assertEquals(100, KlaviyoConfig.networkSlowStartMaxBatchSize)
+        assertEquals(1_000L, KlaviyoConfig.networkSlowStartInterval)
+        assertEquals(QueueDurability.GROUP_COMMIT, KlaviyoConfig.queueDurability)
+        assertEquals(1_000L, KlaviyoConfig.queueCommitInterval)
+        assertEquals(25, KlaviyoConfig.queueCommitDepth)
         assertEquals("android", KlaviyoConfig.sdkName)
         assertEquals("9.9.9", KlaviyoConfig.sdkVersion)
     }
@@ -148,6 +169,11 @@ internal class KlaviyoConfigTest : BaseTest() {
             .networkFlushDepth(-10)
             .networkMaxAttempts(-10)
             .networkMaxRetryInterval(-1)
+            .networkSlowStartBatchSize(-1)
+            .networkSlowStartMaxBatchSize(0)
+            .networkSlowStartInterval(-1)
+            .queueCommitInterval(-1)
+            .queueCommitDepth(0)
             .build()
 
         assertEquals(100, KlaviyoConfig.debounceInterval)
@@ -168,10 +194,80 @@ internal class KlaviyoConfigTest : BaseTest() {
         assertEquals(25, KlaviyoConfig.networkFlushDepth)
         assertEquals(50, KlaviyoConfig.networkMaxAttempts)
         assertEquals(180_000, KlaviyoConfig.networkMaxRetryInterval)
+        assertEquals(5, KlaviyoConfig.networkSlowStartBatchSize)
+        assertEquals(100, KlaviyoConfig.networkSlowStartMaxBatchSize)
+        assertEquals(1_000, KlaviyoConfig.networkSlowStartInterval)
+        assertEquals(1_000, KlaviyoConfig.queueCommitInterval)
+        assertEquals(25, KlaviyoConfig.queueCommitDepth)
         assertEquals("android", KlaviyoConfig.sdkName)
         assertEquals("9.9.9", KlaviyoConfig.sdkVersion)
         // Each bad call should have generated an error log
-        verify(exactly = 9) { spyLog.error(any(), null) }
+        verify(exactly = 14) { spyLog.error(any(), null) }
+    }
+
+    @Test
+    fun `Host data store is kept when config is rebuilt without it`() {
+        val hostStore = InMemoryDataStore()
+
+        KlaviyoConfig.Builder()
+            .applicationContext(mockContext)
+            .dataStore(hostStore)
+            .build()
+        assertSame(hostStore, KlaviyoConfig.dataStore)
+
+        KlaviyoConfig.Builder()
+            .apiKey(API_KEY)
+            .applicationContext(mockContext)
+            .build()
+        assertSame(hostStore, KlaviyoConfig.dataStore)
+    }
+
+    @Test
+    fun `Remote tuning is applied to live config within safe bounds`() {
+        KlaviyoConfig.Builder()
+            .apiKey(API_KEY)
+            .applicationContext(mockContext)
+            .build()
+
+        KlaviyoConfig.applyTuning(
+            JSONObject()
+                .put("network_flush_depth", 10)
+                .put("network_flush_interval_cell", 45_000)
+                .put("network_max_attempts", 10_000)
+                .put("network_timeout", 1)
+                .put("debounce_interval", "not a number")
+                .put("some_future_key", 1)
+        )
+
+        assertEquals(10, KlaviyoConfig.networkFlushDepth)
+        assertEquals(
+            45_000L,
+            KlaviyoConfig.networkFlushIntervals[NetworkMonitor.NetworkType.Cell.position]
+        )
+        assertEquals(
+            10_000L,
+            KlaviyoConfig.networkFlushIntervals[NetworkMonitor.NetworkType.Wifi.position]
+        )
+        assertEquals(100, KlaviyoConfig.networkMaxAttempts)
+        assertEquals(1_000, KlaviyoConfig.networkTimeout)
+        assertEquals(100, KlaviyoConfig.debounceInterval)
+        verify(exactly = 2) { spyLog.warning(any(), null) }
+
+        // Tuning survives re-initialization, until it is cleared
+        KlaviyoConfig.Builder()
+            .apiKey(API_KEY)
+            .applicationContext(mockContext)
+            .networkFlushDepth(20)
+            .build()
+        assertEquals(10, KlaviyoConfig.networkFlushDepth)
+
+        KlaviyoConfig.applyTuning(null)
+        KlaviyoConfig.Builder()
+            .apiKey(API_KEY)
+            .applicationContext(mockContext)
+            .networkFlushDepth(20)
+            .build()
+        assertEquals(20, KlaviyoConfig.networkFlushDepth)
     }
 
     @Test
@@ -0,0 +1,254 @@
+package com.klaviyo.core.config
+
+import com.klaviyo.core.Registry
+import com.klaviyo.fixtures.BaseTest
+import com.sun.net.httpserver.HttpServer
+import io.mockk.every
+import io.mockk.just
+import io.mockk.mockkObject
+import io.mockk.runs
+import io.mockk.slot
+import io.mockk.unmockkObject
+import io.mockk.verify
+import io.mockk.verifyOrder
+import java.net.InetSocketAddress
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.security.Signature
+import java.util.Base64
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+internal class KlaviyoRemoteTuningTest : BaseTest() {
+
+    private companion object {
+        val keyPair: KeyPair = KeyPairGenerator.getInstance("EC").apply { initialize(256) }.generateKeyPair()
+        val otherKeyPair: KeyPair = KeyPairGenerator.getInstance("EC").apply { initialize(256) }.generateKeyPair()
+    }
+
+    private lateinit var server: HttpServer
+    private var responseCode = 200
+    private var responseBody = ""
+    private var isChunked = false
+    private var requestCount = 0
+
+    private val appliedTuning = slot<JSONObject>()
+
+    private fun signedDocument(
+        tuning: JSONObject,
+        ttl: Long = 3_600,
+        signer: KeyPair = keyPair
+    ): String {
+        val payload = JSONObject().put("ttl", ttl).put("tuning", tuning).toString()
+        val signature = Signature.getInstance("SHA256withECDSA").run {
+            initSign(signer.private)
+            update(payload.toByteArray(Charsets.UTF_8))
+            sign()
+        }
+
+        return JSONObject()
+            .put("payload", payload)
+            .put("signature", Base64.getEncoder().encodeToString(signature))
+            .toString()
+    }
+
+    @Before
+    override fun setup() {
+        super.setup()
+
+        server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0).apply {
+            createContext("/${KlaviyoRemoteTuning.TUNING_PATH}") { exchange ->
+                requestCount++
+                val bytes = responseBody.toByteArray()
+                val length = when {
+                    bytes.isEmpty() -> -1L
+                    isChunked -> 0L
+                    else -> bytes.size.toLong()
+                }
+                exchange.sendResponseHeaders(responseCode, length)
+                exchange.responseBody.use { it.write(bytes) }
+            }
+            start()
+        }
+
+        every { mockConfig.baseCdnUrl } returns "http://127.0.0.1:${server.address.port}"
+        every { mockNetworkMonitor.isNetworkConnected() } returns true
+
+        KlaviyoRemoteTuning.verifier = EcdsaTuningVerifier(
+            Base64.getEncoder().encodeToString(keyPair.public.encoded)
+        )
+
+        mockkObject(KlaviyoConfig)
+        every { KlaviyoConfig.applyTuning(capture(appliedTuning)) } just runs
+    }
+
+    @After
+    override fun cleanup() {
+        server.stop(0)
+        KlaviyoRemoteTuning.verifier = null
+        unmockkObject(KlaviyoConfig)
+        super.cleanup()
+    }
+
+    @Test
+    fun `Is registered service`() {
+        unmockkObject(Registry)
+        assertEquals(KlaviyoRemoteTuning, Registry.remoteTuning)
+    }
+
+    @Test
+    fun `Fetches, caches and applies a validly signed document`() {
+        responseBody = signedDocument(JSONObject().put("network_flush_depth", 10))
+
+        assertTrue(KlaviyoRemoteTuning.fetch())
+
+        assertEquals(10, appliedTuning.captured.getInt("network_flush_depth"))
+        assertNotNull(spyDataStore.fetch(KlaviyoRemoteTuning.CACHE_KEY))
+        assertEquals(10, KlaviyoRemoteTuning.loadCache()?.tuning?.getInt("network_flush_depth"))
+    }
+
+    @Test
+    fun `Rejects a document signed with the wrong key`() {
+        responseBody = signedDocument(JSONObject().put("network_flush_depth", 1), signer = otherKeyPair)
+
+        assertFalse(KlaviyoRemoteTuning.fetch())
+
+        verify(exactly = 0) { KlaviyoConfig.applyTuning(any()) }
+        assertNull(spyDataStore.fetch(KlaviyoRemoteTuning.CACHE_KEY))
+    }
+
+    @Test
+    fun `Rejects a tampered document`() {
+        val document = JSONObject(signedDocument(JSONObject().put("network_flush_depth", 10)))
+        document.put(
+            "payload",
+            document.getString("payload").replace("10", "1")
+        )
+        responseBody = document.toString()
+
+        assertFalse(KlaviyoRemoteTuning.fetch())
+        verify(exactly = 0) { KlaviyoConfig.applyTuning(any()) }
+    }
+
+    @Test
+    fun `Rejects a malformed document`() {
+        responseBody = "<html>captive portal</html>"
+
+        assertFalse(KlaviyoRemoteTuning.fetch())
+        verify(exactly = 0) { KlaviyoConfig.applyTuning(any()) }
+    }
+
+    @Test
+    fun `Rejects an oversized document`() {
+        responseBody = signedDocument(JSONObject().put("padding", "x".repeat(20_000)))
+
+        assertFalse(KlaviyoRemoteTuning.fetch())
+        verify(exactly = 0) { KlaviyoConfig.applyTuning(any()) }
+    }
+
+    @Test
+    fun `Rejects an oversized document that does not declare its length`() {
+        isChunked = true
+        responseBody = signedDocument(JSONObject().put("padding", "x".repeat(20_000)))
+
+        assertFalse(KlaviyoRemoteTuning.fetch())
+        verify(exactly = 0) { KlaviyoConfig.applyTuning(any()) }
+
+        // While a small chunked document is read as usual
+        responseBody = signedDocument(JSONObject().put("network_flush_depth", 10))
+        assertTrue(KlaviyoRemoteTuning.fetch())
+        assertEquals(10, appliedTuning.captured.getInt("network_flush_depth"))
+    }
+
+    @Test
+    fun `Missing document leaves config untouched`() {
+        responseCode = 404
+
+        assertFalse(KlaviyoRemoteTuning.fetch())
+        verify(exactly = 0) { KlaviyoConfig.applyTuning(any()) }
+    }
+
+    @Test
+    fun `Does not fetch while offline`() {
+        every { mockNetworkMonitor.isNetworkConnected() } returns false
+
+        assertFalse(KlaviyoRemoteTuning.fetch())
+        assertEquals(0, requestCount)
+    }
+
+    @Test
+    fun `Refresh applies fresh cache without fetching`() {
+        responseBody = signedDocument(JSONObject().put("network_max_attempts", 7))
+        KlaviyoRemoteTuning.fetch()
+        requestCount = 0
+
+        KlaviyoRemoteTuning.refresh()
+        dispatcher.scheduler.advanceUntilIdle()
+
+        assertEquals(7, appliedTuning.captured.getInt("network_max_attempts"))
+        assertEquals(0, requestCount)
+    }
+
+    @Test
+    fun `Refresh applies expired cache then re-fetches in background`() {
+        responseBody = signedDocument(JSONObject().put("network_max_attempts", 7), ttl = 300)
+        KlaviyoRemoteTuning.fetch()
+        requestCount = 0
+
+        staticClock.time += 300_000
+        responseBody = signedDocument(JSONObject().put("network_max_attempts", 8))
+
+        KlaviyoRemoteTuning.refresh()
+        dispatcher.scheduler.advanceUntilIdle()
+
+        assertEquals(1, requestCount)
+        verifyOrder {
+            KlaviyoConfig.applyTuning(match { it.getInt("network_max_attempts") == 7 })
+            KlaviyoConfig.applyTuning(match { it.getInt("network_max_attempts") == 8 })
+        }
+    }
+
+    @Test
+    fun `Refresh reads the cache off the calling thread`() {
+        responseBody = signedDocument(JSONObject().put("network_max_attempts", 7))
+        KlaviyoRemoteTuning.fetch()
+        requestCount = 0
+
+        KlaviyoRemoteTuning.refresh()
+        verify(exactly = 0) { spyDataStore.fetch(KlaviyoRemoteTuning.CACHE_KEY) }
+
+        dispatcher.scheduler.advanceUntilIdle()
+        verify(exactly = 1) { spyDataStore.fetch(KlaviyoRemoteTuning.CACHE_KEY) }
+    }
+
+    @Test
+    fun `Tampered cache is discarded`() {
+        spyDataStore.store(
+            KlaviyoRemoteTuning.CACHE_KEY,
+            JSONObject()
+                .put("fetched_at", staticClock.time)
+                .put("document", signedDocument(JSONObject(), signer = otherKeyPair))
+                .toString()
+        )
+
+        assertNull(KlaviyoRemoteTuning.loadCache())
+    }
+
+    @Test
+    fun `Remote tuning is disabled without a verifier`() {
+        KlaviyoRemoteTuning.verifier = null
+
+        KlaviyoRemoteTuning.refresh()
+        dispatcher.scheduler.advanceUntilIdle()
+
+        assertEquals(0, requestCount)
+        verify(exactly = 0) { KlaviyoConfig.applyTuning(any()) }
+    }
+}
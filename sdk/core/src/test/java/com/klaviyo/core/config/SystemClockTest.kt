@@ -1,9 +1,12 @@
 package com.klaviyo.core.config
 
 import java.text.SimpleDateFormat
+import java.util.Collections
 import java.util.Date
 import java.util.Locale
 import java.util.TimeZone
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import junit.framework.TestCase.assertEquals
 import org.junit.After
 import org.junit.Assert
@@ -61,6 +64,40 @@ class SystemClockTest {
         Assert.assertEquals(1, counter)
     }
 
+    @Test
+    fun `Clock times all tasks on one shared thread and runs them off it`() {
+        val threads = Collections.synchronizedSet(mutableSetOf<Thread>())
+        val done = CountDownLatch(1)
+
+        // Rapid profile updates each cancel the pending debounce and schedule another
+        var debounce: Clock.Cancellable? = null
+        repeat(1_000) {
+            debounce?.cancel()
+            debounce = SystemClock.schedule(1L) { threads += Thread.currentThread() }
+        }
+        repeat(20) { SystemClock.schedule(1L) { threads += Thread.currentThread() } }
+        SystemClock.schedule(10L) { done.countDown() }
+
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS))
+        Assert.assertTrue(threads.none { it.name == SystemClock.SCHEDULER_THREAD_NAME })
+        Assert.assertEquals(
+            1,
+            Thread.getAllStackTraces().keys.count { it.name == SystemClock.SCHEDULER_THREAD_NAME }
+        )
+    }
+
+    @Test
+    fun `A blocking task does not hold up the next scheduled task`() {
+        val release = CountDownLatch(1)
+        val done = CountDownLatch(1)
+
+        SystemClock.schedule(1L) { release.await(1, TimeUnit.SECONDS) }
+        SystemClock.schedule(2L) { done.countDown() }
+
+        Assert.assertTrue(done.await(500, TimeUnit.MILLISECONDS))
+        release.countDown()
+    }
+
     @Test
     fun `Clock uses English locale for date formatting`() {
         val expectedFormat = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.ENGLISH).apply {
@@ -0,0 +1,117 @@
+package com.klaviyo.core.model
+
+import com.klaviyo.fixtures.BaseTest
+import com.klaviyo.fixtures.InMemoryDataStore
+import io.mockk.spyk
+import io.mockk.verify
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Test
+
+@OptIn(ExperimentalCoroutinesApi::class)
+internal class DataStoreTest : BaseTest() {
+
+    private val store = spyk(InMemoryDataStore())
+
+    @Test
+    fun `Suspend accessors read and edit the store`() = runTest(dispatcher) {
+        store.awaitEdit {
+            store("a", "1")
+            store("b", "2")
+        }
+
+        assertEquals("1", store.awaitFetch("a"))
+        assertEquals("2", store.awaitFetch("b"))
+
+        store.awaitEdit { clear("a") }
+        assertNull(store.awaitFetch("a"))
+    }
+
+    @Test
+    fun `Default edit applies each key's final value once the block returns`() {
+        store.store("c", "old")
+        val changes = mutableListOf<Pair<String, String?>>()
+        store.onStoreChange { key, value -> changes += key to value }
+
+        store.edit {
+            store("a", "1")
+            store("b", "2", 1_000L)
+            clear("c")
+            store("a", "3")
+
+            assertNull(store.fetch("a"))
+            assertEquals("old", store.fetch("c"))
+        }
+
+        assertEquals(listOf("a" to "3", "b" to "2", "c" to null), changes)
+        verify(exactly = 1) { store.store("a", "3") }
+        verify(exactly = 0) { store.store("a", "1") }
+    }
+
+    @Test
+    fun `Default edit applies nothing if the block throws`() {
+        try {
+            store.edit {
+                store("a", "1")
+                throw IllegalStateException("Abandoned edit")
+            }
+            fail("Exception should propagate from the edit")
+        } catch (e: IllegalStateException) {
+            // Expected
+        }
+
+        assertNull(store.fetch("a"))
+        verify(exactly = 0) { store.store("a", any()) }
+    }
+
+    @Test
+    fun `Observe emits the current value then changes to the key`() = runTest(dispatcher) {
+        store.store("key", "a")
+        val values = mutableListOf<String?>()
+        val job = launch { store.observe("key").collect { values += it } }
+        advanceUntilIdle()
+
+        store.store("key", "b")
+        advanceUntilIdle()
+        store.store("other", "x")
+        advanceUntilIdle()
+        store.store("key", "b")
+        advanceUntilIdle()
+        store.clear("key")
+        advanceUntilIdle()
+
+        job.cancel()
+        assertEquals(listOf("a", "b", null), values)
+    }
+
+    @Test
+    fun `Observe conflates changes made while the collector is busy`() = runTest(dispatcher) {
+        val values = mutableListOf<String?>()
+        val job = launch { store.observe("key").collect { values += it } }
+        advanceUntilIdle()
+
+        store.store("key", "1")
+        store.store("key", "2")
+        store.store("key", "3")
+        advanceUntilIdle()
+
+        job.cancel()
+        assertEquals(listOf(null, "3"), values)
+    }
+
+    @Test
+    fun `Observer is removed when collection stops`() = runTest(dispatcher) {
+        val job = launch { store.observe("key").collect { } }
+        advanceUntilIdle()
+        verify(exactly = 1) { store.onStoreChange(any()) }
+
+        job.cancel()
+        advanceUntilIdle()
+        verify(exactly = 1) { store.offStoreChange(any()) }
+    }
+}
@@ -0,0 +1,66 @@
+package com.klaviyo.core.model
+
+import android.content.SharedPreferences
+
+/**
+ * Thread-safe in-memory [SharedPreferences], supporting only what the data store uses
+ */
+internal class FakeSharedPreferences : SharedPreferences {
+    private val values = HashMap<String, Any?>()
+
+    @Synchronized
+    override fun getAll(): Map<String, *> = HashMap(values)
+
+    @Synchronized
+    override fun getString(key: String, defValue: String?): String? =
+        values[key] as? String ?: defValue
+
+    @Synchronized
+    override fun contains(key: String): Boolean = values.containsKey(key)
+
+    override fun edit(): SharedPreferences.Editor = Editor()
+
+    override fun getStringSet(key: String, defValues: Set<String>?) = unsupported()
+    override fun getInt(key: String, defValue: Int) = unsupported()
+    override fun getLong(key: String, defValue: Long) = unsupported()
+    override fun getFloat(key: String, defValue: Float) = unsupported()
+    override fun getBoolean(key: String, defValue: Boolean) = unsupported()
+
+    override fun registerOnSharedPreferenceChangeListener(
+        listener: SharedPreferences.OnSharedPreferenceChangeListener
+    ) = unsupported()
+
+    override fun unregisterOnSharedPreferenceChangeListener(
+        listener: SharedPreferences.OnSharedPreferenceChangeListener
+    ) = unsupported()
+
+    private fun unsupported(): Nothing = throw UnsupportedOperationException()
+
+    private inner class Editor : SharedPreferences.Editor {
+        private val changes = LinkedHashMap<String, String?>()
+
+        override fun putString(key: String, value: String?) = apply { changes[key] = value }
+
+        override fun remove(key: String) = apply { changes[key] = null }
+
+        override fun commit(): Boolean {
+            synchronized(this@FakeSharedPreferences) {
+                changes.forEach { (key, value) ->
+                    if (value == null) values.remove(key) else values[key] = value
+                }
+            }
+            return true
+        }
+
+        override fun apply() {
+            commit()
+        }
+
+        override fun putStringSet(key: String, values: Set<String>?) = unsupported()
+        override fun putInt(key: String, value: Int) = unsupported()
+        override fun putLong(key: String, value: Long) = unsupported()
+        override fun putFloat(key: String, value: Float) = unsupported()
+        override fun putBoolean(key: String, value: Boolean) = unsupported()
+        override fun clear() = unsupported()
+    }
+}
@@ -0,0 +1,124 @@
+package com.klaviyo.core.model
+
+import com.klaviyo.core.Registry
+import com.klaviyo.fixtures.BaseTest
+import com.klaviyo.fixtures.InMemoryDataStore
+import io.mockk.every
+import io.mockk.spyk
+import io.mockk.verify
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+internal class LruDataStoreCacheTest : BaseTest() {
+
+    private val cache = LruDataStoreCache(maxSize = 3)
+
+    private var decodeCount = 0
+
+    private fun decodeList(json: String): List<*> {
+        decodeCount++
+        return json.trim('[', ']').split(",")
+    }
+
+    private fun fetchList(key: String) = cache.fetch<List<*>>(key, ::decodeList)
+
+    @Test
+    fun `Decodes once and serves repeat reads from memory`() {
+        spyDataStore.store("key", "[a,b]")
+
+        val first = fetchList("key")
+        val second = fetchList("key")
+
+        assertEquals(listOf("a", "b"), first)
+        assertSame(first, second)
+        assertEquals(1, decodeCount)
+        verify(exactly = 1) { spyDataStore.fetch("key") }
+        assertEquals(DataStoreCache.Stats(hits = 1, misses = 1, size = 1), cache.stats)
+    }
+
+    @Test
+    fun `Caches unset keys`() {
+        assertNull(fetchList("missing"))
+        assertNull(fetchList("missing"))
+
+        verify(exactly = 1) { spyDataStore.fetch("missing") }
+    }
+
+    @Test
+    fun `Store changes invalidate cached values`() {
+        spyDataStore.store("key", "[a]")
+        fetchList("key")
+
+        spyDataStore.store("key", "[b]")
+        assertEquals(listOf("b"), fetchList("key"))
+
+        spyDataStore.clear("key")
+        assertNull(fetchList("key"))
+        assertEquals(3, cache.stats.misses)
+    }
+
+    @Test
+    fun `Storing through the cache keeps the decoded value`() {
+        val value = listOf("a", "b")
+        cache.store<List<*>>("key", value) { it.joinToString(",", "[", "]") }
+
+        assertEquals("[a,b]", spyDataStore.fetch("key"))
+        assertSame(value, fetchList("key"))
+        assertEquals(0, decodeCount)
+    }
+
+    @Test
+    fun `Value cached as another type is a miss`() {
+        spyDataStore.store("key", "[a]")
+        fetchList("key")
+
+        assertEquals("[a]", cache.fetch<String>("key") { it })
+        assertEquals(2, cache.stats.misses)
+    }
+
+    @Test
+    fun `Decode failures are not cached`() {
+        spyDataStore.store("key", "invalid")
+
+        repeat(2) {
+            try {
+                cache.fetch<List<*>>("key") { throw IllegalArgumentException(it) }
+            } catch (expected: IllegalArgumentException) {
+                // Expected
+            }
+        }
+
+        assertEquals(DataStoreCache.Stats(hits = 0, misses = 2, size = 0), cache.stats)
+    }
+
+    @Test
+    fun `Evicts least recently used values beyond max size`() {
+        listOf("a", "b", "c", "d").forEach { spyDataStore.store(it, "[$it]") }
+
+        fetchList("a")
+        fetchList("b")
+        fetchList("c")
+        fetchList("a") // Touch a, so b is now least recently used
+        fetchList("d")
+
+        assertEquals(3, cache.stats.size)
+        fetchList("a")
+        fetchList("b")
+        assertEquals(DataStoreCache.Stats(hits = 2, misses = 5, size = 3), cache.stats)
+    }
+
+    @Test
+    fun `Starts over when the data store is replaced`() {
+        spyDataStore.store("key", "[a]")
+        fetchList("key")
+
+        val newStore = spyk(InMemoryDataStore()).apply { store("key", "[b]") }
+        every { Registry.dataStore } returns newStore
+
+        assertEquals(listOf("b"), fetchList("key"))
+        verify { spyDataStore.offStoreChange(any()) }
+        verify { newStore.onStoreChange(any()) }
+    }
+}
@@ -0,0 +1,17 @@
+package com.klaviyo.core.model
+
+import com.klaviyo.fixtures.DataStoreConformanceTest
+import io.mockk.every
+
+internal class SharedPreferencesDataStoreConformanceTest : DataStoreConformanceTest() {
+
+    private val files = HashMap<String, FakeSharedPreferences>()
+
+    override fun createStore(): DataStore {
+        every { mockContext.getSharedPreferences(any(), any()) } answers {
+            synchronized(files) { files.getOrPut(firstArg()) { FakeSharedPreferences() } }
+        }
+
+        return SharedPreferencesDataStore
+    }
+}
@@ -3,6 +3,8 @@ package com.klaviyo.core.model
 import android.content.Context
 import android.content.SharedPreferences
 import com.klaviyo.core.Registry
+import com.klaviyo.core.model.SharedPreferencesDataStore.EXPIRY_INDEX_KEY
+import com.klaviyo.core.model.SharedPreferencesDataStore.EXPIRY_SWEEP_INTERVAL
 import com.klaviyo.core.model.SharedPreferencesDataStore.KLAVIYO_PREFS_NAME
 import com.klaviyo.fixtures.BaseTest
 import io.mockk.every
@@ -14,6 +16,10 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.test.runTest
 import kotlinx.coroutines.withContext
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
 import org.junit.Test
 
 internal class SharedPreferencesDataStoreTest : BaseTest() {
@@ -22,10 +28,29 @@ internal class SharedPreferencesDataStoreTest : BaseTest() {
     private val stubKey = "key" + Math.random().toString()
     private val stubValue = "value" + Math.random().toString()
 
+    private val queue = DataStorePartition("queue") { it == "klaviyo_api_request_queue" }
+    private val location = DataStorePartition("location") {
+        it in setOf("klaviyo_geofences", "geofence_cooldowns") || it.startsWith("geofence_cooldown:")
+    }
+
+    @Before
+    override fun setup() {
+        super.setup()
+        DataStorePartition.register(queue)
+        DataStorePartition.register(location)
+    }
+
     private fun withPreferenceMock() {
         every {
             mockContext.getSharedPreferences(KLAVIYO_PREFS_NAME, Context.MODE_PRIVATE)
         } returns preferenceMock
+        every { preferenceMock.getString(EXPIRY_INDEX_KEY, null) } returns null
+    }
+
+    private fun withFakePreferences(): FakeSharedPreferences {
+        val preferences = FakeSharedPreferences()
+        every { mockContext.getSharedPreferences(any(), any()) } returns preferences
+        return preferences
     }
 
     private fun withWriteStringMock(key: String, value: String) {
@@ -114,6 +139,78 @@ internal class SharedPreferencesDataStoreTest : BaseTest() {
         verify { spyLog.verbose("$stubKey=null") }
     }
 
+    @Test
+    fun `Edit applies all changes in one write and notifies once per key`() {
+        withPreferenceMock()
+        every { preferenceMock.edit() } returns editorMock
+        every { editorMock.putString(any(), any()) } returns editorMock
+        every { editorMock.remove(any()) } returns editorMock
+        every { editorMock.apply() } returns Unit
+        val changes = mutableListOf<Pair<String, String?>>()
+        val observer: StoreObserver = { key, value -> changes += key to value }
+        SharedPreferencesDataStore.onStoreChange(observer)
+
+        SharedPreferencesDataStore.edit {
+            store("a", "1")
+            store("b", "2")
+            clear("c")
+            store("a", "3")
+            assertEquals(listOf<Pair<String, String?>>(), changes)
+        }
+
+        SharedPreferencesDataStore.offStoreChange(observer)
+
+        verify(exactly = 1) { preferenceMock.edit() }
+        verify(exactly = 1) { editorMock.apply() }
+        verify { editorMock.putString("a", "3") }
+        verify { editorMock.putString("b", "2") }
+        verify { editorMock.remove("c") }
+        verify(inverse = true) { editorMock.putString("a", "1") }
+        assertEquals(listOf("a" to "3", "b" to "2", "c" to null), changes)
+    }
+
+    @Test
+    fun `Direct writes during an edit join it and are readable`() {
+        withPreferenceMock()
+        every { preferenceMock.edit() } returns editorMock
+        every { preferenceMock.getString(any(), isNull()) } returns null
+        every { editorMock.putString(any(), any()) } returns editorMock
+        every { editorMock.remove(any()) } returns editorMock
+        every { editorMock.apply() } returns Unit
+
+        SharedPreferencesDataStore.edit {
+            SharedPreferencesDataStore.store(stubKey, stubValue)
+            SharedPreferencesDataStore.edit { clear("other") }
+            assertEquals(stubValue, SharedPreferencesDataStore.fetch(stubKey))
+            verify(inverse = true) { editorMock.apply() }
+        }
+
+        verify(exactly = 1) { editorMock.apply() }
+        verify { editorMock.putString(stubKey, stubValue) }
+        verify { editorMock.remove("other") }
+    }
+
+    @Test
+    fun `Failed edit applies no changes`() {
+        withPreferenceMock()
+        withWriteStringMock(stubKey, stubValue)
+
+        try {
+            SharedPreferencesDataStore.edit {
+                store(stubKey, stubValue)
+                throw IllegalStateException("Failed")
+            }
+        } catch (expected: IllegalStateException) {
+            // Expected
+        }
+
+        verify(inverse = true) { preferenceMock.edit() }
+
+        // Subsequent writes are applied immediately again
+        SharedPreferencesDataStore.store(stubKey, stubValue)
+        verify(exactly = 1) { editorMock.apply() }
+    }
+
     @Test
     fun `Reading string uses Klaviyo preferences`() {
         val expectedString = "123" + Math.random().toString()
@@ -128,4 +225,235 @@ internal class SharedPreferencesDataStoreTest : BaseTest() {
         verify { preferenceMock.getString(stubKey, null) }
         verify(inverse = true) { editorMock.apply() }
     }
+
+    /**
+     * A fake preferences file per file name
+     *
+     * @return The fake file of a given name, the shared file by default
+     */
+    private fun withFakeFiles(): (String) -> FakeSharedPreferences {
+        val files = HashMap<String, FakeSharedPreferences>()
+        every { mockContext.getSharedPreferences(any(), any()) } answers {
+            files.getOrPut(firstArg()) { FakeSharedPreferences() }
+        }
+        return { name -> files.getOrPut(name) { FakeSharedPreferences() } }
+    }
+
+    @Test
+    fun `Partition keys are written to and read from their own file`() {
+        val files = withFakeFiles()
+        val partitionKey = "geofence_cooldowns"
+        SharedPreferencesDataStore.isPartitioned = true
+
+        SharedPreferencesDataStore.edit {
+            store(stubKey, stubValue)
+            store(partitionKey, stubValue)
+        }
+
+        assertEquals(stubValue, files(KLAVIYO_PREFS_NAME).getString(stubKey, null))
+        assertFalse(files(KLAVIYO_PREFS_NAME).contains(partitionKey))
+        assertEquals(
+            stubValue,
+            files(location.fileName).getString(partitionKey, null)
+        )
+        assertEquals(stubValue, SharedPreferencesDataStore.fetch(partitionKey))
+    }
+
+    @Test
+    fun `Partition keys not yet moved are read from the shared file, until written`() {
+        val files = withFakeFiles()
+        val partitionKey = "klaviyo_api_request_queue"
+        SharedPreferencesDataStore.isPartitioned = false
+        files(KLAVIYO_PREFS_NAME).edit().putString(partitionKey, "old").commit()
+
+        assertEquals("old", SharedPreferencesDataStore.fetch(partitionKey))
+
+        SharedPreferencesDataStore.clear(partitionKey)
+
+        assertFalse(files(KLAVIYO_PREFS_NAME).contains(partitionKey))
+        assertNull(SharedPreferencesDataStore.fetch(partitionKey))
+    }
+
+    @Test
+    fun `Moving partition keys empties them out of the shared file once`() {
+        val files = withFakeFiles()
+        val movedKey = "klaviyo_api_request_queue"
+        val newerKey = "klaviyo_geofences"
+        SharedPreferencesDataStore.isPartitioned = false
+        files(KLAVIYO_PREFS_NAME).edit()
+            .putString(stubKey, stubValue)
+            .putString(movedKey, "old")
+            .putString(newerKey, "stale")
+            .commit()
+        files(location.fileName).edit().putString(newerKey, "newer").commit()
+
+        SharedPreferencesDataStore.movePartitionKeys()
+
+        assertEquals(setOf(stubKey), files(KLAVIYO_PREFS_NAME).all.keys)
+        assertEquals(
+            "old",
+            files(queue.fileName).getString(movedKey, null)
+        )
+        assertEquals(
+            "newer",
+            files(location.fileName).getString(newerKey, null)
+        )
+        assertTrue(SharedPreferencesDataStore.isPartitioned)
+
+        // Already moved, so the shared file isn't scanned again
+        files(KLAVIYO_PREFS_NAME).edit().putString(movedKey, "again").commit()
+        SharedPreferencesDataStore.movePartitionKeys()
+        assertTrue(files(KLAVIYO_PREFS_NAME).contains(movedKey))
+    }
+
+    @Test
+    fun `Keys of a partition registered later are read from the shared file until moved`() {
+        val files = withFakeFiles()
+        val name = "late" + Math.random().toString()
+        SharedPreferencesDataStore.isPartitioned = true
+        files(KLAVIYO_PREFS_NAME).edit().putString(stubKey, stubValue).commit()
+
+        registerDataStorePartition(name) { it == stubKey }
+
+        assertFalse(SharedPreferencesDataStore.isPartitioned)
+        assertEquals(stubValue, SharedPreferencesDataStore.fetch(stubKey))
+
+        SharedPreferencesDataStore.movePartitionKeys()
+
+        assertFalse(files(KLAVIYO_PREFS_NAME).contains(stubKey))
+        assertEquals(
+            stubValue,
+            files("$KLAVIYO_PREFS_NAME.$name").getString(stubKey, null)
+        )
+        assertEquals(stubValue, SharedPreferencesDataStore.fetch(stubKey))
+    }
+
+    @Test
+    fun `Preload loads every preferences file in the background`() {
+        withPreferenceMock()
+        SharedPreferencesDataStore.isPartitioned = true
+        every { preferenceMock.getString(stubKey, null) } returns stubValue
+        every {
+            mockContext.getSharedPreferences(
+                match { it.startsWith("$KLAVIYO_PREFS_NAME.") },
+                Context.MODE_PRIVATE
+            )
+        } returns preferenceMock
+
+        SharedPreferencesDataStore.preload()
+        verify(exactly = 0) { mockContext.getSharedPreferences(any(), any()) }
+
+        // A read doesn't wait on the preload, only on the one file it reads
+        assertEquals(stubValue, SharedPreferencesDataStore.fetch(stubKey))
+        verify(exactly = 0) {
+            mockContext.getSharedPreferences(match { it != KLAVIYO_PREFS_NAME }, any())
+        }
+
+        dispatcher.scheduler.advanceUntilIdle()
+
+        DataStorePartition.all.forEach {
+            verify { mockContext.getSharedPreferences(it.fileName, Context.MODE_PRIVATE) }
+        }
+        verify { mockContext.getSharedPreferences(KLAVIYO_PREFS_NAME, Context.MODE_PRIVATE) }
+        verify { mockTracer.beginSection("Klaviyo.preloadPreferences") }
+    }
+
+    @Test
+    fun `Values stored with a TTL read as not set once expired`() {
+        val preferences = withFakePreferences()
+        val changes = mutableListOf<Pair<String, String?>>()
+        val observer: StoreObserver = { key, value -> changes += key to value }
+        SharedPreferencesDataStore.onStoreChange(observer)
+
+        SharedPreferencesDataStore.store(stubKey, stubValue, 1_000)
+        assertEquals(stubValue, SharedPreferencesDataStore.fetch(stubKey))
+        assertFalse(EXPIRY_INDEX_KEY in SharedPreferencesDataStore.keys())
+
+        staticClock.time += 1_000
+        assertNull(SharedPreferencesDataStore.fetch(stubKey))
+        SharedPreferencesDataStore.offStoreChange(observer)
+
+        assertFalse(preferences.contains(stubKey))
+        assertFalse(preferences.contains(EXPIRY_INDEX_KEY))
+        assertEquals(listOf(stubKey to stubValue, stubKey to null), changes)
+    }
+
+    @Test
+    fun `Reading an expired key clears only that key, leaving the rest to the sweep`() {
+        val preferences = withFakePreferences()
+        val otherKey = "other_$stubKey"
+        SharedPreferencesDataStore.store(stubKey, stubValue, 1_000)
+        SharedPreferencesDataStore.store(otherKey, stubValue, 1_000)
+
+        staticClock.time += 1_000
+        assertNull(SharedPreferencesDataStore.fetch(stubKey))
+
+        assertFalse(preferences.contains(stubKey))
+        assertTrue(preferences.contains(otherKey))
+
+        // Listing keys leaves expired keys out, without clearing them
+        assertFalse(otherKey in SharedPreferencesDataStore.keys())
+        assertTrue(preferences.contains(otherKey))
+
+        SharedPreferencesDataStore.sweepExpired()
+        assertFalse(preferences.contains(otherKey))
+        assertFalse(preferences.contains(EXPIRY_INDEX_KEY))
+    }
+
+    @Test
+    fun `Storing a key again without a TTL removes its expiry`() {
+        val preferences = withFakePreferences()
+
+        SharedPreferencesDataStore.edit { store(stubKey, stubValue, 1_000) }
+        assertTrue(preferences.contains(EXPIRY_INDEX_KEY))
+
+        SharedPreferencesDataStore.store(stubKey, "new")
+        staticClock.time += 2_000
+
+        assertEquals("new", SharedPreferencesDataStore.fetch(stubKey))
+        assertFalse(preferences.contains(EXPIRY_INDEX_KEY))
+    }
+
+    @Test
+    fun `A key's expiry is indexed in its own file`() {
+        val files = withFakeFiles()
+        val partitionKey = "geofence_cooldown:fence:Entered"
+        val location = files(location.fileName)
+        SharedPreferencesDataStore.isPartitioned = true
+
+        SharedPreferencesDataStore.store(partitionKey, stubValue, 1_000)
+
+        assertTrue(location.contains(EXPIRY_INDEX_KEY))
+        assertFalse(files(KLAVIYO_PREFS_NAME).contains(EXPIRY_INDEX_KEY))
+
+        staticClock.time += 1_000
+        assertNull(SharedPreferencesDataStore.fetch(partitionKey))
+        assertFalse(location.contains(partitionKey))
+        assertFalse(location.contains(EXPIRY_INDEX_KEY))
+    }
+
+    @Test
+    fun `Expired keys are swept in the background while any key has a TTL`() {
+        val preferences = withFakePreferences()
+        val shortKey = "short_$stubKey"
+        val longKey = "long_$stubKey"
+
+        // Restart the sweep on this test's clock
+        SharedPreferencesDataStore.sweepExpired()
+        assertEquals(0, staticClock.scheduledTasks.size)
+
+        SharedPreferencesDataStore.store(shortKey, stubValue, 1_000)
+        SharedPreferencesDataStore.store(longKey, stubValue, 2 * EXPIRY_SWEEP_INTERVAL)
+        assertEquals(1, staticClock.scheduledTasks.size)
+
+        staticClock.execute(EXPIRY_SWEEP_INTERVAL)
+        assertFalse(preferences.contains(shortKey))
+        assertTrue(preferences.contains(longKey))
+        assertEquals(1, staticClock.scheduledTasks.size)
+
+        staticClock.execute(EXPIRY_SWEEP_INTERVAL)
+        assertFalse(preferences.contains(longKey))
+        assertEquals(0, staticClock.scheduledTasks.size)
+        verify { spyLog.verbose("Cleared 1 expired keys") }
+    }
 }
@@ -7,6 +7,7 @@ import android.net.NetworkCapabilities
 import android.net.NetworkRequest
 import com.klaviyo.core.Registry
 import com.klaviyo.fixtures.BaseTest
+import com.sun.net.httpserver.HttpServer
 import io.mockk.clearAllMocks
 import io.mockk.every
 import io.mockk.mockk
@@ -14,12 +15,17 @@ import io.mockk.mockkConstructor
 import io.mockk.slot
 import io.mockk.unmockkObject
 import io.mockk.verify
+import java.net.InetSocketAddress
+import java.net.ServerSocket
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.test.runTest
 import kotlinx.coroutines.withContext
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
 
@@ -47,6 +53,8 @@ internal class KlaviyoNetworkMonitorTest : BaseTest() {
         every { connectivityManagerMock.getNetworkCapabilities(networkMock) } returns capabilitiesMock
         every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } returns true
         every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) } returns true
+        every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) } returns true
+        every { capabilitiesMock.hasTransport(any()) } returns false
 
         mockkConstructor(NetworkRequest.Builder::class)
         every { NetworkRequest.Builder().addCapability(any()) } returns mockBuilder
@@ -70,6 +78,18 @@ internal class KlaviyoNetworkMonitorTest : BaseTest() {
         field.isAccessible = true
         field.set(KlaviyoNetworkMonitor, null) // Set the lateinit var's backing field to null
         field.isAccessible = originalAccessibility // Restore original accessibility
+
+        // Reset the last broadcast state and any pending evaluation from the previous test
+        resetField("lastNetworkState", NetworkMonitor.NetworkState.OFFLINE)
+        resetField("pendingEvaluation", null)
+        resetField("isReachable", true)
+        resetField("pendingProbe", null)
+    }
+
+    private fun resetField(name: String, value: Any?) {
+        val field = KlaviyoNetworkMonitor::class.java.getDeclaredField(name)
+        field.isAccessible = true
+        field.set(KlaviyoNetworkMonitor, value)
     }
 
     @Test
@@ -119,6 +139,12 @@ internal class KlaviyoNetworkMonitorTest : BaseTest() {
         assert(!KlaviyoNetworkMonitor.isNetworkConnected())
     }
 
+    private fun setValidated(validated: Boolean) {
+        every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } returns validated
+    }
+
+    private fun settle() = staticClock.execute(KlaviyoNetworkMonitor.NETWORK_DEBOUNCE_INTERVAL)
+
     @Test
     fun `Network change observer is invoked with current network status when network changes`() {
         var expectedNetworkConnection = true
@@ -127,43 +153,159 @@ internal class KlaviyoNetworkMonitorTest : BaseTest() {
             assert(it == expectedNetworkConnection)
             callCount++
         }
+        setValidated(false)
         KlaviyoNetworkMonitor.onNetworkChange(observer)
 
         assert(netCallbackSlot.isCaptured) // attaching a listener should have initialized the network callback
 
         expectedNetworkConnection = true
-        every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } returns true
+        setValidated(true)
         netCallbackSlot.captured.onAvailable(mockk())
+        settle()
 
         expectedNetworkConnection = false
-        every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } returns false
+        setValidated(false)
         netCallbackSlot.captured.onLost(mockk())
-        netCallbackSlot.captured.onUnavailable()
+        settle()
 
         expectedNetworkConnection = true
-        every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } returns true
+        setValidated(true)
         netCallbackSlot.captured.onLinkPropertiesChanged(mockk(), mockk())
+        settle()
 
         expectedNetworkConnection = false
-        every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } returns false
+        setValidated(false)
+        netCallbackSlot.captured.onCapabilitiesChanged(mockk(), capabilitiesMock)
+        settle()
+
+        assertEquals(4, callCount)
+        KlaviyoNetworkMonitor.offNetworkChange(observer)
+    }
+
+    @Test
+    fun `Network change observer is not invoked until network state settles`() {
+        var callCount = 0
+        val observer: NetworkObserver = { callCount++ }
+        setValidated(false)
+        KlaviyoNetworkMonitor.onNetworkChange(observer)
+
+        setValidated(true)
+        netCallbackSlot.captured.onAvailable(mockk())
+        staticClock.execute(KlaviyoNetworkMonitor.NETWORK_DEBOUNCE_INTERVAL - 1)
+        assertEquals(0, callCount)
+
+        settle()
+        assertEquals(1, callCount)
+        KlaviyoNetworkMonitor.offNetworkChange(observer)
+    }
+
+    @Test
+    fun `Bursts of network callbacks are coalesced into one evaluation`() {
+        var lastConnection: Boolean? = null
+        var callCount = 0
+        val observer: NetworkObserver = {
+            lastConnection = it
+            callCount++
+        }
+        setValidated(false)
+        KlaviyoNetworkMonitor.onNetworkChange(observer)
+
+        // Simulate a Wi-Fi to cell handover: lost, available, capabilities, link properties
         netCallbackSlot.captured.onLost(mockk())
+        staticClock.execute(100)
+        setValidated(true)
+        netCallbackSlot.captured.onAvailable(mockk())
+        staticClock.execute(100)
+        netCallbackSlot.captured.onCapabilitiesChanged(mockk(), capabilitiesMock)
+        staticClock.execute(100)
+        netCallbackSlot.captured.onLinkPropertiesChanged(mockk(), mockk())
+        settle()
 
-        assertEquals(5, callCount)
+        assertEquals(1, callCount)
+        assertEquals(true, lastConnection)
+        KlaviyoNetworkMonitor.offNetworkChange(observer)
+    }
+
+    @Test
+    fun `Network change observer is not invoked when connectivity does not flip`() {
+        var callCount = 0
+        val observer: NetworkObserver = { callCount++ }
+        KlaviyoNetworkMonitor.onNetworkChange(observer)
+
+        netCallbackSlot.captured.onAvailable(mockk())
+        settle()
+        netCallbackSlot.captured.onLinkPropertiesChanged(mockk(), mockk())
+        settle()
+
+        // Transport changed, but connectivity did not
+        every { capabilitiesMock.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) } returns true
+        netCallbackSlot.captured.onCapabilitiesChanged(mockk(), capabilitiesMock)
+        settle()
+
+        assertEquals(0, callCount)
         KlaviyoNetworkMonitor.offNetworkChange(observer)
     }
 
+    @Test
+    fun `Network state observer is invoked with previous and current state on any transition`() {
+        val transitions = mutableListOf<Pair<NetworkMonitor.NetworkState, NetworkMonitor.NetworkState>>()
+        val observer: NetworkStateObserver = { previous, current -> transitions += previous to current }
+        KlaviyoNetworkMonitor.onNetworkStateChange(observer)
+
+        val cellState = KlaviyoNetworkMonitor.getNetworkState()
+        assertEquals(
+            NetworkMonitor.NetworkState(
+                isConnected = true,
+                isValidated = true,
+                type = NetworkMonitor.NetworkType.Cell,
+                isMetered = false
+            ),
+            cellState
+        )
+
+        // No change, no notification
+        netCallbackSlot.captured.onAvailable(mockk())
+        settle()
+        assertEquals(0, transitions.size)
+
+        // Handover to wi-fi
+        every { capabilitiesMock.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) } returns true
+        netCallbackSlot.captured.onCapabilitiesChanged(mockk(), capabilitiesMock)
+        settle()
+
+        val wifiState = cellState.copy(type = NetworkMonitor.NetworkType.Wifi)
+        assertEquals(listOf(cellState to wifiState), transitions)
+
+        // Captive portal: connected, but not validated
+        setValidated(false)
+        netCallbackSlot.captured.onCapabilitiesChanged(mockk(), capabilitiesMock)
+        settle()
+
+        val portalState = wifiState.copy(isValidated = false)
+        assertEquals(wifiState to portalState, transitions.last())
+        assert(!portalState.isOnline)
+
+        KlaviyoNetworkMonitor.offNetworkStateChange(observer)
+        setValidated(true)
+        netCallbackSlot.captured.onCapabilitiesChanged(mockk(), capabilitiesMock)
+        settle()
+        assertEquals(2, transitions.size)
+    }
+
     @Test
     fun `Network changes are logged`() {
         KlaviyoNetworkMonitor // Initialize, which would normally just happen when app launches
         assert(netCallbackSlot.isCaptured)
 
-        every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } returns true
-        netCallbackSlot.captured.onAvailable(mockk())
-        verify { spyLog.verbose(any()) }
-
-        every { capabilitiesMock.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) } returns false
+        setValidated(false)
         netCallbackSlot.captured.onUnavailable()
-        verify { spyLog.verbose(any()) }
+        settle()
+        verify { spyLog.verbose(match { it.startsWith("Network unavailable") }) }
+
+        setValidated(true)
+        netCallbackSlot.captured.onAvailable(mockk())
+        settle()
+        verify { spyLog.verbose(match { it.startsWith("Network available") }) }
     }
 
     @Test
@@ -175,27 +317,142 @@ internal class KlaviyoNetworkMonitorTest : BaseTest() {
         KlaviyoNetworkMonitor.onNetworkChange(observer)
         KlaviyoNetworkMonitor.onNetworkChange(observer2)
 
-        netCallbackSlot.captured.onAvailable(mockk())
+        var validated = true
+        fun toggle() {
+            validated = !validated
+            setValidated(validated)
+            netCallbackSlot.captured.onAvailable(mockk())
+            settle()
+        }
+
+        toggle()
         assertEquals(2, callCount)
 
         KlaviyoNetworkMonitor.offNetworkChange(observer)
-        netCallbackSlot.captured.onAvailable(mockk())
+        toggle()
         assertEquals(3, callCount)
 
         KlaviyoNetworkMonitor.offNetworkChange(observer) // calling it twice doesn't result in an error
         KlaviyoNetworkMonitor.onNetworkChange(observer) // it can be re-added
-        netCallbackSlot.captured.onAvailable(mockk())
+        toggle()
         assertEquals(5, callCount)
+
+        KlaviyoNetworkMonitor.offNetworkChange(observer)
+        KlaviyoNetworkMonitor.offNetworkChange(observer2)
+    }
+
+    private fun withReachableHost(block: (url: String) -> Unit) {
+        val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0).apply {
+            createContext("/") { exchange ->
+                exchange.sendResponseHeaders(204, -1)
+                exchange.close()
+            }
+            start()
+        }
+
+        try {
+            block("http://127.0.0.1:${server.address.port}")
+        } finally {
+            server.stop(0)
+        }
+    }
+
+    private fun unreachableHost(): String = ServerSocket(0).use { "http://127.0.0.1:${it.localPort}" }
+
+    private fun hasPendingProbe(): Boolean {
+        val field = KlaviyoNetworkMonitor::class.java.getDeclaredField("pendingProbe")
+        field.isAccessible = true
+        return (field.get(KlaviyoNetworkMonitor) as Job?)?.isActive == true
+    }
+
+    @Test
+    fun `Reachability probe succeeds when API host responds`() = withReachableHost { url ->
+        every { mockConfig.baseUrl } returns url
+
+        assertTrue(KlaviyoNetworkMonitor.probeReachability())
+        assertTrue(KlaviyoNetworkMonitor.isNetworkConnected())
+        assertFalse(hasPendingProbe())
+    }
+
+    @Test
+    fun `Failed reachability probe marks network offline and notifies observers`() {
+        val connections = mutableListOf<Boolean>()
+        val observer: NetworkObserver = { connections += it }
+        KlaviyoNetworkMonitor.onNetworkChange(observer)
+        every { mockConfig.baseUrl } returns unreachableHost()
+
+        assertFalse(KlaviyoNetworkMonitor.probeReachability())
+        assertFalse(KlaviyoNetworkMonitor.isNetworkConnected())
+        assertFalse(KlaviyoNetworkMonitor.getNetworkState().isReachable)
+        assertEquals(listOf(false), connections)
+
+        // Same network settling again doesn't clear the failed probe
+        netCallbackSlot.captured.onLinkPropertiesChanged(mockk(), mockk())
+        settle()
+        assertFalse(KlaviyoNetworkMonitor.isNetworkConnected())
+        assertEquals(listOf(false), connections)
+
+        KlaviyoNetworkMonitor.offNetworkChange(observer)
+    }
+
+    @Test
+    fun `Unreachable network is re-probed until it recovers`() = withReachableHost { url ->
+        val connections = mutableListOf<Boolean>()
+        val observer: NetworkObserver = { connections += it }
+        KlaviyoNetworkMonitor.onNetworkChange(observer)
+        every { mockConfig.baseUrl } returns unreachableHost()
+
+        assertFalse(KlaviyoNetworkMonitor.probeReachability())
+
+        // Re-probed on the dispatcher, not the clock, since the probe blocks on network I/O
+        staticClock.execute(KlaviyoNetworkMonitor.REACHABILITY_RETRY_INTERVAL)
+        assertFalse(KlaviyoNetworkMonitor.isNetworkConnected())
+
+        // e.g. user signs in to captive portal
+        every { mockConfig.baseUrl } returns url
+        dispatcher.scheduler.advanceTimeBy(KlaviyoNetworkMonitor.REACHABILITY_RETRY_INTERVAL)
+        dispatcher.scheduler.runCurrent()
+
+        assertTrue(KlaviyoNetworkMonitor.isNetworkConnected())
+        assertEquals(listOf(false, true), connections)
+        KlaviyoNetworkMonitor.offNetworkChange(observer)
+    }
+
+    @Test
+    fun `Failed reachability probe is forgotten when the network changes`() {
+        every { mockConfig.baseUrl } returns unreachableHost()
+        KlaviyoNetworkMonitor.onNetworkChange { }
+
+        assertFalse(KlaviyoNetworkMonitor.probeReachability())
+        assertTrue(hasPendingProbe())
+
+        every { capabilitiesMock.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) } returns true
+        netCallbackSlot.captured.onCapabilitiesChanged(mockk(), capabilitiesMock)
+        settle()
+
+        assertTrue(KlaviyoNetworkMonitor.isNetworkConnected())
+        assertFalse(hasPendingProbe()) // pending re-probe was cancelled
+    }
+
+    @Test
+    fun `Reachability probe is skipped on an unvalidated network`() {
+        setValidated(false)
+        every { mockConfig.baseUrl } throws AssertionError("Probe should not be attempted")
+
+        assertFalse(KlaviyoNetworkMonitor.probeReachability())
     }
 
     @Test()
     fun `Concurrent modification exception doesn't get thrown on concurrent observer access`() = runTest {
         val observer: NetworkObserver = { Thread.sleep(6) }
 
+        setValidated(false)
         KlaviyoNetworkMonitor.onNetworkChange(observer)
+        setValidated(true)
 
         val job = launch(Dispatchers.IO) {
             netCallbackSlot.captured.onAvailable(mockk())
+            settle()
         }
 
         val job2 = launch(Dispatchers.Default) {
@@ -233,4 +490,25 @@ internal class KlaviyoNetworkMonitorTest : BaseTest() {
         }
         assertEquals(callCount, 0)
     }
+
+    @Test
+    fun `Monitors implementing only connectivity get default network state and probe`() {
+        var connected = true
+        val monitor = object : NetworkMonitor {
+            override fun onNetworkChange(observer: NetworkObserver) = Unit
+            override fun offNetworkChange(observer: NetworkObserver) = Unit
+            override fun isNetworkConnected() = connected
+            override fun getNetworkType() = NetworkMonitor.NetworkType.Wifi
+        }
+
+        // State observers are accepted, but never notified
+        monitor.onNetworkStateChange { _, _ -> throw AssertionError("Unexpected notification") }
+        assertTrue(monitor.getNetworkState().isOnline)
+        assertTrue(monitor.probeReachability())
+        assertEquals(NetworkMonitor.NetworkType.Wifi, monitor.getNetworkState().type)
+
+        connected = false
+        assertEquals(NetworkMonitor.NetworkState.OFFLINE, monitor.getNetworkState())
+        assertFalse(monitor.probeReachability())
+    }
 }
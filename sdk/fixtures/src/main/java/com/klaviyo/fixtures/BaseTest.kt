@@ -12,9 +12,11 @@ import com.klaviyo.core.BuildConfig
 import com.klaviyo.core.Registry
 import com.klaviyo.core.config.Config
 import com.klaviyo.core.config.FormEnvironment
+import com.klaviyo.core.config.QueueDurability
 import com.klaviyo.core.lifecycle.LifecycleMonitor
 import com.klaviyo.core.networking.NetworkMonitor
 import com.klaviyo.core.utils.ThreadHelper
+import com.klaviyo.core.utils.Tracer
 import io.mockk.every
 import io.mockk.mockk
 import io.mockk.mockkObject
@@ -89,6 +91,13 @@ abstract class BaseTest {
         every { networkMaxRetryInterval } returns 180_000L
         every { networkFlushIntervals } returns longArrayOf(10_000, 30_000, 60_000)
         every { networkJitterRange } returns 0..0
+        every { networkSlowStartBatchSize } returns 5
+        every { networkSlowStartMaxBatchSize } returns 100
+        every { networkSlowStartInterval } returns 1_000L
+        every { queueDurability } returns QueueDurability.GROUP_COMMIT
+        every { queueCommitInterval } returns 1_000L
+        every { queueCommitDepth } returns 25
+        every { dataStore } returns null
         every { baseUrl } returns "https://test.fake-klaviyo.com"
         every { apiRevision } returns "1234-56-78"
         every { baseCdnUrl } returns "https://decent.cdn.url.com"
@@ -131,12 +140,14 @@ abstract class BaseTest {
             firstArg<() -> Unit>().invoke()
         }
         every { getHandler(any()) } returns mockHandler
+        every { isMainThread() } returns false
         every { getHandlerThread(any()) } returns mockk<HandlerThread>().apply {
             every { start() } returns Unit
             every { looper } returns mockk()
             every { state } returns Thread.State.NEW
         }
     }
+    protected val mockTracer = mockk<Tracer>(relaxed = true)
 
     /**
      * For tests that rely on coroutines, be sure to also use
@@ -157,6 +168,7 @@ abstract class BaseTest {
         every { Registry.clock } returns staticClock
         every { Registry.log } returns spyLog
         every { Registry.threadHelper } returns mockThreadHelper
+        every { Registry.tracer } returns mockTracer
 
         // Mock using latest SDK
         setFinalStatic(Build.VERSION::class.java.getField("SDK_INT"), 33)
@@ -0,0 +1,235 @@
+package com.klaviyo.fixtures
+
+import com.klaviyo.core.model.DataStore
+import com.klaviyo.core.model.StoreObserver
+import java.util.Collections
+import java.util.UUID
+import kotlin.concurrent.thread
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Conformance suite for [DataStore] implementations, per the contract documented on [DataStore]
+ *
+ * To verify a store, e.g. one provided via `Config.Builder.dataStore`, extend this class
+ * in a unit or instrumented test source set, and implement [createStore].
+ */
+abstract class DataStoreConformanceTest : BaseTest() {
+
+    private companion object {
+        const val THREADS = 8
+        const val WRITES_PER_THREAD = 100
+    }
+
+    /**
+     * Create the store under test
+     *
+     * Keys used by the suite are unique per test, so the store needn't be empty.
+     */
+    abstract fun createStore(): DataStore
+
+    protected lateinit var store: DataStore
+
+    private val prefix = "conformance_${UUID.randomUUID()}_"
+    private val changes: MutableList<Pair<String, String?>> =
+        Collections.synchronizedList(mutableListOf())
+    private val recorder: StoreObserver = { key, value ->
+        if (key.startsWith(prefix)) changes += key to value
+    }
+
+    private fun key(name: String) = prefix + name
+
+    @Before
+    override fun setup() {
+        super.setup()
+        store = createStore()
+        store.onStoreChange(recorder)
+    }
+
+    @After
+    override fun cleanup() {
+        store.offStoreChange(recorder)
+        super.cleanup()
+    }
+
+    @Test
+    fun `Fetches null for a key that is not set`() {
+        assertNull(store.fetch(key("missing")))
+    }
+
+    @Test
+    fun `Stores, overwrites and clears values`() {
+        store.store(key("a"), "1")
+        assertEquals("1", store.fetch(key("a")))
+
+        store.store(key("a"), "2")
+        assertEquals("2", store.fetch(key("a")))
+
+        store.clear(key("a"))
+        assertNull(store.fetch(key("a")))
+
+        // Clearing a key that is not set is allowed
+        store.clear(key("a"))
+        assertNull(store.fetch(key("a")))
+    }
+
+    @Test
+    fun `Notifies observers of every change once it is visible`() {
+        val visible = mutableListOf<String?>()
+        val observer: StoreObserver = { changed, _ ->
+            if (changed == key("a")) visible += store.fetch(changed)
+        }
+        store.onStoreChange(observer)
+
+        store.store(key("a"), "1")
+        store.store(key("a"), "1")
+        store.clear(key("a"))
+        store.offStoreChange(observer)
+
+        assertEquals(listOf(key("a") to "1", key("a") to "1", key("a") to null), changes)
+        assertEquals(listOf("1", "1", null), visible)
+    }
+
+    @Test
+    fun `Stops notifying an unregistered observer`() {
+        store.offStoreChange(recorder)
+        store.store(key("a"), "1")
+        assertEquals(emptyList<Pair<String, String?>>(), changes)
+    }
+
+    @Test
+    fun `Observers may unregister themselves while being notified`() {
+        var calls = 0
+        val observer = object : (String, String?) -> Unit {
+            override fun invoke(changed: String, value: String?) {
+                calls++
+                store.offStoreChange(this)
+            }
+        }
+        store.onStoreChange(observer)
+
+        store.store(key("a"), "1")
+        store.store(key("b"), "2")
+
+        assertEquals(1, calls)
+        assertEquals(listOf(key("a") to "1", key("b") to "2"), changes)
+    }
+
+    @Test
+    fun `Edit applies all changes together and notifies once per key`() {
+        store.store(key("c"), "old")
+        changes.clear()
+
+        store.edit {
+            store(key("a"), "1")
+            store(key("b"), "2")
+            clear(key("c"))
+            store(key("a"), "3")
+
+            // Visible to the editing thread as they are made, not yet to others
+            assertEquals("3", this@DataStoreConformanceTest.store.fetch(key("a")))
+            assertNull(fetchOnOtherThread(key("a")))
+            assertEquals("old", fetchOnOtherThread(key("c")))
+            assertEquals(emptyList<Pair<String, String?>>(), changes)
+        }
+
+        assertEquals("3", fetchOnOtherThread(key("a")))
+        assertEquals("2", fetchOnOtherThread(key("b")))
+        assertNull(fetchOnOtherThread(key("c")))
+        assertEquals(
+            setOf(key("a") to "3", key("b") to "2", key("c") to null),
+            changes.toSet()
+        )
+        assertEquals(3, changes.size)
+    }
+
+    @Test
+    fun `Edit applies nothing if the block throws`() {
+        try {
+            store.edit {
+                store(key("a"), "1")
+                throw IllegalStateException("Abandoned edit")
+            }
+            fail("Exception should propagate from the edit")
+        } catch (e: IllegalStateException) {
+            // Expected
+        }
+
+        assertNull(store.fetch(key("a")))
+        assertEquals(emptyList<Pair<String, String?>>(), changes)
+
+        // And the store is still usable afterward
+        store.store(key("b"), "2")
+        assertEquals("2", store.fetch(key("b")))
+    }
+
+    @Test
+    fun `Nested edits and direct writes join the outermost edit`() {
+        store.edit {
+            store(key("a"), "1")
+            this@DataStoreConformanceTest.store.edit { store(key("b"), "2") }
+            this@DataStoreConformanceTest.store.store(key("c"), "3")
+
+            assertNull(fetchOnOtherThread(key("b")))
+            assertNull(fetchOnOtherThread(key("c")))
+        }
+
+        assertEquals("2", fetchOnOtherThread(key("b")))
+        assertEquals("3", fetchOnOtherThread(key("c")))
+        assertEquals(3, changes.size)
+    }
+
+    @Test
+    fun `Concurrent writes from many threads are not lost`() {
+        List(THREADS) { t ->
+            thread {
+                repeat(WRITES_PER_THREAD) { i ->
+                    if (i % 2 == 0) {
+                        store.store(key("$t-$i"), "$i")
+                    } else {
+                        store.edit { store(key("$t-$i"), "$i") }
+                    }
+                }
+            }
+        }.forEach { it.join() }
+
+        repeat(THREADS) { t ->
+            repeat(WRITES_PER_THREAD) { i -> assertEquals("$i", store.fetch(key("$t-$i"))) }
+        }
+        assertEquals(THREADS * WRITES_PER_THREAD, changes.size)
+    }
+
+    @Test
+    fun `Values stored with a TTL read as set until they expire`() {
+        store.store(key("a"), "1", 60_000)
+        store.edit { store(key("b"), "2", 60_000) }
+
+        // Stores may ignore the TTL, so only behavior before expiry is required
+        assertEquals("1", store.fetch(key("a")))
+        assertEquals("2", fetchOnOtherThread(key("b")))
+        assertEquals(listOf(key("a") to "1", key("b") to "2"), changes)
+
+        store.clear(key("a"))
+        assertNull(store.fetch(key("a")))
+    }
+
+    @Test
+    fun `Lists set keys if keys are supported`() {
+        store.store(key("a"), "1")
+        val keys = store.keys()
+
+        // Stores may opt out of listing keys, by returning none at all
+        assertTrue(keys.isEmpty() || key("a") in keys)
+    }
+
+    private fun fetchOnOtherThread(key: String): String? {
+        var value: String? = null
+        thread { value = store.fetch(key) }.join()
+        return value
+    }
+}
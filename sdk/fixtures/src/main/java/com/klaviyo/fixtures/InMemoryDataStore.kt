@@ -2,6 +2,7 @@ package com.klaviyo.fixtures
 
 import com.klaviyo.core.model.DataStore
 import com.klaviyo.core.model.StoreObserver
+import java.util.concurrent.CopyOnWriteArrayList
 
 /**
  * Implementation of DataStore that just uses an in-memory map
@@ -10,19 +11,30 @@ import com.klaviyo.core.model.StoreObserver
 class InMemoryDataStore : DataStore {
     private val store: MutableMap<String, String> = mutableMapOf()
 
+    private val observers = CopyOnWriteArrayList<StoreObserver>()
+
     override fun fetch(key: String): String? {
         return store[key]
     }
 
     override fun store(key: String, value: String) {
         store[key] = value
+        observers.forEach { it(key, value) }
     }
 
+    override fun keys(): Set<String> = store.keys.toSet()
+
     override fun clear(key: String) {
         store.remove(key)
+        observers.forEach { it(key, null) }
     }
 
-    // Test fixture doesn't need an observer implementation
-    override fun onStoreChange(observer: StoreObserver) {}
-    override fun offStoreChange(observer: StoreObserver) {}
+    // Observers are notified, so caches over the store are invalidated like in production
+    override fun onStoreChange(observer: StoreObserver) {
+        observers += observer
+    }
+
+    override fun offStoreChange(observer: StoreObserver) {
+        observers -= observer
+    }
 }
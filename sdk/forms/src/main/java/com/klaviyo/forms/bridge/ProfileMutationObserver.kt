@@ -2,32 +2,35 @@ package com.klaviyo.forms.bridge
 
 import com.klaviyo.analytics.state.State
 import com.klaviyo.analytics.state.StateChange
-import com.klaviyo.analytics.state.StateChangeObserver
+import com.klaviyo.analytics.state.StateUpdateObserver
 import com.klaviyo.core.Registry
 
 /**
  * Observe [State] in the analytics package to synchronize profile identifiers with the webview
  */
-internal class ProfileMutationObserver : JsBridgeObserver, StateChangeObserver {
+internal class ProfileMutationObserver : JsBridgeObserver, StateUpdateObserver {
 
     override fun startObserver() {
         // Set initial profile identifiers on startup
         injectProfile()
-        Registry.get<State>().onStateChange(this)
+        Registry.get<State>().onStateUpdate(this)
     }
 
-    override fun stopObserver() = Registry.get<State>().offStateChange(this)
+    override fun stopObserver() = Registry.get<State>().offStateUpdate(this)
 
     /**
-     * Update profile in webview whenever an identifier changes, or profile is reset
+     * Update profile in webview whenever an identifier changes, or profile is reset,
+     * once per update to state however many identifiers it changed
      */
-    override fun invoke(change: StateChange) {
-        when (change) {
-            is StateChange.ProfileIdentifier, is StateChange.ProfileReset -> injectProfile()
-            else -> Unit
+    override fun invoke(changes: List<StateChange>) {
+        if (changes.any(::isIdentityChange)) {
+            injectProfile()
         }
     }
 
+    private fun isIdentityChange(change: StateChange) =
+        change is StateChange.ProfileIdentifier || change is StateChange.ProfileReset
+
     private fun injectProfile() = Registry.get<JsBridge>().profileMutation(
         Registry.get<State>().getAsProfile()
     )
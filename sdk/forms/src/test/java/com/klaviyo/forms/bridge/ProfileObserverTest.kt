@@ -5,7 +5,7 @@ import com.klaviyo.analytics.model.Profile
 import com.klaviyo.analytics.model.ProfileKey
 import com.klaviyo.analytics.state.State
 import com.klaviyo.analytics.state.StateChange
-import com.klaviyo.analytics.state.StateChangeObserver
+import com.klaviyo.analytics.state.StateUpdateObserver
 import com.klaviyo.core.Registry
 import io.mockk.every
 import io.mockk.mockk
@@ -18,9 +18,9 @@ import org.junit.Test
 class ProfileObserverTest {
 
     private val stubProfile = Profile()
-    private val observerSlot = slot<StateChangeObserver>()
+    private val observerSlot = slot<StateUpdateObserver>()
     private val stateMock = mockk<State>(relaxed = true).apply {
-        every { onStateChange(capture(observerSlot)) } returns Unit
+        every { onStateUpdate(capture(observerSlot)) } returns Unit
         every { getAsProfile() } returns stubProfile
     }
 
@@ -52,7 +52,7 @@ class ProfileObserverTest {
     @Test
     fun `observer calls set profile when profile resets`() {
         val mockBridge = withBridge()
-        observerSlot.captured.invoke(StateChange.ProfileReset(mockk()))
+        observerSlot.captured.invoke(listOf(StateChange.ProfileReset(mockk())))
         verify(exactly = 2) { mockBridge.profileMutation(stubProfile) }
     }
 
@@ -62,7 +62,7 @@ class ProfileObserverTest {
         val mockKeyword = mockk<Keyword>(relaxed = true).apply {
             every { name } returns "something_else"
         }
-        observerSlot.captured.invoke(StateChange.KeyValue(mockKeyword, "some value"))
+        observerSlot.captured.invoke(listOf(StateChange.KeyValue(mockKeyword, "some value")))
         verify(exactly = 1) { mockBridge.profileMutation(stubProfile) }
     }
 
@@ -80,18 +80,33 @@ class ProfileObserverTest {
             val mockKeyword = mockk<ProfileKey>(relaxed = true).apply {
                 every { name } returns key
             }
-            observerSlot.captured.invoke(StateChange.ProfileIdentifier(mockKeyword, "value"))
+            observerSlot.captured.invoke(
+                listOf(StateChange.ProfileIdentifier(mockKeyword, "value"))
+            )
         }
 
         verify(exactly = keys.count() + 1) { mockBridge.profileMutation(stubProfile) }
     }
 
+    @Test
+    fun `observer calls set profile once per profile update`() {
+        val mockBridge = withBridge()
+        observerSlot.captured.invoke(
+            listOf(
+                StateChange.ProfileReset(mockk()),
+                StateChange.ProfileIdentifier(ProfileKey.EMAIL, null),
+                StateChange.ProfileIdentifier(ProfileKey.PHONE_NUMBER, null)
+            )
+        )
+        verify(exactly = 2) { mockBridge.profileMutation(stubProfile) }
+    }
+
     @Test
     fun `stopObserver removes the lambda from state change listeners`() {
         withBridge()
         val observer = ProfileMutationObserver()
         observer.startObserver()
         observer.stopObserver()
-        verify(exactly = 1) { stateMock.offStateChange(observerSlot.captured) }
+        verify(exactly = 1) { stateMock.offStateUpdate(observerSlot.captured) }
     }
 }
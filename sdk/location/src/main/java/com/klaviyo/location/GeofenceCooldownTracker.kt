@@ -1,7 +1,6 @@
 package com.klaviyo.location
 
 import com.klaviyo.core.Registry
-import org.json.JSONObject
 
 /**
  * Manages geofence transition cooldown periods to prevent duplicate events from GPS drift.
@@ -10,14 +9,22 @@ import org.json.JSONObject
  * linger near geofence boundaries. This tracker enforces a cooldown period per geofence
  * and transition type to filter out noise while allowing legitimate events.
  *
- * Cooldown data is stored as a JSON map in DataStore with automatic cleanup of stale entries.
+ * Each transition's timestamp is stored under its own key, with a TTL of the cooldown period,
+ * so the DataStore expires stale entries. A DataStore provided by the host app may not support
+ * TTLs, so the timestamp is still checked on read, and stale keys are pruned by the tracker too,
+ * see [prune]. Otherwise keys of geofences that aren't visited again would be kept forever.
  */
 internal class GeofenceCooldownTracker {
     companion object {
         /**
-         * Key for storing geofence transition cooldown timestamps as a map
+         * Key of the map of all cooldown timestamps stored by earlier SDK versions
          */
-        private const val GEOFENCE_COOLDOWNS_KEY = "geofence_cooldowns"
+        internal const val GEOFENCE_COOLDOWNS_KEY = "geofence_cooldowns"
+
+        /**
+         * Prefix of the keys storing the last timestamp of each geofence transition
+         */
+        internal const val GEOFENCE_COOLDOWN_KEY_PREFIX = "geofence_cooldown:"
 
         /**
          * Cooldown period for geofence transitions in milliseconds (60 seconds)
@@ -27,11 +34,46 @@ internal class GeofenceCooldownTracker {
     }
 
     /**
-     * Externally trigger the saved cooldown map to expire old keys
+     * Time of the last [prune], to prune at most once per cooldown period
+     */
+    @Volatile
+    private var lastPruneTime: Long? = null
+
+    /**
+     * Remove the cooldown map left by earlier SDK versions, if any, and any stale cooldowns
+     *
+     * The map's entries only last the cooldown period, so there is nothing worth migrating.
      */
     fun clean() {
-        val cooldownMap = loadCooldownMap()
-        saveCooldownMap(cooldownMap)
+        if (Registry.dataStore.fetch(GEOFENCE_COOLDOWNS_KEY) != null) {
+            Registry.dataStore.clear(GEOFENCE_COOLDOWNS_KEY)
+        }
+
+        prune()
+    }
+
+    /**
+     * Clear cooldown keys whose cooldown period has elapsed, in a single edit
+     *
+     * This finds nothing on a DataStore that expires keys itself. Stores that can't list their keys
+     * keep stale cooldowns until the same transition is recorded again.
+     */
+    private fun prune() {
+        val currentTime = Registry.clock.currentTimeMillis()
+        lastPruneTime = currentTime
+
+        val stale = Registry.dataStore.keys()
+            .filter { it.startsWith(GEOFENCE_COOLDOWN_KEY_PREFIX) }
+            .filter { key ->
+                val lastTransitionTime = Registry.dataStore.fetch(key)?.toLongOrNull()
+                lastTransitionTime == null ||
+                    currentTime - lastTransitionTime >= GEOFENCE_TRANSITION_COOLDOWN
+            }
+
+        if (stale.isEmpty()) return
+
+        Registry.dataStore.edit { stale.forEach { clear(it) } }
+        Registry.log.verbose("Cleared ${stale.size} stale geofence cooldowns")
     }
 
     /**
@@ -42,9 +84,10 @@ internal class GeofenceCooldownTracker {
      * @return true if the event should be created (cooldown elapsed or no previous event), false otherwise
      */
     fun isAllowed(geofenceId: String, transition: KlaviyoGeofenceTransition): Boolean {
-        val cooldownMap = loadCooldownMap()
-        val mapKey = getCooldownMapKey(geofenceId, transition)
-        val lastTransitionTime = cooldownMap[mapKey] ?: return true
+        val lastTransitionTime = Registry.dataStore
+            .fetch(getCooldownKey(geofenceId, transition))
+            ?.toLongOrNull()
+            ?: return true
 
         val currentTime = Registry.clock.currentTimeMillis()
         val elapsedTime = currentTime - lastTransitionTime
@@ -70,68 +113,28 @@ internal class GeofenceCooldownTracker {
      * @param transition The transition type
      */
     fun recordTransition(geofenceId: String, transition: KlaviyoGeofenceTransition) {
-        val cooldownMap = loadCooldownMap().toMutableMap()
-        val mapKey = getCooldownMapKey(geofenceId, transition)
         val currentTime = Registry.clock.currentTimeMillis()
 
-        cooldownMap[mapKey] = currentTime
-        saveCooldownMap(cooldownMap)
+        Registry.dataStore.store(
+            getCooldownKey(geofenceId, transition),
+            currentTime.toString(),
+            GEOFENCE_TRANSITION_COOLDOWN
+        )
 
         Registry.log.verbose("Recorded transition time for $geofenceId ${transition.name}")
-    }
-
-    /**
-     * Load the cooldown map from DataStore and filter out stale entries for in-memory use
-     *
-     * @return Map of geofence+transition keys to timestamps (stale entries filtered out)
-     */
-    private fun loadCooldownMap(): Map<String, Long> {
-        val storedJson = Registry.dataStore.fetch(GEOFENCE_COOLDOWNS_KEY) ?: return emptyMap()
-        val currentTime = Registry.clock.currentTimeMillis()
-
-        return try {
-            JSONObject(storedJson).let { json ->
-                json.keys().asSequence()
-                    .associateWith { json.getLong(it) }
-                    .filterValues { timestamp ->
-                        // Filter: keep only entries within cooldown period for in-memory use
-                        currentTime - timestamp <= GEOFENCE_TRANSITION_COOLDOWN
-                    }
-            }
-        } catch (e: Exception) {
-            Registry.log.error("Failed to load geofence cooldowns", e)
-            emptyMap()
-        }
-    }
-
-    /**
-     * Save the cooldown map to DataStore, filtering out stale entries before writing
-     *
-     * @param cooldownMap Map of geofence+transition keys to timestamps
-     */
-    private fun saveCooldownMap(cooldownMap: Map<String, Long>) {
-        try {
-            val currentTime = Registry.clock.currentTimeMillis()
-
-            // Filter out stale entries before saving to reduce storage size
-            val cleanedMap = cooldownMap.filterValues { timestamp ->
-                currentTime - timestamp <= GEOFENCE_TRANSITION_COOLDOWN
-            }
 
-            val json = JSONObject(cleanedMap)
-            Registry.dataStore.store(GEOFENCE_COOLDOWNS_KEY, json.toString())
-        } catch (e: Exception) {
-            Registry.log.error("Failed to save geofence cooldowns", e)
+        if (lastPruneTime?.let { currentTime - it >= GEOFENCE_TRANSITION_COOLDOWN } != false) {
+            prune()
         }
     }
 
     /**
-     * Generate the map key for a geofence transition
+     * Generate the DataStore key for a geofence transition
      *
      * @param geofenceId The geofence ID
      * @param transition The transition type
-     * @return The map key string
+     * @return The key string
      */
-    private fun getCooldownMapKey(geofenceId: String, transition: KlaviyoGeofenceTransition): String =
-        "$geofenceId:${transition.name}"
+    private fun getCooldownKey(geofenceId: String, transition: KlaviyoGeofenceTransition): String =
+        "$GEOFENCE_COOLDOWN_KEY_PREFIX$geofenceId:${transition.name}"
 }
@@ -21,6 +21,10 @@ import com.klaviyo.analytics.networking.requests.FetchGeofencesResult
 import com.klaviyo.analytics.state.State
 import com.klaviyo.core.Registry
 import com.klaviyo.core.config.Config
+import com.klaviyo.core.model.awaitFetch
+import com.klaviyo.core.model.fetch
+import com.klaviyo.core.model.registerDataStorePartition
+import com.klaviyo.core.model.store
 import com.klaviyo.core.safeLaunch
 import com.klaviyo.location.LocationManager.Companion.MAX_CONCURRENT_GEOFENCES
 import java.util.concurrent.CopyOnWriteArrayList
@@ -66,6 +70,20 @@ internal class KlaviyoLocationManager : LocationManager {
          * Geofence transition types to monitor (enter and exit)
          */
         private const val TRANSITIONS = GEOFENCE_TRANSITION_ENTER or GEOFENCE_TRANSITION_EXIT
+
+        /**
+         * Whether a store key is one of the location module's: geofences, or transition cooldowns
+         */
+        internal fun isLocationKey(key: String): Boolean =
+            key == GEOFENCES_STORAGE_KEY ||
+                key == TRACKED_IDS_STORAGE_KEY ||
+                key == GeofenceCooldownTracker.GEOFENCE_COOLDOWNS_KEY ||
+                key.startsWith(GeofenceCooldownTracker.GEOFENCE_COOLDOWN_KEY_PREFIX)
+    }
+
+    init {
+        // Keep frequent cooldown writes from re-writing the rest of the SDK's state
+        registerDataStorePartition("location", ::isLocationKey)
     }
 
     /**
@@ -139,7 +157,8 @@ internal class KlaviyoLocationManager : LocationManager {
      * If not, we will wait till proper permission is granted before fetching.
      */
     override fun startGeofenceMonitoring() {
-        cooldownTracker.clean()
+        // Scanning stored cooldowns reads every key, so keep it off the calling thread
+        CoroutineScope(Registry.dispatcher).safeLaunch { cooldownTracker.clean() }
         updateSystemMonitoring(Registry.locationPermissionMonitor.permissionState)
         onGeofenceSync(true, ::startSystemMonitoringCallback)
         Registry.locationPermissionMonitor.onPermissionChanged(true, ::updateSystemMonitoring)
@@ -161,12 +180,12 @@ internal class KlaviyoLocationManager : LocationManager {
      */
     private fun updateSystemMonitoring(hasPermissions: Boolean) {
         if (hasPermissions) {
-            // Start monitoring currently stored geofences
+            // Start monitoring currently stored geofences, read off the calling thread
             Registry.log.info("Required location permissions granted, starting geofence monitoring")
-            getStoredGeofences().takeIf { geofences ->
-                geofences.isNotEmpty()
-            }?.let { geofences ->
-                CoroutineScope(Registry.dispatcher).safeLaunch {
+            CoroutineScope(Registry.dispatcher).safeLaunch {
+                awaitStoredGeofences().takeIf { geofences ->
+                    geofences.isNotEmpty()
+                }?.let { geofences ->
                     startSystemMonitoring(geofences)
                 }
             }
@@ -300,15 +319,14 @@ internal class KlaviyoLocationManager : LocationManager {
      */
     fun storeGeofences(geofences: List<KlaviyoGeofence>) {
         try {
-            // Serialize geofences to JSON array
-            val jsonArray = JSONArray().apply {
-                geofences.forEach { geofence ->
-                    put(geofence.toJson())
-                }
+            // Store in dataStore as a JSON array, and keep the parsed list cached
+            Registry.dataStoreCache.store<List<*>>(GEOFENCES_STORAGE_KEY, geofences.toList()) {
+                JSONArray().apply {
+                    geofences.forEach { geofence ->
+                        put(geofence.toJson())
+                    }
+                }.toString()
             }
-
-            // Store in dataStore
-            Registry.dataStore.store(GEOFENCES_STORAGE_KEY, jsonArray.toString())
             Registry.log.verbose("Saved ${geofences.size} geofences to persistent storage")
 
             // Notify observers that new geofences have been fetched and stored
@@ -336,10 +354,20 @@ internal class KlaviyoLocationManager : LocationManager {
      *
      * @return List of geofences, or empty list if none are stored or parsing fails
      */
-    override fun getStoredGeofences(): List<KlaviyoGeofence> = try {
-        val geofences = Registry.dataStore.fetch(GEOFENCES_STORAGE_KEY)?.let {
-            JSONArray(it).toKlaviyoGeofences()
-        } ?: emptyList()
+    override fun getStoredGeofences(): List<KlaviyoGeofence> = readStoredGeofences {
+        Registry.dataStoreCache.fetch<List<*>>(GEOFENCES_STORAGE_KEY, ::decodeGeofences)
+    }
+
+    /**
+     * Retrieve the stored geofences, see [getStoredGeofences], without blocking the calling thread
+     */
+    private suspend fun awaitStoredGeofences(): List<KlaviyoGeofence> = readStoredGeofences {
+        Registry.dataStoreCache.awaitFetch<List<*>>(GEOFENCES_STORAGE_KEY, ::decodeGeofences)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private inline fun readStoredGeofences(fetch: () -> List<*>?): List<KlaviyoGeofence> = try {
+        val geofences = fetch() as List<KlaviyoGeofence>? ?: emptyList()
 
         Registry.log.verbose("Retrieved ${geofences.size} geofences from persistent storage")
         geofences
@@ -348,6 +376,8 @@ internal class KlaviyoLocationManager : LocationManager {
         emptyList()
     }
 
+    private fun decodeGeofences(json: String): List<*> = JSONArray(json).toKlaviyoGeofences()
+
     /**
      * Get the list of geofences currently being monitored by the system
      *
@@ -382,12 +412,13 @@ internal class KlaviyoLocationManager : LocationManager {
      *
      * @return Set of tracked geofence IDs, or empty set if none
      */
+    @Suppress("UNCHECKED_CAST")
     private fun getTrackedIds(): Set<String> = try {
-        Registry.dataStore.fetch(TRACKED_IDS_STORAGE_KEY)?.let { json ->
+        Registry.dataStoreCache.fetch<Set<*>>(TRACKED_IDS_STORAGE_KEY) { json ->
             JSONArray(json).let { array ->
                 (0 until array.length()).map { array.getString(it) }.toSet()
             }
-        } ?: emptySet()
+        } as Set<String>? ?: emptySet()
     } catch (e: Exception) {
         Registry.log.error("Failed to retrieve tracked geofence IDs", e)
         emptySet()
@@ -626,17 +657,17 @@ internal class KlaviyoLocationManager : LocationManager {
             Klaviyo.registerForLifecycleCallbacks(context)
         }
 
-        // Re-register geofences with the system
-        getStoredGeofences()
-            .takeIf { !it.isEmpty() }
-            ?.let { storedGeofences ->
-                Registry.log.info("Restoring ${storedGeofences.size} geofences after boot")
-                CoroutineScope(Registry.dispatcher).safeLaunch {
+        // Re-register geofences with the system, reading them off the receiver's thread
+        CoroutineScope(Registry.dispatcher).safeLaunch {
+            awaitStoredGeofences()
+                .takeIf { !it.isEmpty() }
+                ?.let { storedGeofences ->
+                    Registry.log.info("Restoring ${storedGeofences.size} geofences after boot")
                     startSystemMonitoring(storedGeofences)
                 }
-            }
-            ?: run {
-                Registry.log.info("No stored geofences to restore after boot")
-            }
+                ?: run {
+                    Registry.log.info("No stored geofences to restore after boot")
+                }
+        }
     }
 }
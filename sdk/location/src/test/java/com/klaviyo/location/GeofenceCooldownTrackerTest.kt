@@ -2,10 +2,11 @@ package com.klaviyo.location
 
 import com.klaviyo.core.Registry
 import com.klaviyo.fixtures.BaseTest
+import io.mockk.verify
 import org.json.JSONObject
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
-import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
 import org.junit.Assert.assertTrue
 import org.junit.Test
 
@@ -13,10 +14,40 @@ class GeofenceCooldownTrackerTest : BaseTest() {
     private val tracker = GeofenceCooldownTracker()
     private val geofenceId = "test_geofence_id"
 
+    private fun cooldownKey(geofenceId: String, transition: String) =
+        "geofence_cooldown:$geofenceId:$transition"
+
+    @Test
+    fun `Cooldown keys belong to the location partition`() {
+        listOf(
+            GeofenceCooldownTracker.GEOFENCE_COOLDOWNS_KEY,
+            cooldownKey(geofenceId, "Entered")
+        ).forEach { assertTrue(it, KlaviyoLocationManager.isLocationKey(it)) }
+    }
+
+    @Test
+    fun `Stale cooldowns are pruned on stores that ignore TTLs`() {
+        val staleKey = cooldownKey("visited_once", "Exited")
+        val recentKey = cooldownKey("visited_recently", "Entered")
+        Registry.dataStore.store(staleKey, (TIME - 70_000).toString())
+        Registry.dataStore.store(recentKey, (TIME - 30_000).toString())
+
+        tracker.recordTransition(geofenceId, KlaviyoGeofenceTransition.Entered)
+
+        assertNull(Registry.dataStore.fetch(staleKey))
+        assertEquals((TIME - 30_000).toString(), Registry.dataStore.fetch(recentKey))
+        assertEquals(TIME.toString(), Registry.dataStore.fetch(cooldownKey(geofenceId, "Entered")))
+
+        // Pruned at most once per cooldown period
+        Registry.dataStore.store(staleKey, (TIME - 70_000).toString())
+        tracker.recordTransition(geofenceId, KlaviyoGeofenceTransition.Exited)
+        assertEquals((TIME - 70_000).toString(), Registry.dataStore.fetch(staleKey))
+    }
+
     @Test
     fun `isAllowed returns true on first transition with no previous entry`() {
         // No previous cooldown entry exists
-        Registry.dataStore.clear("geofence_cooldowns")
+        Registry.dataStore.clear(cooldownKey(geofenceId, "Entered"))
 
         // Should allow first transition
         assertTrue(tracker.isAllowed(geofenceId, KlaviyoGeofenceTransition.Entered))
@@ -25,10 +56,7 @@ class GeofenceCooldownTrackerTest : BaseTest() {
     @Test
     fun `isAllowed returns false within cooldown period`() {
         // Store a recent transition (30 seconds ago)
-        val cooldownMap = JSONObject().apply {
-            put("$geofenceId:Entered", TIME - 30_000)
-        }
-        Registry.dataStore.store("geofence_cooldowns", cooldownMap.toString())
+        Registry.dataStore.store(cooldownKey(geofenceId, "Entered"), (TIME - 30_000).toString())
 
         // Should block transition within cooldown
         assertFalse(tracker.isAllowed(geofenceId, KlaviyoGeofenceTransition.Entered))
@@ -37,28 +65,22 @@ class GeofenceCooldownTrackerTest : BaseTest() {
     @Test
     fun `isAllowed returns true after cooldown period expires`() {
         // Store an old transition (70 seconds ago, beyond 60s cooldown)
-        val cooldownMap = JSONObject().apply {
-            put("$geofenceId:Entered", TIME - 70_000)
-        }
-        Registry.dataStore.store("geofence_cooldowns", cooldownMap.toString())
+        // The test data store ignores TTLs, like a host app's store might
+        Registry.dataStore.store(cooldownKey(geofenceId, "Entered"), (TIME - 70_000).toString())
 
         // Should allow transition after cooldown expires
         assertTrue(tracker.isAllowed(geofenceId, KlaviyoGeofenceTransition.Entered))
     }
 
     @Test
-    fun `recordTransition stores timestamp in map`() {
-        // Clear any existing data
-        Registry.dataStore.clear("geofence_cooldowns")
-
+    fun `recordTransition stores timestamp with a TTL of the cooldown period`() {
         // Record a transition
         tracker.recordTransition(geofenceId, KlaviyoGeofenceTransition.Entered)
 
-        // Verify timestamp was stored
-        val storedJson = Registry.dataStore.fetch("geofence_cooldowns")
-        assertNotNull(storedJson)
-        val cooldownMap = JSONObject(storedJson)
-        assertEquals(TIME, cooldownMap.getLong("$geofenceId:Entered"))
+        // Verify timestamp was stored, to expire with the cooldown
+        val key = cooldownKey(geofenceId, "Entered")
+        verify { spyDataStore.store(key, TIME.toString(), 60_000L) }
+        assertEquals(TIME.toString(), Registry.dataStore.fetch(key))
     }
 
     @Test
@@ -67,10 +89,7 @@ class GeofenceCooldownTrackerTest : BaseTest() {
         val geofence2 = "geofence_2"
 
         // Store recent transition for geofence1 only (30 seconds ago)
-        val cooldownMap = JSONObject().apply {
-            put("$geofence1:Entered", TIME - 30_000)
-        }
-        Registry.dataStore.store("geofence_cooldowns", cooldownMap.toString())
+        Registry.dataStore.store(cooldownKey(geofence1, "Entered"), (TIME - 30_000).toString())
 
         // geofence1 should be blocked
         assertFalse(tracker.isAllowed(geofence1, KlaviyoGeofenceTransition.Entered))
@@ -82,10 +101,7 @@ class GeofenceCooldownTrackerTest : BaseTest() {
     @Test
     fun `tracker enforces independent cooldown per transition type`() {
         // Store recent ENTER transition (30 seconds ago)
-        val cooldownMap = JSONObject().apply {
-            put("$geofenceId:Entered", TIME - 30_000)
-        }
-        Registry.dataStore.store("geofence_cooldowns", cooldownMap.toString())
+        Registry.dataStore.store(cooldownKey(geofenceId, "Entered"), (TIME - 30_000).toString())
 
         // ENTER should be blocked
         assertFalse(tracker.isAllowed(geofenceId, KlaviyoGeofenceTransition.Entered))
@@ -95,117 +111,49 @@ class GeofenceCooldownTrackerTest : BaseTest() {
     }
 
     @Test
-    fun `loadCooldownMap filters stale entries from memory but persists on save only`() {
+    fun `recordTransition leaves other transitions in place`() {
         val geofence1 = "geofence_1"
         val geofence2 = "geofence_2"
-        val geofence3 = "geofence_3"
-
-        // Store map with both recent and stale entries
-        val cooldownMap = JSONObject().apply {
-            put("$geofence1:Entered", TIME - 30_000) // Recent (within 60s)
-            put("$geofence2:Entered", TIME - 70_000) // Stale (beyond 60s)
-            put("$geofence3:Exited", TIME - 10_000) // Recent
-        }
-        Registry.dataStore.store("geofence_cooldowns", cooldownMap.toString())
 
-        // Trigger a load by calling isAllowed - this only reads, doesn't save
-        tracker.isAllowed(geofence1, KlaviyoGeofenceTransition.Entered)
-
-        // Verify stale entries are still in storage (load doesn't persist)
-        val storedAfterLoad = JSONObject(Registry.dataStore.fetch("geofence_cooldowns")!!)
-        assertEquals(3, storedAfterLoad.length())
-        assertTrue(storedAfterLoad.has("$geofence2:Entered"))
-
-        // Now record a transition which triggers a save
-        tracker.recordTransition(geofence1, KlaviyoGeofenceTransition.Dwelt)
-
-        // Verify stale entries are now cleaned from storage
-        val storedAfterSave = JSONObject(Registry.dataStore.fetch("geofence_cooldowns")!!)
+        // Store initial entry for geofence1
+        Registry.dataStore.store(cooldownKey(geofence1, "Entered"), (TIME - 30_000).toString())
 
-        // Recent entries should exist
-        assertTrue(storedAfterSave.has("$geofence1:Dwelt"))
-        assertTrue(storedAfterSave.has("$geofence1:Entered"))
-        assertTrue(storedAfterSave.has("$geofence3:Exited"))
+        // Record a new transition for geofence2
+        tracker.recordTransition(geofence2, KlaviyoGeofenceTransition.Exited)
 
-        // Stale entry should be gone after save
-        assertFalse(storedAfterSave.has("$geofence2:Entered"))
+        // Verify both entries exist
+        assertEquals(
+            (TIME - 30_000).toString(),
+            Registry.dataStore.fetch(cooldownKey(geofence1, "Entered"))
+        )
+        assertEquals(TIME.toString(), Registry.dataStore.fetch(cooldownKey(geofence2, "Exited")))
     }
 
     @Test
-    fun `clean removes stale entries from storage`() {
-        val geofence1 = "geofence_1"
-        val geofence2 = "geofence_2"
-        val geofence3 = "geofence_3"
-        val geofence4 = "geofence_4"
-
-        // Store map with multiple stale entries and one recent entry
+    fun `clean removes cooldown map of earlier versions`() {
         val cooldownMap = JSONObject().apply {
-            put("$geofence1:Entered", TIME - 90_000) // Stale (beyond 60s)
-            put("$geofence2:Exited", TIME - 120_000) // Very stale
-            put("$geofence3:Dwelt", TIME - 45_000) // Recent (within 60s)
-            put("$geofence4:Entered", TIME - 75_000) // Stale
+            put("$geofenceId:Entered", TIME - 30_000)
         }
         Registry.dataStore.store("geofence_cooldowns", cooldownMap.toString())
 
-        // Call clean to trigger cleanup
         tracker.clean()
 
-        // Verify only recent entries remain in storage
-        val storedJson = Registry.dataStore.fetch("geofence_cooldowns")
-        assertNotNull(storedJson)
-        val cleanedMap = JSONObject(storedJson)
-
-        // Only the recent entry should exist
-        assertTrue(cleanedMap.has("$geofence3:Dwelt"))
-
-        // All stale entries should be gone
-        assertFalse(cleanedMap.has("$geofence1:Entered"))
-        assertFalse(cleanedMap.has("$geofence2:Exited"))
-        assertFalse(cleanedMap.has("$geofence4:Entered"))
-
-        // Verify we only have 1 entry now
-        assertEquals(1, cleanedMap.length())
+        assertNull(Registry.dataStore.fetch("geofence_cooldowns"))
     }
 
     @Test
-    fun `tracker handles missing cooldown map gracefully`() {
-        // Intentionally clear the map
-        Registry.dataStore.clear("geofence_cooldowns")
+    fun `clean doesn't write when there is no cooldown map`() {
+        tracker.clean()
 
-        // Should not throw and should allow transition
-        assertTrue(tracker.isAllowed(geofenceId, KlaviyoGeofenceTransition.Entered))
+        verify(inverse = true) { spyDataStore.clear(any()) }
     }
 
     @Test
-    fun `tracker handles invalid JSON gracefully`() {
-        // Store invalid JSON
-        Registry.dataStore.store("geofence_cooldowns", "invalid-json")
+    fun `tracker handles invalid timestamp gracefully`() {
+        // Store an invalid timestamp
+        Registry.dataStore.store(cooldownKey(geofenceId, "Entered"), "invalid-timestamp")
 
         // Should not throw and should allow transition
         assertTrue(tracker.isAllowed(geofenceId, KlaviyoGeofenceTransition.Entered))
     }
-
-    @Test
-    fun `recordTransition updates existing map without losing other entries`() {
-        val geofence1 = "geofence_1"
-        val geofence2 = "geofence_2"
-
-        // Store initial entry for geofence1
-        val initialMap = JSONObject().apply {
-            put("$geofence1:Entered", TIME - 30_000)
-        }
-        Registry.dataStore.store("geofence_cooldowns", initialMap.toString())
-
-        // Record a new transition for geofence2
-        tracker.recordTransition(geofence2, KlaviyoGeofenceTransition.Exited)
-
-        // Verify both entries exist
-        val storedJson = Registry.dataStore.fetch("geofence_cooldowns")
-        assertNotNull(storedJson)
-        val cooldownMap = JSONObject(storedJson)
-        assertTrue(cooldownMap.has("$geofence1:Entered"))
-        assertTrue(cooldownMap.has("$geofence2:Exited"))
-        assertEquals(TIME - 30_000, cooldownMap.getLong("$geofence1:Entered"))
-        assertEquals(TIME, cooldownMap.getLong("$geofence2:Exited"))
-    }
 }
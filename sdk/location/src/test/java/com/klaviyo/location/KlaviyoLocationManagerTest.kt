@@ -44,7 +44,6 @@ import kotlinx.coroutines.test.runTest
 import kotlinx.coroutines.test.setMain
 import org.json.JSONArray
 import org.json.JSONException
-import org.json.JSONObject
 import org.junit.After
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertNotNull
@@ -293,6 +292,13 @@ internal class KlaviyoLocationManagerTest : BaseTest() {
 
     // region Registry and Initialization Tests
 
+    @Test
+    fun `Geofence keys belong to the location partition`() {
+        listOf("klaviyo_geofences", "klaviyo_tracked_geofence_ids").forEach {
+            assertTrue(it, KlaviyoLocationManager.isLocationKey(it))
+        }
+    }
+
     @Test
     fun `locationManager registry extension returns existing instance`() {
         // Pre-register a mock LocationManager
@@ -1293,11 +1299,11 @@ internal class KlaviyoLocationManagerTest : BaseTest() {
         val geofenceId = "$API_KEY:geo1"
         val geofence = mockGeofence(geofenceId)
 
-        // Store a recent transition timestamp (30 seconds ago) in the map
-        val cooldownMap = JSONObject().apply {
-            put("$geofenceId:Entered", TIME - 30_000)
-        }
-        Registry.dataStore.store("geofence_cooldowns", cooldownMap.toString())
+        // Store a recent transition timestamp (30 seconds ago)
+        Registry.dataStore.store(
+            "geofence_cooldown:$geofenceId:Entered",
+            (TIME - 30_000).toString()
+        )
 
         // Mock geofence event (same geofence, same transition)
         val mockEvent = mockGeofencingEvent(
@@ -1330,10 +1336,10 @@ internal class KlaviyoLocationManagerTest : BaseTest() {
         val geofence = mockGeofence(geofenceId)
 
         // Store an old transition timestamp (70 seconds ago, beyond 60s cooldown)
-        val cooldownMap = JSONObject().apply {
-            put("$geofenceId:Entered", TIME - 70_000)
-        }
-        Registry.dataStore.store("geofence_cooldowns", cooldownMap.toString())
+        Registry.dataStore.store(
+            "geofence_cooldown:$geofenceId:Entered",
+            (TIME - 70_000).toString()
+        )
 
         // Mock geofence event (same geofence, same transition)
         val mockEvent = mockGeofencingEvent(
@@ -1349,10 +1355,10 @@ internal class KlaviyoLocationManagerTest : BaseTest() {
             verify { mockState.createEvent(any(), any()) }
 
             // Verify new timestamp was stored
-            val storedJson = Registry.dataStore.fetch("geofence_cooldowns")
-            assertNotNull(storedJson)
-            val updatedMap = JSONObject(storedJson)
-            assertEquals(TIME, updatedMap.getLong("$geofenceId:Entered"))
+            assertEquals(
+                TIME.toString(),
+                Registry.dataStore.fetch("geofence_cooldown:$geofenceId:Entered")
+            )
         }
     }
 
@@ -1397,6 +1403,22 @@ internal class KlaviyoLocationManagerTest : BaseTest() {
         verify(exactly = 1) { mockGeofencingClient.addGeofences(any(), any()) }
     }
 
+    @Test
+    fun `handleBootEvent reads stored geofences in the background`() = runTest {
+        mockStoredFences(stubNYC, stubLondon)
+        setupBootEventMocks()
+
+        locationManager.restoreGeofencesOnBoot(mockContext)
+
+        // Nothing is read on the receiver's thread
+        verify(exactly = 0) { spyLog.verbose(match { it.startsWith("Retrieved") }) }
+
+        advanceUntilIdle()
+
+        verify { spyLog.verbose("Retrieved 2 geofences from persistent storage") }
+        verify { spyLog.info("Restoring 2 geofences after boot") }
+    }
+
     @Test
     fun `handleBootEvent restores correct number of geofences`() = runTest {
         mockStoredFences(stubNYC, stubLondon)
@@ -0,0 +1,40 @@
+description = "SQLite persistence for the Klaviyo SDK's API request queue"
+evaluationDependsOn(":sdk")
+
+val publishBuildVariant: String by rootProject.extra
+val readXmlValue: (String, String, Project) -> String by rootProject.extra
+val klaviyoGroupId: String by project
+
+android {
+    namespace = "$klaviyoGroupId.queue.sqlite"
+
+    publishing {
+        singleVariant(publishBuildVariant) {
+            withSourcesJar()
+            withJavadocJar()
+        }
+    }
+}
+
+dependencies {
+    implementation(project(":sdk:core"))
+    implementation(project(":sdk:analytics"))
+    androidTestImplementation(AndroidX.test.ext.junit)
+}
+
+afterEvaluate {
+    publishing {
+        publications {
+            create<MavenPublication>("release") {
+                from(components[publishBuildVariant])
+                groupId = klaviyoGroupId
+                artifactId = "queue-sqlite"
+                version = readXmlValue(
+                    "src/main/res/values/strings.xml",
+                    "klaviyo_sdk_version_override",
+                    project(":sdk:core")
+                )
+            }
+        }
+    }
+}
@@ -0,0 +1,2 @@
+# Keep only class names for stack traces, allow member obfuscation
+-keepnames class com.klaviyo.queue.sqlite.**
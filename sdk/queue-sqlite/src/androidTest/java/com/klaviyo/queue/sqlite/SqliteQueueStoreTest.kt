@@ -0,0 +1,169 @@
+package com.klaviyo.queue.sqlite
+
+import android.content.Context
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.klaviyo.analytics.networking.defaultQueueStore
+import com.klaviyo.core.Registry
+import com.klaviyo.core.model.DataStore
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.core.model.StoreObserver
+import com.klaviyo.core.utils.AdvancedAPI
+import java.io.File
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@OptIn(AdvancedAPI::class)
+@RunWith(AndroidJUnit4::class)
+class SqliteQueueStoreTest {
+
+    private val context: Context = InstrumentationRegistry.getInstrumentation().targetContext
+
+    /**
+     * Minimal in-memory [DataStore], so the default store's legacy migration has something to read
+     */
+    private class MemoryDataStore : DataStore {
+        val values = mutableMapOf<String, String>()
+        override fun fetch(key: String): String? = values[key]
+        override fun store(key: String, value: String) = values.set(key, value)
+        override fun clear(key: String) {
+            values.remove(key)
+        }
+        override fun onStoreChange(observer: StoreObserver) = Unit
+        override fun offStoreChange(observer: StoreObserver) = Unit
+    }
+
+    private val dataStore = MemoryDataStore()
+
+    @Before
+    fun setup() {
+        Registry.register<DataStore>(dataStore)
+        cleanFiles()
+    }
+
+    @After
+    fun cleanup() {
+        cleanFiles()
+        Registry.unregister<DataStore>()
+    }
+
+    private fun cleanFiles() {
+        context.deleteDatabase(SqliteQueueStore.DATABASE_NAME)
+        File(context.filesDir, "klaviyo").deleteRecursively()
+    }
+
+    private fun entry(uuid: String, payload: String = "{\"uuid\":\"$uuid\"}") =
+        QueueEntry(uuid, payload.toByteArray(), type = "Create Event", queuedTime = 1234L)
+
+    private fun QueueStore.uuids() = load().map { it.uuid }
+
+    @Test
+    fun persistsEntriesInQueueOrderIncludingHeadOfLine() {
+        SqliteQueueStore(context).apply {
+            enqueue(listOf(entry("a"), entry("b")))
+            enqueue(listOf(entry("c"), entry("d")), headOfLine = true)
+            enqueue(listOf(entry("e")))
+            enqueue(listOf(entry("a")), headOfLine = true)
+        }
+
+        assertEquals(listOf("c", "d", "a", "b", "e"), SqliteQueueStore(context).uuids())
+    }
+
+    @Test
+    fun updatesRemovesAndSyncs() {
+        val store = SqliteQueueStore(context).apply {
+            enqueue(listOf(entry("a"), entry("b"), entry("c"), entry("d")))
+            update(entry("b", "updated").copy(attempts = 2))
+            remove(listOf("a"))
+            sync(listOf("d", "b"))
+        }
+
+        assertEquals(
+            listOf(entry("d"), entry("b", "updated").copy(attempts = 2)),
+            store.load()
+        )
+
+        store.clear()
+        assertEquals(emptyList<QueueEntry>(), store.load())
+    }
+
+    @Test
+    fun loadsLargeQueueInPages() {
+        val store = SqliteQueueStore(context)
+        val count = SqliteQueueStore.PAGE_SIZE * 3 + 7
+        store.enqueue(List(count) { entry("uuid-$it") })
+
+        assertEquals(List(count) { "uuid-$it" }, store.uuids())
+    }
+
+    @Test
+    fun migratesLegacyQueueKeyData() {
+        dataStore.store("klaviyo_api_request_queue", "[\"a\",\"b\"]")
+        dataStore.store("a", "{\"uuid\":\"a\"}")
+        dataStore.store("b", "{\"uuid\":\"b\"}")
+
+        val store = SqliteQueueStore(context, defaultQueueStore(context))
+
+        assertEquals(listOf("a", "b"), store.uuids())
+        assertEquals(null, dataStore.fetch("klaviyo_api_request_queue"))
+        assertEquals(null, dataStore.fetch("a"))
+
+        // Once the database exists, the legacy store is not read again
+        dataStore.store("klaviyo_api_request_queue", "[\"c\"]")
+        dataStore.store("c", "{\"uuid\":\"c\"}")
+        assertEquals(listOf("a", "b"), SqliteQueueStore(context, defaultQueueStore(context)).uuids())
+    }
+
+    @Test
+    fun migratesDefaultJournalQueue() {
+        defaultQueueStore(context).enqueue(listOf(entry("a"), entry("b")))
+
+        val store = SqliteQueueStore(context, defaultQueueStore(context))
+
+        assertEquals(listOf("a", "b"), store.uuids())
+        assertEquals(emptyList<QueueEntry>(), defaultQueueStore(context).load())
+    }
+
+    /**
+     * Time a typical drain cycle: enqueue [size] requests one at a time,
+     * then remove them all in one batch and restore the (empty) queue
+     */
+    private fun timeDrainCycle(store: QueueStore, size: Int): Long {
+        store.clear()
+        val entries = List(size) { entry("uuid-$it", "x".repeat(1_000)) }
+
+        val start = System.nanoTime()
+        entries.forEach { store.enqueue(listOf(it)) }
+        store.load()
+        store.remove(entries.map { it.uuid })
+        store.load()
+        return System.nanoTime() - start
+    }
+
+    @Test
+    fun benchmarkSqliteAgainstDefaultStore() {
+        val size = 1_000
+        val sqlite = SqliteQueueStore(context)
+        val default = defaultQueueStore(context)
+
+        // Warm up
+        timeDrainCycle(sqlite, size)
+        timeDrainCycle(default, size)
+
+        val sqliteTime = (1..3).minOf { timeDrainCycle(sqlite, size) }
+        val defaultTime = (1..3).minOf { timeDrainCycle(default, size) }
+
+        println(
+            "Drain cycle of $size requests: " +
+                "SQLite ${sqliteTime / 1_000_000}ms, default journal ${defaultTime / 1_000_000}ms"
+        )
+
+        // Informational comparison, only guard against pathological regressions
+        assertTrue("SQLite drain cycle took ${sqliteTime}ns", sqliteTime < 30_000_000_000)
+    }
+}
@@ -0,0 +1,32 @@
+package com.klaviyo.queue.sqlite
+
+import android.content.ContentProvider
+import android.content.ContentValues
+import android.database.Cursor
+import android.net.Uri
+import com.klaviyo.analytics.networking.defaultQueueStore
+import com.klaviyo.core.Registry
+import com.klaviyo.core.model.QueueStore
+import com.klaviyo.core.utils.AdvancedAPI
+
+/**
+ * Registers [SqliteQueueStore] as the API queue store when this module is on the classpath,
+ * migrating any requests queued in the SDK's default store
+ */
+internal class SqliteQueueInitProvider : ContentProvider() {
+    @OptIn(AdvancedAPI::class)
+    override fun onCreate(): Boolean {
+        context?.applicationContext?.let { context ->
+            Registry.registerOnce<QueueStore> {
+                SqliteQueueStore(context, legacyStore = defaultQueueStore(context))
+            }
+        }
+        return true
+    }
+
+    override fun query(u: Uri, p: Array<String>?, s: String?, a: Array<String>?, o: String?): Cursor? = null
+    override fun getType(uri: Uri): String? = null
+    override fun insert(uri: Uri, values: ContentValues?): Uri? = null
+    override fun delete(uri: Uri, s: String?, a: Array<String>?): Int = 0
+    override fun update(uri: Uri, v: ContentValues?, s: String?, a: Array<String>?): Int = 0
+}
@@ -0,0 +1,279 @@
+package com.klaviyo.queue.sqlite
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import android.database.sqlite.SQLiteOpenHelper
+import com.klaviyo.core.Registry
+import com.klaviyo.core.model.QueueEntry
+import com.klaviyo.core.model.QueueStore
+
+/**
+ * [QueueStore] backed by a SQLite database, for apps with heavy request volume
+ *
+ * Each queue operation is a single transaction, so a batch of removals after a drain
+ * commits once rather than once per request. Queue order is kept in a uniquely indexed
+ * position column: tail entries count up, head-of-line entries count down.
+ * The queue is read back in pages, so restoring a large queue never needs a single huge cursor,
+ * and [loadIndex] reads only the UUID column, leaving payloads to be read one at a time.
+ *
+ * When the database is first created, any queue persisted in [legacyStore] is imported
+ * in the same transaction, then cleared from the legacy store.
+ *
+ * @param context Application context
+ * @param legacyStore Store to migrate any existing queue from, when the database is created
+ * @param name Database file name, or null for an in-memory database
+ */
+internal class SqliteQueueStore(
+    context: Context,
+    private val legacyStore: QueueStore? = null,
+    name: String? = DATABASE_NAME
+) : QueueStore {
+
+    companion object {
+        const val DATABASE_NAME = "klaviyo_api_queue.db"
+        private const val DATABASE_VERSION = 1
+
+        private const val TABLE = "api_queue"
+        private const val COL_UUID = "uuid"
+        private const val COL_POSITION = "position"
+        private const val COL_PAYLOAD = "payload"
+        private const val COL_TYPE = "type"
+        private const val COL_QUEUED_TIME = "queued_time"
+        private const val COL_ATTEMPTS = "attempts"
+
+        /**
+         * Number of rows read per query when loading the queue
+         *
+         * Reasoning: Payloads are typically well under 4KB, so a page stays
+         * comfortably within a single 2MB cursor window
+         */
+        internal const val PAGE_SIZE = 250
+    }
+
+    private var legacyImported = false
+
+    private val helper = object : SQLiteOpenHelper(context, name, null, DATABASE_VERSION) {
+        override fun onConfigure(db: SQLiteDatabase) {
+            db.enableWriteAheadLogging()
+        }
+
+        override fun onCreate(db: SQLiteDatabase) {
+            db.execSQL(
+                """
+                CREATE TABLE $TABLE (
+                    $COL_UUID TEXT PRIMARY KEY NOT NULL,
+                    $COL_POSITION INTEGER NOT NULL,
+                    $COL_PAYLOAD BLOB NOT NULL,
+                    $COL_TYPE TEXT,
+                    $COL_QUEUED_TIME INTEGER NOT NULL DEFAULT 0,
+                    $COL_ATTEMPTS INTEGER NOT NULL DEFAULT 0
+                )
+                """.trimIndent()
+            )
+            db.execSQL("CREATE UNIQUE INDEX ${TABLE}_$COL_POSITION ON $TABLE ($COL_POSITION)")
+            db.execSQL("CREATE INDEX ${TABLE}_$COL_TYPE ON $TABLE ($COL_TYPE)")
+            db.execSQL("CREATE INDEX ${TABLE}_$COL_QUEUED_TIME ON $TABLE ($COL_QUEUED_TIME)")
+            db.execSQL("CREATE INDEX ${TABLE}_$COL_ATTEMPTS ON $TABLE ($COL_ATTEMPTS)")
+
+            importLegacy(db)
+        }
+
+        override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) = Unit
+    }
+
+    /**
+     * Open the database, clearing the legacy store once its queue has been committed here
+     */
+    private val database: SQLiteDatabase
+        get() = helper.writableDatabase.also {
+            if (legacyImported) {
+                legacyImported = false
+                legacyStore?.clear()
+            }
+        }
+
+    @Synchronized
+    override fun load(): List<QueueEntry> = tryOrDefault(emptyList()) {
+        val db = database
+        val entries = mutableListOf<QueueEntry>()
+        var lastPosition = Long.MIN_VALUE
+
+        do {
+            val pageSize = db.query(
+                TABLE,
+                arrayOf(COL_UUID, COL_PAYLOAD, COL_TYPE, COL_QUEUED_TIME, COL_ATTEMPTS, COL_POSITION),
+                "$COL_POSITION > ?",
+                arrayOf(lastPosition.toString()),
+                null,
+                null,
+                "$COL_POSITION ASC",
+                PAGE_SIZE.toString()
+            ).use { cursor ->
+                while (cursor.moveToNext()) {
+                    entries += QueueEntry(
+                        uuid = cursor.getString(0),
+                        payload = cursor.getBlob(1),
+                        type = cursor.getString(2),
+                        queuedTime = cursor.getLong(3),
+                        attempts = cursor.getInt(4)
+                    )
+                    lastPosition = cursor.getLong(5)
+                }
+                cursor.count
+            }
+        } while (pageSize == PAGE_SIZE)
+
+        Registry.log.verbose("Loaded ${entries.size} queued requests from SQLite")
+
+        entries
+    }
+
+    @Synchronized
+    override fun loadIndex(): List<String> = tryOrDefault(emptyList()) {
+        database.query(
+            TABLE,
+            arrayOf(COL_UUID),
+            null,
+            null,
+            null,
+            null,
+            "$COL_POSITION ASC"
+        ).use { cursor ->
+            List(cursor.count) {
+                cursor.moveToNext()
+                cursor.getString(0)
+            }
+        }
+    }
+
+    @Synchronized
+    override fun read(uuid: String): ByteArray? = tryOrDefault(null) {
+        database.query(
+            TABLE,
+            arrayOf(COL_PAYLOAD),
+            "$COL_UUID = ?",
+            arrayOf(uuid),
+            null,
+            null,
+            null
+        ).use { cursor ->
+            if (cursor.moveToFirst()) cursor.getBlob(0) else null
+        }
+    }
+
+    @Synchronized
+    override fun enqueue(entries: List<QueueEntry>, headOfLine: Boolean) = transaction {
+        insert(this, entries, headOfLine)
+    }
+
+    @Synchronized
+    override fun update(entry: QueueEntry) = transaction {
+        update(
+            TABLE,
+            ContentValues().apply {
+                put(COL_PAYLOAD, entry.payload)
+                put(COL_ATTEMPTS, entry.attempts)
+            },
+            "$COL_UUID = ?",
+            arrayOf(entry.uuid)
+        )
+    }
+
+    @Synchronized
+    override fun remove(uuids: Collection<String>) = transaction {
+        compileStatement("DELETE FROM $TABLE WHERE $COL_UUID = ?").use { statement ->
+            uuids.forEach { uuid ->
+                statement.bindString(1, uuid)
+                statement.executeUpdateDelete()
+            }
+        }
+    }
+
+    @Synchronized
+    override fun sync(order: List<String>) = transaction {
+        // Park existing rows out of the way of the unique position index, then renumber
+        execSQL("UPDATE $TABLE SET $COL_POSITION = -$COL_POSITION - 1 - ${Int.MAX_VALUE}")
+
+        compileStatement(
+            "UPDATE $TABLE SET $COL_POSITION = ? WHERE $COL_UUID = ?"
+        ).use { statement ->
+            order.forEachIndexed { i, uuid ->
+                statement.bindLong(1, i.toLong())
+                statement.bindString(2, uuid)
+                statement.executeUpdateDelete()
+            }
+        }
+
+        delete(TABLE, "$COL_POSITION < 0", null)
+    }
+
+    @Synchronized
+    override fun clear() = transaction {
+        delete(TABLE, null, null)
+    }
+
+    /**
+     * Insert new entries at the head or tail of the queue, ignoring any already present
+     */
+    private fun insert(db: SQLiteDatabase, entries: List<QueueEntry>, headOfLine: Boolean) {
+        val position = if (headOfLine) "MIN" else "MAX"
+        var next = db.compileStatement(
+            "SELECT COALESCE($position($COL_POSITION), 0) FROM $TABLE"
+        ).use { it.simpleQueryForLong() }
+
+        db.compileStatement(
+            "INSERT OR IGNORE INTO $TABLE " +
+                "($COL_UUID, $COL_POSITION, $COL_PAYLOAD, $COL_TYPE, $COL_QUEUED_TIME, $COL_ATTEMPTS) " +
+                "VALUES (?, ?, ?, ?, ?, ?)"
+        ).use { statement ->
+            // Walk head-of-line entries in reverse, so the first entry winds up first in line
+            val ordered = if (headOfLine) entries.asReversed() else entries
+            ordered.forEach { entry ->
+                next = if (headOfLine) next - 1 else next + 1
+                statement.clearBindings()
+                statement.bindString(1, entry.uuid)
+                statement.bindLong(2, next)
+                statement.bindBlob(3, entry.payload)
+                entry.type?.let { statement.bindString(4, it) } ?: statement.bindNull(4)
+                statement.bindLong(5, entry.queuedTime)
+                statement.bindLong(6, entry.attempts.toLong())
+                statement.executeInsert()
+            }
+        }
+    }
+
+    /**
+     * Import the legacy store's queue into a newly created database
+     */
+    private fun importLegacy(db: SQLiteDatabase) {
+        val entries = legacyStore?.load().orEmpty()
+        if (entries.isEmpty()) return
+
+        insert(db, entries, headOfLine = false)
+        legacyImported = true
+        Registry.log.verbose("Migrated ${entries.size} queued requests to SQLite")
+    }
+
+    /**
+     * Run the block in a single transaction, logging rather than throwing on failure
+     */
+    private inline fun transaction(block: SQLiteDatabase.() -> Unit) = tryOrDefault(Unit) {
+        val db = database
+        db.beginTransaction()
+        try {
+            db.block()
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    private inline fun <T> tryOrDefault(default: T, block: () -> T): T = try {
+        block()
+    } catch (e: SQLiteException) {
+        Registry.log.error("SQLite queue store failure", e)
+        default
+    }
+}
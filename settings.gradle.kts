@@ -19,7 +19,8 @@ include(
     ":sdk:forms-core",
     ":sdk:forms",
     ":sdk:location-core",
-    ":sdk:location"
+    ":sdk:location",
+    ":sdk:queue-sqlite"
 )
 
 if (System.getenv("JITPACK") != "true") {